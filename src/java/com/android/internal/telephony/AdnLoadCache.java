@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.uicc.AdnRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Background loads of ADN-like EFs for the non-blocking queries of IccProvider. While a load
+ * of an EF runs every query for it joins that load, and once it finished its records answer
+ * queries until they expire or the EF is written.
+ *
+ * {@hide}
+ */
+final class AdnLoadCache {
+    private static final String TAG = "AdnLoadCache";
+    private static final boolean DBG = false;
+
+    interface Loader {
+        /**
+         * Read the records of an EF, blocking until they are loaded.
+         *
+         * @return the records, or null if they cannot be read
+         */
+        List<AdnRecord> load(int efType, int subId);
+
+        /**
+         * Called on the loading thread once the records of an EF can be taken.
+         */
+        void onLoaded(int efType, int subId);
+    }
+
+    private final Loader mLoader;
+    private final Executor mExecutor;
+    // How long the records of a finished load answer queries
+    private final long mTtlMillis;
+    // Loads by subId and EF; guarded by itself
+    private final HashMap<String, Load> mLoads = new HashMap<String, Load>();
+
+    private final class Load implements Runnable {
+        final int mEfType;
+        final int mSubId;
+        List<AdnRecord> mRecords;
+        boolean mDone;
+        long mDoneTime;
+        // The EF was written since this load started reading it, so it has to read it again
+        boolean mStale;
+
+        Load(int efType, int subId) {
+            mEfType = efType;
+            mSubId = subId;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<AdnRecord> records = mLoader.load(mEfType, mSubId);
+                synchronized (mLoads) {
+                    if (!mStale) {
+                        mRecords = records != null ? records : new ArrayList<AdnRecord>();
+                        mDone = true;
+                        mDoneTime = SystemClock.elapsedRealtime();
+                        break;
+                    }
+                    // However many writes came in, one more read covers all of them
+                    mStale = false;
+                }
+                if (DBG) log("load: efType=" + mEfType + " written while loading, reload");
+            }
+            if (DBG) log("load done: efType=" + mEfType + ", subscription=" + mSubId);
+            mLoader.onLoaded(mEfType, mSubId);
+        }
+    }
+
+    AdnLoadCache(Loader loader, Executor executor, long ttlMillis) {
+        mLoader = loader;
+        mExecutor = executor;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the records of efType on subId if a load of them finished recently, otherwise
+     *         null after starting a load, or joining the one already running
+     */
+    List<AdnRecord> takeOrStartLoad(int efType, int subId) {
+        String key = getKey(efType, subId);
+        synchronized (mLoads) {
+            Load load = mLoads.get(key);
+            if (load != null && load.mDone) {
+                if (SystemClock.elapsedRealtime() - load.mDoneTime <= mTtlMillis) {
+                    return load.mRecords;
+                }
+                load = null;
+            }
+            if (load == null) {
+                load = new Load(efType, subId);
+                mLoads.put(key, load);
+                mExecutor.execute(load);
+            } else {
+                if (DBG) log("takeOrStartLoad: joining load of efType=" + efType);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Forget the records of efType on subId after it was written. A load still running is
+     * kept for queries to join; it reads the EF again before it finishes.
+     */
+    void invalidate(int efType, int subId) {
+        String key = getKey(efType, subId);
+        synchronized (mLoads) {
+            Load load = mLoads.get(key);
+            if (load == null) return;
+            if (load.mDone) {
+                mLoads.remove(key);
+            } else {
+                load.mStale = true;
+            }
+        }
+    }
+
+    private static String getKey(int efType, int subId) {
+        return subId + "/" + efType;
+    }
+
+    private static void log(String msg) {
+        Rlog.d(TAG, msg);
+    }
+}
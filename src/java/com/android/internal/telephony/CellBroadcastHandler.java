@@ -22,17 +22,42 @@ import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Telephony;
+import android.telephony.SmsCbLocation;
 import android.telephony.SubscriptionManager;
 import android.telephony.SmsCbMessage;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Dispatch new Cell Broadcasts to receivers. Acquires a private wakelock until the broadcast
  * completes and our result receiver is called.
  */
 public class CellBroadcastHandler extends WakeLockStateMachine {
 
+    /**
+     * Repeats of a broadcast received within this window are dropped. The network rebroadcasts
+     * the same emergency message periodically; a changed update number gives a new serial number,
+     * so real updates are still delivered.
+     */
+    private static final long DUPLICATE_DETECTION_WINDOW_MS = 24 * 60 * 60 * 1000;
+
+    /** Maximum number of recently delivered broadcasts remembered for duplicate detection. */
+    private static final int MAX_DUPLICATE_DETECTION_ENTRIES = 256;
+
+    /** Recently delivered broadcasts, mapped to the elapsed realtime of first delivery. */
+    private final LinkedHashMap<DuplicateCheckKey, Long> mRecentBroadcasts =
+            new LinkedHashMap<DuplicateCheckKey, Long>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<DuplicateCheckKey, Long> eldest) {
+                    return size() > MAX_DUPLICATE_DETECTION_ENTRIES;
+                }
+            };
+
     private CellBroadcastHandler(Context context, PhoneBase phone) {
         this("CellBroadcastHandler", context, phone);
     }
@@ -62,7 +87,14 @@ public class CellBroadcastHandler extends WakeLockStateMachine {
     @Override
     protected boolean handleSmsMessage(Message message) {
         if (message.obj instanceof SmsCbMessage) {
-            handleBroadcastSms((SmsCbMessage) message.obj);
+            SmsCbMessage cbMessage = (SmsCbMessage) message.obj;
+            if (isDuplicateBroadcast(cbMessage.getSerialNumber(), cbMessage.getServiceCategory(),
+                    cbMessage.getLocation(), false)) {
+                return false;
+            }
+            addRecentBroadcast(cbMessage.getSerialNumber(), cbMessage.getServiceCategory(),
+                    cbMessage.getLocation(), false);
+            handleBroadcastSms(cbMessage);
             return true;
         } else {
             loge("handleMessage got object of type: " + message.obj.getClass().getName());
@@ -95,4 +127,87 @@ public class CellBroadcastHandler extends WakeLockStateMachine {
         mContext.sendOrderedBroadcastAsUser(intent, UserHandle.ALL, receiverPermission, appOp,
                 mReceiver, getHandler(), Activity.RESULT_OK, null, null);
     }
+
+    /**
+     * Check whether a broadcast with the same serial number, message identifier and location
+     * was already delivered within {@link #DUPLICATE_DETECTION_WINDOW_MS}. Expired entries are
+     * pruned as a side effect.
+     *
+     * @param serialNumber the serial number, including geographical scope and update number
+     * @param serviceCategory the message identifier (3GPP) or service category (3GPP2)
+     * @param location the location the message was received in
+     * @param isEtwsPrimary true for an ETWS primary notification, which shares its serial
+     *        number and message identifier with the secondary notification that follows it
+     * @return true if the broadcast is a repeat and should be dropped
+     */
+    protected boolean isDuplicateBroadcast(int serialNumber, int serviceCategory,
+            SmsCbLocation location, boolean isEtwsPrimary) {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Long> iter = mRecentBroadcasts.values().iterator();
+        while (iter.hasNext()) {
+            // entries are kept in insertion order, so stop at the first unexpired one
+            if (now - iter.next() < DUPLICATE_DETECTION_WINDOW_MS) {
+                break;
+            }
+            iter.remove();
+        }
+
+        if (mRecentBroadcasts.containsKey(new DuplicateCheckKey(serialNumber, serviceCategory,
+                location, isEtwsPrimary))) {
+            if (DBG) {
+                log("Dropping duplicate SMS CB: serial=" + serialNumber + " category="
+                        + serviceCategory + " location=" + location);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember a delivered broadcast so that repeats can be dropped by
+     * {@link #isDuplicateBroadcast}.
+     */
+    protected void addRecentBroadcast(int serialNumber, int serviceCategory,
+            SmsCbLocation location, boolean isEtwsPrimary) {
+        mRecentBroadcasts.put(new DuplicateCheckKey(serialNumber, serviceCategory, location,
+                isEtwsPrimary), SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Identifies a broadcast for duplicate detection.
+     */
+    private static final class DuplicateCheckKey {
+        private final int mSerialNumber;
+        private final int mServiceCategory;
+        private final SmsCbLocation mLocation;
+        private final boolean mIsEtwsPrimary;
+
+        DuplicateCheckKey(int serialNumber, int serviceCategory, SmsCbLocation location,
+                boolean isEtwsPrimary) {
+            mSerialNumber = serialNumber;
+            mServiceCategory = serviceCategory;
+            mLocation = location;
+            mIsEtwsPrimary = isEtwsPrimary;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (mSerialNumber * 31) + mServiceCategory;
+            hash = (hash * 31) + (mLocation != null ? mLocation.hashCode() : 0);
+            return (hash * 31) + (mIsEtwsPrimary ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof DuplicateCheckKey) {
+                DuplicateCheckKey other = (DuplicateCheckKey) obj;
+                return mSerialNumber == other.mSerialNumber
+                        && mServiceCategory == other.mServiceCategory
+                        && mIsEtwsPrimary == other.mIsEtwsPrimary
+                        && (mLocation == null ? other.mLocation == null
+                                : mLocation.equals(other.mLocation));
+            }
+            return false;
+        }
+    }
 }
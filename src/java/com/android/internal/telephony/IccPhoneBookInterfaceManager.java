@@ -25,6 +25,7 @@ import android.os.Message;
 import android.os.ServiceManager;
 import android.telephony.Rlog;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import com.android.internal.telephony.uicc.AdnRecord;
 import com.android.internal.telephony.uicc.AdnRecordCache;
@@ -52,13 +53,24 @@ public abstract class IccPhoneBookInterfaceManager {
     protected boolean mSuccess;
     private   boolean mIs3gCard = false;  // flag to determine if card is 3G or 2G
     protected List<AdnRecord> mRecords;
-
+    // Loads in flight by EF id, shared by every reader of that EF; guarded by mLock
+    private final SparseArray<AdnLoad> mAdnLoads = new SparseArray<AdnLoad>();
 
     protected static final boolean ALLOW_SIM_OP_IN_UI_THREAD = false;
 
     protected static final int EVENT_GET_SIZE_DONE = 1;
     protected static final int EVENT_LOAD_DONE = 2;
     protected static final int EVENT_UPDATE_DONE = 3;
+    private static final int EVENT_LOAD_ADN_DONE = 4;
+
+    /**
+     * A load of an ADN-like EF that concurrent readers wait on together, on the load itself
+     * rather than on mLock, so they do not hold up updates or size queries.
+     */
+    private static final class AdnLoad {
+        List<AdnRecord> mRecords;
+        boolean mDone;
+    }
 
     protected Handler mBaseHandler = new Handler() {
         @Override
@@ -102,6 +114,27 @@ public abstract class IccPhoneBookInterfaceManager {
                         notifyPending(ar);
                     }
                     break;
+                case EVENT_LOAD_ADN_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    AdnLoad load = (AdnLoad) ar.userObj;
+                    List<AdnRecord> records = null;
+                    if (ar.exception == null) {
+                        records = (List<AdnRecord>) ar.result;
+                    } else {
+                        if (DBG) logd("Cannot load ADN records");
+                    }
+                    synchronized (mLock) {
+                        if (mAdnLoads.get(msg.arg1) == load) {
+                            mAdnLoads.remove(msg.arg1);
+                        }
+                        mRecords = records;
+                    }
+                    synchronized (load) {
+                        load.mRecords = records;
+                        load.mDone = true;
+                        load.notifyAll();
+                    }
+                    break;
             }
         }
 
@@ -364,6 +397,8 @@ public abstract class IccPhoneBookInterfaceManager {
      *
      * throws SecurityException if no READ_CONTACTS permission
      *
+     * Concurrent calls for the same efid share one load of the EF.
+     *
      * @param efid the EF id of a ADN-like ICC
      * @return List of AdnRecord
      */
@@ -379,19 +414,35 @@ public abstract class IccPhoneBookInterfaceManager {
         efid = updateEfForIccType(efid);
         if (DBG) logd("getAdnRecordsInEF: efid=" + efid);
 
+        AdnLoad load;
         synchronized(mLock) {
             checkThread();
-            AtomicBoolean status = new AtomicBoolean(false);
-            Message response = mBaseHandler.obtainMessage(EVENT_LOAD_DONE, status);
-            if (mAdnCache != null) {
+            if (mAdnCache == null) {
+                loge("Failure while trying to load from SIM due to uninitialised adncache");
+                return mRecords;
+            }
+            load = mAdnLoads.get(efid);
+            if (load == null) {
+                load = new AdnLoad();
+                mAdnLoads.put(efid, load);
+                Message response = mBaseHandler.obtainMessage(EVENT_LOAD_ADN_DONE, efid, 0,
+                        load);
                 mAdnCache.requestLoadAllAdnLike(efid,
                         mAdnCache.extensionEfForEf(efid), null, response);
-                waitForResult(status);
             } else {
-                loge("Failure while trying to load from SIM due to uninitialised adncache");
+                if (DBG) logd("getAdnRecordsInEF: joining load of efid=" + efid);
+            }
+        }
+        synchronized (load) {
+            while (!load.mDone) {
+                try {
+                    load.wait();
+                } catch (InterruptedException e) {
+                    logd("interrupted while waiting for ADN load");
+                }
             }
+            return load.mRecords;
         }
-        return mRecords;
     }
 
     protected void checkThread() {
@@ -16,13 +16,18 @@
 
 package com.android.internal.telephony;
 
+import android.Manifest;
 import android.content.ContentProvider;
 import android.content.UriMatcher;
 import android.content.ContentValues;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.MergeCursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.telephony.SubscriptionInfo;
@@ -72,6 +77,23 @@ public class IccProvider extends ContentProvider {
     public static final String STR_NEW_ANRS = "newAnrs";
     public static final String STR_PIN2 = "pin2";
 
+    /**
+     * Query parameter asking for a query that does not wait for the SIM. Such a query returns
+     * the records of every EF loaded so far, with {@link #EXTRA_LOADING} set while a load is
+     * still running in the background. Records are read from the SIM a whole EF at a time, so
+     * rows arrive one EF, or one subscription for adn/adn_all, at a time: the query URI is
+     * notified as each EF finishes loading, after which a new query returns its records
+     * without SIM I/O.
+     */
+    public static final String PARAM_NON_BLOCKING = "nonblocking";
+    /** Boolean cursor extra set while records of a non-blocking query are still loading. */
+    public static final String EXTRA_LOADING = "loading";
+
+    // How long the records of a finished background load answer non-blocking queries
+    private static final long LOAD_RESULT_TTL_MS = 10 * 1000;
+    // Notified when a background load finishes; covers every query URI a load may answer
+    private static final Uri LOADED_NOTIFY_URI = Uri.parse("content://icc");
+
     private static final UriMatcher URL_MATCHER =
                             new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -87,9 +109,41 @@ public class IccProvider extends ContentProvider {
 
     private SubscriptionManager mSubscriptionManager;
 
+    // Background loads for non-blocking queries
+    private AdnLoadCache mAdnLoads;
+
+    /**
+     * Cursor of a non-blocking query, reporting through its extras whether rows are still to
+     * come.
+     */
+    private static final class LoadingCursor extends CursorWrapper {
+        private final Bundle mExtras = new Bundle();
+
+        LoadingCursor(Cursor cursor, boolean loading) {
+            super(cursor);
+            mExtras.putBoolean(EXTRA_LOADING, loading);
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+
     @Override
     public boolean onCreate() {
         mSubscriptionManager = SubscriptionManager.from(getContext());
+        mAdnLoads = new AdnLoadCache(new AdnLoadCache.Loader() {
+            @Override
+            public List<AdnRecord> load(int efType, int subId) {
+                return getAdnRecords(efType, subId);
+            }
+
+            @Override
+            public void onLoaded(int efType, int subId) {
+                getContext().getContentResolver().notifyChange(LOADED_NOTIFY_URI, null);
+            }
+        }, AsyncTask.THREAD_POOL_EXECUTOR, LOAD_RESULT_TTL_MS);
         return true;
     }
 
@@ -98,6 +152,10 @@ public class IccProvider extends ContentProvider {
             String[] selectionArgs, String sort) {
         if (DBG) log("query");
 
+        if (url.getBooleanQueryParameter(PARAM_NON_BLOCKING, false)) {
+            return nonBlockingQuery(url);
+        }
+
         switch (URL_MATCHER.match(url)) {
             case ADN:
                 return loadFromEf(IccConstants.EF_ADN, SubscriptionManager.getDefaultSubId());
@@ -125,6 +183,84 @@ public class IccProvider extends ContentProvider {
         }
     }
 
+    private Cursor nonBlockingQuery(Uri url) {
+        int efType;
+        int[] subIds;
+
+        switch (URL_MATCHER.match(url)) {
+            case ADN:
+                efType = IccConstants.EF_ADN;
+                subIds = new int[] { SubscriptionManager.getDefaultSubId() };
+                break;
+
+            case ADN_SUB:
+                efType = IccConstants.EF_ADN;
+                subIds = new int[] { getRequestSubId(url) };
+                break;
+
+            case FDN:
+                efType = IccConstants.EF_FDN;
+                subIds = new int[] { SubscriptionManager.getDefaultSubId() };
+                break;
+
+            case FDN_SUB:
+                efType = IccConstants.EF_FDN;
+                subIds = new int[] { getRequestSubId(url) };
+                break;
+
+            case SDN:
+                efType = IccConstants.EF_SDN;
+                subIds = new int[] { SubscriptionManager.getDefaultSubId() };
+                break;
+
+            case SDN_SUB:
+                efType = IccConstants.EF_SDN;
+                subIds = new int[] { getRequestSubId(url) };
+                break;
+
+            case ADN_ALL:
+                efType = IccConstants.EF_ADN;
+                List<SubscriptionInfo> subInfoList =
+                        mSubscriptionManager.getActiveSubscriptionInfoList();
+                int count = subInfoList == null ? 0 : subInfoList.size();
+                subIds = new int[count];
+                for (int i = 0; i < count; i++) {
+                    subIds[i] = subInfoList.get(i).getSubscriptionId();
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown URL " + url);
+        }
+
+        // The background loads run as the phone process and their records answer any caller,
+        // so check the caller here the way IccPhoneBookInterfaceManager does for blocking
+        // queries, which then get no records either.
+        if (getContext().checkCallingOrSelfPermission(Manifest.permission.READ_CONTACTS)
+                != PackageManager.PERMISSION_GRANTED) {
+            if (DBG) log("nonBlockingQuery: caller lacks READ_CONTACTS");
+            return new LoadingCursor(new MatrixCursor(ADDRESS_BOOK_COLUMN_NAMES), false);
+        }
+
+        Cursor[] result = new Cursor[subIds.length];
+        boolean loading = false;
+        for (int i = 0; i < subIds.length; i++) {
+            List<AdnRecord> records = mAdnLoads.takeOrStartLoad(efType, subIds[i]);
+            if (records == null) {
+                loading = true;
+                result[i] = new MatrixCursor(ADDRESS_BOOK_COLUMN_NAMES);
+            } else {
+                result[i] = toCursor(records);
+            }
+        }
+        if (DBG) log("nonBlockingQuery: efType=" + efType + ", loading=" + loading);
+
+        Cursor cursor = new LoadingCursor(
+                result.length == 1 ? result[0] : new MergeCursor(result), loading);
+        cursor.setNotificationUri(getContext().getContentResolver(), url);
+        return cursor;
+    }
+
     private Cursor loadAllSimContacts(int efType) {
         Cursor [] result;
         List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList();
@@ -246,6 +382,7 @@ public class IccProvider extends ContentProvider {
 
         resultUri = Uri.parse(buf.toString());
 
+        mAdnLoads.invalidate(efType, subId);
         getContext().getContentResolver().notifyChange(url, null);
         /*
         // notify interested parties that an insertion happened
@@ -360,6 +497,7 @@ public class IccProvider extends ContentProvider {
             return 0;
         }
 
+        mAdnLoads.invalidate(efType, subId);
         getContext().getContentResolver().notifyChange(url, null);
         return 1;
     }
@@ -414,6 +552,7 @@ public class IccProvider extends ContentProvider {
             return 0;
         }
 
+        mAdnLoads.invalidate(efType, subId);
         getContext().getContentResolver().notifyChange(url, null);
         return 1;
     }
@@ -421,6 +560,17 @@ public class IccProvider extends ContentProvider {
     private MatrixCursor loadFromEf(int efType, int subId) {
         if (DBG) log("loadFromEf: efType=" + efType + ", subscription=" + subId);
 
+        List<AdnRecord> adnRecords = getAdnRecords(efType, subId);
+        if (adnRecords != null) {
+            return toCursor(adnRecords);
+        } else {
+            // No results to load
+            Rlog.w(TAG, "Cannot load ADN records");
+            return new MatrixCursor(ADDRESS_BOOK_COLUMN_NAMES);
+        }
+    }
+
+    private List<AdnRecord> getAdnRecords(int efType, int subId) {
         List<AdnRecord> adnRecords = null;
         try {
             IIccPhoneBook iccIpb = IIccPhoneBook.Stub.asInterface(
@@ -433,21 +583,17 @@ public class IccProvider extends ContentProvider {
         } catch (SecurityException ex) {
             if (DBG) log(ex.toString());
         }
+        return adnRecords;
+    }
 
-        if (adnRecords != null) {
-            // Load the results
-            final int N = adnRecords.size();
-            final MatrixCursor cursor = new MatrixCursor(ADDRESS_BOOK_COLUMN_NAMES, N);
-            log("adnRecords.size=" + N);
-            for (int i = 0; i < N ; i++) {
-                loadRecord(adnRecords.get(i), cursor, i);
-            }
-            return cursor;
-        } else {
-            // No results to load
-            Rlog.w(TAG, "Cannot load ADN records");
-            return new MatrixCursor(ADDRESS_BOOK_COLUMN_NAMES);
+    private MatrixCursor toCursor(List<AdnRecord> adnRecords) {
+        final int N = adnRecords.size();
+        final MatrixCursor cursor = new MatrixCursor(ADDRESS_BOOK_COLUMN_NAMES, N);
+        log("adnRecords.size=" + N);
+        for (int i = 0; i < N ; i++) {
+            loadRecord(adnRecords.get(i), cursor, i);
         }
+        return cursor;
     }
 
     private boolean
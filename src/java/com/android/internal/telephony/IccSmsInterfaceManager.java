@@ -66,12 +66,19 @@ public class IccSmsInterfaceManager {
 
     protected final Object mLock = new Object();
     protected boolean mSuccess;
-    private List<SmsRawData> mSms;
     private String mSmscAddress = null;
     private boolean mSmscSuccess = false;
     private final Object mGetSmscLock = new Object();
     private final Object mSetSmscLock = new Object();
 
+    // In-memory copy of the EF_SMS records, updated by write-through; guarded by mSmsLock.
+    private final Object mSmsLock = new Object();
+    private ArrayList<byte[]> mSmsMirror;
+    // Bumped on every change to the SIM, so a load started before it cannot become the mirror
+    private int mSmsMirrorVersion;
+    private SmsLoad mSmsLoad;
+    private IccRecords mSmsIccRecords;
+
     private CellBroadcastRangeManager mCellBroadcastRangeManager =
             new CellBroadcastRangeManager();
     private CdmaBroadcastRangeManager mCdmaBroadcastRangeManager =
@@ -83,6 +90,9 @@ public class IccSmsInterfaceManager {
     protected static final int EVENT_SET_BROADCAST_CONFIG_DONE = 4;
     protected static final int EVENT_GET_SMSC_ADDRESS_DONE = 5;
     protected static final int EVENT_SET_SMSC_ADDRESS_DONE = 6;
+    private static final int EVENT_ICC_REFRESH = 7;
+    private static final int EVENT_NEW_ICC_SMS = 8;
+    private static final int EVENT_ICC_CHANGED = 9;
     private static final int SMS_CB_CODE_SCHEME_MIN = 0;
     private static final int SMS_CB_CODE_SCHEME_MAX = 255;
 
@@ -92,6 +102,34 @@ public class IccSmsInterfaceManager {
     final private UserManager mUserManager;
     protected SMSDispatcher mDispatcher;
 
+    /**
+     * A load of EF_SMS that concurrent callers of getAllMessagesFromIccEf() wait on together.
+     */
+    private static final class SmsLoad {
+        final int mVersion;
+        ArrayList<byte[]> mRecords;
+        boolean mDone;
+
+        SmsLoad(int version) {
+            mVersion = version;
+        }
+    }
+
+    /**
+     * A record written to EF_SMS, applied to the mirror once the write succeeds. A negative
+     * index stands for the record index returned by the write, a null record for unknown
+     * contents.
+     */
+    private static final class SmsWrite {
+        final int mIndex;
+        final byte[] mRecord;
+
+        SmsWrite(int index, byte[] record) {
+            mIndex = index;
+            mRecord = record;
+        }
+    }
+
     protected Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -100,6 +138,15 @@ public class IccSmsInterfaceManager {
             switch (msg.what) {
                 case EVENT_UPDATE_DONE:
                     ar = (AsyncResult) msg.obj;
+                    if (ar.exception == null && ar.userObj instanceof SmsWrite) {
+                        SmsWrite write = (SmsWrite) ar.userObj;
+                        int index = write.mIndex;
+                        if (index < 0 && ar.result instanceof int[]
+                                && ((int[]) ar.result).length > 0) {
+                            index = ((int[]) ar.result)[0];
+                        }
+                        updateSmsMirror(index, write.mRecord);
+                    }
                     synchronized (mLock) {
                         mSuccess = (ar.exception == null);
                         mLock.notifyAll();
@@ -107,20 +154,39 @@ public class IccSmsInterfaceManager {
                     break;
                 case EVENT_LOAD_DONE:
                     ar = (AsyncResult)msg.obj;
-                    synchronized (mLock) {
-                        if (ar.exception == null) {
-                            mSms = buildValidRawData((ArrayList<byte[]>) ar.result);
-                            //Mark SMS as read after importing it from card.
-                            markMessagesAsRead((ArrayList<byte[]>) ar.result);
-                        } else {
-                            if (Rlog.isLoggable("SMS", Log.DEBUG)) {
-                                log("Cannot load Sms records");
-                            }
-                            if (mSms != null)
-                                mSms.clear();
+                    SmsLoad load = (SmsLoad) ar.userObj;
+                    ArrayList<byte[]> records = null;
+                    if (ar.exception == null) {
+                        records = (ArrayList<byte[]>) ar.result;
+                    } else {
+                        if (Rlog.isLoggable("SMS", Log.DEBUG)) {
+                            log("Cannot load Sms records");
                         }
-                        mLock.notifyAll();
                     }
+                    synchronized (mSmsLock) {
+                        if (mSmsLoad == load) {
+                            mSmsLoad = null;
+                        }
+                        if (records != null && load.mVersion == mSmsMirrorVersion) {
+                            mSmsMirror = new ArrayList<byte[]>(records);
+                        }
+                    }
+                    //Mark SMS as read after importing it from card.
+                    markMessagesAsRead(records);
+                    synchronized (load) {
+                        load.mRecords = records;
+                        load.mDone = true;
+                        load.notifyAll();
+                    }
+                    break;
+                case EVENT_ICC_REFRESH:
+                    invalidateSmsMirror("SIM refresh");
+                    break;
+                case EVENT_NEW_ICC_SMS:
+                    invalidateSmsMirror("new SMS on SIM");
+                    break;
+                case EVENT_ICC_CHANGED:
+                    invalidateSmsMirror("ICC changed");
                     break;
                 case EVENT_SET_BROADCAST_ACTIVATION_DONE:
                 case EVENT_SET_BROADCAST_CONFIG_DONE:
@@ -162,6 +228,8 @@ public class IccSmsInterfaceManager {
         mUserManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
         mDispatcher = new ImsSMSDispatcher(phone,
                 phone.mSmsStorageMonitor, phone.mSmsUsageMonitor);
+        mPhone.mCi.registerForIccRefresh(mHandler, EVENT_ICC_REFRESH, null);
+        UiccController.getInstance().registerForIccChanged(mHandler, EVENT_ICC_CHANGED, null);
     }
 
     protected void markMessagesAsRead(ArrayList<byte[]> messages) {
@@ -190,6 +258,7 @@ public class IccSmsInterfaceManager {
                  System.arraycopy(ba, 1, nba, 0, n - 1);
                  byte[] record = makeSmsRecordData(STATUS_ON_ICC_READ, nba);
                  fh.updateEFLinearFixed(IccConstants.EF_SMS, i + 1, record, null, null);
+                 updateSmsMirror(i + 1, record);
                  if (Rlog.isLoggable("SMS", Log.DEBUG)) {
                      log("SMS " + (i + 1) + " marked as read");
                  }
@@ -198,8 +267,56 @@ public class IccSmsInterfaceManager {
     }
 
     protected void updatePhoneObject(PhoneBase phone) {
+        mPhone.mCi.unregisterForIccRefresh(mHandler);
         mPhone = phone;
+        mPhone.mCi.registerForIccRefresh(mHandler, EVENT_ICC_REFRESH, null);
         mDispatcher.updatePhoneObject(phone);
+        invalidateSmsMirror("phone object updated");
+    }
+
+    /*
+     * Applies a record written to EF_SMS at index to the mirror. A null record or an index
+     * outside the mirror drops the mirror instead.
+     */
+    private void updateSmsMirror(int index, byte[] record) {
+        synchronized (mSmsLock) {
+            // A load in flight may have read the record before this write
+            mSmsMirrorVersion++;
+            if (mSmsMirror == null) {
+                return;
+            }
+            if (record == null || index < 1 || index > mSmsMirror.size()) {
+                if (DBG) log("updateSmsMirror: cannot apply index=" + index);
+                mSmsMirror = null;
+                return;
+            }
+            mSmsMirror.set(index - 1, record);
+        }
+    }
+
+    private void invalidateSmsMirror(String reason) {
+        synchronized (mSmsLock) {
+            if (DBG) log("invalidateSmsMirror: " + reason);
+            mSmsMirror = null;
+            mSmsMirrorVersion++;
+        }
+    }
+
+    /*
+     * Makes sure new SMS stored on the current SIM drop the mirror. Called with mSmsLock held.
+     */
+    private void trackNewIccSms() {
+        IccRecords iccRecords = mPhone.getIccRecords();
+        if (iccRecords == mSmsIccRecords) {
+            return;
+        }
+        if (mSmsIccRecords != null) {
+            mSmsIccRecords.unregisterForNewSms(mHandler);
+        }
+        mSmsIccRecords = iccRecords;
+        if (iccRecords != null) {
+            iccRecords.registerForNewSms(mHandler, EVENT_NEW_ICC_SMS, null);
+        }
     }
 
     protected void enforceReceiveAndSend(String message) {
@@ -233,9 +350,11 @@ public class IccSmsInterfaceManager {
         }
         synchronized(mLock) {
             mSuccess = false;
-            Message response = mHandler.obtainMessage(EVENT_UPDATE_DONE);
+            Message response;
 
             if (status == STATUS_ON_ICC_FREE) {
+                response = mHandler.obtainMessage(EVENT_UPDATE_DONE, new SmsWrite(index,
+                        makeSmsRecordData(STATUS_ON_ICC_FREE, new byte[0])));
                 // RIL_REQUEST_DELETE_SMS_ON_SIM vs RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM
                 // Special case FREE: call deleteSmsOnSim/Ruim instead of
                 // manipulating the record
@@ -249,10 +368,11 @@ public class IccSmsInterfaceManager {
                 //IccFilehandler can be null if ICC card is not present.
                 IccFileHandler fh = mPhone.getIccFileHandler();
                 if (fh == null) {
-                    response.recycle();
                     return mSuccess; /* is false */
                 }
                 byte[] record = makeSmsRecordData(status, pdu);
+                response = mHandler.obtainMessage(EVENT_UPDATE_DONE,
+                        new SmsWrite(index, record));
                 fh.updateEFLinearFixed(
                         IccConstants.EF_SMS,
                         index, record, null, response);
@@ -287,7 +407,8 @@ public class IccSmsInterfaceManager {
         }
         synchronized(mLock) {
             mSuccess = false;
-            Message response = mHandler.obtainMessage(EVENT_UPDATE_DONE);
+            Message response = mHandler.obtainMessage(EVENT_UPDATE_DONE,
+                    new SmsWrite(-1, makeCopiedSmsRecord(status, pdu, smsc)));
 
             //RIL_REQUEST_WRITE_SMS_TO_SIM vs RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM
             if (PhoneConstants.PHONE_TYPE_GSM == mPhone.getPhoneType()) {
@@ -307,12 +428,34 @@ public class IccSmsInterfaceManager {
         return mSuccess;
     }
 
+    /*
+     * Returns the EF_SMS record a copy to the SIM stores, or null if it depends on the modem:
+     * the default SMSC is filled in by the modem, and the record index of a RUIM write is not
+     * known to match the EF_SMS record number.
+     */
+    private byte[] makeCopiedSmsRecord(int status, byte[] pdu, byte[] smsc) {
+        if (PhoneConstants.PHONE_TYPE_GSM != mPhone.getPhoneType()
+                || smsc == null || smsc.length == 0) {
+            return null;
+        }
+        byte[] smscPdu = new byte[smsc.length + pdu.length];
+        System.arraycopy(smsc, 0, smscPdu, 0, smsc.length);
+        System.arraycopy(pdu, 0, smscPdu, smsc.length, pdu.length);
+        if (smscPdu.length >= IccConstants.SMS_RECORD_LENGTH) {
+            return null;
+        }
+        return makeSmsRecordData(status, smscPdu);
+    }
+
     public void synthesizeMessages(String originatingAddress, String scAddress, List<String> messages, long timestampMillis) throws RemoteException {
     }
 
     /**
      * Retrieves all messages currently stored on Icc.
      *
+     * Messages are answered from an in-memory copy of EF_SMS once it has been read; concurrent
+     * callers before then share one load.
+     *
      * @return list of SmsRawData of all sms on Icc
      */
 
@@ -322,27 +465,42 @@ public class IccSmsInterfaceManager {
         mContext.enforceCallingOrSelfPermission(
                 Manifest.permission.RECEIVE_SMS,
                 "Reading messages from Icc");
-        synchronized(mLock) {
 
-            IccFileHandler fh = mPhone.getIccFileHandler();
-            if (fh == null) {
-                Rlog.e(LOG_TAG, "Cannot load Sms records. No icc card?");
-                if (mSms != null) {
-                    mSms.clear();
-                    return mSms;
+        ArrayList<byte[]> records = null;
+        SmsLoad load;
+        synchronized (mSmsLock) {
+            trackNewIccSms();
+            if (mSmsMirror != null) {
+                if (DBG) log("getAllMessagesFromEF: from mirror");
+                records = new ArrayList<byte[]>(mSmsMirror);
+            }
+            load = mSmsLoad;
+            if (records == null && load == null) {
+                IccFileHandler fh = mPhone.getIccFileHandler();
+                if (fh == null) {
+                    Rlog.e(LOG_TAG, "Cannot load Sms records. No icc card?");
+                    return new ArrayList<SmsRawData>();
                 }
+                load = new SmsLoad(mSmsMirrorVersion);
+                mSmsLoad = load;
+                fh.loadEFLinearFixedAll(IccConstants.EF_SMS,
+                        mHandler.obtainMessage(EVENT_LOAD_DONE, load));
             }
+        }
+        if (records != null) {
+            return buildValidRawData(records);
+        }
 
-            Message response = mHandler.obtainMessage(EVENT_LOAD_DONE);
-            fh.loadEFLinearFixedAll(IccConstants.EF_SMS, response);
-
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                log("interrupted while trying to load from the Icc");
+        synchronized (load) {
+            while (!load.mDone) {
+                try {
+                    load.wait();
+                } catch (InterruptedException e) {
+                    log("interrupted while trying to load from the Icc");
+                }
             }
         }
-        return mSms;
+        return load.mRecords == null ? null : buildValidRawData(load.mRecords);
     }
 
     /**
@@ -17,11 +17,11 @@
 package com.android.internal.telephony;
 
 import android.telephony.Rlog;
-import android.util.Pair;
 import android.text.TextUtils;
 
-import java.util.Random;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
  * Retry manager allows a simple way to declare a series of
@@ -69,6 +69,9 @@ import java.util.ArrayList;
  * others will be at 3000.
  * <ul><li><code>"max_retries=infinite,1000,2000,3000</code></ul>
  * </ul>
+ *<p>
+ * A configuration string is parsed once per process into an immutable {@link Policy}
+ * shared by every RetryManager configured with it.
  *
  * {@hide}
  */
@@ -78,20 +81,38 @@ public class RetryManager {
     static public final boolean VDBG = false;
 
     /**
-     * Retry record with times in milli-seconds
+     * Compiled configuration: the retry times in milli-seconds and the retry limits it
+     * declares. Immutable, so instances are shared by all RetryManagers with the same config.
      */
-    private static class RetryRec {
-        RetryRec(int delayTime, int randomizationTime) {
-            mDelayTime = delayTime;
-            mRandomizationTime = randomizationTime;
+    private static final class Policy {
+        final int[] mDelayTimes;
+        final int[] mRandomizationTimes;
+        final int mMaxRetryCount;
+        final boolean mRetryForever;
+
+        Policy(int[] delayTimes, int[] randomizationTimes, int maxRetryCount,
+                boolean retryForever) {
+            mDelayTimes = delayTimes;
+            mRandomizationTimes = randomizationTimes;
+            mMaxRetryCount = maxRetryCount;
+            mRetryForever = retryForever;
         }
-
-        int mDelayTime;
-        int mRandomizationTime;
     }
 
-    /** The array of retry records */
-    private ArrayList<RetryRec> mRetryArray = new ArrayList<RetryRec>();
+    /** Policy of a RetryManager that has not been configured */
+    private static final Policy EMPTY_POLICY = new Policy(new int[0], new int[0], 0, false);
+
+    /** Marks a configuration string that failed to parse in sPolicies */
+    private static final Policy INVALID_POLICY = new Policy(new int[0], new int[0], 0, false);
+
+    /** Compiled policies by configuration string, guarded by itself */
+    private static final HashMap<String, Policy> sPolicies = new HashMap<String, Policy>();
+
+    /** Random number generator, shared as it is only used for jitter */
+    private static final Random sRng = new Random();
+
+    /** The retry times this manager steps through */
+    private Policy mPolicy = EMPTY_POLICY;
 
     /** When true isRetryNeeded() will always return true */
     private boolean mRetryForever;
@@ -107,9 +128,6 @@ public class RetryManager {
     /** The current number of retries */
     private int mRetryCount;
 
-    /** Random number generator */
-    private Random mRng = new Random();
-
     private String mConfig;
 
     /** Constructor */
@@ -122,8 +140,8 @@ public class RetryManager {
         String ret = "RetryManager: { forever=" + mRetryForever + " maxRetry=" + mMaxRetryCount
                 + " curMaxRetry=" + mCurMaxRetryCount + " retry=" + mRetryCount
                 + " config={" + mConfig + "} retryArray={";
-        for (RetryRec r : mRetryArray) {
-            ret += r.mDelayTime + ":" + r.mRandomizationTime + " ";
+        for (int i = 0; i < mPolicy.mDelayTimes.length; i++) {
+            ret += mPolicy.mDelayTimes[i] + ":" + mPolicy.mRandomizationTimes[i] + " ";
         }
         ret += "}}";
         return ret;
@@ -142,8 +160,6 @@ public class RetryManager {
      * @return true if successful
      */
     public boolean configure(int maxRetryCount, int retryTime, int randomizationTime) {
-        Pair<Boolean, Integer> value;
-
         if (VDBG) log("configure: " + maxRetryCount + ", " + retryTime + "," + randomizationTime);
 
         if (!validateNonNegativeInt("maxRetryCount", maxRetryCount)) {
@@ -162,8 +178,8 @@ public class RetryManager {
         mCurMaxRetryCount = mMaxRetryCount;
 
         resetRetryCount();
-        mRetryArray.clear();
-        mRetryArray.add(new RetryRec(retryTime, randomizationTime));
+        mPolicy = new Policy(new int[] {retryTime}, new int[] {randomizationTime},
+                maxRetryCount, false);
 
         return true;
     }
@@ -184,77 +200,107 @@ public class RetryManager {
         mConfig = configStr;
 
         if (!TextUtils.isEmpty(configStr)) {
-            int defaultRandomization = 0;
-
             if (VDBG) log("configure: not empty");
 
+            Policy policy = getPolicy(configStr);
+
             mMaxRetryCount = 0;
             resetRetryCount();
-            mRetryArray.clear();
+            mPolicy = EMPTY_POLICY;
+            if (policy == INVALID_POLICY) return false;
 
-            String strArray[] = configStr.split(",");
-            for (int i = 0; i < strArray.length; i++) {
-                if (VDBG) log("configure: strArray[" + i + "]='" + strArray[i] + "'");
-                Pair<Boolean, Integer> value;
-                String splitStr[] = strArray[i].split("=", 2);
+            mPolicy = policy;
+            if (policy.mRetryForever) mRetryForever = true;
+            mMaxRetryCount = policy.mMaxRetryCount;
+            mCurMaxRetryCount = mMaxRetryCount;
+            if (VDBG) log("configure: true");
+            return true;
+        } else {
+            if (VDBG) log("configure: false it's empty");
+            return false;
+        }
+    }
+
+    /**
+     * @return the compiled form of configStr, parsing it if this is the first time it is seen,
+     * or INVALID_POLICY if it does not parse
+     */
+    private static Policy getPolicy(String configStr) {
+        synchronized (sPolicies) {
+            Policy policy = sPolicies.get(configStr);
+            if (policy == null) {
+                policy = parsePolicy(configStr);
+                sPolicies.put(configStr, policy);
+            }
+            return policy;
+        }
+    }
+
+    private static Policy parsePolicy(String configStr) {
+        int defaultRandomization = 0;
+        int maxRetryCount = 0;
+        boolean retryForever = false;
+        ArrayList<int[]> retryArray = new ArrayList<int[]>();
+
+        String strArray[] = configStr.split(",");
+        for (int i = 0; i < strArray.length; i++) {
+            if (VDBG) log("configure: strArray[" + i + "]='" + strArray[i] + "'");
+            String splitStr[] = strArray[i].split("=", 2);
+            splitStr[0] = splitStr[0].trim();
+            if (VDBG) log("configure: splitStr[0]='" + splitStr[0] + "'");
+            if (splitStr.length > 1) {
+                splitStr[1] = splitStr[1].trim();
+                if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
+                if (TextUtils.equals(splitStr[0], "default_randomization")) {
+                    defaultRandomization = parseNonNegativeInt(splitStr[0], splitStr[1]);
+                    if (defaultRandomization < 0) return INVALID_POLICY;
+                } else if (TextUtils.equals(splitStr[0], "max_retries")) {
+                    if (TextUtils.equals("infinite",splitStr[1])) {
+                        retryForever = true;
+                    } else {
+                        maxRetryCount = parseNonNegativeInt(splitStr[0], splitStr[1]);
+                        if (maxRetryCount < 0) return INVALID_POLICY;
+                    }
+                } else {
+                    Rlog.e(LOG_TAG, "Unrecognized configuration name value pair: "
+                                    + strArray[i]);
+                    return INVALID_POLICY;
+                }
+            } else {
+                /**
+                 * Assume a retry time with an optional randomization value
+                 * following a ":"
+                 */
+                splitStr = strArray[i].split(":", 2);
                 splitStr[0] = splitStr[0].trim();
-                if (VDBG) log("configure: splitStr[0]='" + splitStr[0] + "'");
+                int delayTime = parseNonNegativeInt("delayTime", splitStr[0]);
+                if (delayTime < 0) return INVALID_POLICY;
+
+                // Check if optional randomization value present
+                int randomizationTime;
                 if (splitStr.length > 1) {
                     splitStr[1] = splitStr[1].trim();
                     if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
-                    if (TextUtils.equals(splitStr[0], "default_randomization")) {
-                        value = parseNonNegativeInt(splitStr[0], splitStr[1]);
-                        if (!value.first) return false;
-                        defaultRandomization = value.second;
-                    } else if (TextUtils.equals(splitStr[0], "max_retries")) {
-                        if (TextUtils.equals("infinite",splitStr[1])) {
-                            mRetryForever = true;
-                        } else {
-                            value = parseNonNegativeInt(splitStr[0], splitStr[1]);
-                            if (!value.first) return false;
-                            mMaxRetryCount = value.second;
-                        }
-                    } else {
-                        Rlog.e(LOG_TAG, "Unrecognized configuration name value pair: "
-                                        + strArray[i]);
-                        return false;
-                    }
+                    randomizationTime = parseNonNegativeInt("randomizationTime", splitStr[1]);
+                    if (randomizationTime < 0) return INVALID_POLICY;
                 } else {
-                    /**
-                     * Assume a retry time with an optional randomization value
-                     * following a ":"
-                     */
-                    splitStr = strArray[i].split(":", 2);
-                    splitStr[0] = splitStr[0].trim();
-                    RetryRec rr = new RetryRec(0, 0);
-                    value = parseNonNegativeInt("delayTime", splitStr[0]);
-                    if (!value.first) return false;
-                    rr.mDelayTime = value.second;
-
-                    // Check if optional randomization value present
-                    if (splitStr.length > 1) {
-                        splitStr[1] = splitStr[1].trim();
-                        if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
-                        value = parseNonNegativeInt("randomizationTime", splitStr[1]);
-                        if (!value.first) return false;
-                        rr.mRandomizationTime = value.second;
-                    } else {
-                        rr.mRandomizationTime = defaultRandomization;
-                    }
-                    mRetryArray.add(rr);
+                    randomizationTime = defaultRandomization;
                 }
+                retryArray.add(new int[] {delayTime, randomizationTime});
             }
-            if (mRetryArray.size() > mMaxRetryCount) {
-                mMaxRetryCount = mRetryArray.size();
-                if (VDBG) log("configure: setting mMaxRetryCount=" + mMaxRetryCount);
-            }
-            mCurMaxRetryCount = mMaxRetryCount;
-            if (VDBG) log("configure: true");
-            return true;
-        } else {
-            if (VDBG) log("configure: false it's empty");
-            return false;
         }
+        if (retryArray.size() > maxRetryCount) {
+            maxRetryCount = retryArray.size();
+            if (VDBG) log("configure: setting mMaxRetryCount=" + maxRetryCount);
+        }
+
+        int[] delayTimes = new int[retryArray.size()];
+        int[] randomizationTimes = new int[retryArray.size()];
+        for (int i = 0; i < delayTimes.length; i++) {
+            delayTimes[i] = retryArray.get(i)[0];
+            randomizationTimes[i] = retryArray.get(i)[1];
+        }
+        return new Policy(delayTimes, randomizationTimes, maxRetryCount, retryForever);
     }
 
     /**
@@ -273,16 +319,17 @@ public class RetryManager {
      * Return the timer that should be used to trigger the data reconnection
      */
     public int getRetryTimer() {
+        int[] delayTimes = mPolicy.mDelayTimes;
         int index;
-        if (mRetryCount < mRetryArray.size()) {
+        if (mRetryCount < delayTimes.length) {
             index = mRetryCount;
         } else {
-            index = mRetryArray.size() - 1;
+            index = delayTimes.length - 1;
         }
 
         int retVal;
-        if ((index >= 0) && (index < mRetryArray.size())) {
-            retVal = mRetryArray.get(index).mDelayTime + nextRandomizationTime(index);
+        if ((index >= 0) && (index < delayTimes.length)) {
+            retVal = delayTimes[index] + nextRandomizationTime(index);
         } else {
             retVal = 0;
         }
@@ -391,21 +438,19 @@ public class RetryManager {
      *
      * @param name
      * @param stringValue
-     * @return Pair.first == true if stringValue an integer >= 0
+     * @return the value, or -1 if stringValue is not an integer >= 0
      */
-    private Pair<Boolean, Integer> parseNonNegativeInt(String name, String stringValue) {
+    private static int parseNonNegativeInt(String name, String stringValue) {
         int value;
-        Pair<Boolean, Integer> retVal;
         try {
             value = Integer.parseInt(stringValue);
-            retVal = new Pair<Boolean, Integer>(validateNonNegativeInt(name, value), value);
+            if (!validateNonNegativeInt(name, value)) value = -1;
         } catch (NumberFormatException e) {
             Rlog.e(LOG_TAG, name + " bad value: " + stringValue, e);
-            retVal = new Pair<Boolean, Integer>(false, 0);
+            value = -1;
         }
-        if (VDBG) log("parseNonNetativeInt: " + name + ", " + stringValue + ", "
-                    + retVal.first + ", " + retVal.second);
-        return retVal;
+        if (VDBG) log("parseNonNetativeInt: " + name + ", " + stringValue + ", " + value);
+        return value;
     }
 
     /**
@@ -413,9 +458,9 @@ public class RetryManager {
      *
      * @param name
      * @param value
-     * @return Pair.first
+     * @return true if value >= 0
      */
-    private boolean validateNonNegativeInt(String name, int value) {
+    private static boolean validateNonNegativeInt(String name, int value) {
         boolean retVal;
         if (value < 0) {
             Rlog.e(LOG_TAG, name + " bad value: is < 0");
@@ -431,15 +476,15 @@ public class RetryManager {
      * Return next random number for the index
      */
     private int nextRandomizationTime(int index) {
-        int randomTime = mRetryArray.get(index).mRandomizationTime;
+        int randomTime = mPolicy.mRandomizationTimes[index];
         if (randomTime == 0) {
             return 0;
         } else {
-            return mRng.nextInt(randomTime);
+            return sRng.nextInt(randomTime);
         }
     }
 
-    private void log(String s) {
+    private static void log(String s) {
         Rlog.d(LOG_TAG, "[RM] " + s);
     }
 }
@@ -31,9 +31,11 @@ import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Debug;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Telephony.Sms.Intents;
@@ -41,12 +43,15 @@ import android.telephony.Rlog;
 import android.telephony.SmsManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.R;
 import com.android.internal.content.PackageMonitor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -69,6 +74,27 @@ public final class SmsApplication {
 
     private static SmsPackageMonitor sSmsPackageMonitor = null;
 
+    /**
+     * Resolution caches used on the SMS/MMS receive path. They are only filled once
+     * {@link #initSmsPackageMonitor} has registered the listeners that clear them, i.e. in the
+     * phone process. All access is guarded by sCacheLock.
+     */
+    private static final Object sCacheLock = new Object();
+
+    /** Default SMS application by user id, as verified by getApplication(updateIfNeeded). */
+    private static final SparseArray<SmsApplicationData> sDefaultApplicationCache =
+            new SparseArray<SmsApplicationData>();
+
+    /** Service packages holding a permission, keyed by intent action, MIME type and permission. */
+    private static final HashMap<String, List<String>> sServicePackageCache =
+            new HashMap<String, List<String>>();
+
+    /**
+     * Incremented by every invalidateCaches(). A result computed outside sCacheLock is only
+     * stored if no invalidation happened while it was being computed.
+     */
+    private static int sCacheGeneration;
+
     public static class SmsApplicationData {
         /**
          * Name of this SMS app for display.
@@ -440,6 +466,89 @@ public final class SmsApplication {
         return applicationData;
     }
 
+    /**
+     * Same as {@link #getApplication}, but answered from the cache while no package, default SMS
+     * application setting or OP_WRITE_SMS mode has changed. Only results verified with
+     * updateIfNeeded are cached, since those have had their AppOps and preferred activity
+     * state fixed up.
+     */
+    private static SmsApplicationData getApplicationCached(Context context,
+            boolean updateIfNeeded, int userId) {
+        int generation;
+        synchronized (sCacheLock) {
+            SmsApplicationData applicationData = sDefaultApplicationCache.get(userId);
+            if (applicationData != null) {
+                return applicationData;
+            }
+            generation = sCacheGeneration;
+        }
+        SmsApplicationData applicationData = getApplication(context, updateIfNeeded, userId);
+        if (applicationData != null && updateIfNeeded) {
+            synchronized (sCacheLock) {
+                if (sSmsPackageMonitor != null && generation == sCacheGeneration) {
+                    sDefaultApplicationCache.put(userId, applicationData);
+                }
+            }
+        }
+        return applicationData;
+    }
+
+    /**
+     * Returns the packages of the services that handle the given intent and hold the given
+     * permission. Results are cached by intent action and MIME type until a package changes.
+     *
+     * @param context context to use for the PackageManager
+     * @param intent the intent to resolve
+     * @param permission permission the service packages must hold
+     * @return the list of package names, never null
+     */
+    public static List<String> getServicePackagesForIntent(Context context, Intent intent,
+            String permission) {
+        String key = intent.getAction() + "/" + intent.getType() + "/" + permission;
+        int generation;
+        synchronized (sCacheLock) {
+            List<String> packages = sServicePackageCache.get(key);
+            if (packages != null) {
+                return packages;
+            }
+            generation = sCacheGeneration;
+        }
+
+        List<String> packages = new ArrayList<String>();
+        PackageManager packageManager = context.getPackageManager();
+        List<ResolveInfo> receivers = packageManager.queryIntentServices(intent, 0);
+        for (ResolveInfo info : receivers) {
+            if (info.serviceInfo == null) {
+                Rlog.e(LOG_TAG, "Can't get service information from " + info);
+                continue;
+            }
+            String packageName = info.serviceInfo.packageName;
+            if (packageManager.checkPermission(permission, packageName)
+                    == PackageManager.PERMISSION_GRANTED) {
+                packages.add(packageName);
+            }
+        }
+        packages = Collections.unmodifiableList(packages);
+
+        synchronized (sCacheLock) {
+            if (sSmsPackageMonitor != null && generation == sCacheGeneration) {
+                sServicePackageCache.put(key, packages);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Clear the resolution caches after a package, setting or AppOps change.
+     */
+    private static void invalidateCaches() {
+        synchronized (sCacheLock) {
+            sCacheGeneration++;
+            sDefaultApplicationCache.clear();
+            sServicePackageCache.clear();
+        }
+    }
+
     /**
      * Sets the specified package as the default SMS/MMS application. The caller of this method
      * needs to have permission to set AppOps and write to secure settings.
@@ -532,6 +641,7 @@ public final class SmsApplication {
                 Rlog.e(LOG_TAG, "MmsService package not found: " + MMS_SERVICE_PACKAGE_NAME);
             }
         }
+        invalidateCaches();
     }
 
     /**
@@ -562,6 +672,7 @@ public final class SmsApplication {
         }
 
         private void onPackageChanged(String packageName) {
+            invalidateCaches();
             PackageManager packageManager = mContext.getPackageManager();
             Context userContext = mContext;
             final int userId = getSendingUserId();
@@ -584,8 +695,29 @@ public final class SmsApplication {
     }
 
     public static void initSmsPackageMonitor(Context context) {
-        sSmsPackageMonitor = new SmsPackageMonitor(context);
+        synchronized (sCacheLock) {
+            sSmsPackageMonitor = new SmsPackageMonitor(context);
+        }
         sSmsPackageMonitor.register(context, context.getMainLooper(), UserHandle.ALL, false);
+
+        // The default SMS app can also change through the setting or through AppOps without
+        // any package change, so drop the cached resolutions on those too.
+        context.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.SMS_DEFAULT_APPLICATION), false,
+                new ContentObserver(new Handler(context.getMainLooper())) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateCaches();
+                    }
+                }, UserHandle.USER_ALL);
+        AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        appOps.startWatchingMode(AppOpsManager.OP_WRITE_SMS, null,
+                new AppOpsManager.OnOpChangedListener() {
+                    @Override
+                    public void onOpChanged(String op, String packageName) {
+                        invalidateCaches();
+                    }
+                });
     }
 
     private static void configurePreferredActivity(PackageManager packageManager,
@@ -646,8 +778,8 @@ public final class SmsApplication {
         final long token = Binder.clearCallingIdentity();
         try {
             ComponentName component = null;
-            SmsApplicationData smsApplicationData = getApplication(context, updateIfNeeded,
-                    userId);
+            SmsApplicationData smsApplicationData = getApplicationCached(context,
+                    updateIfNeeded, userId);
             if (smsApplicationData != null) {
                 component = new ComponentName(smsApplicationData.mPackageName,
                         smsApplicationData.mSmsReceiverClass);
@@ -669,8 +801,8 @@ public final class SmsApplication {
         final long token = Binder.clearCallingIdentity();
         try {
             ComponentName component = null;
-            SmsApplicationData smsApplicationData = getApplication(context, updateIfNeeded,
-                    userId);
+            SmsApplicationData smsApplicationData = getApplicationCached(context,
+                    updateIfNeeded, userId);
             if (smsApplicationData != null) {
                 component = new ComponentName(smsApplicationData.mPackageName,
                         smsApplicationData.mMmsReceiverClass);
@@ -693,8 +825,8 @@ public final class SmsApplication {
         final long token = Binder.clearCallingIdentity();
         try {
             ComponentName component = null;
-            SmsApplicationData smsApplicationData = getApplication(context, updateIfNeeded,
-                    userId);
+            SmsApplicationData smsApplicationData = getApplicationCached(context,
+                    updateIfNeeded, userId);
             if (smsApplicationData != null) {
                 component = new ComponentName(smsApplicationData.mPackageName,
                         smsApplicationData.mRespondViaMessageClass);
@@ -719,8 +851,8 @@ public final class SmsApplication {
         final long token = Binder.clearCallingIdentity();
         try {
             ComponentName component = null;
-            SmsApplicationData smsApplicationData = getApplication(context, updateIfNeeded,
-                    userId);
+            SmsApplicationData smsApplicationData = getApplicationCached(context,
+                    updateIfNeeded, userId);
             if (smsApplicationData != null) {
                 component = new ComponentName(smsApplicationData.mPackageName,
                         smsApplicationData.mSendToClass);
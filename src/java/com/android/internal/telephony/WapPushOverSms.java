@@ -27,12 +27,15 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.UserHandle;
@@ -54,6 +57,9 @@ import com.google.android.mms.pdu.PduParser;
 import com.google.android.mms.pdu.PduPersister;
 import com.google.android.mms.pdu.ReadOrigInd;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * WAP push handler class.
  *
@@ -63,6 +69,12 @@ public class WapPushOverSms implements ServiceConnection {
     private static final String TAG = "WAP PUSH";
     private static final boolean DBG = true;
 
+    /** Maximum number of content locations and message ids kept in {@link #sRecentMms}. */
+    static final int MAX_RECENT_MMS_ENTRIES = 200;
+
+    /** Recent MMS notifications and sent messages, shared by all phones. */
+    private static final RecentMmsIndex sRecentMms = new RecentMmsIndex();
+
     private final Context mContext;
 
     /** Assigned from ServiceConnection callback on main threaad. */
@@ -90,6 +102,7 @@ public class WapPushOverSms implements ServiceConnection {
         } else {
             if (DBG) Rlog.v(TAG, "bindService() for wappush manager succeeded");
         }
+        sRecentMms.start(context);
     }
 
     void dispose() {
@@ -387,6 +400,8 @@ public class WapPushOverSms implements ServiceConnection {
                                 null/*preOpenedFiles*/);
                         if (uri == null) {
                             Rlog.e(TAG, "Failed to save MMS WAP push notification ind");
+                        } else if (nInd.getContentLocation() != null) {
+                            sRecentMms.addContentLocation(new String(nInd.getContentLocation()));
                         }
                     } else {
                         Rlog.d(TAG, "Skip storing duplicate MMS WAP push notification ind: "
@@ -419,6 +434,11 @@ public class WapPushOverSms implements ServiceConnection {
                     + pdu.getClass().getCanonicalName());
             return -1L;
         }
+        long threadId = sRecentMms.getThreadId(messageId);
+        if (threadId != -1L) {
+            return threadId;
+        }
+        String escapedMessageId = DatabaseUtils.sqlEscapeString(messageId);
         Cursor cursor = null;
         try {
             cursor = SqliteWrapper.query(
@@ -428,12 +448,14 @@ public class WapPushOverSms implements ServiceConnection {
                     new String[]{ Telephony.Mms.THREAD_ID },
                     THREAD_ID_SELECTION,
                     new String[]{
-                            DatabaseUtils.sqlEscapeString(messageId),
+                            escapedMessageId,
                             Integer.toString(PduHeaders.MESSAGE_TYPE_SEND_REQ)
                     },
                     null/*sortOrder*/);
             if (cursor != null && cursor.moveToFirst()) {
-                return cursor.getLong(0);
+                threadId = cursor.getLong(0);
+                sRecentMms.addThreadId(messageId, threadId);
+                return threadId;
             }
         } catch (SQLiteException e) {
             Rlog.e(TAG, "Failed to query delivery or read report thread id", e);
@@ -449,10 +471,24 @@ public class WapPushOverSms implements ServiceConnection {
             Telephony.Mms.MESSAGE_TYPE + "=? AND " + Telephony.Mms.CONTENT_LOCATION + " =?";
 
     private static boolean isDuplicateNotification(Context context, NotificationInd nInd) {
+        return isDuplicateNotification(context, sRecentMms, nInd);
+    }
+
+    /**
+     * @return true if a notification with the content location of nInd is already stored,
+     *         asking the provider only if index can't tell
+     */
+    static boolean isDuplicateNotification(Context context, RecentMmsIndex index,
+            NotificationInd nInd) {
         final byte[] rawLocation = nInd.getContentLocation();
         if (rawLocation != null) {
             String location = new String(rawLocation);
-            String[] selectionArgs = new String[] { location };
+            switch (index.lookupContentLocation(location)) {
+                case RecentMmsIndex.LOCATION_STORED:
+                    return true;
+                case RecentMmsIndex.LOCATION_NOT_STORED:
+                    return false;
+            }
             Cursor cursor = null;
             try {
                 cursor = SqliteWrapper.query(
@@ -463,7 +499,7 @@ public class WapPushOverSms implements ServiceConnection {
                         LOCATION_SELECTION,
                         new String[]{
                                 Integer.toString(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND),
-                                new String(rawLocation)
+                                location
                         },
                         null/*sortOrder*/);
                 if (cursor != null && cursor.getCount() > 0) {
@@ -480,4 +516,263 @@ public class WapPushOverSms implements ServiceConnection {
         }
         return false;
     }
+
+    private static final String MESSAGE_TYPE_SELECTION = Telephony.Mms.MESSAGE_TYPE + "=?";
+
+    /**
+     * Bounded in-memory index of the content locations of stored MMS notifications and of
+     * recent sent message ids, so duplicate notification and report thread id checks on the
+     * SMS receive path can skip a provider query. It is loaded from the provider at start-up,
+     * updated as notifications are stored and reports are matched, and cleared and reloaded
+     * whenever the MMS provider changes.
+     *
+     * Notifications are only stored until their message is downloaded, so there are usually
+     * few of them and the index holds all of their content locations. While it does, a
+     * location missing from the index is not stored. Once the provider changes, or there are
+     * more notifications than fit, misses are unknown until the next complete load and
+     * callers query the provider. Message ids are only ever a positive hint.
+     */
+    static final class RecentMmsIndex {
+        static final int LOCATION_UNKNOWN = -1;
+        static final int LOCATION_NOT_STORED = 0;
+        static final int LOCATION_STORED = 1;
+
+        /** Delay before reloading after a provider change, so bursts of changes coalesce. */
+        private static final long RELOAD_DELAY_MS = 5 * 1000;
+        /** Delay between attempts while the MMS provider is not available yet. */
+        private static final long RETRY_DELAY_MS = 10 * 1000;
+        private static final int MAX_LOAD_ATTEMPTS = 6;
+
+        private final LinkedHashMap<String, Boolean> mContentLocations =
+                new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                        if (size() > MAX_RECENT_MMS_ENTRIES) {
+                            // The evicted location may still be stored
+                            mLocationsComplete = false;
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        /** Thread ids keyed by the unescaped message id, as stored in the provider. */
+        private final LinkedHashMap<String, Long> mThreadIds =
+                new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                        return size() > MAX_RECENT_MMS_ENTRIES;
+                    }
+                };
+
+        /** Whether mContentLocations holds every stored notification's content location. */
+        private boolean mLocationsComplete;
+
+        /** Incremented whenever the provider changes, so stale loads are discarded. */
+        private int mGeneration;
+
+        // Set once by start(); the fields below are only used on mHandler's thread.
+        private Handler mHandler;
+        private Context mContext;
+        private ContentObserver mObserver;
+        private int mLoadAttempts;
+
+        private final Runnable mLoadRunnable = new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        };
+
+        /**
+         * Start loading the index and watching the MMS provider on a background thread.
+         * Only the first call has any effect.
+         */
+        void start(Context context) {
+            synchronized (this) {
+                if (mHandler != null) {
+                    return;
+                }
+                HandlerThread thread = new HandlerThread("WapPushMmsIndex");
+                thread.start();
+                mHandler = new Handler(thread.getLooper());
+                mContext = context;
+                mObserver = new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                };
+            }
+            // MmsProvider notifies every change on the mms-sms URI, not on the mms one
+            context.getContentResolver().registerContentObserver(Telephony.MmsSms.CONTENT_URI,
+                    false, mObserver);
+            mHandler.post(mLoadRunnable);
+        }
+
+        /**
+         * Stop watching the provider and quit the background thread. Only used by tests; the
+         * shared index lives as long as the process.
+         */
+        void dispose() {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mHandler.getLooper().quitSafely();
+        }
+
+        Handler getHandler() {
+            return mHandler;
+        }
+
+        ContentObserver getObserver() {
+            return mObserver;
+        }
+
+        /**
+         * Called on mHandler's thread when the provider changes. Entries may have been
+         * deleted, so drop everything and reload once the changes settle.
+         */
+        private void invalidate() {
+            synchronized (this) {
+                mGeneration++;
+                mLocationsComplete = false;
+                mContentLocations.clear();
+                mThreadIds.clear();
+            }
+            mLoadAttempts = 0;
+            mHandler.removeCallbacks(mLoadRunnable);
+            mHandler.postDelayed(mLoadRunnable, RELOAD_DELAY_MS);
+        }
+
+        private void load() {
+            int generation;
+            synchronized (this) {
+                generation = mGeneration;
+            }
+            // Query without holding the lock; entries added meanwhile are newer and win.
+            boolean[] truncated = new boolean[1];
+            LinkedHashMap<String, Long> locations = loadRecent(mContext,
+                    Telephony.Mms.CONTENT_LOCATION, PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND,
+                    truncated);
+            LinkedHashMap<String, Long> threadIds = loadRecent(mContext, Telephony.Mms.MESSAGE_ID,
+                    PduHeaders.MESSAGE_TYPE_SEND_REQ, null);
+
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    // The provider changed while loading; a reload is already scheduled.
+                    return;
+                }
+                if (locations != null) {
+                    LinkedHashMap<String, Boolean> added =
+                            new LinkedHashMap<String, Boolean>(mContentLocations);
+                    mContentLocations.clear();
+                    mLocationsComplete = !truncated[0];
+                    for (String location : locations.keySet()) {
+                        mContentLocations.put(location, Boolean.TRUE);
+                    }
+                    mContentLocations.putAll(added);
+                }
+                if (threadIds != null) {
+                    LinkedHashMap<String, Long> added = new LinkedHashMap<String, Long>(mThreadIds);
+                    mThreadIds.clear();
+                    mThreadIds.putAll(threadIds);
+                    mThreadIds.putAll(added);
+                }
+            }
+
+            if (locations == null || threadIds == null) {
+                // Most likely the MMS provider is not up yet
+                if (++mLoadAttempts < MAX_LOAD_ATTEMPTS) {
+                    mHandler.postDelayed(mLoadRunnable, RETRY_DELAY_MS);
+                } else {
+                    Rlog.e(TAG, "RecentMmsIndex: giving up loading after " + mLoadAttempts
+                            + " attempts");
+                }
+            } else {
+                mLoadAttempts = 0;
+            }
+            if (DBG) {
+                Rlog.d(TAG, "RecentMmsIndex: loaded "
+                        + (locations != null ? locations.size() : -1) + " locations"
+                        + (truncated[0] ? " (truncated), " : ", ")
+                        + (threadIds != null ? threadIds.size() : -1) + " message ids");
+            }
+        }
+
+        /**
+         * Read the key column and thread id of the newest messages of the given type.
+         *
+         * @param truncated if not null, its first element is set to whether there were more
+         *        messages than were read
+         * @return keys mapped to thread ids, oldest first, or null if the query failed
+         */
+        private static LinkedHashMap<String, Long> loadRecent(Context context, String keyColumn,
+                int messageType, boolean[] truncated) {
+            Cursor cursor = null;
+            try {
+                cursor = SqliteWrapper.query(
+                        context,
+                        context.getContentResolver(),
+                        Telephony.Mms.CONTENT_URI,
+                        new String[]{ keyColumn, Telephony.Mms.THREAD_ID },
+                        MESSAGE_TYPE_SELECTION,
+                        new String[]{ Integer.toString(messageType) },
+                        Telephony.Mms.DATE + " DESC");
+                if (cursor == null) {
+                    return null;
+                }
+                int count = Math.min(cursor.getCount(), MAX_RECENT_MMS_ENTRIES);
+                if (truncated != null) {
+                    truncated[0] = cursor.getCount() > MAX_RECENT_MMS_ENTRIES;
+                }
+                String[] keys = new String[count];
+                long[] threadIds = new long[count];
+                for (int i = 0; i < count && cursor.moveToNext(); i++) {
+                    keys[i] = cursor.getString(0);
+                    threadIds[i] = cursor.getLong(1);
+                }
+                LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>(count);
+                for (int i = count - 1; i >= 0; i--) {
+                    if (keys[i] != null) {
+                        recent.put(keys[i], threadIds[i]);
+                    }
+                }
+                return recent;
+            } catch (SQLiteException e) {
+                Rlog.e(TAG, "RecentMmsIndex: failed to load recent MMS", e);
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * @return LOCATION_STORED or LOCATION_NOT_STORED, or LOCATION_UNKNOWN if the provider
+         *         must be queried
+         */
+        synchronized int lookupContentLocation(String location) {
+            if (mContentLocations.get(location) != null) {
+                return LOCATION_STORED;
+            }
+            return mLocationsComplete ? LOCATION_NOT_STORED : LOCATION_UNKNOWN;
+        }
+
+        synchronized void addContentLocation(String location) {
+            mContentLocations.put(location, Boolean.TRUE);
+        }
+
+        /**
+         * @param messageId the unescaped message id
+         * @return the thread id, or -1 if the message id is not indexed
+         */
+        synchronized long getThreadId(String messageId) {
+            Long threadId = mThreadIds.get(messageId);
+            return threadId != null ? threadId : -1L;
+        }
+
+        synchronized void addThreadId(String messageId, long threadId) {
+            mThreadIds.put(messageId, threadId);
+        }
+    }
 }
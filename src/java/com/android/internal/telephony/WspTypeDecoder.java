@@ -16,6 +16,8 @@
 
 package com.android.internal.telephony;
 
+import android.util.SparseArray;
+
 import java.util.HashMap;
 
 /**
@@ -31,11 +33,15 @@ public class WspTypeDecoder {
     public static final int PDU_TYPE_PUSH = 0x06;
     public static final int PDU_TYPE_CONFIRMED_PUSH = 0x07;
 
-    private final static HashMap<Integer, String> WELL_KNOWN_MIME_TYPES =
-            new HashMap<Integer, String>();
+    private final static SparseArray<String> WELL_KNOWN_MIME_TYPES = new SparseArray<String>();
+
+    private final static SparseArray<String> WELL_KNOWN_PARAMETERS = new SparseArray<String>();
 
-    private final static HashMap<Integer, String> WELL_KNOWN_PARAMETERS =
-            new HashMap<Integer, String>();
+    /**
+     * All well-known MIME type and parameter names. Text values in the PDU that match one of
+     * these are returned as the shared constant instead of a newly allocated String.
+     */
+    private final static String[] WELL_KNOWN_STRINGS;
 
     public static final int PARAMETER_ID_X_WAP_APPLICATION_ID = 0x2f;
     private static final int Q_VALUE = 0x00;
@@ -190,6 +196,16 @@ public class WspTypeDecoder {
         WELL_KNOWN_PARAMETERS.put(0x1B, "Comment");
         WELL_KNOWN_PARAMETERS.put(0x1C, "Domain");
         WELL_KNOWN_PARAMETERS.put(0x1D, "Path");
+
+        WELL_KNOWN_STRINGS = new String[WELL_KNOWN_MIME_TYPES.size()
+                + WELL_KNOWN_PARAMETERS.size()];
+        int i = 0;
+        for (int j = 0; j < WELL_KNOWN_MIME_TYPES.size(); j++) {
+            WELL_KNOWN_STRINGS[i++] = WELL_KNOWN_MIME_TYPES.valueAt(j);
+        }
+        for (int j = 0; j < WELL_KNOWN_PARAMETERS.size(); j++) {
+            WELL_KNOWN_STRINGS[i++] = WELL_KNOWN_PARAMETERS.valueAt(j);
+        }
     }
 
     public static final String CONTENT_TYPE_B_PUSH_CO = "application/vnd.wap.coc";
@@ -199,9 +215,23 @@ public class WspTypeDecoder {
     byte[] mWspData;
     int    mDataLength;
     long   mUnsigned32bit;
+
+    /**
+     * String result of the latest operation. Text decoded from the PDU is only recorded as
+     * an offset and length into mWspData; the String is created on the first call to
+     * getValueString(), so callers that only skip over text never allocate.
+     */
     String mStringValue;
+    int    mStringOffset = -1;
+    int    mStringLength;
 
+    /**
+     * Content type parameters, built on the first call to getContentParameters() from the
+     * range recorded by decodeContentType().
+     */
     HashMap<String, String> mContentParameters;
+    int    mContentParametersOffset = -1;
+    int    mContentParametersLength;
 
     public WspTypeDecoder(byte[] pdu) {
         mWspData = pdu;
@@ -223,9 +253,9 @@ public class WspTypeDecoder {
         }
         mDataLength = index - startIndex + 1;
         if (mWspData[startIndex] == 127) {
-            mStringValue = new String(mWspData, startIndex + 1, mDataLength - 2);
+            setStringValue(startIndex + 1, mDataLength - 2);
         } else {
-            mStringValue = new String(mWspData, startIndex, mDataLength - 1);
+            setStringValue(startIndex, mDataLength - 1);
         }
         return true;
     }
@@ -245,7 +275,7 @@ public class WspTypeDecoder {
             index++;
         }
         mDataLength = index - startIndex + 1;
-        mStringValue = new String(mWspData, startIndex, mDataLength - 1);
+        setStringValue(startIndex, mDataLength - 1);
 
         return true;
     }
@@ -368,7 +398,7 @@ public class WspTypeDecoder {
     public boolean decodeExtensionMedia(int startIndex) {
         int index = startIndex;
         mDataLength = 0;
-        mStringValue = null;
+        setStringValue(null);
         int length = mWspData.length;
         boolean rtrn = index < length;
 
@@ -377,7 +407,7 @@ public class WspTypeDecoder {
         }
 
         mDataLength = index - startIndex + 1;
-        mStringValue = new String(mWspData, startIndex, mDataLength - 1);
+        setStringValue(startIndex, mDataLength - 1);
 
         return rtrn;
     }
@@ -393,7 +423,7 @@ public class WspTypeDecoder {
      */
     public boolean decodeConstrainedEncoding(int startIndex) {
         if (decodeShortInteger(startIndex) == true) {
-            mStringValue = null;
+            setStringValue(null);
             return true;
         }
         return decodeExtensionMedia(startIndex);
@@ -414,7 +444,9 @@ public class WspTypeDecoder {
      */
     public boolean decodeContentType(int startIndex) {
         int mediaPrefixLength;
-        mContentParameters = new HashMap<String, String>();
+        mContentParameters = null;
+        mContentParametersOffset = startIndex;
+        mContentParametersLength = 0;
 
         try {
             if (decodeValueLength(startIndex) == false) {
@@ -429,15 +461,15 @@ public class WspTypeDecoder {
             if (decodeIntegerValue(startIndex + mediaPrefixLength) == true) {
                 mDataLength += mediaPrefixLength;
                 int readLength = mDataLength;
-                mStringValue = null;
+                setStringValue(null);
                 expandWellKnownMimeType();
                 long wellKnownValue = mUnsigned32bit;
                 String mimeType = mStringValue;
-                if (readContentParameters(startIndex + mDataLength,
-                        (headersLength - (mDataLength - mediaPrefixLength)), 0)) {
+                if (validateContentParameters(startIndex + mDataLength,
+                        (headersLength - (mDataLength - mediaPrefixLength)))) {
                     mDataLength += readLength;
                     mUnsigned32bit = wellKnownValue;
-                    mStringValue = mimeType;
+                    setStringValue(mimeType);
                     return true;
                 }
                 return false;
@@ -447,12 +479,13 @@ public class WspTypeDecoder {
                 int readLength = mDataLength;
                 expandWellKnownMimeType();
                 long wellKnownValue = mUnsigned32bit;
-                String mimeType = mStringValue;
-                if (readContentParameters(startIndex + mDataLength,
-                        (headersLength - (mDataLength - mediaPrefixLength)), 0)) {
+                int mimeTypeOffset = mStringOffset;
+                int mimeTypeLength = mStringLength;
+                if (validateContentParameters(startIndex + mDataLength,
+                        (headersLength - (mDataLength - mediaPrefixLength)))) {
                     mDataLength += readLength;
                     mUnsigned32bit = wellKnownValue;
-                    mStringValue = mimeType;
+                    setStringValue(mimeTypeOffset, mimeTypeLength);
                     return true;
                 }
             }
@@ -463,7 +496,21 @@ public class WspTypeDecoder {
         return false;
     }
 
-    private boolean readContentParameters(int startIndex, int leftToRead, int accumulator) {
+    /**
+     * Walk the content type parameters without building the parameter map, and remember
+     * their position so getContentParameters() can decode them on demand.
+     */
+    private boolean validateContentParameters(int startIndex, int leftToRead) {
+        mContentParametersOffset = startIndex;
+        mContentParametersLength = leftToRead;
+        return readContentParameters(startIndex, leftToRead, 0, null);
+    }
+
+    /**
+     * Read content type parameters, adding them to params unless it is null.
+     */
+    private boolean readContentParameters(int startIndex, int leftToRead, int accumulator,
+            HashMap<String, String> params) {
 
         int totalRead = 0;
 
@@ -473,24 +520,30 @@ public class WspTypeDecoder {
             String param = null;
             if ((nextByte & 0x80) == 0x00 && nextByte > 31) { // untyped
                 decodeTokenText(startIndex);
-                param = mStringValue;
+                if (params != null) {
+                    param = getValueString();
+                }
                 totalRead += mDataLength;
             } else { // typed
                 if (decodeIntegerValue(startIndex)) {
                     totalRead += mDataLength;
                     int wellKnownParameterValue = (int) mUnsigned32bit;
-                    param = WELL_KNOWN_PARAMETERS.get(wellKnownParameterValue);
-                    if (param == null) {
-                        param = "unassigned/0x" + Long.toHexString(wellKnownParameterValue);
+                    if (params != null) {
+                        param = WELL_KNOWN_PARAMETERS.get(wellKnownParameterValue);
+                        if (param == null) {
+                            param = "unassigned/0x" + Long.toHexString(wellKnownParameterValue);
+                        }
                     }
                     // special case for the "Q" parameter, value is a uintvar
                     if (wellKnownParameterValue == Q_VALUE) {
                         if (decodeUintvarInteger(startIndex + totalRead)) {
                             totalRead += mDataLength;
-                            value = String.valueOf(mUnsigned32bit);
-                            mContentParameters.put(param, value);
+                            if (params != null) {
+                                value = String.valueOf(mUnsigned32bit);
+                                params.put(param, value);
+                            }
                             return readContentParameters(startIndex + totalRead, leftToRead
-                                                            - totalRead, accumulator + totalRead);
+                                    - totalRead, accumulator + totalRead, params);
                         } else {
                             return false;
                         }
@@ -505,20 +558,26 @@ public class WspTypeDecoder {
                 value = null;
             } else if (decodeIntegerValue(startIndex + totalRead)) {
                 totalRead += mDataLength;
-                int intValue = (int) mUnsigned32bit;
-                value = String.valueOf(intValue);
+                if (params != null) {
+                    int intValue = (int) mUnsigned32bit;
+                    value = String.valueOf(intValue);
+                }
             } else {
                 decodeTokenText(startIndex + totalRead);
                 totalRead += mDataLength;
-                value = mStringValue;
-                if (value.startsWith("\"")) {
+                if (mStringLength > 0 && mWspData[mStringOffset] == '"') {
                     // quoted string, so remove the quote
-                    value = value.substring(1);
+                    setStringValue(mStringOffset + 1, mStringLength - 1);
                 }
+                if (params != null) {
+                    value = getValueString();
+                }
+            }
+            if (params != null) {
+                params.put(param, value);
             }
-            mContentParameters.put(param, value);
             return readContentParameters(startIndex + totalRead, leftToRead - totalRead,
-                                            accumulator + totalRead);
+                    accumulator + totalRead, params);
 
         } else {
             mDataLength = accumulator;
@@ -548,9 +607,9 @@ public class WspTypeDecoder {
      * Sets unsigned32bit to -1 if stringValue is already populated
      */
     private void expandWellKnownMimeType() {
-        if (mStringValue == null) {
+        if (mStringValue == null && mStringOffset < 0) {
             int binaryContentType = (int) mUnsigned32bit;
-            mStringValue = WELL_KNOWN_MIME_TYPES.get(binaryContentType);
+            setStringValue(WELL_KNOWN_MIME_TYPES.get(binaryContentType));
         } else {
             mUnsigned32bit = -1;
         }
@@ -594,7 +653,7 @@ public class WspTypeDecoder {
      */
     public boolean decodeXWapApplicationId(int startIndex) {
         if (decodeIntegerValue(startIndex) == true) {
-            mStringValue = null;
+            setStringValue(null);
             return true;
         }
         return decodeTextString(startIndex);
@@ -705,12 +764,69 @@ public class WspTypeDecoder {
     }
 
     /**
-     * The String result of latest operation.
+     * The String result of latest operation. Values matching a well-known MIME type or
+     * parameter name are returned as the shared constant.
      */
     public String getValueString() {
+        if (mStringValue == null && mStringOffset >= 0) {
+            mStringValue = lookupWellKnownString(mStringOffset, mStringLength);
+            if (mStringValue == null) {
+                mStringValue = new String(mWspData, mStringOffset, mStringLength);
+            }
+        }
         return mStringValue;
     }
 
+    /**
+     * Offset in the PDU of the String result of the latest operation, or -1 if the result was
+     * not read from the PDU (no value, or a well-known value expanded from an integer code).
+     * Together with getValueLength() this gives access to the value without allocating.
+     */
+    public int getValueOffset() {
+        return mStringOffset;
+    }
+
+    /**
+     * Length in bytes of the String result of the latest operation when getValueOffset() is
+     * not -1.
+     */
+    public int getValueLength() {
+        return mStringOffset >= 0 ? mStringLength : 0;
+    }
+
+    private void setStringValue(String value) {
+        mStringValue = value;
+        mStringOffset = -1;
+        mStringLength = 0;
+    }
+
+    private void setStringValue(int offset, int length) {
+        mStringValue = null;
+        mStringOffset = offset;
+        mStringLength = length;
+    }
+
+    /**
+     * Find the well-known MIME type or parameter name stored at the given PDU range.
+     *
+     * @return the shared String constant, or null if the text is not a well-known value
+     */
+    private String lookupWellKnownString(int offset, int length) {
+        for (String candidate : WELL_KNOWN_STRINGS) {
+            if (candidate.length() != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && candidate.charAt(i) == (mWspData[offset + i] & 0xff)) {
+                i++;
+            }
+            if (i == length) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
     /**
      * Any parameters encountered as part of a decodeContentType() invocation.
      *
@@ -722,6 +838,28 @@ public class WspTypeDecoder {
      *
      */
     public HashMap<String, String> getContentParameters() {
+        if (mContentParameters == null && mContentParametersOffset >= 0) {
+            // Decoding the parameters reuses the result fields, so keep the caller's view.
+            int dataLength = mDataLength;
+            long unsigned32bit = mUnsigned32bit;
+            String stringValue = mStringValue;
+            int stringOffset = mStringOffset;
+            int stringLength = mStringLength;
+
+            mContentParameters = new HashMap<String, String>();
+            try {
+                readContentParameters(mContentParametersOffset, mContentParametersLength, 0,
+                        mContentParameters);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // keep the parameters decoded before the error, as decodeContentType() did
+            }
+
+            mDataLength = dataLength;
+            mUnsigned32bit = unsigned32bit;
+            mStringValue = stringValue;
+            mStringOffset = stringOffset;
+            mStringLength = stringLength;
+        }
         return mContentParameters;
     }
 }
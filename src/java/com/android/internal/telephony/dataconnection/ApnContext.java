@@ -16,7 +16,6 @@
 
 package com.android.internal.telephony.dataconnection;
 
-import android.app.PendingIntent;
 import android.content.Context;
 import android.net.NetworkConfig;
 import android.telephony.Rlog;
@@ -60,7 +59,7 @@ public class ApnContext {
 
     String mReason;
 
-    PendingIntent mReconnectAlarmIntent;
+    DcRetryScheduler.Retry mReconnectRetry;
 
     /**
      * user/app requested connection on this APN
@@ -107,12 +106,12 @@ public class ApnContext {
         mDcAc = dcac;
     }
 
-    public synchronized PendingIntent getReconnectIntent() {
-        return mReconnectAlarmIntent;
+    synchronized DcRetryScheduler.Retry getReconnectRetry() {
+        return mReconnectRetry;
     }
 
-    public synchronized void setReconnectIntent(PendingIntent intent) {
-        mReconnectAlarmIntent = intent;
+    synchronized void setReconnectRetry(DcRetryScheduler.Retry retry) {
+        mReconnectRetry = retry;
     }
 
     public synchronized ApnSetting getApnSetting() {
@@ -202,7 +202,7 @@ public class ApnProfileOmh extends ApnSetting {
                 serviceTypes.add(apt.getDataServiceType());
             }
         }
-        types = serviceTypes.toArray(new String[0]);
+        setTypes(serviceTypes.toArray(new String[0]));
     }
 }
 
@@ -24,8 +24,10 @@ import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.RILConstants;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 
 /**
  * This class represents a apn setting for create PDP link
@@ -35,6 +37,41 @@ public class ApnSetting {
     static final String V2_FORMAT_REGEX = "^\\[ApnSettingV2\\]\\s*";
     static final String V3_FORMAT_REGEX = "^\\[ApnSettingV3\\]\\s*";
 
+    /**
+     * Bits used by {@link #getTypesBitmask()}, one per APN type known to the platform.
+     * TYPE_MASK_ALL is the "*" wildcard, TYPE_MASK_OTHER stands for any other type string,
+     * which is then matched by name.
+     */
+    public static final int TYPE_MASK_DEFAULT   = 1 << 0;
+    public static final int TYPE_MASK_MMS       = 1 << 1;
+    public static final int TYPE_MASK_SUPL      = 1 << 2;
+    public static final int TYPE_MASK_DUN       = 1 << 3;
+    public static final int TYPE_MASK_HIPRI     = 1 << 4;
+    public static final int TYPE_MASK_FOTA      = 1 << 5;
+    public static final int TYPE_MASK_IMS       = 1 << 6;
+    public static final int TYPE_MASK_CBS       = 1 << 7;
+    public static final int TYPE_MASK_IA        = 1 << 8;
+    public static final int TYPE_MASK_EMERGENCY = 1 << 9;
+    public static final int TYPE_MASK_ALL       = 1 << 30;
+    public static final int TYPE_MASK_OTHER     = 1 << 31;
+
+    private static final int TYPE_MASK_KNOWN = TYPE_MASK_ALL - 1;
+
+    private static final HashMap<String, Integer> sTypeMasks = new HashMap<String, Integer>();
+    static {
+        sTypeMasks.put(PhoneConstants.APN_TYPE_DEFAULT, TYPE_MASK_DEFAULT);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_MMS, TYPE_MASK_MMS);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_SUPL, TYPE_MASK_SUPL);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_DUN, TYPE_MASK_DUN);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_HIPRI, TYPE_MASK_HIPRI);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_FOTA, TYPE_MASK_FOTA);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_IMS, TYPE_MASK_IMS);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_CBS, TYPE_MASK_CBS);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_IA, TYPE_MASK_IA);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_EMERGENCY, TYPE_MASK_EMERGENCY);
+        sTypeMasks.put(PhoneConstants.APN_TYPE_ALL, TYPE_MASK_ALL);
+    }
+
     public final String carrier;
     public final String apn;
     public final String proxy;
@@ -45,7 +82,9 @@ public class ApnSetting {
     public final String user;
     public final String password;
     public final int authType;
+    /** APN types, lower case. Use {@link #setTypes} to change them so the bitmask follows. */
     public String[] types;
+    private int mTypesBitmask;
     public final int id;
     public final String numeric;
     public final String protocol;
@@ -122,10 +161,11 @@ public class ApnSetting {
         this.user = user;
         this.password = password;
         this.authType = authType;
-        this.types = new String[types.length];
+        String[] lowerTypes = new String[types.length];
         for (int i = 0; i < types.length; i++) {
-            this.types[i] = types[i].toLowerCase(Locale.ROOT);
+            lowerTypes[i] = types[i].toLowerCase(Locale.ROOT);
         }
+        setTypes(lowerTypes);
         this.protocol = protocol;
         this.roamingProtocol = roamingProtocol;
         this.carrierEnabled = carrierEnabled;
@@ -322,20 +362,204 @@ public class ApnSetting {
         return !TextUtils.isEmpty(mvnoType) && !TextUtils.isEmpty(mvnoMatchData);
     }
 
+    /**
+     * Return the bit for an APN type, ignoring case: one of the TYPE_MASK_* constants,
+     * TYPE_MASK_OTHER for a type the platform doesn't know about, or 0 for null.
+     */
+    public static int getTypeMask(String type) {
+        if (type == null) return 0;
+        Integer mask = sTypeMasks.get(type);
+        if (mask == null) {
+            mask = sTypeMasks.get(type.toLowerCase(Locale.ROOT));
+        }
+        return (mask != null) ? mask : TYPE_MASK_OTHER;
+    }
+
+    /**
+     * Return the bitwise OR of {@link #getTypeMask(String)} over the types.
+     */
+    public static int getTypesMask(String[] types) {
+        int mask = 0;
+        for (String type : types) {
+            mask |= getTypeMask(type);
+        }
+        return mask;
+    }
+
+    /**
+     * Replace the APN types, which must already be lower case, and recompute the bitmask.
+     */
+    protected void setTypes(String[] types) {
+        this.types = types;
+        mTypesBitmask = getTypesMask(types);
+    }
+
+    /**
+     * @return the TYPE_MASK_* bits of this APN's types
+     */
+    public int getTypesBitmask() {
+        return mTypesBitmask;
+    }
+
     public boolean canHandleType(String type) {
         if (!carrierEnabled) return false;
-        for (String t : types) {
-            // DEFAULT handles all, and HIPRI is handled by DEFAULT
-            if (t.equalsIgnoreCase(type) ||
-                    t.equalsIgnoreCase(PhoneConstants.APN_TYPE_ALL) ||
-                    (t.equalsIgnoreCase(PhoneConstants.APN_TYPE_DEFAULT) &&
-                    type.equalsIgnoreCase(PhoneConstants.APN_TYPE_HIPRI))) {
-                return true;
+        // "*" handles all, and HIPRI is handled by DEFAULT
+        if ((mTypesBitmask & TYPE_MASK_ALL) != 0) return true;
+        int mask = getTypeMask(type);
+        if (mask == TYPE_MASK_OTHER) {
+            return (mTypesBitmask & TYPE_MASK_OTHER) != 0 && containsType(type);
+        }
+        if (mask == TYPE_MASK_HIPRI) {
+            mask |= TYPE_MASK_DEFAULT;
+        }
+        return (mTypesBitmask & mask) != 0;
+    }
+
+    /**
+     * Return true if the two APNs have a type in common, counting "*" as every type.
+     */
+    public boolean hasAnyTypeInCommon(ApnSetting other) {
+        int mine = mTypesBitmask;
+        int theirs = other.mTypesBitmask;
+        if (((mine | theirs) & TYPE_MASK_ALL) != 0) return true;
+        if ((mine & theirs & TYPE_MASK_KNOWN) != 0) return true;
+        if ((mine & theirs & TYPE_MASK_OTHER) != 0) {
+            for (String t : other.types) {
+                if (getTypeMask(t) == TYPE_MASK_OTHER && containsType(t)) return true;
             }
         }
         return false;
     }
 
+    private boolean containsType(String type) {
+        for (String t : types) {
+            if (t.equalsIgnoreCase(type)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return true if neither APN can handle DUN and the two are close enough to be served by
+     * the same data call: same apn, no type in common, and otherwise equal settings where an
+     * unspecified proxy or MMS field matches anything.
+     */
+    public static boolean isSimilar(ApnSetting first, ApnSetting second) {
+        return (first.canHandleType(PhoneConstants.APN_TYPE_DUN) == false &&
+                second.canHandleType(PhoneConstants.APN_TYPE_DUN) == false &&
+                Objects.equals(first.apn, second.apn) &&
+                !first.hasAnyTypeInCommon(second) &&
+                xorEquals(first.proxy, second.proxy) &&
+                xorEquals(first.port, second.port) &&
+                first.carrierEnabled == second.carrierEnabled &&
+                first.bearer == second.bearer &&
+                first.profileId == second.profileId &&
+                Objects.equals(first.mvnoType, second.mvnoType) &&
+                Objects.equals(first.mvnoMatchData, second.mvnoMatchData) &&
+                xorEquals(first.mmsc, second.mmsc) &&
+                xorEquals(first.mmsProxy, second.mmsProxy) &&
+                xorEquals(first.mmsPort, second.mmsPort));
+    }
+
+    // equal or one is not specified
+    private static boolean xorEquals(String first, String second) {
+        return (Objects.equals(first, second) ||
+                TextUtils.isEmpty(first) ||
+                TextUtils.isEmpty(second));
+    }
+
+    /**
+     * Return a new APN with the settings of dest, the types of both, and any proxy or
+     * MMS fields dest leaves unspecified taken from src.
+     */
+    public static ApnSetting merge(ApnSetting dest, ApnSetting src) {
+        String[] resultTypes = dest.types;
+        int missing = src.mTypesBitmask & ~dest.mTypesBitmask;
+        if ((src.mTypesBitmask & TYPE_MASK_OTHER) != 0) {
+            // Unknown types share one bit, so they have to be checked by name.
+            missing |= TYPE_MASK_OTHER;
+        }
+        if (missing != 0) {
+            ArrayList<String> merged = new ArrayList<String>(dest.types.length + src.types.length);
+            for (String t : dest.types) merged.add(t);
+            int added = 0;
+            for (String t : src.types) {
+                int mask = getTypeMask(t);
+                if (mask == TYPE_MASK_OTHER) {
+                    if (!merged.contains(t)) merged.add(t);
+                } else if ((missing & mask & ~added) != 0) {
+                    merged.add(t);
+                    added |= mask;
+                }
+            }
+            resultTypes = merged.toArray(new String[merged.size()]);
+        }
+        String mmsc = (TextUtils.isEmpty(dest.mmsc) ? src.mmsc : dest.mmsc);
+        String mmsProxy = (TextUtils.isEmpty(dest.mmsProxy) ? src.mmsProxy : dest.mmsProxy);
+        String mmsPort = (TextUtils.isEmpty(dest.mmsPort) ? src.mmsPort : dest.mmsPort);
+        String proxy = (TextUtils.isEmpty(dest.proxy) ? src.proxy : dest.proxy);
+        String port = (TextUtils.isEmpty(dest.port) ? src.port : dest.port);
+        String protocol = src.protocol.equals("IPV4V6") ? src.protocol : dest.protocol;
+        String roamingProtocol = src.roamingProtocol.equals("IPV4V6") ? src.roamingProtocol :
+                dest.roamingProtocol;
+
+        return new ApnSetting(dest.id, dest.numeric, dest.carrier, dest.apn,
+                proxy, port, mmsc, mmsProxy, mmsPort, dest.user, dest.password,
+                dest.authType, resultTypes, protocol,
+                roamingProtocol, dest.carrierEnabled, dest.bearer, dest.profileId,
+                (dest.modemCognitive || src.modemCognitive), dest.maxConns, dest.waitTime,
+                dest.maxConnsTime, dest.mtu, dest.mvnoType, dest.mvnoMatchData);
+    }
+
+    /**
+     * Coalesce APNs that are similar enough to prevent us from bringing up two data calls
+     * with the same interface. Each APN is merged with the later APNs similar to it, in list
+     * order; since only APNs with the same apn can be similar, they're compared in groups
+     * by apn instead of every pair.
+     */
+    public static void dedupe(List<ApnSetting> apns) {
+        final int size = apns.size();
+        if (size < 2) return;
+
+        HashMap<String, ArrayList<Integer>> groups = new HashMap<String, ArrayList<Integer>>();
+        boolean haveCandidates = false;
+        for (int i = 0; i < size; i++) {
+            String key = apns.get(i).apn;
+            ArrayList<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Integer>(2);
+                groups.put(key, group);
+            } else {
+                haveCandidates = true;
+            }
+            group.add(i);
+        }
+        if (!haveCandidates) return;
+
+        ApnSetting[] result = apns.toArray(new ApnSetting[size]);
+        for (ArrayList<Integer> group : groups.values()) {
+            final int groupSize = group.size();
+            for (int a = 0; a < groupSize - 1; a++) {
+                int i = group.get(a);
+                ApnSetting first = result[i];
+                if (first == null) continue;
+                for (int b = a + 1; b < groupSize; b++) {
+                    int j = group.get(b);
+                    ApnSetting second = result[j];
+                    if (second != null && isSimilar(first, second)) {
+                        first = merge(first, second);
+                        result[i] = first;
+                        result[j] = null;
+                    }
+                }
+            }
+        }
+
+        apns.clear();
+        for (ApnSetting apn : result) {
+            if (apn != null) apns.add(apn);
+        }
+    }
+
     // TODO - if we have this function we should also have hashCode.
     // Also should handle changes in type order and perhaps case-insensitivity
     @Override
@@ -30,6 +30,8 @@ import com.android.internal.telephony.dataconnection.DcFailCause;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * This is RIL_Data_Call_Response_v5 from ril.h
@@ -74,6 +76,43 @@ public class DataCallResponse {
         }
     }
 
+    /**
+     * Hash of the fields that describe the data call, i.e. everything except version and
+     * suggestedRetryTime. Equal responses have equal fingerprints; use
+     * {@link #isSameDataCall} to confirm a match.
+     */
+    public int fingerprint() {
+        int result = status;
+        result = 31 * result + cid;
+        result = 31 * result + active;
+        result = 31 * result + mtu;
+        result = 31 * result + Objects.hashCode(type);
+        result = 31 * result + Objects.hashCode(ifname);
+        result = 31 * result + Arrays.hashCode(addresses);
+        result = 31 * result + Arrays.hashCode(dnses);
+        result = 31 * result + Arrays.hashCode(gateways);
+        result = 31 * result + Arrays.hashCode(pcscf);
+        return result;
+    }
+
+    /**
+     * @return true if other describes the same data call in the same state, comparing
+     * the fields covered by {@link #fingerprint}.
+     */
+    public boolean isSameDataCall(DataCallResponse other) {
+        return other != null
+                && status == other.status
+                && cid == other.cid
+                && active == other.active
+                && mtu == other.mtu
+                && Objects.equals(type, other.type)
+                && Objects.equals(ifname, other.ifname)
+                && Arrays.equals(addresses, other.addresses)
+                && Arrays.equals(dnses, other.dnses)
+                && Arrays.equals(gateways, other.gateways)
+                && Arrays.equals(pcscf, other.pcscf);
+    }
+
     @Override
     public String toString() {
         StringBuffer sb = new StringBuffer();
@@ -29,6 +29,7 @@ import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.RetryManager;
 import com.android.internal.util.AsyncChannel;
+import com.android.internal.util.IState;
 import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -178,6 +179,9 @@ public final class DataConnection extends StateMachine {
 
     private PhoneBase mPhone;
     private LinkProperties mLinkProperties = new LinkProperties();
+    // Last data call response applied to mLinkProperties, and its fingerprint
+    private DataCallResponse mLastDataCallResponse;
+    private int mLastDataCallFingerprint;
     private long mCreateTime;
     private long mLastFailTime;
     private DcFailCause mLastFailCause;
@@ -212,8 +216,9 @@ public final class DataConnection extends StateMachine {
     static final int EVENT_DATA_CONNECTION_DRS_OR_RAT_CHANGED = BASE + 11;
     static final int EVENT_DATA_CONNECTION_ROAM_ON = BASE + 12;
     static final int EVENT_DATA_CONNECTION_ROAM_OFF = BASE + 13;
+    static final int EVENT_HARDWARE_CONFIG_CHANGED = BASE + 14;
 
-    private static final int CMD_TO_STRING_COUNT = EVENT_DATA_CONNECTION_ROAM_OFF - BASE + 1;
+    private static final int CMD_TO_STRING_COUNT = EVENT_HARDWARE_CONFIG_CHANGED - BASE + 1;
     private static String[] sCmdToString = new String[CMD_TO_STRING_COUNT];
     static {
         sCmdToString[EVENT_CONNECT - BASE] = "EVENT_CONNECT";
@@ -232,6 +237,7 @@ public final class DataConnection extends StateMachine {
                 "EVENT_DATA_CONNECTION_DRS_OR_RAT_CHANGED";
         sCmdToString[EVENT_DATA_CONNECTION_ROAM_ON - BASE] = "EVENT_DATA_CONNECTION_ROAM_ON";
         sCmdToString[EVENT_DATA_CONNECTION_ROAM_OFF - BASE] = "EVENT_DATA_CONNECTION_ROAM_OFF";
+        sCmdToString[EVENT_HARDWARE_CONFIG_CHANGED - BASE] = "EVENT_HARDWARE_CONFIG_CHANGED";
     }
     // Convert cmd to string or null if unknown
     static String cmdToString(int cmd) {
@@ -270,6 +276,64 @@ public final class DataConnection extends StateMachine {
         quitNow();
     }
 
+    /**
+     * Immutable view of the connection published by the state machine after every state
+     * transition and every change to the link properties, so other threads can read it
+     * without a round trip through the handler. The link properties and capabilities
+     * are private copies; callers that hand them out should copy them again.
+     */
+    static final class Snapshot {
+        final String stateName;
+        final boolean isInactive;
+        final int cid;
+        final ApnSetting apnSetting;
+        final LinkProperties linkProperties;
+        final NetworkCapabilities networkCapabilities;
+
+        Snapshot(String stateName, boolean isInactive, int cid, ApnSetting apnSetting,
+                LinkProperties linkProperties, NetworkCapabilities networkCapabilities) {
+            this.stateName = stateName;
+            this.isInactive = isInactive;
+            this.cid = cid;
+            this.apnSetting = apnSetting;
+            this.linkProperties = linkProperties;
+            this.networkCapabilities = networkCapabilities;
+        }
+
+        @Override
+        public String toString() {
+            return "{state=" + stateName + " isInactive=" + isInactive + " cid=" + cid
+                    + " apnSetting=" + apnSetting + " linkProperties=" + linkProperties
+                    + " networkCapabilities=" + networkCapabilities + "}";
+        }
+    }
+
+    /** Latest published snapshot, null until started and after quitting. */
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Publish the current state for cross-thread readers. Must be called on the
+     * state machine's handler after any change to the state, cid, apn setting or
+     * link properties.
+     */
+    private void publishSnapshot() {
+        if (mPhone == null || mLinkProperties == null) return;
+        IState state = getCurrentState();
+        Snapshot snapshot = new Snapshot((state != null) ? state.getName() : null,
+                state == mInactiveState, mCid, mApnSetting,
+                new LinkProperties(mLinkProperties), makeNetworkCapabilities());
+        mSnapshot = snapshot;
+        if (VDBG) log("publishSnapshot: " + snapshot);
+    }
+
+    /**
+     * @return the latest published snapshot, or null if there is none. Safe to call
+     * from any thread.
+     */
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
     /* Getter functions */
 
     NetworkCapabilities getCopyNetworkCapabilities() {
@@ -296,6 +360,19 @@ public final class DataConnection extends StateMachine {
         mLinkProperties.setHttpProxy(proxy);
     }
 
+    /**
+     * Return true if newState is the same data call response that was last applied to
+     * the link properties, so {@link #updateLinkProperty} would not change anything.
+     * Responses without DNS servers are never considered unchanged, as their link
+     * properties can pick up DNS servers from system properties.
+     */
+    boolean isDataCallUnchanged(DataCallResponse newState) {
+        return mLastDataCallResponse != null
+                && newState.dnses != null && newState.dnses.length > 0
+                && mLastDataCallFingerprint == newState.fingerprint()
+                && mLastDataCallResponse.isSameDataCall(newState);
+    }
+
     static class UpdateLinkPropertyResult {
         public DataCallResponse.SetupResult setupResult = DataCallResponse.SetupResult.SUCCESS;
         public LinkProperties oldLp;
@@ -360,8 +437,11 @@ public final class DataConnection extends StateMachine {
         checkSetMtu(mApnSetting, result.newLp);
 
         mLinkProperties = result.newLp;
+        mLastDataCallResponse = newState;
+        mLastDataCallFingerprint = newState.fingerprint();
 
         updateTcpBufferSizes(mRilRat);
+        publishSnapshot();
 
         if (DBG && (! result.oldLp.equals(result.newLp))) {
             log("updateLinkProperty old LP=" + result.oldLp);
@@ -420,7 +500,8 @@ public final class DataConnection extends StateMachine {
         mDcController = dcc;
         mId = id;
         mCid = -1;
-        mDcRetryAlarmController = new DcRetryAlarmController(mPhone, this);
+        mDcRetryAlarmController = new DcRetryAlarmController(mPhone, this,
+                dcc.getRetryScheduler());
         ServiceState ss = mPhone.getServiceState();
         mRilRat = ss.getRilDataRadioTechnology();
         mDataRegState = mPhone.getServiceState().getDataRegState();
@@ -766,6 +847,7 @@ public final class DataConnection extends StateMachine {
         mPcscfAddr = new String[5];
 
         mLinkProperties = new LinkProperties();
+        mLastDataCallResponse = null;
         mApnContexts.clear();
         mApnSetting = null;
         mDcFailCause = null;
@@ -1092,6 +1174,9 @@ public final class DataConnection extends StateMachine {
         public void exit() {
             if (DBG) log("DcDefaultState: exit");
 
+            // Readers fall back to the (now failing) synchronous path.
+            mSnapshot = null;
+
             // Unregister for DRS or RAT change.
             mPhone.getServiceStateTracker().unregisterForDataRegStateOrRatChanged(getHandler());
 
@@ -1175,6 +1260,7 @@ public final class DataConnection extends StateMachine {
                     ProxyInfo proxy = (ProxyInfo) msg.obj;
                     if (VDBG) log("REQ_SET_LINK_PROPERTIES_HTTP_PROXY proxy=" + proxy);
                     setLinkPropertiesHttpProxy(proxy);
+                    publishSnapshot();
                     mAc.replyToMessage(msg, DcAsyncChannel.RSP_SET_LINK_PROPERTIES_HTTP_PROXY);
                     if (mNetworkAgent != null) {
                         mNetworkAgent.sendLinkProperties(mLinkProperties);
@@ -1251,6 +1337,7 @@ public final class DataConnection extends StateMachine {
                     int networkType = ss.getDataNetworkType();
                     mNetworkInfo.setSubtype(networkType,
                             TelephonyManager.getNetworkTypeName(networkType));
+                    publishSnapshot();
                     if (mNetworkAgent != null) {
                         mNetworkAgent.sendNetworkCapabilities(makeNetworkCapabilities());
                         mNetworkAgent.sendNetworkInfo(mNetworkInfo);
@@ -1335,8 +1422,10 @@ public final class DataConnection extends StateMachine {
 
             // Remove ourselves from cid mapping, before clearSettings
             mDcController.removeActiveDcByCid(DataConnection.this);
+            mDcController.releasePdn(DataConnection.this);
 
             clearSettings();
+            publishSnapshot();
         }
 
         @Override
@@ -1425,6 +1514,7 @@ public final class DataConnection extends StateMachine {
                 mDcController.removeActiveDcByCid(DataConnection.this);
                 mCid = -1;
             }
+            publishSnapshot();
         }
 
         @Override
@@ -1569,6 +1659,11 @@ public final class DataConnection extends StateMachine {
      * The state machine is activating a connection.
      */
     private class DcActivatingState extends State {
+        @Override
+        public void enter() {
+            publishSnapshot();
+        }
+
         @Override
         public boolean processMessage(Message msg) {
             boolean retVal;
@@ -1689,7 +1784,8 @@ public final class DataConnection extends StateMachine {
                         }
                         mDcFailCause = cause;
 
-                        int retryDelay = mRetryManager.getRetryTimer();
+                        int retryDelay = mDcRetryAlarmController.getRetryTimer(
+                                DataConnection.this, cause);
                         if (DBG) {
                             log("DcActivatingState msg.what=EVENT_GET_LAST_FAIL_DONE"
                                     + " cause=" + cause
@@ -1769,6 +1865,7 @@ public final class DataConnection extends StateMachine {
                     mPhone.getContext(),
                     "DcNetworkAgent" + mPhone.getSubId(), mNetworkInfo,
                     makeNetworkCapabilities(), mLinkProperties, 50, misc);
+            publishSnapshot();
         }
 
         @Override
@@ -1897,6 +1994,11 @@ public final class DataConnection extends StateMachine {
      * The state machine is disconnecting.
      */
     private class DcDisconnectingState extends State {
+        @Override
+        public void enter() {
+            publishSnapshot();
+        }
+
         @Override
         public boolean processMessage(Message msg) {
             boolean retVal;
@@ -1943,6 +2045,11 @@ public final class DataConnection extends StateMachine {
      * The state machine is disconnecting after an creating a connection.
      */
     private class DcDisconnectionErrorCreatingConnection extends State {
+        @Override
+        public void enter() {
+            publishSnapshot();
+        }
+
         @Override
         public boolean processMessage(Message msg) {
             boolean retVal;
@@ -2179,6 +2286,7 @@ public final class DataConnection extends StateMachine {
         pw.println(" mApnSetting=" + mApnSetting);
         pw.println(" mTag=" + mTag);
         pw.println(" mCid=" + mCid);
+        pw.println(" mSnapshot=" + mSnapshot);
         pw.println(" mRetryManager=" + mRetryManager);
         pw.println(" mConnectionParams=" + mConnectionParams);
         pw.println(" mDisconnectParams=" + mDisconnectParams);
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+/**
+ * Decides from periodic TCP packet count samples whether the mobile data path looks
+ * stalled. DcTrackerBase feeds it one sample per data stall alarm and runs the recovery
+ * actions when it reports a suspected stall; the detector itself only keeps counters.
+ *
+ * Implementations are called on the DcTracker handler thread only and should not
+ * allocate per sample.
+ *
+ * {@hide}
+ */
+public interface DataStallDetector {
+    /**
+     * Forget all samples, e.g. after a recovery action or when the connection changes.
+     */
+    void reset();
+
+    /**
+     * Add the packets sent and received since the previous sample.
+     *
+     * @param sent packets sent, never negative
+     * @param received packets received, never negative
+     * @param countSent false if sent packets shouldn't count towards a stall, for
+     *        instance during a voice call when the data path is legitimately quiet
+     */
+    void addSample(long sent, long received, boolean countSent);
+
+    /**
+     * @param sentThreshold packets sent without anything received that mean a stall
+     * @return true if the samples so far suggest the data path is stalled
+     */
+    boolean isStallSuspected(int sentThreshold);
+
+    /**
+     * @return the packets sent without anything received, as counted by this detector
+     */
+    long getSentSinceLastRecv();
+}
@@ -28,6 +28,10 @@ import android.os.Message;
 
 /**
  * AsyncChannel to a DataConnection
+ *
+ * The *Sync getters don't block when called from another thread: they read the
+ * snapshot the DataConnection publishes on every transition, and only fall back to a
+ * synchronous message when there is none (before start and after quitting).
  */
 public class DcAsyncChannel extends AsyncChannel {
     private static final boolean DBG = false;
@@ -143,6 +147,9 @@ public class DcAsyncChannel extends AsyncChannel {
     public boolean isInactiveSync() {
         boolean value;
         if (isCallerOnDifferentThread()) {
+            DataConnection.Snapshot snapshot = mDc.getSnapshot();
+            if (snapshot != null) return snapshot.isInactive;
+
             Message response = sendMessageSynchronously(REQ_IS_INACTIVE);
             if ((response != null) && (response.what == RSP_IS_INACTIVE)) {
                 value = rspIsInactive(response);
@@ -183,6 +190,9 @@ public class DcAsyncChannel extends AsyncChannel {
     public int getCidSync() {
         int value;
         if (isCallerOnDifferentThread()) {
+            DataConnection.Snapshot snapshot = mDc.getSnapshot();
+            if (snapshot != null) return snapshot.cid;
+
             Message response = sendMessageSynchronously(REQ_GET_CID);
             if ((response != null) && (response.what == RSP_GET_CID)) {
                 value = rspCid(response);
@@ -225,6 +235,9 @@ public class DcAsyncChannel extends AsyncChannel {
     public ApnSetting getApnSettingSync() {
         ApnSetting value;
         if (isCallerOnDifferentThread()) {
+            DataConnection.Snapshot snapshot = mDc.getSnapshot();
+            if (snapshot != null) return snapshot.apnSetting;
+
             Message response = sendMessageSynchronously(REQ_GET_APNSETTING);
             if ((response != null) && (response.what == RSP_GET_APNSETTING)) {
                 value = rspApnSetting(response);
@@ -267,6 +280,9 @@ public class DcAsyncChannel extends AsyncChannel {
     public LinkProperties getLinkPropertiesSync() {
         LinkProperties value;
         if (isCallerOnDifferentThread()) {
+            DataConnection.Snapshot snapshot = mDc.getSnapshot();
+            if (snapshot != null) return new LinkProperties(snapshot.linkProperties);
+
             Message response = sendMessageSynchronously(REQ_GET_LINK_PROPERTIES);
             if ((response != null) && (response.what == RSP_GET_LINK_PROPERTIES)) {
                 value = rspLinkProperties(response);
@@ -335,6 +351,9 @@ public class DcAsyncChannel extends AsyncChannel {
     public NetworkCapabilities getNetworkCapabilitiesSync() {
         NetworkCapabilities value;
         if (isCallerOnDifferentThread()) {
+            DataConnection.Snapshot snapshot = mDc.getSnapshot();
+            if (snapshot != null) return new NetworkCapabilities(snapshot.networkCapabilities);
+
             Message response = sendMessageSynchronously(REQ_GET_NETWORK_CAPABILITIES);
             if ((response != null) && (response.what == RSP_GET_NETWORK_CAPABILITIES)) {
                 value = rspNetworkCapabilities(response);
@@ -24,10 +24,12 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.telephony.DataConnectionRealTimeInfo;
 import android.telephony.Rlog;
 
 import com.android.internal.telephony.DctConstants;
+import com.android.internal.telephony.HardwareConfig;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.dataconnection.DataConnection.UpdateLinkPropertyResult;
@@ -38,6 +40,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Data Connection Controller which is a package visible class and controls
@@ -57,6 +60,21 @@ class DcController extends StateMachine {
     private HashMap<Integer, DataConnection> mDcListActiveByCid =
             new HashMap<Integer, DataConnection>();
 
+    // Overrides the modem's reported maximum number of concurrent PDNs, 0 to use the modem's
+    private static final String PROPERTY_MAX_PDNS = "persist.radio.max_pdn";
+
+    // PDNs held by DataConnections, by DataConnection id, from bring up until they are
+    // inactive again
+    private final PdnBudget mPdnBudget;
+    private final boolean mMaxPdnsOverridden;
+
+    private final Runnable mPdnAvailable = new Runnable() {
+        @Override
+        public void run() {
+            mDct.onPdnAvailable();
+        }
+    };
+
     /**
      * Constants for the data connection activity:
      * physical link down/up
@@ -73,6 +91,9 @@ class DcController extends StateMachine {
 
     private DccDefaultState mDccDefaultState = new DccDefaultState();
 
+    // Shared by all DataConnections and DcTracker so data retries share wakeups
+    private final DcRetryScheduler mRetryScheduler;
+
     /**
      * Constructor.
      *
@@ -88,6 +109,15 @@ class DcController extends StateMachine {
         log("E ctor");
         mPhone = phone;
         mDct = dct;
+        mRetryScheduler = new DcRetryScheduler(phone, handler);
+        int maxPdns = SystemProperties.getInt(PROPERTY_MAX_PDNS, 0);
+        mMaxPdnsOverridden = maxPdns > 0;
+        mPdnBudget = new PdnBudget(maxPdns, new Runnable() {
+            @Override
+            public void run() {
+                mDct.post(mPdnAvailable);
+            }
+        });
         addState(mDccDefaultState);
         setInitialState(mDccDefaultState);
         log("X ctor");
@@ -101,9 +131,14 @@ class DcController extends StateMachine {
 
     void dispose() {
         log("dispose: call quiteNow()");
+        mRetryScheduler.dispose();
         quitNow();
     }
 
+    DcRetryScheduler getRetryScheduler() {
+        return mRetryScheduler;
+    }
+
     void addDc(DataConnection dc) {
         mDcListAll.add(dc);
     }
@@ -111,6 +146,51 @@ class DcController extends StateMachine {
     void removeDc(DataConnection dc) {
         mDcListActiveByCid.remove(dc.mCid);
         mDcListAll.remove(dc);
+        releasePdn(dc);
+    }
+
+    /**
+     * @return true if another PDN can be brought up without exceeding the modem's limit
+     */
+    boolean hasPdnCapacity() {
+        return mPdnBudget.hasCapacity();
+    }
+
+    /**
+     * Account for a PDN about to be brought up on the DataConnection with the given id.
+     * The reservation is released when the DataConnection returns to inactive.
+     *
+     * @return false if the modem's limit has been reached, nothing is reserved then
+     */
+    boolean reservePdn(int dcId) {
+        if (!mPdnBudget.reserve(dcId)) {
+            if (DBG) log("reservePdn: dcId=" + dcId + " no capacity " + mPdnBudget);
+            return false;
+        }
+        if (VDBG) log("reservePdn: dcId=" + dcId + " " + mPdnBudget);
+        return true;
+    }
+
+    void releasePdn(DataConnection dc) {
+        if (mPdnBudget.release(dc.getDataConnectionId())) {
+            if (VDBG) log("releasePdn: dc=" + dc.getName() + " " + mPdnBudget);
+        }
+    }
+
+    int getPdnsInUse() {
+        return mPdnBudget.getInUse();
+    }
+
+    int getMaxPdns() {
+        return mPdnBudget.getMaxPdns();
+    }
+
+    private void onHardwareConfigChanged(List<HardwareConfig> configs) {
+        if (mMaxPdnsOverridden || configs == null) return;
+
+        // With several modems use the smallest limit any of them reports
+        mPdnBudget.setMaxPdns(PdnBudget.maxPdnsFrom(configs));
+        if (DBG) log("onHardwareConfigChanged: " + mPdnBudget);
     }
 
     void addActiveDcByCid(DataConnection dc) {
@@ -134,6 +214,12 @@ class DcController extends StateMachine {
                     DataConnection.EVENT_RIL_CONNECTED, null);
             mPhone.mCi.registerForDataNetworkStateChanged(getHandler(),
                     DataConnection.EVENT_DATA_STATE_CHANGED, null);
+            mPhone.mCi.registerForHardwareConfigChanged(getHandler(),
+                    DataConnection.EVENT_HARDWARE_CONFIG_CHANGED, null);
+            if (!mMaxPdnsOverridden) {
+                mPhone.mCi.getHardwareConfig(
+                        obtainMessage(DataConnection.EVENT_HARDWARE_CONFIG_CHANGED));
+            }
             if (Build.IS_DEBUGGABLE) {
                 mDcTesterDeactivateAll =
                         new DcTesterDeactivateAll(mPhone, DcController.this, getHandler());
@@ -145,6 +231,7 @@ class DcController extends StateMachine {
             if (mPhone != null) {
                 mPhone.mCi.unregisterForRilConnected(getHandler());
                 mPhone.mCi.unregisterForDataNetworkStateChanged(getHandler());
+                mPhone.mCi.unregisterForHardwareConfigChanged(getHandler());
             }
             if (mDcTesterDeactivateAll != null) {
                 mDcTesterDeactivateAll.dispose();
@@ -177,6 +264,16 @@ class DcController extends StateMachine {
                                     " exception; likely radio not available, ignore");
                     }
                     break;
+
+                case DataConnection.EVENT_HARDWARE_CONFIG_CHANGED:
+                    ar = (AsyncResult)msg.obj;
+                    if (ar.exception == null) {
+                        onHardwareConfigChanged((List<HardwareConfig>)ar.result);
+                    } else {
+                        log("DccDefaultState: EVENT_HARDWARE_CONFIG_CHANGED:" +
+                                    " exception; modem limit unknown, not limiting PDNs");
+                    }
+                    break;
             }
             return HANDLED;
         }
@@ -194,32 +291,28 @@ class DcController extends StateMachine {
                 log("onDataStateChanged: mDcListAll=" + mDcListAll);
             }
 
-            // Create hashmap of cid to DataCallResponse
-            HashMap<Integer, DataCallResponse> dataCallResponseListByCid =
-                    new HashMap<Integer, DataCallResponse>();
-            for (DataCallResponse dcs : dcsList) {
-                dataCallResponseListByCid.put(dcs.cid, dcs);
-            }
-
             // Add a DC that is active but not in the
-            // dcsList to the list of DC's to retry
-            ArrayList<DataConnection> dcsToRetry = new ArrayList<DataConnection>();
+            // dcsList to the list of DC's to retry.
+            // The lists below are only allocated once something needs doing, the
+            // common case being a periodic refresh where nothing has changed.
+            ArrayList<DataConnection> dcsToRetry = null;
             for (DataConnection dc : mDcListActiveByCid.values()) {
-                if (dataCallResponseListByCid.get(dc.mCid) == null) {
+                if (!containsCid(dcsList, dc.mCid)) {
                     if (DBG) log("onDataStateChanged: add to retry dc=" + dc);
-                    dcsToRetry.add(dc);
+                    dcsToRetry = add(dcsToRetry, dc);
                 }
             }
-            if (DBG) log("onDataStateChanged: dcsToRetry=" + dcsToRetry);
+            if (DBG && dcsToRetry != null) log("onDataStateChanged: dcsToRetry=" + dcsToRetry);
 
             // Find which connections have changed state and send a notification or cleanup
             // and any that are in active need to be retried.
-            ArrayList<ApnContext> apnsToCleanup = new ArrayList<ApnContext>();
+            ArrayList<ApnContext> apnsToCleanup = null;
 
             boolean isAnyDataCallDormant = false;
             boolean isAnyDataCallActive = false;
 
-            for (DataCallResponse newState : dcsList) {
+            for (int i = 0, size = dcsList.size(); i < size; i++) {
+                DataCallResponse newState = dcsList.get(i);
 
                 DataConnection dc = mDcListActiveByCid.get(newState.cid);
                 if (dc == null) {
@@ -228,7 +321,12 @@ class DcController extends StateMachine {
                     continue;
                 }
 
-                if (dc.mApnContexts.size() == 0) {
+                if (newState.active != DATA_CONNECTION_ACTIVE_PH_LINK_INACTIVE
+                        && dc.isDataCallUnchanged(newState)) {
+                    // Same response as the one the link properties were built from,
+                    // so there is nothing to compare or notify.
+                    if (VDBG) log("onDataStateChanged: unchanged cid=" + newState.cid);
+                } else if (dc.mApnContexts.size() == 0) {
                     if (DBG) loge("onDataStateChanged: no connected apns, ignore");
                 } else {
                     // Determine if the connection/apnContext should be cleaned up
@@ -237,7 +335,7 @@ class DcController extends StateMachine {
                             + " newState=" + newState.toString());
                     if (newState.active == DATA_CONNECTION_ACTIVE_PH_LINK_INACTIVE) {
                         if (mDct.mIsCleanupRequired) {
-                            apnsToCleanup.addAll(dc.mApnContexts);
+                            apnsToCleanup = addAll(apnsToCleanup, dc.mApnContexts);
                             mDct.mIsCleanupRequired = false;
                         } else {
                             DcFailCause failCause = DcFailCause.fromInt(newState.status);
@@ -247,10 +345,10 @@ class DcController extends StateMachine {
                                 mDct.sendRestartRadio();
                             } else if (mDct.isPermanentFail(failCause)) {
                                 if (DBG) log("onDataStateChanged: inactive, add to cleanup list");
-                                apnsToCleanup.addAll(dc.mApnContexts);
+                                apnsToCleanup = addAll(apnsToCleanup, dc.mApnContexts);
                             } else {
                                 if (DBG) log("onDataStateChanged: inactive, add to retry list");
-                                dcsToRetry.add(dc);
+                                dcsToRetry = add(dcsToRetry, dc);
                             }
                         }
                     } else {
@@ -290,7 +388,7 @@ class DcController extends StateMachine {
                                                     " oldLp=" + result.oldLp +
                                                     " newLp=" + result.newLp);
                                         }
-                                        apnsToCleanup.addAll(dc.mApnContexts);
+                                        apnsToCleanup = addAll(apnsToCleanup, dc.mApnContexts);
                                     } else {
                                         if (DBG) log("onDataStateChanged: simple change");
 
@@ -306,7 +404,7 @@ class DcController extends StateMachine {
                                     }
                                 }
                             } else {
-                                apnsToCleanup.addAll(dc.mApnContexts);
+                                apnsToCleanup = addAll(apnsToCleanup, dc.mApnContexts);
                                 if (DBG) {
                                     log("onDataStateChanged: interface change, cleanup apns="
                                             + dc.mApnContexts);
@@ -380,18 +478,44 @@ class DcController extends StateMachine {
             }
 
             // Cleanup connections that have changed
-            for (ApnContext apnContext : apnsToCleanup) {
-               mDct.sendCleanUpConnection(true, apnContext);
+            if (apnsToCleanup != null) {
+                for (ApnContext apnContext : apnsToCleanup) {
+                   mDct.sendCleanUpConnection(true, apnContext);
+                }
             }
 
             // Retry connections that have disappeared
-            for (DataConnection dc : dcsToRetry) {
-                if (DBG) log("onDataStateChanged: send EVENT_LOST_CONNECTION dc.mTag=" + dc.mTag);
-                dc.sendMessage(DataConnection.EVENT_LOST_CONNECTION, dc.mTag);
+            if (dcsToRetry != null) {
+                for (DataConnection dc : dcsToRetry) {
+                    if (DBG) {
+                        log("onDataStateChanged: send EVENT_LOST_CONNECTION dc.mTag="
+                                + dc.mTag);
+                    }
+                    dc.sendMessage(DataConnection.EVENT_LOST_CONNECTION, dc.mTag);
+                }
             }
 
             if (DBG) log("onDataStateChanged: X");
         }
+
+        private boolean containsCid(ArrayList<DataCallResponse> dcsList, int cid) {
+            for (int i = 0, size = dcsList.size(); i < size; i++) {
+                if (dcsList.get(i).cid == cid) return true;
+            }
+            return false;
+        }
+
+        private <T> ArrayList<T> add(ArrayList<T> list, T item) {
+            if (list == null) list = new ArrayList<T>();
+            list.add(item);
+            return list;
+        }
+
+        private <T> ArrayList<T> addAll(ArrayList<T> list, List<T> items) {
+            if (list == null) list = new ArrayList<T>();
+            list.addAll(items);
+            return list;
+        }
     }
 
     /**
@@ -436,5 +560,7 @@ class DcController extends StateMachine {
         pw.println(" mPhone=" + mPhone);
         pw.println(" mDcListAll=" + mDcListAll);
         pw.println(" mDcListActiveByCid=" + mDcListActiveByCid);
+        pw.println(" mRetryScheduler=" + mRetryScheduler);
+        pw.println(" mPdnBudget=" + mPdnBudget + " mMaxPdnsOverridden=" + mMaxPdnsOverridden);
     }
 }
@@ -15,22 +15,15 @@
  */
 package com.android.internal.telephony.dataconnection;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.AsyncResult;
-import android.os.SystemClock;
 import android.telephony.Rlog;
-import android.text.TextUtils;
 
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.RILConstants;
 
 /**
- * The Data Connection Retry Alarm Controller.
+ * The Data Connection Retry Alarm Controller. Retries are scheduled on the phone's shared
+ * {@link DcRetryScheduler}; a DataConnection has at most one pending retry.
  */
 public class DcRetryAlarmController {
     private String mLogTag = "DcRac";
@@ -38,55 +31,14 @@ public class DcRetryAlarmController {
 
     private PhoneBase mPhone;
     private DataConnection mDc;
-    private AlarmManager mAlarmManager;
+    private DcRetryScheduler mScheduler;
+    private DcRetryScheduler.Retry mPendingRetry;
 
-    // The Intent action for retrying and its two extra's
-    private String mActionRetry;
-    private static final String INTENT_RETRY_ALARM_WHAT = "what";
-    private static final String INTENT_RETRY_ALARM_TAG = "tag";
-
-    private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
-            @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (TextUtils.isEmpty(action)) {
-                // Our mActionXxxx's could be null when disposed this could match an empty action.
-                log("onReceive: ignore empty action='" + action + "'");
-                return;
-            }
-            if (TextUtils.equals(action, mActionRetry)) {
-                if (!intent.hasExtra(INTENT_RETRY_ALARM_WHAT)) {
-                    throw new RuntimeException(mActionRetry + " has no INTENT_RETRY_ALRAM_WHAT");
-                }
-                if (!intent.hasExtra(INTENT_RETRY_ALARM_TAG)) {
-                    throw new RuntimeException(mActionRetry + " has no INTENT_RETRY_ALRAM_TAG");
-                }
-                int what = intent.getIntExtra(INTENT_RETRY_ALARM_WHAT, Integer.MAX_VALUE);
-                int tag = intent.getIntExtra(INTENT_RETRY_ALARM_TAG, Integer.MAX_VALUE);
-                if (DBG) {
-                    log("onReceive: action=" + action
-                            + " sendMessage(what:" + mDc.getWhatToString(what)
-                            + ", tag:" + tag + ")");
-                }
-                mDc.sendMessage(mDc.obtainMessage(what, tag, 0));
-            } else {
-                if (DBG) log("onReceive: unknown action=" + action);
-            }
-        }
-    };
-
-    DcRetryAlarmController(PhoneBase phone, DataConnection dc) {
+    DcRetryAlarmController(PhoneBase phone, DataConnection dc, DcRetryScheduler scheduler) {
         mLogTag = dc.getName();
         mPhone = phone;
         mDc = dc;
-        mAlarmManager = (AlarmManager) mPhone.getContext().getSystemService(Context.ALARM_SERVICE);
-        mActionRetry = mDc.getClass().getCanonicalName() + "." + mDc.getName() + ".action_retry";
-
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(mActionRetry);
-        log("DcRetryAlarmController: register for intent action=" + mActionRetry);
-
-        mPhone.getContext().registerReceiver(mIntentReceiver, filter, null, mDc.getHandler());
+        mScheduler = scheduler;
     }
 
     /**
@@ -94,11 +46,11 @@ public class DcRetryAlarmController {
      */
     void dispose() {
         if (DBG) log("dispose");
-        mPhone.getContext().unregisterReceiver(mIntentReceiver);
+        mScheduler.cancel(mPendingRetry);
+        mPendingRetry = null;
         mPhone = null;
         mDc = null;
-        mAlarmManager = null;
-        mActionRetry = null;
+        mScheduler = null;
     }
 
     /**
@@ -120,7 +72,7 @@ public class DcRetryAlarmController {
         } else if (retryDelay >= 0) {
             if (DBG) log("getSuggestedRetryTime: suggestedRetryTime is >= 0 use it");
         } else if (dc.mRetryManager.isRetryNeeded()) {
-            retryDelay = dc.mRetryManager.getRetryTimer();
+            retryDelay = getRetryTimer(dc, DcFailCause.fromInt(response.status));
             if (retryDelay < 0) {
                 retryDelay = 0;
             }
@@ -136,20 +88,28 @@ public class DcRetryAlarmController {
         return retryDelay;
     }
 
-    public void startRetryAlarm(int what, int tag, int delay) {
-        Intent intent = new Intent(mActionRetry);
-        intent.putExtra(INTENT_RETRY_ALARM_WHAT, what);
-        intent.putExtra(INTENT_RETRY_ALARM_TAG, tag);
+    /**
+     * @return the delay before the next retry after a failure with cause, from the cause's
+     * backoff policy if it has one and dc.mRetryManager otherwise
+     */
+    int getRetryTimer(DataConnection dc, DcFailCause cause) {
+        DcRetryScheduler.BackoffPolicy policy = DcRetryScheduler.getBackoffPolicy(cause);
+        if (policy == null) {
+            return dc.mRetryManager.getRetryTimer();
+        }
+        int delay = policy.getDelay(dc.mRetryManager.getRetryCount());
+        if (DBG) log("getRetryTimer: cause=" + cause + " policy=" + policy + " delay=" + delay);
+        return delay;
+    }
 
+    public void startRetryAlarm(int what, int tag, int delay) {
         if (DBG) {
             log("startRetryAlarm: next attempt in " + (delay / 1000) + "s" +
                     " what=" + what + " tag=" + tag);
         }
-
-        PendingIntent retryIntent = PendingIntent.getBroadcast (mPhone.getContext(), 0,
-                                        intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + delay, retryIntent);
+        // Like the per connection alarm this replaces, a new retry supersedes the pending one
+        mScheduler.cancel(mPendingRetry);
+        mPendingRetry = mScheduler.schedule(mDc.obtainMessage(what, tag, 0), delay);
     }
 
     @Override
@@ -158,8 +118,7 @@ public class DcRetryAlarmController {
         sb.append(mLogTag).append(" [dcRac] ");
         sb.append(" mPhone=").append(mPhone);
         sb.append(" mDc=").append(mDc);
-        sb.append(" mAlaramManager=").append(mAlarmManager);
-        sb.append(" mActionRetry=").append(mActionRetry);
+        sb.append(" mPendingRetry=").append(mPendingRetry);
         return sb.toString();
     }
 
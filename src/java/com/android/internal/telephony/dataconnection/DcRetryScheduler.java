@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+import android.text.TextUtils;
+
+import com.android.internal.telephony.PhoneBase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Schedules all pending data retries of a phone, both DataConnection bring up retries and
+ * DcTracker reconnects, on a single wakeup alarm.
+ *
+ * Retries are kept in a timer wheel of one second ticks. A retry may be delayed by a small
+ * fraction of its delay so that it joins a tick another retry is already due at, which turns
+ * several failing PDNs into one wakeup instead of one each. The alarm is always set for the
+ * earliest tick that has a retry.
+ *
+ * The class also holds the per {@link DcFailCause} backoff policies, see
+ * {@link #getBackoffPolicy(DcFailCause)}.
+ */
+public class DcRetryScheduler {
+    private static final String LOG_TAG = "DcRetryScheduler";
+    private static final boolean DBG = true;
+    private static final boolean VDBG = false;
+
+    private static final int TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 128;
+
+    // A retry may be postponed by up to this percentage of its delay, capped at
+    // MAX_ALIGN_MILLIS, to share a wakeup with another retry
+    private static final int ALIGN_PERCENT = 10;
+    private static final int MAX_ALIGN_MILLIS = 30 * 1000;
+
+    private static final String INTENT_ACTION_RETRY =
+            "com.android.internal.telephony.data-retry";
+
+    /**
+     * A scheduled retry, used to cancel it. Retries in a slot form a singly linked list so
+     * scheduling does not allocate beyond the Retry itself.
+     */
+    static final class Retry {
+        private final Message mMsg;
+        private final long mDeadlineTick;
+        private Retry mNext;
+        private boolean mScheduled;
+
+        private Retry(Message msg, long deadlineTick) {
+            mMsg = msg;
+            mDeadlineTick = deadlineTick;
+        }
+
+        @Override
+        public String toString() {
+            return "{what=" + mMsg.what + " due=" + (mDeadlineTick * TICK_MILLIS) + "}";
+        }
+    }
+
+    private final Context mContext;
+    private final int mPhoneId;
+    private final AlarmManager mAlarmManager;
+    private final String mActionRetry;
+    private final PendingIntent mAlarmIntent;
+
+    private final Retry[] mWheel = new Retry[WHEEL_SLOTS];
+    private int mCount;
+    // Tick the alarm is set for, Long.MAX_VALUE if it is not set
+    private long mAlarmTick = Long.MAX_VALUE;
+
+    // Counters for dump
+    private int mScheduledCount;
+    private int mAlignedCount;
+    private int mWakeupCount;
+
+    private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (TextUtils.equals(intent.getAction(), mActionRetry)) {
+                onAlarm();
+            }
+        }
+    };
+
+    DcRetryScheduler(PhoneBase phone, Handler handler) {
+        this(phone.getContext(), phone.getPhoneId(), handler);
+    }
+
+    DcRetryScheduler(Context context, int phoneId, Handler handler) {
+        mContext = context;
+        mPhoneId = phoneId;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mActionRetry = INTENT_ACTION_RETRY + "." + phoneId;
+        mAlarmIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(mActionRetry), PendingIntent.FLAG_UPDATE_CURRENT);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(mActionRetry);
+        context.registerReceiver(mIntentReceiver, filter, null, handler);
+    }
+
+    void dispose() {
+        if (DBG) log("dispose");
+        mContext.unregisterReceiver(mIntentReceiver);
+        synchronized (this) {
+            for (int i = 0; i < WHEEL_SLOTS; i++) {
+                mWheel[i] = null;
+            }
+            mCount = 0;
+            updateAlarm(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Send msg to its target after at least delayMillis.
+     *
+     * @return the Retry to pass to {@link #cancel(Retry)}
+     */
+    synchronized Retry schedule(Message msg, int delayMillis) {
+        long now = elapsedRealtime();
+        long delay = Math.max(0, delayMillis);
+        long earliestTick = (now + delay + TICK_MILLIS - 1) / TICK_MILLIS;
+        long slack = Math.min(delay * ALIGN_PERCENT / 100, MAX_ALIGN_MILLIS);
+        long latestTick = Math.max(earliestTick, (now + delay + slack) / TICK_MILLIS);
+
+        long tick = findBusyTick(earliestTick, latestTick);
+        if (tick != earliestTick) mAlignedCount++;
+
+        Retry retry = new Retry(msg, tick);
+        int slot = (int) (tick % WHEEL_SLOTS);
+        retry.mNext = mWheel[slot];
+        retry.mScheduled = true;
+        mWheel[slot] = retry;
+        mCount++;
+        mScheduledCount++;
+
+        if (VDBG) {
+            log("schedule: what=" + msg.what + " delay=" + delayMillis + " aligned by "
+                    + (tick * TICK_MILLIS - now - delay) + "ms count=" + mCount);
+        }
+        if (tick < mAlarmTick) updateAlarm(tick);
+        return retry;
+    }
+
+    /**
+     * Cancel a retry returned by {@link #schedule(Message, int)}; does nothing if it has
+     * already been sent or cancelled.
+     */
+    synchronized void cancel(Retry retry) {
+        if (retry == null || !retry.mScheduled) return;
+
+        int slot = (int) (retry.mDeadlineTick % WHEEL_SLOTS);
+        Retry prev = null;
+        for (Retry r = mWheel[slot]; r != null; prev = r, r = r.mNext) {
+            if (r == retry) {
+                if (prev == null) {
+                    mWheel[slot] = r.mNext;
+                } else {
+                    prev.mNext = r.mNext;
+                }
+                r.mNext = null;
+                r.mScheduled = false;
+                mCount--;
+                break;
+            }
+        }
+        if (retry.mDeadlineTick == mAlarmTick) updateAlarm(findNextTick());
+    }
+
+    /**
+     * @return the first tick in [earliest, latest] another retry is due at, else earliest
+     */
+    private long findBusyTick(long earliest, long latest) {
+        if (mAlarmTick >= earliest && mAlarmTick <= latest) return mAlarmTick;
+        if (mCount == 0) return earliest;
+
+        long last = Math.min(latest, earliest + WHEEL_SLOTS - 1);
+        for (long tick = earliest; tick <= last; tick++) {
+            for (Retry r = mWheel[(int) (tick % WHEEL_SLOTS)]; r != null; r = r.mNext) {
+                if (r.mDeadlineTick == tick) return tick;
+            }
+        }
+        return earliest;
+    }
+
+    private long findNextTick() {
+        long next = Long.MAX_VALUE;
+        if (mCount == 0) return next;
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            for (Retry r = mWheel[i]; r != null; r = r.mNext) {
+                if (r.mDeadlineTick < next) next = r.mDeadlineTick;
+            }
+        }
+        return next;
+    }
+
+    private void updateAlarm(long tick) {
+        if (tick == mAlarmTick) return;
+        mAlarmTick = tick;
+        if (tick == Long.MAX_VALUE) {
+            cancelAlarm();
+        } else {
+            setAlarm(tick * TICK_MILLIS);
+        }
+    }
+
+    /**
+     * @return the current time in the elapsed realtime base the alarm uses; overridden by tests
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Set the wakeup alarm for the given elapsed realtime; overridden by tests
+     */
+    void setAlarm(long triggerAtMillis) {
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAtMillis, mAlarmIntent);
+    }
+
+    /**
+     * Cancel the wakeup alarm; overridden by tests
+     */
+    void cancelAlarm() {
+        mAlarmManager.cancel(mAlarmIntent);
+    }
+
+    /**
+     * Send every retry that is due and set the alarm for the next one.
+     */
+    void onAlarm() {
+        ArrayList<Message> due = new ArrayList<Message>();
+        int pending;
+        synchronized (this) {
+            mWakeupCount++;
+            long nowTick = elapsedRealtime() / TICK_MILLIS;
+            for (int i = 0; i < WHEEL_SLOTS; i++) {
+                Retry prev = null;
+                Retry r = mWheel[i];
+                while (r != null) {
+                    Retry next = r.mNext;
+                    if (r.mDeadlineTick <= nowTick) {
+                        if (prev == null) {
+                            mWheel[i] = next;
+                        } else {
+                            prev.mNext = next;
+                        }
+                        r.mNext = null;
+                        r.mScheduled = false;
+                        mCount--;
+                        due.add(r.mMsg);
+                    } else {
+                        prev = r;
+                    }
+                    r = next;
+                }
+            }
+            // The alarm fired so it is no longer set
+            mAlarmTick = Long.MAX_VALUE;
+            updateAlarm(findNextTick());
+            pending = mCount;
+        }
+
+        if (DBG) log("onAlarm: sending " + due.size() + " retries, " + pending + " pending");
+        for (int i = 0; i < due.size(); i++) {
+            due.get(i).sendToTarget();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DcRetryScheduler{pending=" + mCount
+                + " alarm=" + (mAlarmTick == Long.MAX_VALUE ? "none" : mAlarmTick * TICK_MILLIS)
+                + " scheduled=" + mScheduledCount + " aligned=" + mAlignedCount
+                + " wakeups=" + mWakeupCount + "}";
+    }
+
+    /**
+     * Jittered exponential backoff: attempt n waits base * 2^n, capped at max, and then
+     * randomly moved by up to +/- jitter of that so PDNs and devices failing together do not
+     * retry together.
+     */
+    static final class BackoffPolicy {
+        final int mBaseMillis;
+        final int mMaxMillis;
+        final float mJitter;
+
+        BackoffPolicy(int baseMillis, int maxMillis, float jitter) {
+            mBaseMillis = baseMillis;
+            mMaxMillis = maxMillis;
+            mJitter = Math.max(0f, Math.min(1f, jitter));
+        }
+
+        int getDelay(int attempt) {
+            long delay = mBaseMillis;
+            for (int i = 0; i < attempt && delay < mMaxMillis; i++) {
+                delay <<= 1;
+            }
+            delay = Math.min(delay, mMaxMillis);
+            long spread = (long) (delay * mJitter);
+            if (spread > 0) {
+                delay += sRandom.nextInt((int) Math.min(2 * spread + 1, Integer.MAX_VALUE))
+                        - spread;
+            }
+            return (int) Math.max(0, delay);
+        }
+
+        @Override
+        public String toString() {
+            return mBaseMillis + "," + mMaxMillis + "," + mJitter;
+        }
+    }
+
+    /**
+     * Backoff policies by fail cause, formatted as "CAUSE=base,max,jitter;..." with times in
+     * milliseconds, for example "INSUFFICIENT_RESOURCES=5000,600000,0.25". Causes not listed
+     * use the DataConnection's RetryManager, which is all of them unless the property is set;
+     * "none" disables all policies.
+     */
+    private static final String PROPERTY_BACKOFF_POLICIES = "persist.radio.dc_backoff";
+
+    private static final Random sRandom = new Random();
+    private static HashMap<DcFailCause, BackoffPolicy> sBackoffPolicies;
+
+    /**
+     * @return the backoff policy for cause, or null if the RetryManager decides
+     */
+    static synchronized BackoffPolicy getBackoffPolicy(DcFailCause cause) {
+        if (sBackoffPolicies == null) {
+            sBackoffPolicies = parseBackoffPolicies(
+                    SystemProperties.get(PROPERTY_BACKOFF_POLICIES, ""));
+        }
+        return sBackoffPolicies.get(cause);
+    }
+
+    static HashMap<DcFailCause, BackoffPolicy> parseBackoffPolicies(String config) {
+        HashMap<DcFailCause, BackoffPolicy> policies = new HashMap<DcFailCause, BackoffPolicy>();
+        if (TextUtils.isEmpty(config) || "none".equals(config)) return policies;
+
+        for (String entry : config.split(";")) {
+            String[] causeAndValues = entry.trim().split("=");
+            if (causeAndValues.length != 2) {
+                Rlog.e(LOG_TAG, "parseBackoffPolicies: bad entry '" + entry + "'");
+                continue;
+            }
+            String[] values = causeAndValues[1].split(",");
+            try {
+                DcFailCause cause = DcFailCause.valueOf(causeAndValues[0].trim());
+                policies.put(cause, new BackoffPolicy(Integer.parseInt(values[0].trim()),
+                        Integer.parseInt(values[1].trim()), Float.parseFloat(values[2].trim())));
+            } catch (IllegalArgumentException e) {
+                Rlog.e(LOG_TAG, "parseBackoffPolicies: bad entry '" + entry + "' " + e);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                Rlog.e(LOG_TAG, "parseBackoffPolicies: bad entry '" + entry + "' " + e);
+            }
+        }
+        if (DBG) Rlog.d(LOG_TAG, "parseBackoffPolicies: " + policies);
+        return policies;
+    }
+
+    private void log(String s) {
+        Rlog.d(LOG_TAG, "[" + mPhoneId + "] " + s);
+    }
+}
@@ -68,6 +68,9 @@ public class DcSwitchAsyncChannel extends AsyncChannel {
         boolean executed;
         NetworkRequest request;
         int priority;
+        // Resolved by DctController when the request is indexed
+        int phoneId = -1;
+        String apn;
 
         public RequestInfo(NetworkRequest request, int priority) {
             this.request = request;
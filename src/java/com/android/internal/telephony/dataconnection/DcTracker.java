@@ -18,7 +18,6 @@
 
 package com.android.internal.telephony.dataconnection;
 
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
@@ -93,9 +92,9 @@ import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.Objects;
 import java.lang.StringBuilder;
 
 import android.provider.Settings;
@@ -127,10 +126,181 @@ public final class DcTracker extends DcTrackerBase {
 
         @Override
         public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mApnIndex.onCarriersChanged(uri);
             sendMessage(obtainMessage(DctConstants.EVENT_APN_CHANGED));
         }
     }
 
+    /**
+     * In-memory index over the carriers table. Enabled APNs are kept per operator numeric
+     * so records loading and APN changes don't go back to the provider for operators that
+     * haven't changed, and the waiting APN candidates derived from mAllApnSettings are kept
+     * per (radio technology, APN type) so trySetupData doesn't rescan the whole list.
+     *
+     * Only used from the DcTracker handler thread; the ApnChangeObserver is dispatched on it.
+     */
+    private class ApnIndex {
+        /** Enabled carrier APNs by operator numeric, in provider order, before MVNO matching. */
+        private final HashMap<String, ArrayList<ApnSetting>> mCarrierApns =
+                new HashMap<String, ArrayList<ApnSetting>>();
+
+        /** Waiting APN candidates by radio technology, then requested APN type. */
+        private final SparseArray<HashMap<String, ArrayList<ApnSetting>>> mWaitingApns =
+                new SparseArray<HashMap<String, ArrayList<ApnSetting>>>();
+
+        /**
+         * Return the enabled APNs configured for an operator, querying the provider
+         * only when the operator isn't indexed yet. The returned list must not be modified.
+         */
+        ArrayList<ApnSetting> getCarrierApns(String operator) {
+            ArrayList<ApnSetting> apns = mCarrierApns.get(operator);
+            if (apns == null) {
+                apns = queryCarrierApns(operator);
+                if (apns == null) {
+                    // Provider not available; don't remember the miss.
+                    return new ArrayList<ApnSetting>();
+                }
+                mCarrierApns.put(operator, apns);
+            }
+            return apns;
+        }
+
+        /**
+         * Return the APNs from mAllApnSettings that can handle the type on the given
+         * radio technology, in mAllApnSettings order. The returned list must not be modified.
+         */
+        ArrayList<ApnSetting> getWaitingApns(String requestedApnType, int radioTech) {
+            HashMap<String, ArrayList<ApnSetting>> byType = mWaitingApns.get(radioTech);
+            if (byType == null) {
+                byType = new HashMap<String, ArrayList<ApnSetting>>();
+                mWaitingApns.put(radioTech, byType);
+            }
+            ArrayList<ApnSetting> apns = byType.get(requestedApnType);
+            if (apns == null) {
+                apns = new ArrayList<ApnSetting>();
+                for (ApnSetting apn : mAllApnSettings) {
+                    if (apn.canHandleType(requestedApnType)
+                            && (apn.bearer == 0 || apn.bearer == radioTech)) {
+                        apns.add(apn);
+                    }
+                }
+                byType.put(requestedApnType, apns);
+                if (DBG) {
+                    log("ApnIndex: indexed type=" + requestedApnType + " radioTech=" + radioTech
+                            + " apns=" + apns);
+                }
+            }
+            return apns;
+        }
+
+        /** Must be called whenever mAllApnSettings is modified. */
+        void onApnListChanged() {
+            mWaitingApns.clear();
+        }
+
+        /**
+         * Drop the operators affected by a change to the carriers table. A change to a
+         * single row only drops the operator(s) that row belonged to or now belongs to;
+         * anything else drops the whole index.
+         */
+        void onCarriersChanged(Uri uri) {
+            long id = getCarrierRowId(uri);
+            if (id < 0) {
+                if (DBG) log("ApnIndex: carriers changed uri=" + uri + ", dropping all");
+                mCarrierApns.clear();
+                return;
+            }
+
+            ArrayList<String> stale = new ArrayList<String>();
+            for (String operator : mCarrierApns.keySet()) {
+                for (ApnSetting apn : mCarrierApns.get(operator)) {
+                    if (apn.id == id) {
+                        stale.add(operator);
+                        break;
+                    }
+                }
+            }
+            String operator = queryCarrierNumeric(id);
+            if (operator != null) {
+                stale.add(operator);
+            }
+            if (DBG) log("ApnIndex: carriers row " + id + " changed, dropping " + stale);
+            for (String op : stale) {
+                mCarrierApns.remove(op);
+            }
+        }
+
+        void clear() {
+            mCarrierApns.clear();
+            mWaitingApns.clear();
+        }
+
+        private long getCarrierRowId(Uri uri) {
+            if (uri == null) {
+                return -1;
+            }
+            List<String> segments = uri.getPathSegments();
+            if (segments.size() != 2 || !"carriers".equals(segments.get(0))
+                    || !TextUtils.isDigitsOnly(segments.get(1))) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(segments.get(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private ArrayList<ApnSetting> queryCarrierApns(String operator) {
+            // query only enabled apn.
+            // carrier_enabled : 1 means enabled apn, 0 disabled apn.
+            String selection = Telephony.Carriers.NUMERIC + " = ? and "
+                    + Telephony.Carriers.CARRIER_ENABLED + " = 1";
+            if (DBG) log("ApnIndex: query numeric=" + operator);
+
+            Cursor cursor = mPhone.getContext().getContentResolver().query(
+                    Telephony.Carriers.CONTENT_URI, null, selection,
+                    new String[] { operator }, null);
+            if (cursor == null) {
+                return null;
+            }
+
+            ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        ApnSetting apn = makeApnSetting(cursor);
+                        if (apn != null) {
+                            apns.add(apn);
+                        }
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+            return apns;
+        }
+
+        private String queryCarrierNumeric(long id) {
+            Cursor cursor = mPhone.getContext().getContentResolver().query(
+                    Telephony.Carriers.CONTENT_URI, new String[] { Telephony.Carriers.NUMERIC },
+                    Telephony.Carriers._ID + " = ?", new String[] { Long.toString(id) }, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
     //***** Instance Variables
 
     private boolean mReregisterOnReconnectFailure = false;
@@ -174,6 +344,9 @@ public final class DcTracker extends DcTrackerBase {
     /** Watches for changes to the APN db. */
     private ApnChangeObserver mApnObserver;
 
+    /** Index over the APN db and mAllApnSettings, kept current by mApnObserver. */
+    private final ApnIndex mApnIndex = new ApnIndex();
+
     private final String mProvisionActionName;
     private BroadcastReceiver mProvisionBroadcastReceiver;
     private ProgressDialog mProvisioningSpinner;
@@ -190,6 +363,42 @@ public final class DcTracker extends DcTrackerBase {
 
     private static final int EVENT_3GPP_RECORDS_LOADED = 100;
 
+    // Bring up independent PDNs concurrently up to the modem's limit, deferring the rest
+    // until a PDN is released instead of letting the modem reject them.
+    private final boolean mParallelPdnSetup =
+            SystemProperties.getBoolean("persist.radio.parallel_pdn", false);
+    // Setups deferred until a PDN is released, and how long bringing up the PDNs takes
+    private final PdnBringUp<ApnContext> mPdnBringUp = new PdnBringUp<ApnContext>(
+            new PdnBringUp.Host<ApnContext>() {
+        @Override
+        public Iterable<ApnContext> getPrioritySortedApns() {
+            return mPrioritySortedApnContexts;
+        }
+
+        @Override
+        public boolean isSettingUp(ApnContext apnContext) {
+            DctConstants.State state = apnContext.getState();
+            return state == DctConstants.State.CONNECTING
+                    || state == DctConstants.State.SCANNING
+                    || state == DctConstants.State.RETRYING;
+        }
+
+        @Override
+        public boolean isConnectable(ApnContext apnContext) {
+            return apnContext.isConnectable();
+        }
+
+        @Override
+        public boolean hasPdnCapacity() {
+            return mDcc.hasPdnCapacity();
+        }
+
+        @Override
+        public void setupData(ApnContext apnContext) {
+            trySetupData(apnContext);
+        }
+    });
+
     Handler mSimRecordsLoadedHandler = new Handler() {
         @Override
         public void handleMessage (Message msg) {
@@ -244,16 +453,10 @@ public final class DcTracker extends DcTrackerBase {
         p.getContext().getContentResolver().registerContentObserver(
                 Telephony.Carriers.CONTENT_URI, true, mApnObserver);
 
+        // Reconnect and restart trySetup retries are scheduled on DcController's
+        // DcRetryScheduler, which calls their handlers directly, so no receivers are needed.
         initApnContexts();
 
-        for (ApnContext apnContext : mApnContexts.values()) {
-            // Register the reconnect and restart actions.
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(INTENT_RECONNECT_ALARM + '.' + apnContext.getApnType());
-            filter.addAction(INTENT_RESTART_TRYSETUP_ALARM + '.' + apnContext.getApnType());
-            mPhone.getContext().registerReceiver(mIntentReceiver, filter, null, mPhone);
-        }
-
         // Add Emergency APN to APN setting list by default to support EPDN in sim absent cases
         initEmergencyApnSetting();
         addEmergencyApnSetting();
@@ -315,6 +518,7 @@ public final class DcTracker extends DcTrackerBase {
         super.dispose();
 
         mPhone.getContext().getContentResolver().unregisterContentObserver(mApnObserver);
+        mApnIndex.clear();
         mApnContexts.clear();
         mPrioritySortedApnContexts.clear();
 
@@ -1110,6 +1314,7 @@ public final class DcTracker extends DcTrackerBase {
             if (DBG) log("cleanUpConnection: apn context is null");
             return;
         }
+        mPdnBringUp.remove(apnContext);
 
         DcAsyncChannel dcac = apnContext.getDcAc();
         if (DBG) {
@@ -1225,13 +1430,11 @@ public final class DcTracker extends DcTrackerBase {
     private void cancelReconnectAlarm(ApnContext apnContext) {
         if (apnContext == null) return;
 
-        PendingIntent intent = apnContext.getReconnectIntent();
+        DcRetryScheduler.Retry retry = apnContext.getReconnectRetry();
 
-        if (intent != null) {
-                AlarmManager am =
-                    (AlarmManager) mPhone.getContext().getSystemService(Context.ALARM_SERVICE);
-                am.cancel(intent);
-                apnContext.setReconnectIntent(null);
+        if (retry != null) {
+            mDcc.getRetryScheduler().cancel(retry);
+            apnContext.setReconnectRetry(null);
         }
     }
 
@@ -1346,25 +1549,19 @@ public final class DcTracker extends DcTrackerBase {
         return apn;
     }
 
-    private ArrayList<ApnSetting> createApnList(Cursor cursor, IccRecords r) {
+    private ArrayList<ApnSetting> createApnList(ArrayList<ApnSetting> carrierApns,
+            IccRecords r) {
         ArrayList<ApnSetting> mnoApns = new ArrayList<ApnSetting>();
         ArrayList<ApnSetting> mvnoApns = new ArrayList<ApnSetting>();
 
-        if (cursor.moveToFirst()) {
-            do {
-                ApnSetting apn = makeApnSetting(cursor);
-                if (apn == null) {
-                    continue;
+        for (ApnSetting apn : carrierApns) {
+            if (apn.hasMvnoParams()) {
+                if (r != null && mvnoMatches(r, apn.mvnoType, apn.mvnoMatchData)) {
+                    mvnoApns.add(apn);
                 }
-
-                if (apn.hasMvnoParams()) {
-                    if (r != null && mvnoMatches(r, apn.mvnoType, apn.mvnoMatchData)) {
-                        mvnoApns.add(apn);
-                    }
-                } else {
-                    mnoApns.add(apn);
-                }
-            } while (cursor.moveToNext());
+            } else {
+                mnoApns.add(apn);
+            }
         }
 
         ArrayList<ApnSetting> result = mvnoApns.isEmpty() ? mnoApns : mvnoApns;
@@ -1459,6 +1656,11 @@ public final class DcTracker extends DcTrackerBase {
                 if (DBG) log("setupData: Single pdp. Continue setting up data call.");
             }
 
+            if (mParallelPdnSetup && !mDcc.hasPdnCapacity()) {
+                deferSetupForPdn(apnContext);
+                return false;
+            }
+
             dcac = findFreeDataConnection();
 
             if (dcac == null) {
@@ -1469,6 +1671,11 @@ public final class DcTracker extends DcTrackerBase {
                 if (DBG) log("setupData: No free DataConnection and couldn't create one, WEIRD");
                 return false;
             }
+
+            if (mParallelPdnSetup && !mDcc.reservePdn(dcac.getDataConnectionIdSync())) {
+                deferSetupForPdn(apnContext);
+                return false;
+            }
         }
         if (DBG) log("setupData: dcac=" + dcac + " apnSetting=" + apnSetting);
 
@@ -1476,6 +1683,7 @@ public final class DcTracker extends DcTrackerBase {
         apnContext.setApnSetting(apnSetting);
         apnContext.setState(DctConstants.State.CONNECTING);
         mPhone.notifyDataConnection(apnContext.getReason(), apnContext.getApnType());
+        mPdnBringUp.start();
 
         Message msg = obtainMessage();
         msg.what = DctConstants.EVENT_DATA_SETUP_COMPLETE;
@@ -1487,6 +1695,33 @@ public final class DcTracker extends DcTrackerBase {
         return true;
     }
 
+    private void deferSetupForPdn(ApnContext apnContext) {
+        if (DBG) {
+            log("setupData: all " + mDcc.getMaxPdns() + " PDNs in use, defer "
+                    + apnContext.getApnType());
+        }
+        mPdnBringUp.defer(apnContext);
+    }
+
+    @Override
+    protected void onPdnAvailable() {
+        if (mIsDisposed || mPdnBringUp.getWaitingCount() == 0) return;
+        if (DBG) log("onPdnAvailable: waiting=" + mPdnBringUp.getWaitingCount());
+
+        // Go in priority order; setupData defers again whatever still does not fit.
+        mPdnBringUp.onPdnAvailable();
+    }
+
+    /**
+     * Log how long the PDN bring-up took once no setup is pending, successful or not.
+     */
+    private void checkPdnBringUpDone() {
+        if (mPdnBringUp.onSetupComplete() && DBG) {
+            log("checkPdnBringUpDone: PDN bring-up done in "
+                    + mPdnBringUp.getLastBringUpMillis() + "ms");
+        }
+    }
+
     /**
      * Handles changes to the APN database.
      */
@@ -1685,7 +1920,7 @@ public final class DcTracker extends DcTrackerBase {
     private void startAlarmForReconnect(int delay, ApnContext apnContext) {
         String apnType = apnContext.getApnType();
 
-        Intent intent = new Intent(INTENT_RECONNECT_ALARM + "." + apnType);
+        final Intent intent = new Intent(INTENT_RECONNECT_ALARM + "." + apnType);
         intent.putExtra(INTENT_RECONNECT_ALARM_EXTRA_REASON, apnContext.getReason());
         intent.putExtra(INTENT_RECONNECT_ALARM_EXTRA_TYPE, apnType);
 
@@ -1698,27 +1933,37 @@ public final class DcTracker extends DcTrackerBase {
                     + " apn=" + apnContext);
         }
 
-        PendingIntent alarmIntent = PendingIntent.getBroadcast (mPhone.getContext(), 0,
-                                        intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        apnContext.setReconnectIntent(alarmIntent);
-        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + delay, alarmIntent);
+        // Retries share the wakeups of the phone's DcRetryScheduler, the intent is delivered
+        // straight to onActionIntentReconnectAlarm rather than broadcast.
+        cancelReconnectAlarm(apnContext);
+        Message msg = Message.obtain(this, new Runnable() {
+            @Override
+            public void run() {
+                if (DBG) log("Reconnect alarm. Previous state was " + mState);
+                onActionIntentReconnectAlarm(intent);
+            }
+        });
+        apnContext.setReconnectRetry(mDcc.getRetryScheduler().schedule(msg, delay));
     }
 
     private void startAlarmForRestartTrySetup(int delay, ApnContext apnContext) {
         String apnType = apnContext.getApnType();
-        Intent intent = new Intent(INTENT_RESTART_TRYSETUP_ALARM + "." + apnType);
+        final Intent intent = new Intent(INTENT_RESTART_TRYSETUP_ALARM + "." + apnType);
         intent.putExtra(INTENT_RESTART_TRYSETUP_ALARM_EXTRA_TYPE, apnType);
 
         if (DBG) {
             log("startAlarmForRestartTrySetup: delay=" + delay + " action=" + intent.getAction()
                     + " apn=" + apnContext);
         }
-        PendingIntent alarmIntent = PendingIntent.getBroadcast (mPhone.getContext(), 0,
-                                        intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        apnContext.setReconnectIntent(alarmIntent);
-        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + delay, alarmIntent);
+        cancelReconnectAlarm(apnContext);
+        Message msg = Message.obtain(this, new Runnable() {
+            @Override
+            public void run() {
+                if (DBG) log("Restart trySetup alarm");
+                onActionIntentRestartTrySetupAlarm(intent);
+            }
+        });
+        apnContext.setReconnectRetry(mDcc.getRetryScheduler().schedule(msg, delay));
     }
 
     private void notifyNoData(DcFailCause lastFailCauseCode,
@@ -1764,6 +2009,7 @@ public final class DcTracker extends DcTrackerBase {
 
         cleanUpAllConnections(true, Phone.REASON_SIM_NOT_READY);
         mAllApnSettings.clear();
+        mApnIndex.onApnListChanged();
         mAutoAttachOnCreationConfig = false;
     }
 
@@ -2216,6 +2462,7 @@ public final class DcTracker extends DcTrackerBase {
                     log("onDataSetupComplete: SETUP complete type=" + apnContext.getApnType()
                         + ", reason:" + apnContext.getReason());
                 }
+                checkPdnBringUpDone();
             }
         } else {
             cause = (DcFailCause) (ar.result);
@@ -2261,6 +2508,8 @@ public final class DcTracker extends DcTrackerBase {
 
         if (handleError) {
             onDataSetupCompleteError(ar);
+            // Done unless onDataSetupCompleteError goes on to the next APN or retries
+            checkPdnBringUpDone();
         }
 
         /* If flag is set to false after SETUP_DATA_CALL is invoked, we need
@@ -2562,20 +2811,10 @@ public final class DcTracker extends DcTrackerBase {
 
         if (mAllApnSettings.isEmpty()) {
             if (operator != null && !operator.isEmpty()) {
-                String selection = "numeric = '" + operator + "'";
-                // query only enabled apn.
-                // carrier_enabled : 1 means enabled apn, 0 disabled apn.
-                selection += " and carrier_enabled = 1";
-                if (DBG) log("createAllApnList: selection=" + selection);
-
-                Cursor cursor = mPhone.getContext().getContentResolver().query(
-                        Telephony.Carriers.CONTENT_URI, null, selection, null, null);
-
-                if (cursor != null) {
-                    if (cursor.getCount() > 0) {
-                        mAllApnSettings.addAll(createApnList(cursor, mIccRecords.get()));
-                    }
-                    cursor.close();
+                if (DBG) log("createAllApnList: operator=" + operator);
+                ArrayList<ApnSetting> carrierApns = mApnIndex.getCarrierApns(operator);
+                if (!carrierApns.isEmpty()) {
+                    mAllApnSettings.addAll(createApnList(carrierApns, mIccRecords.get()));
                 }
             }
         }
@@ -2587,6 +2826,7 @@ public final class DcTracker extends DcTrackerBase {
         }
 
         addEmergencyApnSetting();
+        mApnIndex.onApnListChanged();
 
         if (mAllApnSettings.isEmpty()) {
             if (DBG) log("createAllApnList: No APN found for carrier: " + operator);
@@ -2611,129 +2851,19 @@ public final class DcTracker extends DcTrackerBase {
         IccRecords r = mSimRecords.get();
         String operator = (r != null) ? r.getOperatorNumeric() : "";
         if (!TextUtils.isEmpty(operator)) {
-            String selection = "numeric = '" + operator + "'";
-            // query only enabled apn.
-            // carrier_enabled : 1 means enabled apn, 0 disabled apn.
-            selection += " and carrier_enabled = 1";
-            if (DBG) log("create3gppApnList: selection=" + selection);
-
-            Cursor cursor = mPhone.getContext().getContentResolver().query(
-                    Telephony.Carriers.CONTENT_URI, null, selection, null, null);
-
-            if (cursor != null) {
-                if (cursor.getCount() > 0) {
-                    apnsList = createApnList(cursor, r);
-                }
-                cursor.close();
+            if (DBG) log("create3gppApnList: operator=" + operator);
+            ArrayList<ApnSetting> carrierApns = mApnIndex.getCarrierApns(operator);
+            if (!carrierApns.isEmpty()) {
+                apnsList = createApnList(carrierApns, r);
             }
         }
         return apnsList;
     }
 
     private void dedupeApnSettings() {
-        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>();
-
         // coalesce APNs if they are similar enough to prevent
         // us from bringing up two data calls with the same interface
-        int i = 0;
-        while (i < mAllApnSettings.size() - 1) {
-            ApnSetting first = mAllApnSettings.get(i);
-            ApnSetting second = null;
-            int j = i + 1;
-            while (j < mAllApnSettings.size()) {
-                second = mAllApnSettings.get(j);
-                if (apnsSimilar(first, second)) {
-                    ApnSetting newApn = mergeApns(first, second);
-                    mAllApnSettings.set(i, newApn);
-                    first = newApn;
-                    mAllApnSettings.remove(j);
-                } else {
-                    j++;
-                }
-            }
-            i++;
-        }
-    }
-
-    //check whether the types of two APN same (even only one type of each APN is same)
-    private boolean apnTypeSameAny(ApnSetting first, ApnSetting second) {
-        if(VDBG) {
-            StringBuilder apnType1 = new StringBuilder(first.apn + ": ");
-            for(int index1 = 0; index1 < first.types.length; index1++) {
-                apnType1.append(first.types[index1]);
-                apnType1.append(",");
-            }
-
-            StringBuilder apnType2 = new StringBuilder(second.apn + ": ");
-            for(int index1 = 0; index1 < second.types.length; index1++) {
-                apnType2.append(second.types[index1]);
-                apnType2.append(",");
-            }
-            log("APN1: is " + apnType1);
-            log("APN2: is " + apnType2);
-        }
-
-        for(int index1 = 0; index1 < first.types.length; index1++) {
-            for(int index2 = 0; index2 < second.types.length; index2++) {
-                if(first.types[index1].equals(PhoneConstants.APN_TYPE_ALL) ||
-                        second.types[index2].equals(PhoneConstants.APN_TYPE_ALL) ||
-                        first.types[index1].equals(second.types[index2])) {
-                    if(VDBG)log("apnTypeSameAny: return true");
-                    return true;
-                }
-            }
-        }
-
-        if(VDBG)log("apnTypeSameAny: return false");
-        return false;
-    }
-
-    // Check if neither mention DUN and are substantially similar
-    private boolean apnsSimilar(ApnSetting first, ApnSetting second) {
-        return (first.canHandleType(PhoneConstants.APN_TYPE_DUN) == false &&
-                second.canHandleType(PhoneConstants.APN_TYPE_DUN) == false &&
-                Objects.equals(first.apn, second.apn) &&
-                !apnTypeSameAny(first, second) &&
-                xorEquals(first.proxy, second.proxy) &&
-                xorEquals(first.port, second.port) &&
-                first.carrierEnabled == second.carrierEnabled &&
-                first.bearer == second.bearer &&
-                first.profileId == second.profileId &&
-                Objects.equals(first.mvnoType, second.mvnoType) &&
-                Objects.equals(first.mvnoMatchData, second.mvnoMatchData) &&
-                xorEquals(first.mmsc, second.mmsc) &&
-                xorEquals(first.mmsProxy, second.mmsProxy) &&
-                xorEquals(first.mmsPort, second.mmsPort));
-    }
-
-    // equal or one is not specified
-    private boolean xorEquals(String first, String second) {
-        return (Objects.equals(first, second) ||
-                TextUtils.isEmpty(first) ||
-                TextUtils.isEmpty(second));
-    }
-
-    private ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
-        ArrayList<String> resultTypes = new ArrayList<String>();
-        resultTypes.addAll(Arrays.asList(dest.types));
-        for (String srcType : src.types) {
-            if (resultTypes.contains(srcType) == false) resultTypes.add(srcType);
-        }
-        String mmsc = (TextUtils.isEmpty(dest.mmsc) ? src.mmsc : dest.mmsc);
-        String mmsProxy = (TextUtils.isEmpty(dest.mmsProxy) ? src.mmsProxy : dest.mmsProxy);
-        String mmsPort = (TextUtils.isEmpty(dest.mmsPort) ? src.mmsPort : dest.mmsPort);
-        String proxy = (TextUtils.isEmpty(dest.proxy) ? src.proxy : dest.proxy);
-        String port = (TextUtils.isEmpty(dest.port) ? src.port : dest.port);
-        String protocol = src.protocol.equals("IPV4V6") ? src.protocol : dest.protocol;
-        String roamingProtocol = src.roamingProtocol.equals("IPV4V6") ? src.roamingProtocol :
-                dest.roamingProtocol;
-
-        return new ApnSetting(dest.id, dest.numeric, dest.carrier, dest.apn,
-                proxy, port, mmsc, mmsProxy, mmsPort, dest.user, dest.password,
-                dest.authType, resultTypes.toArray(new String[0]), protocol,
-                roamingProtocol, dest.carrierEnabled, dest.bearer, dest.profileId,
-                (dest.modemCognitive || src.modemCognitive), dest.maxConns, dest.waitTime,
-                dest.maxConnsTime, dest.mtu, dest.mvnoType, dest.mvnoMatchData);
+        ApnSetting.dedupe(mAllApnSettings);
     }
 
     private boolean isDummyProfileNeeded() {
@@ -2872,26 +3002,8 @@ public final class DcTracker extends DcTrackerBase {
             }
         }
         if (!mAllApnSettings.isEmpty()) {
-            if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-            for (ApnSetting apn : mAllApnSettings) {
-                if (DBG) log("buildWaitingApns: apn=" + apn);
-                if (apn.canHandleType(requestedApnType)) {
-                    if (apn.bearer == 0 || apn.bearer == radioTech) {
-                        if (DBG) log("buildWaitingApns: adding apn=" + apn.toString());
-                        apnList.add(apn);
-                    } else {
-                        if (DBG) {
-                            log("buildWaitingApns: bearer:" + apn.bearer + " != "
-                                    + "radioTech:" + radioTech);
-                        }
-                    }
-                } else {
-                    if (DBG) {
-                        log("buildWaitingApns: couldn't handle requesedApnType="
-                                + requestedApnType);
-                    }
-                }
-            }
+            // Callers own the returned list and may remove from it, so copy the index entry.
+            apnList.addAll(mApnIndex.getWaitingApns(requestedApnType, radioTech));
         } else {
             loge("mAllApnSettings is null!");
         }
@@ -3385,6 +3497,8 @@ public final class DcTracker extends DcTrackerBase {
         pw.println(" getOverallState=" + getOverallState());
         pw.println(" mDataConnectionAsyncChannels=%s\n" + mDataConnectionAcHashMap);
         pw.println(" mAttached=" + mAttached.get());
+        pw.println(" mParallelPdnSetup=" + mParallelPdnSetup);
+        pw.println(" mPdnBringUp=" + mPdnBringUp);
     }
 
     @Override
@@ -3479,6 +3593,7 @@ public final class DcTracker extends DcTrackerBase {
 
         if (!hasEmergencyApn) {
             mAllApnSettings.add(mEmergencyApn);
+            mApnIndex.onApnListChanged();
         } else {
             log("addEmergencyApnSetting - E-APN setting is already present");
         }
@@ -146,10 +146,15 @@ public abstract class DcTrackerBase extends Handler {
     protected static final int POLL_NETSTAT_MILLIS = 1000;
     // 10 min. default polling interval when screen is off.
     protected static final int POLL_NETSTAT_SCREEN_OFF_MILLIS = 1000*60*10;
+    // While the screen is on and polls see no traffic the period doubles, up to 8x.
+    protected static final int POLL_NETSTAT_MAX_IDLE_BACKOFF_SHIFT = 3;
     // 2 min for round trip time
     protected static final int POLL_LONGEST_RTT = 120 * 1000;
     // Default sent packets without ack which triggers initial recovery steps
     protected static final int NUMBER_SENT_PACKETS_OF_HANG = 10;
+    // Number of data stall alarm samples the default stall detector counts sent packets over
+    protected static final int DATA_STALL_WINDOW_SAMPLES = SystemProperties.getInt(
+            "persist.radio.data_stall_window", 10);
     // how long to wait before switching back to default APN
     protected static final int RESTORE_DEFAULT_APN_DELAY = 1 * 60 * 1000;
     // system property that can override the above value
@@ -206,14 +211,19 @@ public abstract class DcTrackerBase extends Handler {
     protected long mRxPkts;
     protected int mNetStatPollPeriod;
     protected boolean mNetStatPollEnabled = false;
-
-    protected TxRxSum mDataStallTxRxSum = new TxRxSum(0, 0);
+    // Consecutive net stat polls without any traffic, drives the poll backoff
+    private int mNetStatIdlePolls = 0;
+
+    // Packet counts at the last data stall alarm, -1 until the first sample
+    protected TxRxSum mDataStallTxRxSum = new TxRxSum();
+    // Decides from the samples whether the data path is stalled
+    protected DataStallDetector mDataStallDetector =
+            new SlidingWindowStallDetector(DATA_STALL_WINDOW_SAMPLES);
+    protected final DataStallStats mDataStallStats = new DataStallStats();
     // Used to track stale data stall alarms.
     protected int mDataStallAlarmTag = (int) SystemClock.elapsedRealtime();
     // The current data stall alarm intent
     protected PendingIntent mDataStallAlarmIntent = null;
-    // Number of packets sent since the last received packet
-    protected long mSentSinceLastRecv;
     // Controls when a simple recovery attempt it to be tried
     protected int mNoRecvPollCount = 0;
     // Refrence counter for enabling fail fast
@@ -338,12 +348,6 @@ public abstract class DcTrackerBase extends Handler {
                 stopNetStatPoll();
                 startNetStatPoll();
                 restartDataStallAlarm();
-            } else if (action.startsWith(INTENT_RECONNECT_ALARM)) {
-                if (DBG) log("Reconnect alarm. Previous state was " + mState);
-                onActionIntentReconnectAlarm(intent);
-            } else if (action.startsWith(INTENT_RESTART_TRYSETUP_ALARM)) {
-                if (DBG) log("Restart trySetup alarm");
-                onActionIntentRestartTrySetupAlarm(intent);
             } else if (action.equals(INTENT_DATA_STALL_ALARM)) {
                 onActionIntentDataStallAlarm(intent);
             } else if (action.equals(INTENT_PROVISIONING_APN_ALARM)) {
@@ -377,6 +381,9 @@ public abstract class DcTrackerBase extends Handler {
             if (mIsScreenOn) {
                 mNetStatPollPeriod = Settings.Global.getInt(mResolver,
                         Settings.Global.PDP_WATCHDOG_POLL_INTERVAL_MS, POLL_NETSTAT_MILLIS);
+                // Back off while idle; the first poll that sees traffic restores the period.
+                mNetStatPollPeriod <<= Math.min(mNetStatIdlePolls,
+                        POLL_NETSTAT_MAX_IDLE_BACKOFF_SHIFT);
             } else {
                 mNetStatPollPeriod = Settings.Global.getInt(mResolver,
                         Settings.Global.PDP_WATCHDOG_LONG_POLL_INTERVAL_MS,
@@ -500,6 +507,86 @@ public abstract class DcTrackerBase extends Handler {
         }
     }
 
+    /**
+     * Counters describing how the data stall detector and recovery behave on this
+     * device, reported in dumpsys so thresholds can be tuned from field data.
+     */
+    public static class DataStallStats {
+        // Data stall alarm samples taken
+        public int samples;
+        // Samples that found the data stall detector suspecting a stall
+        public int suspectedStalls;
+        // Recovery actions taken, indexed by RecoveryAction value
+        public final int[] recoveryActions = new int[RecoveryAction.RADIO_RESTART_WITH_PROP + 1];
+        // Times traffic was received again after recovery had started
+        public int recoveries;
+        // Total and longest time from the first recovery action to received traffic
+        public long totalRecoveryMillis;
+        public long maxRecoveryMillis;
+
+        // Time of the first recovery action of the current episode, 0 if none
+        private long mRecoveryStartedAt;
+
+        void onSample(boolean received) {
+            samples++;
+            if (received && mRecoveryStartedAt != 0) {
+                long duration = SystemClock.elapsedRealtime() - mRecoveryStartedAt;
+                recoveries++;
+                totalRecoveryMillis += duration;
+                maxRecoveryMillis = Math.max(maxRecoveryMillis, duration);
+                mRecoveryStartedAt = 0;
+            }
+        }
+
+        void onStallSuspected() {
+            suspectedStalls++;
+        }
+
+        void onRecoveryAction(int action) {
+            if (action >= 0 && action < recoveryActions.length) {
+                recoveryActions[action]++;
+            }
+            if (mRecoveryStartedAt == 0) {
+                mRecoveryStartedAt = SystemClock.elapsedRealtime();
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{samples=").append(samples)
+                    .append(" suspectedStalls=").append(suspectedStalls)
+                    .append(" recoveryActions=[");
+            for (int i = 0; i < recoveryActions.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(recoveryActions[i]);
+            }
+            sb.append("] recoveries=").append(recoveries)
+                    .append(" avgRecoveryMs=")
+                    .append(recoveries > 0 ? totalRecoveryMillis / recoveries : 0)
+                    .append(" maxRecoveryMs=").append(maxRecoveryMillis)
+                    .append(" recovering=").append(mRecoveryStartedAt != 0)
+                    .append('}');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Replace the data stall detector, e.g. with one tuned for a particular network or
+     * for tests. Must be called on the handler thread.
+     */
+    public void setDataStallDetector(DataStallDetector detector) {
+        mDataStallDetector = detector;
+        mDataStallDetector.reset();
+    }
+
+    /**
+     * @return the data stall statistics; must be read on the handler thread
+     */
+    public DataStallStats getDataStallStats() {
+        return mDataStallStats;
+    }
+
     protected void onActionIntentReconnectAlarm(Intent intent) {
         String reason = intent.getStringExtra(INTENT_RECONNECT_ALARM_EXTRA_REASON);
         String apnType = intent.getStringExtra(INTENT_RECONNECT_ALARM_EXTRA_TYPE);
@@ -547,7 +634,7 @@ public abstract class DcTrackerBase extends Handler {
             // TODO: IF already associated should we send the EVENT_TRY_SETUP_DATA???
             sendMessage(obtainMessage(DctConstants.EVENT_TRY_SETUP_DATA, apnContext));
 
-            apnContext.setReconnectIntent(null);
+            apnContext.setReconnectRetry(null);
         }
     }
 
@@ -865,6 +952,13 @@ public abstract class DcTrackerBase extends Handler {
     public abstract boolean isOnDemandDataPossible(String apnType);
     protected abstract boolean onUpdateIcc();
     protected abstract void completeConnection(ApnContext apnContext);
+
+    /**
+     * Called on this handler when DcController has released a PDN, or learned that the modem
+     * supports more of them, so setups deferred for lack of one can proceed.
+     */
+    protected void onPdnAvailable() {
+    }
     public abstract void setDataAllowed(boolean enable, Message response);
     public abstract String[] getPcscfAddress(String apnType);
     public abstract void setImsRegistrationState(boolean registered);
@@ -1467,6 +1561,7 @@ public abstract class DcTrackerBase extends Handler {
         mTxPkts = -1;
         mRxPkts = -1;
         mNetStatPollPeriod = POLL_NETSTAT_MILLIS;
+        mNetStatIdlePolls = 0;
     }
 
     protected abstract DctConstants.State getOverallState();
@@ -1530,19 +1625,26 @@ public abstract class DcTrackerBase extends Handler {
 
         DctConstants.Activity newActivity;
 
-        TxRxSum preTxRxSum = new TxRxSum(mTxPkts, mRxPkts);
-        TxRxSum curTxRxSum = new TxRxSum();
-        curTxRxSum.updateTxRxSum();
-        mTxPkts = curTxRxSum.txPkts;
-        mRxPkts = curTxRxSum.rxPkts;
+        // Plain longs rather than TxRxSum objects, this runs every poll period.
+        long preTxPkts = mTxPkts;
+        long preRxPkts = mRxPkts;
+        mTxPkts = TrafficStats.getMobileTcpTxPackets();
+        mRxPkts = TrafficStats.getMobileTcpRxPackets();
 
         if (VDBG) {
-            log("updateDataActivity: curTxRxSum=" + curTxRxSum + " preTxRxSum=" + preTxRxSum);
+            log("updateDataActivity: cur tx=" + mTxPkts + " rx=" + mRxPkts
+                    + " pre tx=" + preTxPkts + " rx=" + preRxPkts);
         }
 
-        if (mNetStatPollEnabled && (preTxRxSum.txPkts > 0 || preTxRxSum.rxPkts > 0)) {
-            sent = mTxPkts - preTxRxSum.txPkts;
-            received = mRxPkts - preTxRxSum.rxPkts;
+        if (mNetStatPollEnabled && (preTxPkts > 0 || preRxPkts > 0)) {
+            sent = mTxPkts - preTxPkts;
+            received = mRxPkts - preRxPkts;
+
+            if (sent > 0 || received > 0) {
+                mNetStatIdlePolls = 0;
+            } else if (mNetStatIdlePolls < POLL_NETSTAT_MAX_IDLE_BACKOFF_SHIFT) {
+                mNetStatIdlePolls++;
+            }
 
             if (VDBG)
                 log("updateDataActivity: sent=" + sent + " received=" + received);
@@ -1602,30 +1704,32 @@ public abstract class DcTrackerBase extends Handler {
         if (getOverallState() == DctConstants.State.CONNECTED) {
             // Go through a series of recovery steps, each action transitions to the next action
             int recoveryAction = getRecoveryAction();
+            long sentSinceLastRecv = mDataStallDetector.getSentSinceLastRecv();
+            mDataStallStats.onRecoveryAction(recoveryAction);
             switch (recoveryAction) {
             case RecoveryAction.GET_DATA_CALL_LIST:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_GET_DATA_CALL_LIST,
-                        mSentSinceLastRecv);
+                        sentSinceLastRecv);
                 if (DBG) log("doRecovery() get data call list");
                 mPhone.mCi.getDataCallList(obtainMessage(DctConstants.EVENT_DATA_STATE_CHANGED));
                 putRecoveryAction(RecoveryAction.CLEANUP);
                 break;
             case RecoveryAction.CLEANUP:
-                EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_CLEANUP, mSentSinceLastRecv);
+                EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_CLEANUP, sentSinceLastRecv);
                 if (DBG) log("doRecovery() cleanup all connections");
                 cleanUpAllConnections(Phone.REASON_PDP_RESET);
                 putRecoveryAction(RecoveryAction.REREGISTER);
                 break;
             case RecoveryAction.REREGISTER:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_REREGISTER,
-                        mSentSinceLastRecv);
+                        sentSinceLastRecv);
                 if (DBG) log("doRecovery() re-register");
                 mPhone.getServiceStateTracker().reRegisterNetwork(null);
                 putRecoveryAction(RecoveryAction.RADIO_RESTART);
                 break;
             case RecoveryAction.RADIO_RESTART:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_RADIO_RESTART,
-                        mSentSinceLastRecv);
+                        sentSinceLastRecv);
                 if (DBG) log("restarting radio");
                 putRecoveryAction(RecoveryAction.RADIO_RESTART_WITH_PROP);
                 restartRadio();
@@ -1651,23 +1755,29 @@ public abstract class DcTrackerBase extends Handler {
                 throw new RuntimeException("doRecovery: Invalid recoveryAction=" +
                     recoveryAction);
             }
-            mSentSinceLastRecv = 0;
+            mDataStallDetector.reset();
         }
     }
 
     private void updateDataStallInfo() {
         long sent, received;
 
-        TxRxSum preTxRxSum = new TxRxSum(mDataStallTxRxSum);
+        long preTxPkts = mDataStallTxRxSum.txPkts;
+        long preRxPkts = mDataStallTxRxSum.rxPkts;
         mDataStallTxRxSum.updateTxRxSum();
 
         if (VDBG_STALL) {
             log("updateDataStallInfo: mDataStallTxRxSum=" + mDataStallTxRxSum +
-                    " preTxRxSum=" + preTxRxSum);
+                    " pre tx=" + preTxPkts + " rx=" + preRxPkts);
+        }
+        if (preTxPkts < 0 || preRxPkts < 0) {
+            // First sample, nothing to compare against yet.
+            return;
         }
 
-        sent = mDataStallTxRxSum.txPkts - preTxRxSum.txPkts;
-        received = mDataStallTxRxSum.rxPkts - preTxRxSum.rxPkts;
+        // Counters can go backwards when interfaces are torn down; treat that as no traffic.
+        sent = Math.max(0, mDataStallTxRxSum.txPkts - preTxPkts);
+        received = Math.max(0, mDataStallTxRxSum.rxPkts - preRxPkts);
 
         if (RADIO_TESTS) {
             if (SystemProperties.getBoolean("radio.test.data.stall", false)) {
@@ -1675,25 +1785,19 @@ public abstract class DcTrackerBase extends Handler {
                 received = 0;
             }
         }
-        if ( sent > 0 && received > 0 ) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN/OUT");
-            mSentSinceLastRecv = 0;
+        mDataStallStats.onSample(received > 0);
+        if (received > 0) {
+            if (VDBG_STALL) log("updateDataStallInfo: " + (sent > 0 ? "IN/OUT" : "IN"));
+            mDataStallDetector.addSample(sent, received, true);
             putRecoveryAction(RecoveryAction.GET_DATA_CALL_LIST);
-        } else if (sent > 0 && received == 0) {
-            if (isPhoneStateIdle()) {
-                mSentSinceLastRecv += sent;
-            } else {
-                mSentSinceLastRecv = 0;
-            }
+        } else if (sent > 0) {
+            mDataStallDetector.addSample(sent, received, isPhoneStateIdle());
             if (DBG) {
                 log("updateDataStallInfo: OUT sent=" + sent +
-                        " mSentSinceLastRecv=" + mSentSinceLastRecv);
+                        " sentSinceLastRecv=" + mDataStallDetector.getSentSinceLastRecv());
             }
-        } else if (sent == 0 && received > 0) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN");
-            mSentSinceLastRecv = 0;
-            putRecoveryAction(RecoveryAction.GET_DATA_CALL_LIST);
         } else {
+            mDataStallDetector.addSample(sent, received, true);
             if (VDBG_STALL) log("updateDataStallInfo: NONE");
         }
     }
@@ -1723,16 +1827,18 @@ public abstract class DcTrackerBase extends Handler {
                 NUMBER_SENT_PACKETS_OF_HANG);
 
         boolean suspectedStall = DATA_STALL_NOT_SUSPECTED;
-        if (mSentSinceLastRecv >= hangWatchdogTrigger) {
+        if (mDataStallDetector.isStallSuspected(hangWatchdogTrigger)) {
             if (DBG) {
                 log("onDataStallAlarm: tag=" + tag + " do recovery action=" + getRecoveryAction());
             }
             suspectedStall = DATA_STALL_SUSPECTED;
+            mDataStallStats.onStallSuspected();
             sendMessage(obtainMessage(DctConstants.EVENT_DO_RECOVERY));
         } else {
             if (VDBG_STALL) {
-                log("onDataStallAlarm: tag=" + tag + " Sent " + String.valueOf(mSentSinceLastRecv) +
-                    " pkts since last received, < watchdogTrigger=" + hangWatchdogTrigger);
+                log("onDataStallAlarm: tag=" + tag + " Sent "
+                        + mDataStallDetector.getSentSinceLastRecv()
+                        + " pkts since last received, < watchdogTrigger=" + hangWatchdogTrigger);
             }
         }
         startDataStallAlarm(suspectedStall);
@@ -1975,10 +2081,12 @@ public abstract class DcTrackerBase extends Handler {
         pw.println(" mRxPkts=" + mRxPkts);
         pw.println(" mNetStatPollPeriod=" + mNetStatPollPeriod);
         pw.println(" mNetStatPollEnabled=" + mNetStatPollEnabled);
+        pw.println(" mNetStatIdlePolls=" + mNetStatIdlePolls);
         pw.println(" mDataStallTxRxSum=" + mDataStallTxRxSum);
         pw.println(" mDataStallAlarmTag=" + mDataStallAlarmTag);
         pw.println(" mDataStallDetectionEanbled=" + mDataStallDetectionEnabled);
-        pw.println(" mSentSinceLastRecv=" + mSentSinceLastRecv);
+        pw.println(" mDataStallDetector=" + mDataStallDetector);
+        pw.println(" mDataStallStats=" + mDataStallStats);
         pw.println(" mNoRecvPollCount=" + mNoRecvPollCount);
         pw.println(" mResolver=" + mResolver);
         pw.println(" mIsWifiConnected=" + mIsWifiConnected);
@@ -53,9 +53,10 @@ import com.android.internal.telephony.TelephonyIntents;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.TreeSet;
 
 public class DctController extends Handler {
     private static final String LOG_TAG = "DctController";
@@ -91,6 +92,30 @@ public class DctController extends Handler {
     private DcSwitchAsyncChannel[] mDcSwitchAsyncChannel;
     private Handler[] mDcSwitchStateHandler;
     private HashMap<Integer, RequestInfo> mRequestInfos = new HashMap<Integer, RequestInfo>();
+
+    /*
+     * Indexes over mRequestInfos so that processing and releasing requests does not scan every
+     * request for every phone. The phone a request resolves to depends on the default data
+     * sub and on the sub to phone mapping, so the per-phone index is rebuilt only when either
+     * of those changes.
+     */
+    private final SparseArray<HashMap<Integer, RequestInfo>> mRequestsByPhone =
+            new SparseArray<HashMap<Integer, RequestInfo>>();
+    // Requests without a network specifier, which follow the default data sub
+    private final HashMap<Integer, RequestInfo> mDefaultSubRequests =
+            new HashMap<Integer, RequestInfo>();
+    private final TreeSet<RequestInfo> mRequestsByPriority =
+            new TreeSet<RequestInfo>(new Comparator<RequestInfo>() {
+                @Override
+                public int compare(RequestInfo a, RequestInfo b) {
+                    if (a.priority != b.priority) {
+                        return a.priority > b.priority ? -1 : 1;
+                    }
+                    return Integer.compare(a.request.requestId, b.request.requestId);
+                }
+            });
+    private boolean mRequestIndexDirty = false;
+    private int mIndexedDataSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     private Context mContext;
 
     private AsyncChannel mDdsSwitchPropService;
@@ -113,6 +138,7 @@ public class DctController extends Handler {
             logd("got ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED, new DDS = "
                     + intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
                             SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+            mRequestIndexDirty = true;
             updateSubIdAndCapability();
         }
     };
@@ -120,6 +146,7 @@ public class DctController extends Handler {
     private BroadcastReceiver subInfoBroadcastReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
             logd("got ACTION_SUBINFO_RECORD_UPDATED");
+            mRequestIndexDirty = true;
             updateSubIdAndCapability();
         }
     };
@@ -538,7 +565,12 @@ public class DctController extends Handler {
                 + ", priority=" + priority);
 
         RequestInfo requestInfo = new RequestInfo(request, priority);
-        mRequestInfos.put(request.requestId, requestInfo);
+        requestInfo.apn = apnForNetworkRequest(request);
+        RequestInfo old = mRequestInfos.put(request.requestId, requestInfo);
+        if (old != null) {
+            unindexRequest(old);
+        }
+        indexRequest(requestInfo);
         processRequests();
 
         return PhoneConstants.APN_REQUEST_STARTED;
@@ -548,13 +580,80 @@ public class DctController extends Handler {
         RequestInfo requestInfo = mRequestInfos.get(request.requestId);
         logd("releaseNetwork request=" + request + ", requestInfo=" + requestInfo);
 
-        mRequestInfos.remove(request.requestId);
+        if (requestInfo != null) {
+            mRequestInfos.remove(request.requestId);
+            unindexRequest(requestInfo);
+        }
         releasePendingRequest(request);
         releaseRequest(requestInfo);
         processRequests();
         return PhoneConstants.APN_REQUEST_STARTED;
     }
 
+    private void indexRequest(RequestInfo requestInfo) {
+        requestInfo.phoneId = getRequestPhoneId(requestInfo.request);
+        HashMap<Integer, RequestInfo> phoneRequests = mRequestsByPhone.get(requestInfo.phoneId);
+        if (phoneRequests == null) {
+            phoneRequests = new HashMap<Integer, RequestInfo>();
+            mRequestsByPhone.put(requestInfo.phoneId, phoneRequests);
+        }
+        phoneRequests.put(requestInfo.request.requestId, requestInfo);
+        if (isDefaultSubRequest(requestInfo.request)) {
+            mDefaultSubRequests.put(requestInfo.request.requestId, requestInfo);
+        }
+        mRequestsByPriority.add(requestInfo);
+    }
+
+    private void unindexRequest(RequestInfo requestInfo) {
+        HashMap<Integer, RequestInfo> phoneRequests = mRequestsByPhone.get(requestInfo.phoneId);
+        if (phoneRequests != null) {
+            phoneRequests.remove(requestInfo.request.requestId);
+        }
+        mDefaultSubRequests.remove(requestInfo.request.requestId);
+        mRequestsByPriority.remove(requestInfo);
+    }
+
+    /**
+     * Re-resolve the phone of every request if the default data sub or the sub to phone
+     * mapping changed since the index was built; otherwise this is a single lookup.
+     */
+    private void ensureRequestIndex() {
+        int dataSubId = mSubController.getDefaultDataSubId();
+        if (!mRequestIndexDirty && dataSubId == mIndexedDataSubId) {
+            return;
+        }
+        logd("ensureRequestIndex, reindexing " + mRequestInfos.size() + " requests, dataSubId="
+                + dataSubId);
+        mRequestIndexDirty = false;
+        mIndexedDataSubId = dataSubId;
+        mRequestsByPhone.clear();
+        mDefaultSubRequests.clear();
+        mRequestsByPriority.clear();
+        for (RequestInfo requestInfo : mRequestInfos.values()) {
+            indexRequest(requestInfo);
+        }
+    }
+
+    private int resolvePhoneId(RequestInfo requestInfo) {
+        if (mRequestInfos.get(requestInfo.request.requestId) == requestInfo) {
+            ensureRequestIndex();
+        } else {
+            // Already released and dropped from the index, resolve its phone directly
+            requestInfo.phoneId = getRequestPhoneId(requestInfo.request);
+        }
+        return requestInfo.phoneId;
+    }
+
+    private int getRequestCount(int phoneId) {
+        HashMap<Integer, RequestInfo> phoneRequests = mRequestsByPhone.get(phoneId);
+        return phoneRequests == null ? 0 : phoneRequests.size();
+    }
+
+    private static boolean isDefaultSubRequest(NetworkRequest request) {
+        String specifier = request.networkCapabilities.getNetworkSpecifier();
+        return specifier == null || specifier.equals("");
+    }
+
     void processRequests() {
         logd("processRequests");
         sendMessage(obtainMessage(EVENT_PROCESS_REQUESTS));
@@ -589,6 +688,7 @@ public class DctController extends Handler {
         //2-2. If no, set data not allow on the current PS subscription
         //2-2-1. Set data allow on the selected subscription
 
+        ensureRequestIndex();
         int phoneId = getTopPriorityRequestPhoneId();
         int activePhoneId = -1;
 
@@ -604,9 +704,9 @@ public class DctController extends Handler {
 
         if (phoneId != -1 && activePhoneId != -1 && activePhoneId != phoneId) {
             mDcSwitchAsyncChannel[activePhoneId].disconnectAllSync();
-        } else {
-            for (RequestInfo requestInfo : mRequestInfos.values()) {
-                if (getRequestPhoneId(requestInfo.request) == phoneId && !requestInfo.executed) {
+        } else if (phoneId != -1) {
+            for (RequestInfo requestInfo : mRequestsByPhone.get(phoneId).values()) {
+                if (!requestInfo.executed) {
                     mDcSwitchAsyncChannel[phoneId].connectSync(requestInfo);
                 }
             }
@@ -617,20 +717,18 @@ public class DctController extends Handler {
         logd("onExecuteRequest request=" + requestInfo);
         if (!requestInfo.executed) {
             requestInfo.executed = true;
-            String apn = apnForNetworkRequest(requestInfo.request);
-            int phoneId = getRequestPhoneId(requestInfo.request);
-            PhoneBase phoneBase = (PhoneBase)mPhones[phoneId].getActivePhone();
+            PhoneBase phoneBase = (PhoneBase)mPhones[resolvePhoneId(requestInfo)].getActivePhone();
             DcTrackerBase dcTracker = phoneBase.mDcTracker;
-            dcTracker.incApnRefCount(apn);
+            dcTracker.incApnRefCount(requestInfo.apn);
         }
     }
 
     private void onExecuteAllRequests(int phoneId) {
         logd("onExecuteAllRequests phoneId=" + phoneId);
-        Iterator<Integer> iterator = mRequestInfos.keySet().iterator();
-        while (iterator.hasNext()) {
-            RequestInfo requestInfo = mRequestInfos.get(iterator.next());
-            if (getRequestPhoneId(requestInfo.request) == phoneId) {
+        ensureRequestIndex();
+        HashMap<Integer, RequestInfo> phoneRequests = mRequestsByPhone.get(phoneId);
+        if (phoneRequests != null) {
+            for (RequestInfo requestInfo : phoneRequests.values()) {
                 onExecuteRequest(requestInfo);
             }
         }
@@ -639,21 +737,19 @@ public class DctController extends Handler {
     private void onReleaseRequest(RequestInfo requestInfo) {
         logd("onReleaseRequest request=" + requestInfo);
         if (requestInfo != null && requestInfo.executed) {
-            String apn = apnForNetworkRequest(requestInfo.request);
-            int phoneId = getRequestPhoneId(requestInfo.request);
-            PhoneBase phoneBase = (PhoneBase)mPhones[phoneId].getActivePhone();
+            PhoneBase phoneBase = (PhoneBase)mPhones[resolvePhoneId(requestInfo)].getActivePhone();
             DcTrackerBase dcTracker = phoneBase.mDcTracker;
-            dcTracker.decApnRefCount(apn);
+            dcTracker.decApnRefCount(requestInfo.apn);
             requestInfo.executed = false;
         }
     }
 
     private void onReleaseAllRequests(int phoneId) {
         logd("onReleaseAllRequests phoneId=" + phoneId);
-        Iterator<Integer> iterator = mRequestInfos.keySet().iterator();
-        while (iterator.hasNext()) {
-            RequestInfo requestInfo = mRequestInfos.get(iterator.next());
-            if (getRequestPhoneId(requestInfo.request) == phoneId) {
+        ensureRequestIndex();
+        HashMap<Integer, RequestInfo> phoneRequests = mRequestsByPhone.get(phoneId);
+        if (phoneRequests != null) {
+            for (RequestInfo requestInfo : phoneRequests.values()) {
                 onReleaseRequest(requestInfo);
             }
         }
@@ -679,21 +775,15 @@ public class DctController extends Handler {
         logd("onSettingsChange, data sub: " + dataSubId + ", active data sub: " + subIds[0]);
 
         if (subIds[0] != dataSubId) {
-            Iterator<Integer> iterator = mRequestInfos.keySet().iterator();
-            while (iterator.hasNext()) {
-                RequestInfo requestInfo = mRequestInfos.get(iterator.next());
-                String specifier = requestInfo.request.networkCapabilities.getNetworkSpecifier();
-                if (specifier == null || specifier.equals("")) {
-                    if (requestInfo.executed) {
-                        String apn = apnForNetworkRequest(requestInfo.request);
-                        logd("[setDataSubId] activePhoneId:" + activePhoneId + ", subId =" +
-                                dataSubId);
-                        PhoneBase phoneBase =
-                                (PhoneBase)mPhones[activePhoneId].getActivePhone();
-                        DcTrackerBase dcTracker = phoneBase.mDcTracker;
-                        dcTracker.decApnRefCount(apn);
-                        requestInfo.executed = false;
-                    }
+            for (RequestInfo requestInfo : mDefaultSubRequests.values()) {
+                if (requestInfo.executed) {
+                    logd("[setDataSubId] activePhoneId:" + activePhoneId + ", subId =" +
+                            dataSubId);
+                    PhoneBase phoneBase =
+                            (PhoneBase)mPhones[activePhoneId].getActivePhone();
+                    DcTrackerBase dcTracker = phoneBase.mDcTracker;
+                    dcTracker.decApnRefCount(requestInfo.apn);
+                    requestInfo.executed = false;
                 }
             }
         }
@@ -708,20 +798,13 @@ public class DctController extends Handler {
     }
 
     private int getTopPriorityRequestPhoneId() {
-        RequestInfo retRequestInfo = null;
         int phoneId = -1;
         int priority = -1;
 
-        for (RequestInfo requestInfo : mRequestInfos.values()) {
-            logd("selectExecPhone requestInfo = " + requestInfo);
-            if (priority < requestInfo.priority) {
-                priority = requestInfo.priority;
-                retRequestInfo = requestInfo;
-            }
-        }
-
-        if (retRequestInfo != null) {
-            phoneId = getRequestPhoneId(retRequestInfo.request);
+        if (!mRequestsByPriority.isEmpty()) {
+            RequestInfo retRequestInfo = mRequestsByPriority.first();
+            priority = retRequestInfo.priority;
+            phoneId = retRequestInfo.phoneId;
         }
 
         logd("getTopPriorityRequestPhoneId = " + phoneId
@@ -986,6 +1069,7 @@ public class DctController extends Handler {
 
     private void onSubInfoReady() {
         logd("onSubInfoReady mPhoneNum=" + mPhoneNum);
+        mRequestIndexDirty = true;
         for (int i = 0; i < mPhoneNum; ++i) {
             int subId = mPhones[i].getSubId();
             logd("onSubInfoReady handle pending requests subId=" + subId);
@@ -1378,6 +1462,12 @@ public class DctController extends Handler {
             for (Entry<Integer, RequestInfo> entry : mRequestInfos.entrySet()) {
                 pw.println("mRequestInfos[" + entry.getKey() + "]=" + entry.getValue());
             }
+            for (int i = 0; i < mPhoneNum; i++) {
+                pw.println("phone[" + i + "] requests=" + getRequestCount(i));
+            }
+            pw.println("mDefaultSubRequests=" + mDefaultSubRequests.size()
+                    + " mIndexedDataSubId=" + mIndexedDataSubId
+                    + " mRequestIndexDirty=" + mRequestIndexDirty);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -33,6 +33,7 @@ import android.os.AsyncResult;
 import android.os.Looper;
 import android.os.Message;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.net.NetworkRequest;
 import android.telephony.Rlog;
@@ -46,6 +47,8 @@ import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Collections;
 import java.util.ArrayList;
@@ -72,8 +75,59 @@ public class DdsScheduler extends StateMachine {
 
     private final String OVERRIDE_MODEM_DUAL_DATA_CAP_PROP = "persist.test.msim.config";
 
+    /*
+     * Predictive mode: once the last request of a subscription is released, hold off the
+     * auto-revert (and the on-demand PS detach that comes with it) for a while, so a
+     * following request for the same subscription, e.g. the next MMS on the non-DDS SIM, is
+     * accepted without another detach/attach cycle.
+     */
+    private final boolean mPredictiveMode =
+            SystemProperties.getBoolean("persist.radio.dds_predictive", false);
+    private final int mRevertHoldMillis =
+            SystemProperties.getInt("persist.radio.dds_revert_hold_ms", 5000);
+    private boolean mRevertHeld = false;
+
+    /**
+     * Count, total and worst duration of one phase of on-demand DDS handling.
+     */
+    private static final class PhaseStats {
+        private final String mName;
+        private int mCount;
+        private long mTotalMillis;
+        private long mMaxMillis;
+
+        PhaseStats(String name) {
+            mName = name;
+        }
+
+        void add(long millis) {
+            mCount++;
+            mTotalMillis += millis;
+            if (millis > mMaxMillis) mMaxMillis = millis;
+            Rlog.d(TAG, mName + " took " + millis + "ms");
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": count=" + mCount + " avg="
+                    + (mCount > 0 ? mTotalMillis / mCount : 0) + "ms max=" + mMaxMillis + "ms";
+        }
+    }
+
+    // Request queued until accepted, i.e. the time to switch seen by the requester
+    private final PhaseStats mRequestToAcceptStats = new PhaseStats("requestToAccept");
+    private final PhaseStats mSwitchStats = new PhaseStats("ddsSwitch");
+    private final PhaseStats mDdsReservedStats = new PhaseStats("ddsReserved");
+    private final PhaseStats mPsAttachReservedStats = new PhaseStats("psAttachReserved");
+    private final PhaseStats mAutoRevertStats = new PhaseStats("autoRevert");
+    // Requests that arrived while an auto-revert was held and so needed no switch
+    private int mRevertsAvoided = 0;
+    // Time the current state was entered
+    private long mPhaseStartTime;
+
     private class NetworkRequestInfo {
         public final NetworkRequest mRequest;
+        public final long mQueuedTime = SystemClock.elapsedRealtime();
         public boolean mAccepted = false;
 
         NetworkRequestInfo(NetworkRequest req) {
@@ -196,10 +250,26 @@ public class DdsScheduler extends StateMachine {
 
 
 
+    private long getQueuedTime(NetworkRequest nr) {
+        synchronized(mInbox) {
+            for(int i = 0; i < mInbox.size(); i++) {
+                NetworkRequestInfo tempNrInfo = mInbox.get(i);
+                if(tempNrInfo.mRequest.equals(nr)) {
+                    return tempNrInfo.mQueuedTime;
+                }
+            }
+        }
+        return -1;
+    }
+
     void notifyRequestAccepted(NetworkRequest nr) {
         if (!isAlreadyAccepted(nr)) {
             markAccepted(nr);
             Rlog.d(TAG, "Accepted req = " + nr);
+            long queuedTime = getQueuedTime(nr);
+            if (queuedTime >= 0) {
+                mRequestToAcceptStats.add(SystemClock.elapsedRealtime() - queuedTime);
+            }
 
             SubscriptionController subController = SubscriptionController.getInstance();
             subController.notifyOnDemandDataSubIdChanged(nr);
@@ -315,6 +385,67 @@ public class DdsScheduler extends StateMachine {
         }
     }
 
+    /**
+     * In predictive mode start holding off the auto-revert, if not already.
+     *
+     * @return true if the auto-revert is held and the caller should stay where it is
+     */
+    private boolean holdAutoRevert() {
+        if (!mPredictiveMode || mRevertHoldMillis <= 0) {
+            return false;
+        }
+        if (!mRevertHeld) {
+            Rlog.d(TAG, "Holding auto-revert for " + mRevertHoldMillis + "ms");
+            mRevertHeld = true;
+            sendMessageDelayed(DdsSchedulerAc.EVENT_AUTO_REVERT_HOLD_EXPIRED, mRevertHoldMillis);
+        }
+        return true;
+    }
+
+    private void cancelAutoRevertHold() {
+        if (mRevertHeld) {
+            mRevertHeld = false;
+            removeMessages(DdsSchedulerAc.EVENT_AUTO_REVERT_HOLD_EXPIRED);
+        }
+    }
+
+    /**
+     * A request for the current subscription arrived; if an auto-revert was being held
+     * that is a switch back and forth avoided.
+     */
+    private void onRequestForCurrentDds() {
+        if (mRevertHeld) {
+            Rlog.d(TAG, "Request during auto-revert hold, no switch needed");
+            mRevertsAvoided++;
+            cancelAutoRevertHold();
+        }
+    }
+
+    private void startPhase() {
+        mPhaseStartTime = SystemClock.elapsedRealtime();
+    }
+
+    private void endPhase(PhaseStats stats) {
+        stats.add(SystemClock.elapsedRealtime() - mPhaseStartTime);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        pw.println(" mCurrentDds=" + mCurrentDds);
+        pw.println(" mPredictiveMode=" + mPredictiveMode + " mRevertHoldMillis="
+                + mRevertHoldMillis + " mRevertHeld=" + mRevertHeld);
+        pw.println(" mRevertsAvoided=" + mRevertsAvoided);
+        pw.println(" " + mRequestToAcceptStats);
+        pw.println(" " + mSwitchStats);
+        pw.println(" " + mDdsReservedStats);
+        pw.println(" " + mPsAttachReservedStats);
+        pw.println(" " + mAutoRevertStats);
+        synchronized(mInbox) {
+            pw.println(" mInbox=" + mInbox);
+        }
+    }
+
     private class DefaultState extends State {
         static final String TAG = DdsScheduler.TAG + "[DefaultState]";
 
@@ -356,6 +487,12 @@ public class DdsScheduler extends StateMachine {
                     return HANDLED;
                 }
 
+                case DdsSchedulerAc.EVENT_AUTO_REVERT_HOLD_EXPIRED: {
+                    Rlog.d(TAG, "EVENT_AUTO_REVERT_HOLD_EXPIRED, stale");
+                    mRevertHeld = false;
+                    return HANDLED;
+                }
+
                 default: {
                     Rlog.d(TAG, "unknown msg = " + msg);
                     break;
@@ -424,10 +561,13 @@ public class DdsScheduler extends StateMachine {
     private class DdsReservedState extends State {
         static final String TAG = DdsScheduler.TAG + "[DdsReservedState]";
 
-        private void handleOtherSubRequests() {
+        private void handleOtherSubRequests(boolean allowHold) {
             NetworkRequest nr = getFirstWaitingRequest();
             if (nr == null) {
                 Rlog.d(TAG, "No more requests to accept");
+                if (allowHold && holdAutoRevert()) {
+                    return;
+                }
                 transitionTo(mDdsAutoRevertState);
             } else if (getSubIdFromNetworkRequest(nr) != getCurrentDds()) {
                 Rlog.d(TAG, "Switch required for " + nr);
@@ -442,14 +582,17 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void enter() {
             Rlog.d(TAG, "Enter");
+            startPhase();
             if (!acceptWaitingRequest()) {
-                handleOtherSubRequests();
+                handleOtherSubRequests(false);
             }
         }
 
         @Override
         public void exit() {
             Rlog.d(TAG, "Exit");
+            cancelAutoRevertHold();
+            endPhase(mDdsReservedStats);
         }
 
         @Override
@@ -461,10 +604,15 @@ public class DdsScheduler extends StateMachine {
 
                     if (getSubIdFromNetworkRequest(n) == getCurrentDds()) {
                         Rlog.d(TAG, "Accepting simultaneous request for current sub");
+                        onRequestForCurrentDds();
                         notifyRequestAccepted(n);
                     } else if (isMultiDataSupported()) {
                         Rlog.d(TAG, "Incoming request is for on-demand subscription, n = " + n);
                         requestPsAttach(n);
+                    } else if (mRevertHeld) {
+                        // Nothing is using this subscription any more, switch right away.
+                        cancelAutoRevertHold();
+                        handleOtherSubRequests(false);
                     }
                     return HANDLED;
                 }
@@ -474,13 +622,22 @@ public class DdsScheduler extends StateMachine {
 
                     if(!acceptWaitingRequest()) {
                         Rlog.d(TAG, "Can't process next in this DDS");
-                        handleOtherSubRequests();
+                        handleOtherSubRequests(true);
                     } else {
                         Rlog.d(TAG, "Processing next in same DDS");
                     }
                     return HANDLED;
                 }
 
+                case DdsSchedulerAc.EVENT_AUTO_REVERT_HOLD_EXPIRED: {
+                    Rlog.d(TAG, "EVENT_AUTO_REVERT_HOLD_EXPIRED");
+                    mRevertHeld = false;
+                    if (!acceptWaitingRequest()) {
+                        handleOtherSubRequests(false);
+                    }
+                    return HANDLED;
+                }
+
                 case DdsSchedulerAc.EVENT_ON_DEMAND_PS_ATTACH_DONE: {
                     AsyncResult ar = (AsyncResult) msg.obj;
                     NetworkRequest n = (NetworkRequest)ar.result;
@@ -506,10 +663,14 @@ public class DdsScheduler extends StateMachine {
     private class PsAttachReservedState extends State {
         static final String TAG = DdsScheduler.TAG + "[PSAttachReservedState]";
 
-        private void handleOtherSubRequests() {
+        private void handleOtherSubRequests(boolean allowHold) {
             NetworkRequest nr = getFirstWaitingRequest();
             if (nr == null) {
                 Rlog.d(TAG, "No more requests to accept");
+                if (allowHold && holdAutoRevert()) {
+                    // Keep the on-demand PS attached for a following request
+                    return;
+                }
             } else if (getSubIdFromNetworkRequest(nr) != getCurrentDds()) {
                 Rlog.d(TAG, "Next request is not for current on-demand PS sub(DSDA). nr = "
                         + nr);
@@ -527,8 +688,9 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void enter() {
             Rlog.d(TAG, "Enter");
+            startPhase();
             if (!acceptWaitingRequest()) {
-                handleOtherSubRequests();
+                handleOtherSubRequests(false);
             }
 
         }
@@ -536,6 +698,8 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void exit() {
             Rlog.d(TAG, "Exit");
+            cancelAutoRevertHold();
+            endPhase(mPsAttachReservedStats);
 
             //Request PS Detach on currentDds.
             requestPsDetach();
@@ -551,6 +715,9 @@ public class DdsScheduler extends StateMachine {
 
                     NetworkRequest n = (NetworkRequest)msg.obj;
                     Rlog.d(TAG, "Accepting request in dual-data mode, req = " + n);
+                    if (getSubIdFromNetworkRequest(n) == getCurrentDds()) {
+                        onRequestForCurrentDds();
+                    }
                     notifyRequestAccepted(n);
                     return HANDLED;
                 }
@@ -561,12 +728,21 @@ public class DdsScheduler extends StateMachine {
                         //No more requests for current sub. If there are few accepted requests
                         //for defaultDds then move to DdsReservedState so that on-demand PS
                         //detach on current sub can be triggered.
-                        handleOtherSubRequests();
+                        handleOtherSubRequests(true);
                     }
 
                     return HANDLED;
                 }
 
+                case DdsSchedulerAc.EVENT_AUTO_REVERT_HOLD_EXPIRED: {
+                    Rlog.d(TAG, "EVENT_AUTO_REVERT_HOLD_EXPIRED");
+                    mRevertHeld = false;
+                    if (!acceptWaitingRequest()) {
+                        handleOtherSubRequests(false);
+                    }
+                    return HANDLED;
+                }
+
                 default: {
                     Rlog.d(TAG, "unknown msg = " + msg);
                     return NOT_HANDLED;
@@ -580,6 +756,7 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void enter() {
             Rlog.d(TAG, "Enter");
+            startPhase();
             NetworkRequest nr = getFirstWaitingRequest();
             if (nr != null) {
                 triggerSwitch(nr);
@@ -591,6 +768,7 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void exit() {
             Rlog.d(TAG, "Exit");
+            endPhase(mSwitchStats);
         }
 
         @Override
@@ -631,6 +809,7 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void enter() {
             Rlog.d(TAG, "Enter");
+            startPhase();
 
             triggerSwitch(null);
         }
@@ -638,6 +817,7 @@ public class DdsScheduler extends StateMachine {
         @Override
         public void exit() {
             Rlog.d(TAG, "Exit");
+            endPhase(mAutoRevertStats);
         }
 
         @Override
@@ -50,6 +50,7 @@ public class DdsSchedulerAc extends AsyncChannel {
     public static final int EVENT_MODEM_DATA_CAPABILITY_UPDATE = BASE + 4;
     public static final int EVENT_ADD_REQUEST = BASE + 5;
     public static final int EVENT_REMOVE_REQUEST = BASE + 6;
+    public static final int EVENT_AUTO_REVERT_HOLD_EXPIRED = BASE + 7;
 
     public DdsSchedulerAc() {
     }
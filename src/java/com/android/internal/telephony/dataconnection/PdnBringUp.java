@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Tracks the PDN bring-ups DcTracker has in progress. Setups that find every PDN in use are
+ * deferred here and issued again in priority order once a PDN is released, and the time from
+ * the first setup until none is pending any more, whether the setups succeeded or failed, is
+ * recorded.
+ *
+ * Only used on the DcTracker thread.
+ *
+ * {@hide}
+ */
+final class PdnBringUp<T> {
+    interface Host<T> {
+        /**
+         * @return every APN in the order their data is to be set up
+         */
+        Iterable<T> getPrioritySortedApns();
+
+        /**
+         * @return true if a setup of the APN is in flight or will be retried
+         */
+        boolean isSettingUp(T apn);
+
+        boolean isConnectable(T apn);
+
+        boolean hasPdnCapacity();
+
+        /**
+         * Set up the data of the APN, which may defer it again.
+         */
+        void setupData(T apn);
+    }
+
+    private final Host<T> mHost;
+    // APNs whose setup was deferred because every PDN was in use
+    private final ArrayList<T> mWaiting = new ArrayList<T>();
+    // Time the current bring-up started, 0 if none is in progress
+    private long mStartTime = 0;
+    // Time the last bring-up took until no setup was pending, -1 if none completed yet
+    private long mLastBringUpMillis = -1;
+
+    PdnBringUp(Host<T> host) {
+        mHost = host;
+    }
+
+    /**
+     * Called whenever a setup is issued, starts timing a bring-up unless one is in progress.
+     */
+    void start() {
+        if (mStartTime == 0) mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Defer the setup of the APN until a PDN is released.
+     */
+    void defer(T apn) {
+        start();
+        if (!mWaiting.contains(apn)) mWaiting.add(apn);
+    }
+
+    /**
+     * Forget a deferred setup, because the APN is being cleaned up.
+     */
+    void remove(T apn) {
+        if (mWaiting.remove(apn)) onSetupComplete();
+    }
+
+    /**
+     * Issue deferred setups in priority order while PDNs are available.
+     */
+    void onPdnAvailable() {
+        for (T apn : mHost.getPrioritySortedApns()) {
+            if (mWaiting.isEmpty() || !mHost.hasPdnCapacity()) break;
+            if (mWaiting.remove(apn) && mHost.isConnectable(apn)) {
+                mHost.setupData(apn);
+            }
+        }
+        onSetupComplete();
+    }
+
+    /**
+     * Called whenever a setup completed, successfully or not. Records the bring-up once no
+     * setup is pending.
+     *
+     * @return true if the bring-up completed
+     */
+    boolean onSetupComplete() {
+        if (mStartTime == 0 || isPending()) return false;
+        mLastBringUpMillis = SystemClock.elapsedRealtime() - mStartTime;
+        mStartTime = 0;
+        return true;
+    }
+
+    /**
+     * @return true if a setup is deferred, in flight or will be retried
+     */
+    boolean isPending() {
+        if (!mWaiting.isEmpty()) return true;
+        for (T apn : mHost.getPrioritySortedApns()) {
+            if (mHost.isSettingUp(apn)) return true;
+        }
+        return false;
+    }
+
+    int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    long getLastBringUpMillis() {
+        return mLastBringUpMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "waiting=" + mWaiting + " inProgress=" + (mStartTime != 0)
+                + " lastBringUpMillis=" + mLastBringUpMillis;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import com.android.internal.telephony.HardwareConfig;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Accounts for the PDNs in use against the modem's limit on concurrent PDNs. A PDN is
+ * reserved by id before its data call is set up and released once the data call is gone.
+ *
+ * Reservations are made on the DcTracker thread and released on the DcController thread,
+ * so all state is guarded by this.
+ *
+ * {@hide}
+ */
+final class PdnBudget {
+    // Ids of the DataConnections holding a PDN
+    private final HashSet<Integer> mReservations = new HashSet<Integer>();
+    // Maximum number of concurrent PDNs, 0 if unknown in which case there is no limit
+    private int mMaxPdns;
+    // Run, without holding the lock, whenever a PDN may have become available
+    private final Runnable mOnAvailable;
+
+    PdnBudget(int maxPdns, Runnable onAvailable) {
+        mMaxPdns = maxPdns;
+        mOnAvailable = onAvailable;
+    }
+
+    /**
+     * @return the smallest concurrent data call limit any modem in configs reports, or 0 if
+     *         none reports one
+     */
+    static int maxPdnsFrom(List<HardwareConfig> configs) {
+        int maxPdns = 0;
+        for (HardwareConfig config : configs) {
+            if (config.type == HardwareConfig.DEV_HARDWARE_TYPE_MODEM
+                    && config.maxActiveDataCall > 0
+                    && (maxPdns == 0 || config.maxActiveDataCall < maxPdns)) {
+                maxPdns = config.maxActiveDataCall;
+            }
+        }
+        return maxPdns;
+    }
+
+    /**
+     * @return true if another PDN can be reserved without exceeding the limit
+     */
+    synchronized boolean hasCapacity() {
+        return mMaxPdns <= 0 || mReservations.size() < mMaxPdns;
+    }
+
+    /**
+     * Reserve a PDN for the given id. Reserving again for an id that holds one succeeds.
+     *
+     * @return false if the limit has been reached, nothing is reserved then
+     */
+    synchronized boolean reserve(int id) {
+        if (mReservations.contains(id)) return true;
+        if (!hasCapacity()) return false;
+        mReservations.add(id);
+        return true;
+    }
+
+    /**
+     * Release the PDN held by the given id, if any, and report it available.
+     *
+     * @return true if the id held a PDN
+     */
+    boolean release(int id) {
+        boolean released;
+        synchronized (this) {
+            released = mReservations.remove(id);
+        }
+        if (released) mOnAvailable.run();
+        return released;
+    }
+
+    /**
+     * Change the limit, 0 for no limit. Reports PDNs available if the limit grew.
+     */
+    void setMaxPdns(int maxPdns) {
+        boolean grew;
+        synchronized (this) {
+            grew = maxPdns <= 0 || (mMaxPdns > 0 && maxPdns > mMaxPdns);
+            mMaxPdns = maxPdns;
+        }
+        if (grew) mOnAvailable.run();
+    }
+
+    synchronized int getInUse() {
+        return mReservations.size();
+    }
+
+    synchronized int getMaxPdns() {
+        return mMaxPdns;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "pdns=" + mReservations.size() + "/" + (mMaxPdns > 0 ? mMaxPdns : "unlimited")
+                + " reservations=" + mReservations;
+    }
+}
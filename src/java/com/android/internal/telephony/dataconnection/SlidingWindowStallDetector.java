@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+/**
+ * Default {@link DataStallDetector}: counts the packets sent without anything received
+ * over the last N samples. Any received packet clears the window. Unlike a plain
+ * running total, a trickle of unanswered packets spread over hours ages out of the
+ * window instead of eventually tripping recovery.
+ *
+ * {@hide}
+ */
+public class SlidingWindowStallDetector implements DataStallDetector {
+    private final long[] mSent;
+    private int mNext;
+    private long mSentInWindow;
+
+    /**
+     * @param windowSamples number of samples to count sent packets over, at least 1
+     */
+    public SlidingWindowStallDetector(int windowSamples) {
+        mSent = new long[Math.max(1, windowSamples)];
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mSent.length; i++) {
+            mSent[i] = 0;
+        }
+        mNext = 0;
+        mSentInWindow = 0;
+    }
+
+    @Override
+    public void addSample(long sent, long received, boolean countSent) {
+        if (received > 0 || (sent > 0 && !countSent)) {
+            reset();
+            return;
+        }
+        mSentInWindow += sent - mSent[mNext];
+        mSent[mNext] = sent;
+        mNext = (mNext + 1) % mSent.length;
+    }
+
+    @Override
+    public boolean isStallSuspected(int sentThreshold) {
+        return mSentInWindow >= sentThreshold;
+    }
+
+    @Override
+    public long getSentSinceLastRecv() {
+        return mSentInWindow;
+    }
+
+    @Override
+    public String toString() {
+        return "SlidingWindowStallDetector{window=" + mSent.length
+                + " sentInWindow=" + mSentInWindow + "}";
+    }
+}
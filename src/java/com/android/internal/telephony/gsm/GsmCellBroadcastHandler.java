@@ -79,6 +79,9 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                 handleBroadcastSms(cbMessage);
                 return true;
             }
+            // Dropped duplicate, incomplete multi-page message or decoding error; each is
+            // already logged, and the base class only handles SmsCbMessage objects.
+            return false;
         }
         return super.handleSmsMessage(message);
     }
@@ -137,6 +140,13 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                     break;
             }
 
+            // Drop network repeats of an already delivered message before any page
+            // assembly or body decoding.
+            if (isDuplicateBroadcast(header.getSerialNumber(), header.getServiceCategory(),
+                    location, header.isEtwsPrimaryNotification())) {
+                return null;
+            }
+
             byte[][] pdus;
             int pageCount = header.getNumberOfPages();
             if (pageCount > 1) {
@@ -185,7 +195,10 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                 }
             }
 
-            return GsmSmsCbMessage.createSmsCbMessage(header, location, pdus);
+            SmsCbMessage cbMessage = GsmSmsCbMessage.createSmsCbMessage(header, location, pdus);
+            addRecentBroadcast(header.getSerialNumber(), header.getServiceCategory(), location,
+                    header.isEtwsPrimaryNotification());
+            return cbMessage;
 
         } catch (RuntimeException e) {
             loge("Error in decoding SMS CB pdu", e);
@@ -23,6 +23,7 @@ import android.telephony.Rlog;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.GsmAlphabet;
 import com.android.internal.telephony.uicc.AdnRecord;
 import com.android.internal.telephony.uicc.AdnRecordCache;
@@ -31,6 +32,7 @@ import com.android.internal.telephony.uicc.IccFileHandler;
 import com.android.internal.telephony.uicc.IccUtils;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -62,10 +64,11 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
     private boolean mSuccess = false;
     private boolean mRefreshCache = false;
 
-    private Map<Integer, ArrayList<Integer>> mAnrFlags;
-    private Map<Integer, ArrayList<Integer>> mEmailFlags;
-    private ArrayList<Integer>[] mAnrFlagsRecord;
-    private ArrayList<Integer>[] mEmailFlagsRecord;
+    // Used/free state of the ANR and email records of each PBR record
+    private Map<Integer, SlotBitmap> mAnrFlags;
+    private Map<Integer, SlotBitmap> mEmailFlags;
+    private SlotBitmap[] mAnrFlagsRecord;
+    private SlotBitmap[] mEmailFlagsRecord;
 
     // Variable used to save valid records' recordnum
     private Map<Integer, ArrayList<Integer>> mRecordNums;
@@ -119,8 +122,8 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         mRecordNums = new HashMap<Integer, ArrayList<Integer>>();
         mPbrFile = null;
 
-        mAnrFlags = new HashMap<Integer, ArrayList<Integer>>();
-        mEmailFlags = new HashMap<Integer, ArrayList<Integer>>();
+        mAnrFlags = new HashMap<Integer, SlotBitmap>();
+        mEmailFlags = new HashMap<Integer, SlotBitmap>();
 
         // We assume its present, after the first read this is updated.
         // So we don't have to read from UICC if its not present on subsequent reads.
@@ -149,6 +152,37 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         mRefreshCache = false;
     }
 
+    /**
+     * Use records as the loaded phonebook instead of reading it from the USIM. adnLengths
+     * holds the number of ADN records of each PBR record, and freeAnrs and freeEmails the
+     * number of free ANR and email records of each, or null if those files are type 1.
+     */
+    @VisibleForTesting
+    public void setPhoneBookForTest(ArrayList<AdnRecord> records, int[] adnLengths,
+            int[] freeAnrs, int[] freeEmails) {
+        synchronized (mLock) {
+            reset();
+            mPhoneBookRecords.addAll(records);
+            for (int length : adnLengths) {
+                mAdnLengthList.add(length);
+            }
+            mAnrPresentInIap = freeAnrs != null;
+            mEmailPresentInIap = freeEmails != null;
+            for (int i = 0; i < adnLengths.length; i++) {
+                if (freeAnrs != null) {
+                    SlotBitmap anrs = new SlotBitmap();
+                    anrs.addFree(freeAnrs[i]);
+                    mAnrFlags.put(i, anrs);
+                }
+                if (freeEmails != null) {
+                    SlotBitmap emails = new SlotBitmap();
+                    emails.addFree(freeEmails[i]);
+                    mEmailFlags.put(i, emails);
+                }
+            }
+        }
+    }
+
     public ArrayList<AdnRecord> loadEfFilesFromUsim() {
         synchronized (mLock) {
             if (!mPhoneBookRecords.isEmpty()) {
@@ -172,11 +206,11 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
             int numRecs = mPbrFile.mFileIds.size();
 
             if ((mAnrFlagsRecord == null) && (mEmailFlagsRecord == null)) {
-                mAnrFlagsRecord = new ArrayList[numRecs];
-                mEmailFlagsRecord = new ArrayList[numRecs];
+                mAnrFlagsRecord = new SlotBitmap[numRecs];
+                mEmailFlagsRecord = new SlotBitmap[numRecs];
                 for (int i = 0; i < numRecs; i++) {
-                    mAnrFlagsRecord[i] = new ArrayList<Integer>();
-                    mEmailFlagsRecord[i] = new ArrayList<Integer>();
+                    mAnrFlagsRecord[i] = new SlotBitmap();
+                    mEmailFlagsRecord[i] = new SlotBitmap();
                 }
             }
 
@@ -260,9 +294,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
                 return;
             }
 
-            for (int m = 0; m < mEmailFileRecord.get(recNum).size(); m++) {
-                mEmailFlagsRecord[recNum].add(0);
-            }
+            mEmailFlagsRecord[recNum].addFree(mEmailFileRecord.get(recNum).size());
             mEmailFlags.put(recNum, mEmailFlagsRecord[recNum]);
 
             updatePhoneAdnRecordWithEmail(recNum);
@@ -315,9 +347,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
                 return;
             }
 
-            for (int m = 0; m < mAnrFileRecord.get(recNum).size(); m++) {
-                mAnrFlagsRecord[recNum].add(0);
-            }
+            mAnrFlagsRecord[recNum].addFree(mAnrFileRecord.get(recNum).size());
             mAnrFlags.put(recNum, mAnrFlagsRecord[recNum]);
 
             updatePhoneAdnRecordWithAnr(recNum);
@@ -534,7 +564,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
                     if (rec != null && (!TextUtils.isEmpty(emails[0]))) {
                         rec.setEmails(emails);
                         mPhoneBookRecords.set(adnRecIndex, rec);
-                        mEmailFlags.get(pbrIndex).set(recNum - 1, 1);
+                        mEmailFlags.get(pbrIndex).set(recNum - 1, true);
                     }
                 }
             }
@@ -584,7 +614,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
                     if (rec != null && (!TextUtils.isEmpty(anrs[0]))) {
                         rec.setAdditionalNumbers(anrs);
                         mPhoneBookRecords.set(adnRecIndex, rec);
-                        mAnrFlags.get(pbrIndex).set(recNum - 1, 1);
+                        mAnrFlags.get(pbrIndex).set(recNum - 1, true);
                     }
 
                 }
@@ -630,7 +660,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
                 count++;
                 //Type1 Email file, no need for mEmailFlags
-                mEmailFlags.get(pbrIndex).set(i+j*numRecs, 1);
+                mEmailFlags.get(pbrIndex).set(i+j*numRecs, true);
             }
 
             // All Email files is null
@@ -671,7 +701,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
                 count++;
                 //Fix Me: For type1 this is not necessary
-                mAnrFlags.get(pbrIndex).set(i+j*numRecs, 1);
+                mAnrFlags.get(pbrIndex).set(i+j*numRecs, true);
             }
 
             // All anr files is null
@@ -1166,10 +1196,10 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
                     log("EVENT_UPDATE_EMAIL_RECORD_DONE data = " + data[i] + ",i is " + i);
                     if (data[i] != (byte) 0xff) {
                         log("EVENT_UPDATE_EMAIL_RECORD_DONE data !=0xff");
-                        mEmailFlags.get(pbrIndex).set(recordNumber - 1, 1);
+                        mEmailFlags.get(pbrIndex).set(recordNumber - 1, true);
                         break;
                     }
-                    mEmailFlags.get(pbrIndex).set(recordNumber - 1, 0);
+                    mEmailFlags.get(pbrIndex).set(recordNumber - 1, false);
                 }
                 synchronized (mLock) {
                     mLock.notify();
@@ -1192,10 +1222,10 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
                 for (int i = 0; i < data.length; i++) {
                     if (data[i] != (byte) 0xff) {
-                        mAnrFlags.get(pbrIndex).set(recordNumber - 1, 1);
+                        mAnrFlags.get(pbrIndex).set(recordNumber - 1, true);
                         break;
                     }
-                    mAnrFlags.get(pbrIndex).set(recordNumber - 1, 0);
+                    mAnrFlags.get(pbrIndex).set(recordNumber - 1, false);
                 }
                 synchronized (mLock) {
                     mLock.notify();
@@ -1388,6 +1418,44 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         }
     }
 
+    /**
+     * Used/free state of a set of ANR or email records, with the number of free records kept
+     * up to date on every change so it can be read without walking the records.
+     */
+    static final class SlotBitmap {
+        private final BitSet mUsed = new BitSet();
+        private int mSize;
+        private int mUsedCount;
+
+        void addFree(int count) {
+            mSize += count;
+        }
+
+        void set(int index, boolean used) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+            }
+            if (mUsed.get(index) != used) {
+                mUsed.set(index, used);
+                mUsedCount += used ? 1 : -1;
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int getFreeCount() {
+            return mSize - mUsedCount;
+        }
+
+        void clear() {
+            mUsed.clear();
+            mSize = 0;
+            mUsedCount = 0;
+        }
+    }
+
     private void log(String msg) {
         if(DBG) Rlog.d(LOG_TAG, msg);
     }
@@ -1416,10 +1484,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         int count = 0;
         int pbrIndex = mAnrFlags.size();
         for (int j = 0; j < pbrIndex; j++) {
-            for (int i = 0; i < mAnrFlags.get(j).size(); i++) {
-                if (0 == mAnrFlags.get(j).get(i))
-                    count++;
-            }
+            count += mAnrFlags.get(j).getFreeCount();
         }
         log("getSpareAnrCount count is" + count);
         return count;
@@ -1429,10 +1494,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         int count = 0;
         int pbrIndex = mEmailFlags.size();
         for (int j = 0; j < pbrIndex; j++) {
-            for (int i = 0; i < mEmailFlags.get(j).size(); i++) {
-                if (0 == mEmailFlags.get(j).get(i))
-                    count++;
-            }
+            count += mEmailFlags.get(j).getFreeCount();
         }
         log("getSpareEmailCount count is: " + count);
         return count;
@@ -1459,9 +1521,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
         if (mEmailFlags.containsKey(pbrindex)) {
             size = mEmailFlags.get(pbrindex).size();
-            for (int i = 0; i < size; i++) {
-                if (0 == mEmailFlags.get(pbrindex).get(i)) count++;
-            }
+            count = mEmailFlags.get(pbrindex).getFreeCount();
         }
         //log("getEmptyEmailNum_Pbrindex pbrIndex is: " + pbrindex + " size is: "
         //        + size + ", count is " + count);
@@ -1480,9 +1540,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
         if (mAnrFlags.containsKey(pbrindex)) {
             size = mAnrFlags.get(pbrindex).size();
-            for (int i = 0; i < size; i++) {
-                if (0 == mAnrFlags.get(pbrindex).get(i)) count++;
-            }
+            count = mAnrFlags.get(pbrindex).getFreeCount();
         }
         //log("getEmptyAnrNum_Pbrindex pbrIndex is: " + pbrindex + " size is: "
         //        + size + ", count is " + count);
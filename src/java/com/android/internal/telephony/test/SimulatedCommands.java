@@ -20,18 +20,23 @@
 package com.android.internal.telephony.test;
 
 import android.os.AsyncResult;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.telephony.Rlog;
+import android.telephony.SmsMessage;
 
 import com.android.internal.telephony.BaseCommands;
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.HardwareConfig;
 import com.android.internal.telephony.cdma.CdmaSmsBroadcastConfigInfo;
 import com.android.internal.telephony.dataconnection.DataCallResponse;
 import com.android.internal.telephony.dataconnection.DataProfile;
+import com.android.internal.telephony.dataconnection.DcFailCause;
 import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.SmsConstants;
 import com.android.internal.telephony.UUSInfo;
 import com.android.internal.telephony.gsm.CallFailCause;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
@@ -86,6 +91,13 @@ public final class SimulatedCommands extends BaseCommands
 
     int mNextCallFailCause = CallFailCause.NORMAL_CLEARING;
 
+    // Simulated data calls; a limit of 0 means the simulated modem has no PDN limit
+    Handler mDataCallHandler;
+    ArrayList<DataCallResponse> mDataCalls = new ArrayList<DataCallResponse>();
+    int mNextDataCallCid = 1;
+    int mMaxActiveDataCalls = 0;
+    int mSetupDataCallDelayMillis = 0;
+
     //***** Constructor
 
     public
@@ -96,6 +108,7 @@ public final class SimulatedCommands extends BaseCommands
         Looper looper = mHandlerThread.getLooper();
 
         simulatedCallState = new SimulatedGsmCallState(looper);
+        mDataCallHandler = new Handler(looper);
 
         setRadioState(RadioState.RADIO_OFF);
         mSimLockedState = INITIAL_LOCK_STATE;
@@ -486,7 +499,9 @@ public final class SimulatedCommands extends BaseCommands
      */
     @Override
     public void getDataCallList(Message result) {
-        resultSuccess(result, new ArrayList<DataCallResponse>(0));
+        synchronized (mDataCalls) {
+            resultSuccess(result, new ArrayList<DataCallResponse>(mDataCalls));
+        }
     }
 
     /**
@@ -1037,12 +1052,67 @@ public final class SimulatedCommands extends BaseCommands
     @Override
     public void setupDataCall(String radioTechnology, String profile,
             String apn, String user, String password, String authType,
-            String protocol, Message result) {
-        unimplemented(result);
+            String protocol, final Message result) {
+        final DataCallResponse response = new DataCallResponse();
+        response.version = 6;
+        synchronized (mDataCalls) {
+            if (mMaxActiveDataCalls > 0 && mDataCalls.size() >= mMaxActiveDataCalls) {
+                Rlog.i(LOG_TAG, "[SimCmd] setupDataCall: " + apn + " rejected, "
+                        + mDataCalls.size() + " data calls active");
+                response.status = DcFailCause.INSUFFICIENT_RESOURCES.getErrorCode();
+                response.cid = -1;
+            } else {
+                int cid = mNextDataCallCid++;
+                response.status = DcFailCause.NONE.getErrorCode();
+                response.cid = cid;
+                response.active = 2;
+                response.type = "IP";
+                response.ifname = "rmnet" + cid;
+                response.addresses = new String[] {"10.0.0." + cid + "/24"};
+                response.dnses = new String[] {"10.0.0.253"};
+                response.gateways = new String[] {"10.0.0.254"};
+                mDataCalls.add(response);
+            }
+        }
+        if (mSetupDataCallDelayMillis > 0) {
+            mDataCallHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    resultSuccess(result, response);
+                }
+            }, mSetupDataCallDelayMillis);
+        } else {
+            resultSuccess(result, response);
+        }
     }
 
     @Override
-    public void deactivateDataCall(int cid, int reason, Message result) {unimplemented(result);}
+    public void deactivateDataCall(int cid, int reason, Message result) {
+        synchronized (mDataCalls) {
+            for (int i = 0; i < mDataCalls.size(); i++) {
+                if (mDataCalls.get(i).cid == cid) {
+                    mDataCalls.remove(i);
+                    break;
+                }
+            }
+        }
+        resultSuccess(result, null);
+    }
+
+    /**
+     * Simulate a modem that takes the given time to answer RIL_REQUEST_SETUP_DATA_CALL
+     */
+    public void setSetupDataCallDelay(int delayMillis) {
+        mSetupDataCallDelayMillis = delayMillis;
+    }
+
+    /**
+     * Simulate a modem supporting at most the given number of concurrent data calls, further
+     * setups fail with INSUFFICIENT_RESOURCES. Reported through getHardwareConfig.
+     */
+    public void setMaxActiveDataCalls(int maxActiveDataCalls) {
+        mMaxActiveDataCalls = maxActiveDataCalls;
+    }
 
     @Override
     public void setPreferredNetworkType(int networkType , Message result) {
@@ -1118,7 +1188,7 @@ public final class SimulatedCommands extends BaseCommands
 
     @Override
     public void acknowledgeLastIncomingGsmSms(boolean success, int cause, Message result) {
-        unimplemented(result);
+        resultSuccess(result, null);
     }
 
     @Override
@@ -1284,6 +1354,17 @@ public final class SimulatedCommands extends BaseCommands
         triggerIncomingStkCcAlpha(alphaString);
     }
 
+    /**
+     * Simulates an incoming 3GPP SMS, as reported by RIL_UNSOL_RESPONSE_NEW_SMS
+     * @param pdu SMS-DELIVER PDU, starting with the SMSC address
+     */
+    public void triggerIncomingGsmSms(byte[] pdu) {
+        if (mGsmSmsRegistrant != null) {
+            SmsMessage sms = SmsMessage.createFromPdu(pdu, SmsConstants.FORMAT_3GPP);
+            mGsmSmsRegistrant.notifyRegistrant(new AsyncResult(null, sms, null));
+        }
+    }
+
     /**
      * Simulates an incoming USSD message
      * @param statusCode  Status code string. See <code>setOnUSSD</code>
@@ -1768,7 +1849,12 @@ public final class SimulatedCommands extends BaseCommands
 
     @Override
     public void getHardwareConfig(Message result) {
-        unimplemented(result);
+        HardwareConfig modem = new HardwareConfig(HardwareConfig.DEV_HARDWARE_TYPE_MODEM);
+        modem.assignModem("0", HardwareConfig.DEV_HARDWARE_STATE_ENABLED, 0, 0, 1,
+                mMaxActiveDataCalls, 1);
+        ArrayList<HardwareConfig> configs = new ArrayList<HardwareConfig>(1);
+        configs.add(modem);
+        resultSuccess(result, configs);
     }
 
     @Override
@@ -22,6 +22,9 @@ import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.telephony.Rlog;
 
+import com.android.internal.telephony.EncodeException;
+import com.android.internal.telephony.GsmAlphabet;
+
 import java.util.Arrays;
 
 
@@ -29,6 +32,10 @@ import java.util.Arrays;
  *
  * Used to load or store ADNs (Abbreviated Dialing Numbers).
  *
+ * A record read from the ICC keeps its raw bytes and decodes the alpha tag and number the first
+ * time either is needed. Empty records, the bulk of most phonebooks, are recognized without
+ * decoding anything.
+ *
  * {@hide}
  *
  */
@@ -45,6 +52,10 @@ public class AdnRecord implements Parcelable {
     int mEfid;                   // or 0 if none
     int mRecordNumber;           // or 0 if none
 
+    // Raw record whose alpha tag and number are not decoded yet, or null. Cleared only after
+    // mAlphaTag and mNumber are set, so a reader that sees null also sees them.
+    private volatile byte[] mRecord;
+
 
     //***** Constants
 
@@ -151,10 +162,12 @@ public class AdnRecord implements Parcelable {
     //***** Instance Methods
 
     public String getAlphaTag() {
+        decodeRecord();
         return mAlphaTag;
     }
 
     public String getNumber() {
+        decodeRecord();
         return mNumber;
     }
 
@@ -176,11 +189,13 @@ public class AdnRecord implements Parcelable {
 
     @Override
     public String toString() {
+        decodeRecord();
         return "ADN Record 'Tag:" + mAlphaTag + "', Num:'" + mNumber + ", Emails:" +
             Arrays.toString(mEmails) + ", Anrs:" + Arrays.toString(mAdditionalNumbers) + "'";
     }
 
     public boolean isEmpty() {
+        decodeRecord();
         return TextUtils.isEmpty(mAlphaTag) && TextUtils.isEmpty(mNumber) && mEmails == null
                 && mAdditionalNumbers == null;
     }
@@ -203,6 +218,18 @@ public class AdnRecord implements Parcelable {
         return (s1.equals(s2));
     }
 
+    private static final String[] EMPTY_FIELD_ARRAY = { "" };
+
+    /** Whether array holds a string equal to str; like Arrays.asList(array).contains(str). */
+    private static boolean contains(String[] array, String str) {
+        for (String s : array) {
+            if (str == null ? s == null : str.equals(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** Help function for ANR/EMAIL array compare. */
     private static boolean arrayCompareNullEqualsEmpty(String s1[], String s2[]) {
         if (s1 == s2) {
@@ -210,20 +237,18 @@ public class AdnRecord implements Parcelable {
         }
 
         if (s1 == null) {
-            s1 = new String[1];
-            s1[0] = "";
+            s1 = EMPTY_FIELD_ARRAY;
         }
 
         if (s2 == null) {
-            s2 = new String[1];
-            s2[0] = "";
+            s2 = EMPTY_FIELD_ARRAY;
         }
 
         for (String str:s1) {
             if (TextUtils.isEmpty(str)) {
                 continue;
             } else {
-                if (Arrays.asList(s2).contains(str)) {
+                if (contains(s2, str)) {
                     continue;
                 } else {
                     return false;
@@ -235,7 +260,7 @@ public class AdnRecord implements Parcelable {
             if (TextUtils.isEmpty(str)) {
                 continue;
             } else {
-                if (Arrays.asList(s1).contains(str)) {
+                if (contains(s1, str)) {
                     continue;
                 } else {
                     return false;
@@ -247,6 +272,8 @@ public class AdnRecord implements Parcelable {
     }
 
     public boolean isEqual(AdnRecord adn) {
+        decodeRecord();
+        adn.decodeRecord();
         return ( stringCompareNullEqualsEmpty(mAlphaTag, adn.mAlphaTag) &&
                 stringCompareNullEqualsEmpty(mNumber, adn.mNumber) &&
                 arrayCompareNullEqualsEmpty(mEmails, adn.mEmails)
@@ -284,7 +311,7 @@ public class AdnRecord implements Parcelable {
 
         // fill out none common element into the ""
         for (int i = 0; i < dest.length; i++) {
-            if (Arrays.asList(ref).contains(dest[i])) {
+            if (contains(ref, dest[i])) {
                 continue;
             } else {
                 for (int j = 0; j < ref.length; j++) {
@@ -312,6 +339,7 @@ public class AdnRecord implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        decodeRecord();
         dest.writeInt(mEfid);
         dest.writeInt(mRecordNumber);
         dest.writeString(mAlphaTag);
@@ -330,15 +358,14 @@ public class AdnRecord implements Parcelable {
      */
     public byte[] buildAdnString(int recordSize) {
         byte[] bcdNumber;
-        byte[] byteTag;
         byte[] adnString;
         int footerOffset = recordSize - FOOTER_SIZE_BYTES;
 
+        decodeRecord();
+
         // create an empty record
         adnString = new byte[recordSize];
-        for (int i = 0; i < recordSize; i++) {
-            adnString[i] = (byte) 0xFF;
-        }
+        Arrays.fill(adnString, (byte) 0xFF);
 
         if ((TextUtils.isEmpty(mNumber)) && (TextUtils.isEmpty(mAlphaTag))) {
             Rlog.w(LOG_TAG, "[buildAdnString] Empty dialing number");
@@ -367,9 +394,11 @@ public class AdnRecord implements Parcelable {
             adnString[footerOffset + ADN_EXTENSION_ID]
                     = (byte) 0xFF; // Extension Record Id
 
-            if (!TextUtils.isEmpty(mAlphaTag)) {
-                byteTag = IccUtils.stringToAdnStringField(mAlphaTag);
-                System.arraycopy(byteTag, 0, adnString, 0, byteTag.length);
+            if (!TextUtils.isEmpty(mAlphaTag)
+                    && !encodeAlphaTag(mAlphaTag, adnString, footerOffset)) {
+                Rlog.w(LOG_TAG,
+                        "[buildAdnString] Tag does not fit in " + footerOffset + " bytes");
+                return null;
             }
 
             return adnString;
@@ -381,6 +410,7 @@ public class AdnRecord implements Parcelable {
      */
     public void
     appendExtRecord (byte[] extRecord) {
+        decodeRecord();
         try {
             if (extRecord.length != EXT_RECORD_LENGTH_BYTES) {
                 return;
@@ -409,10 +439,83 @@ public class AdnRecord implements Parcelable {
     //***** Private Methods
 
     /**
-     * alphaTag and number are set to null on invalid format
+     * Writes alphaTag into the first length bytes of record, which are already 0xFF, in the
+     * format of IccUtils.stringToAdnStringField(): GSM 8 bit when every character has a GSM
+     * encoding, otherwise UCS2 after a 0x80 byte. Nothing is allocated along the way.
+     *
+     * @return false if the encoded tag is longer than length
+     */
+    private static boolean encodeAlphaTag(String alphaTag, byte[] record, int length) {
+        int tagLength = alphaTag.length();
+        int septets = 0;
+        try {
+            for (int i = 0; i < tagLength; i++) {
+                septets += GsmAlphabet.countGsmSeptets(alphaTag.charAt(i), true);
+            }
+        } catch (EncodeException e) {
+            septets = -1;
+        }
+
+        if (septets >= 0) {
+            if (septets > length) {
+                return false;
+            }
+            GsmAlphabet.stringToGsm8BitUnpackedField(alphaTag, record, 0, septets);
+            return true;
+        }
+
+        if (1 + 2 * tagLength > length) {
+            return false;
+        }
+        record[0] = (byte) 0x80;
+        for (int i = 0; i < tagLength; i++) {
+            char c = alphaTag.charAt(i);
+            record[1 + 2 * i] = (byte) (c >> 8);
+            record[2 + 2 * i] = (byte) c;
+        }
+        return true;
+    }
+
+    /**
+     * Keeps record for decoding on demand, or sets the empty alpha tag and number right away
+     * if that is what it holds.
      */
     private void
     parseRecord(byte[] record) {
+        int footerOffset = record.length - FOOTER_SIZE_BYTES;
+        if (footerOffset >= 0 && record[0] == (byte) 0xFF
+                && (0xff & record[footerOffset]) > MAX_NUMBER_SIZE_BYTES) {
+            // An empty alpha identifier and an invalid (usually 0xFF) number length
+            mAlphaTag = "";
+            mNumber = "";
+            return;
+        }
+        if (footerOffset >= 0 && (0xff & record[footerOffset]) <= MAX_NUMBER_SIZE_BYTES) {
+            // Needed before decoding, to load the extension record
+            mExtRecord = 0xff & record[record.length - 1];
+        }
+        mRecord = record;
+    }
+
+    private void decodeRecord() {
+        byte[] record = mRecord;
+        if (record == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mRecord != null) {
+                decodeRecord(record);
+                mRecord = null;
+            }
+        }
+    }
+
+    /**
+     * alphaTag and number are set to "" on invalid format. Emails and additional numbers,
+     * which come from other files, are left alone.
+     */
+    private void
+    decodeRecord(byte[] record) {
         try {
             mAlphaTag = IccUtils.adnStringFieldToString(
                             record, 0, record.length - FOOTER_SIZE_BYTES);
@@ -437,18 +540,10 @@ public class AdnRecord implements Parcelable {
             mNumber = PhoneNumberUtils.calledPartyBCDToString(
                             record, footerOffset + 1, numberLength);
 
-
-            mExtRecord = 0xff & record[record.length - 1];
-
-            mEmails = null;
-            mAdditionalNumbers = null;
-
         } catch (RuntimeException ex) {
             Rlog.w(LOG_TAG, "Error parsing AdnRecord", ex);
             mNumber = "";
             mAlphaTag = "";
-            mEmails = null;
-            mAdditionalNumbers = null;
         }
     }
 
@@ -23,10 +23,12 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.gsm.UsimPhoneBookManager;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.TreeSet;
 
 /**
  * {@hide}
@@ -50,6 +52,9 @@ public final class AdnRecordCache extends Handler implements IccConstants {
     // People waiting for adn record to be updated
     SparseArray<Message> mUserWriteResponse = new SparseArray<Message>();
 
+    // Search indexes over the loaded ADN-like files, indexed by EF ID
+    private SparseArray<AdnIndex> mAdnIndexes = new SparseArray<AdnIndex>();
+
     //***** Event Constants
 
     static final int EVENT_LOAD_ALL_ADN_LIKE_DONE = 1;
@@ -67,6 +72,11 @@ public final class AdnRecordCache extends Handler implements IccConstants {
         mUsimPhoneBookManager = new UsimPhoneBookManager(mFh, this);
     }
 
+    @VisibleForTesting
+    UsimPhoneBookManager getUsimPhoneBookManager() {
+        return mUsimPhoneBookManager;
+    }
+
     //***** Called from SIMRecords
 
     /**
@@ -74,6 +84,7 @@ public final class AdnRecordCache extends Handler implements IccConstants {
      */
     public void reset() {
         mAdnLikeFiles.clear();
+        mAdnIndexes.clear();
         mUsimPhoneBookManager.reset();
 
         clearWaiters();
@@ -211,43 +222,7 @@ public final class AdnRecordCache extends Handler implements IccConstants {
             return;
         }
 
-        int index = -1;
-        int count = 1;
-        int prePbrIndex = -2;
-        int anrNum = 0;
-        int emailNum = 0;
-        for (Iterator<AdnRecord> it = oldAdnList.iterator(); it.hasNext();) {
-            AdnRecord nextAdnRecord = it.next();
-            boolean isEmailOrAnrIsFull = false;
-            if (efid == EF_PBR) {
-                // There may more than one PBR files in the USIM card, if the current PBR file can
-                // not save the new AdnRecord which contain anr or email, try save it into next PBR
-                // file.
-                int pbrIndex = mUsimPhoneBookManager.getPbrIndexBy(count - 1);
-                if (pbrIndex != prePbrIndex) {
-                    // For a specific pbrIndex, the anrNum and emailNum is fixed.
-                    anrNum = mUsimPhoneBookManager.getEmptyAnrNum_Pbrindex(pbrIndex);
-                    emailNum = mUsimPhoneBookManager.getEmptyEmailNum_Pbrindex(pbrIndex);
-                    prePbrIndex = pbrIndex;
-                    Log.d("AdnRecordCache", "updateAdnBySearch, pbrIndex: " + pbrIndex +
-                            " anrNum:" + anrNum + " emailNum:" + emailNum);
-                }
-                if ((anrNum == 0 &&
-                        (oldAdn.getAdditionalNumbers() == null &&
-                         newAdn.getAdditionalNumbers() != null)) ||
-                    (emailNum == 0 &&
-                        (oldAdn.getEmails() == null &&
-                         newAdn.getEmails() != null))) {
-                    isEmailOrAnrIsFull = true;
-                }
-            }
-
-            if (!isEmailOrAnrIsFull && oldAdn.isEqual(nextAdnRecord)) {
-                index = count;
-                break;
-            }
-            count++;
-        }
+        int index = searchAdn(efid, oldAdnList, oldAdn, newAdn);
 
         Log.d("AdnRecordCache", "updateAdnBySearch, update oldADN:" + oldAdn.toString() +
                 ", newAdn:" + newAdn.toString() + ",index :" + index);
@@ -289,6 +264,140 @@ public final class AdnRecordCache extends Handler implements IccConstants {
     }
 
 
+    /**
+     * Find the record of adnList, the loaded records of efid, that is oldAdn and can take
+     * newAdn. Searching for an empty oldAdn finds the first free record.
+     *
+     * @return the 1-based index of the record, or -1 if there is none
+     */
+    int searchAdn(int efid, ArrayList<AdnRecord> adnList, AdnRecord oldAdn, AdnRecord newAdn) {
+        TreeSet<Integer> candidates = getAdnIndex(efid, adnList).get(oldAdn);
+        if (candidates != null) {
+            for (int candidate : candidates) {
+                if (isMatch(efid, adnList, candidate, oldAdn, newAdn)) {
+                    return candidate;
+                }
+            }
+        }
+
+        // The records may have been changed without going through this cache; confirm
+        // with a full search and rebuild the index if it was stale.
+        for (int i = 1, size = adnList.size(); i <= size; i++) {
+            if (isMatch(efid, adnList, i, oldAdn, newAdn)) {
+                Log.d("AdnRecordCache", "searchAdn, stale index for EF:" + efid);
+                mAdnIndexes.put(efid, new AdnIndex(adnList));
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index 1-based index of the record in adnList
+     * @return true if the record at index is oldAdn and can take newAdn
+     */
+    private boolean isMatch(int efid, ArrayList<AdnRecord> adnList, int index,
+            AdnRecord oldAdn, AdnRecord newAdn) {
+        if (efid == EF_PBR) {
+            // There may more than one PBR files in the USIM card, if the current PBR file can
+            // not save the new AdnRecord which contain anr or email, try save it into next PBR
+            // file.
+            int pbrIndex = mUsimPhoneBookManager.getPbrIndexBy(index - 1);
+            if ((oldAdn.getAdditionalNumbers() == null && newAdn.getAdditionalNumbers() != null
+                    && mUsimPhoneBookManager.getEmptyAnrNum_Pbrindex(pbrIndex) == 0)
+                    || (oldAdn.getEmails() == null && newAdn.getEmails() != null
+                    && mUsimPhoneBookManager.getEmptyEmailNum_Pbrindex(pbrIndex) == 0)) {
+                return false;
+            }
+        }
+        return oldAdn.isEqual(adnList.get(index - 1));
+    }
+
+    private AdnIndex getAdnIndex(int efid, ArrayList<AdnRecord> adnList) {
+        AdnIndex adnIndex = mAdnIndexes.get(efid);
+        if (adnIndex == null || !adnIndex.isFor(adnList)) {
+            adnIndex = new AdnIndex(adnList);
+            mAdnIndexes.put(efid, adnIndex);
+        }
+        return adnIndex;
+    }
+
+    /**
+     * Record to be written at 1-based index of efid; keep its search index up to date.
+     */
+    private void updateAdnIndex(int efid, ArrayList<AdnRecord> adnList, int index,
+            AdnRecord adn) {
+        AdnIndex adnIndex = mAdnIndexes.get(efid);
+        if (adnIndex != null && adnIndex.isFor(adnList)) {
+            adnIndex.remove(index, adnList.get(index - 1));
+            adnIndex.add(index, adn);
+        }
+    }
+
+    /**
+     * Indexes of the records of an ADN-like file by alpha tag and number, so a search compares
+     * only the records that can match instead of every record of the file. Empty records all
+     * share one key, so an insert finds the first free record as quickly.
+     */
+    static final class AdnIndex {
+        private final ArrayList<AdnRecord> mAdnList;
+        private final HashMap<String, TreeSet<Integer>> mIndexes =
+                new HashMap<String, TreeSet<Integer>>();
+
+        AdnIndex(ArrayList<AdnRecord> adnList) {
+            mAdnList = adnList;
+            for (int i = 0, size = adnList.size(); i < size; i++) {
+                add(i + 1, adnList.get(i));
+            }
+        }
+
+        boolean isFor(ArrayList<AdnRecord> adnList) {
+            return mAdnList == adnList;
+        }
+
+        /**
+         * @return the 1-based indexes of the records with the alpha tag and number of adn in
+         * ascending order, or null if there are none
+         */
+        TreeSet<Integer> get(AdnRecord adn) {
+            return mIndexes.get(keyOf(adn));
+        }
+
+        void add(int index, AdnRecord adn) {
+            if (adn == null) {
+                return;
+            }
+            String key = keyOf(adn);
+            TreeSet<Integer> indexes = mIndexes.get(key);
+            if (indexes == null) {
+                indexes = new TreeSet<Integer>();
+                mIndexes.put(key, indexes);
+            }
+            indexes.add(index);
+        }
+
+        void remove(int index, AdnRecord adn) {
+            if (adn == null) {
+                return;
+            }
+            String key = keyOf(adn);
+            TreeSet<Integer> indexes = mIndexes.get(key);
+            if (indexes != null) {
+                indexes.remove(index);
+                if (indexes.isEmpty()) {
+                    mIndexes.remove(key);
+                }
+            }
+        }
+
+        // Null and empty compare equal in AdnRecord.isEqual(), so they share a key
+        private static String keyOf(AdnRecord adn) {
+            String alphaTag = adn.getAlphaTag();
+            String number = adn.getNumber();
+            return (alphaTag == null ? "" : alphaTag) + '\u0000' + (number == null ? "" : number);
+        }
+    }
+
     /**
      * Responds with exception (in response) if efid is not a known ADN-like
      * record
@@ -401,10 +510,14 @@ public final class AdnRecordCache extends Handler implements IccConstants {
 
                 if (ar.exception == null) {
                     if (mAdnLikeFiles.get(efid) != null) {
+                        updateAdnIndex(efid, mAdnLikeFiles.get(efid), index, adn);
                         mAdnLikeFiles.get(efid).set(index - 1, adn);
                     }
                     if (efid == EF_PBR) {
-                        mUsimPhoneBookManager.loadEfFilesFromUsim().set(index - 1, adn);
+                        ArrayList<AdnRecord> usimAdnList =
+                                mUsimPhoneBookManager.loadEfFilesFromUsim();
+                        updateAdnIndex(efid, usimAdnList, index, adn);
+                        usimAdnList.set(index - 1, adn);
                     }
                 }
 
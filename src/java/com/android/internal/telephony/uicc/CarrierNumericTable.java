@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable table of per carrier values keyed by operator numeric (MCC+MNC), as read from the
+ * partner configuration files. Keys are packed into a sorted int array, so a lookup is a binary
+ * search that allocates nothing.
+ *
+ * A key packs the digit count with the digits, which keeps "00101" and "0101" apart.
+ *
+ * {@hide}
+ */
+final class CarrierNumericTable<V> {
+    private static final int MAX_DIGITS = 8;
+    private static final int LENGTH_SHIFT = 27;
+
+    private static final CarrierNumericTable<Object> EMPTY =
+            new CarrierNumericTable<Object>(new int[0], new Object[0]);
+
+    private final int[] mKeys;
+    private final Object[] mValues;
+
+    private CarrierNumericTable(int[] keys, Object[] values) {
+        mKeys = keys;
+        mValues = values;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> CarrierNumericTable<V> empty() {
+        return (CarrierNumericTable<V>) EMPTY;
+    }
+
+    /**
+     * @return the packed key of numeric, or -1 if it is not 1 to 8 decimal digits
+     */
+    static int encode(String numeric) {
+        if (numeric == null) {
+            return -1;
+        }
+        int length = numeric.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = numeric.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return (length << LENGTH_SHIFT) | value;
+    }
+
+    boolean containsKey(String numeric) {
+        return indexOf(numeric) >= 0;
+    }
+
+    /**
+     * @return the value of numeric, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    V get(String numeric) {
+        int index = indexOf(numeric);
+        return index >= 0 ? (V) mValues[index] : null;
+    }
+
+    int size() {
+        return mKeys.length;
+    }
+
+    private int indexOf(String numeric) {
+        int key = encode(numeric);
+        return key < 0 ? -1 : Arrays.binarySearch(mKeys, key);
+    }
+
+    /**
+     * Collects the entries of a table while its configuration file is parsed. As with a map,
+     * a later entry for the same numeric replaces an earlier one.
+     */
+    static final class Builder<V> {
+        private final TreeMap<Integer, V> mEntries = new TreeMap<Integer, V>();
+
+        /**
+         * @return false, adding nothing, if numeric is not 1 to 8 decimal digits
+         */
+        boolean put(String numeric, V value) {
+            int key = encode(numeric);
+            if (key < 0) {
+                return false;
+            }
+            mEntries.put(key, value);
+            return true;
+        }
+
+        CarrierNumericTable<V> build() {
+            int[] keys = new int[mEntries.size()];
+            Object[] values = new Object[keys.length];
+            int i = 0;
+            for (Map.Entry<Integer, V> entry : mEntries.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i] = entry.getValue();
+                i++;
+            }
+            return new CarrierNumericTable<V>(keys, values);
+        }
+    }
+}
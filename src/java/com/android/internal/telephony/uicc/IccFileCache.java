@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.telephony.Rlog;
+import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.Map;
+
+/**
+ * Persistent cache of elementary files that do not change for a given card, keyed by ICCID and
+ * file id. It lets {@link SIMRecords} answer those files at boot without SIM I/O and confirm
+ * them against the card afterwards.
+ *
+ * Each slot remembers the ICCID it last saw; entries of a card are dropped once another card
+ * is seen in its slot, so the cache holds at most one card per slot. Cached files are only
+ * handed out once EF_ICCID has confirmed the card, see {@link Load}.
+ *
+ * {@hide}
+ */
+public final class IccFileCache {
+    private static final String LOG_TAG = "IccFileCache";
+    private static final boolean DBG = false;
+
+    private static final String PREFS_NAME = "icc_file_cache";
+    private static final String SLOT_ICCID_PREFIX = "slot_iccid_";
+
+    private final SharedPreferences mPrefs;
+    private final int mSlotId;
+
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    /**
+     * A cached file and the wall clock time it was last confirmed against the card.
+     */
+    public static final class Entry {
+        public final byte[] data;
+        public final long validatedTime;
+
+        Entry(byte[] data, long validatedTime) {
+            this.data = data;
+            this.validatedTime = validatedTime;
+        }
+    }
+
+    public IccFileCache(Context context, int slotId) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mSlotId = slotId;
+    }
+
+    /**
+     * @return the ICCID last seen in this slot, or null
+     */
+    public String getLastIccId() {
+        return mPrefs.getString(SLOT_ICCID_PREFIX + mSlotId, null);
+    }
+
+    /**
+     * Record the ICCID of the card now in this slot, dropping the entries of the previous card.
+     */
+    public void setIccId(String iccId) {
+        String lastIccId = getLastIccId();
+        if (TextUtils.equals(lastIccId, iccId)) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (lastIccId != null) {
+            removeAll(editor, lastIccId);
+        }
+        editor.putString(SLOT_ICCID_PREFIX + mSlotId, iccId);
+        editor.apply();
+    }
+
+    /**
+     * @return the cached contents of efid on the card iccId, or null if not cached
+     */
+    public Entry get(String iccId, int efid) {
+        if (iccId == null) {
+            return null;
+        }
+        String value = mPrefs.getString(key(iccId, efid), null);
+        int sep = value == null ? -1 : value.indexOf(':');
+        if (sep < 0) {
+            mMisses++;
+            return null;
+        }
+        try {
+            long validatedTime = Long.parseLong(value.substring(0, sep));
+            byte[] data = IccUtils.hexStringToBytes(value.substring(sep + 1));
+            if (data != null) {
+                mHits++;
+                return new Entry(data, validatedTime);
+            }
+        } catch (NumberFormatException e) {
+            Rlog.w(LOG_TAG, "Malformed entry for efid 0x" + Integer.toHexString(efid));
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Store the contents of efid on the card iccId as confirmed now.
+     */
+    public void put(String iccId, int efid, byte[] data) {
+        if (iccId == null || data == null) {
+            return;
+        }
+        if (DBG) Rlog.d(LOG_TAG, "put efid 0x" + Integer.toHexString(efid));
+        mPrefs.edit().putString(key(iccId, efid),
+                System.currentTimeMillis() + ":" + IccUtils.bytesToHexString(data)).apply();
+    }
+
+    /**
+     * Drop the cached efid of the card iccId, e.g. after a SIM refresh reported it changed.
+     */
+    public void invalidate(String iccId, int efid) {
+        if (iccId == null) {
+            return;
+        }
+        if (mPrefs.contains(key(iccId, efid))) {
+            mInvalidations++;
+            mPrefs.edit().remove(key(iccId, efid)).apply();
+        }
+    }
+
+    /**
+     * Drop every cached file of the card iccId, e.g. after a SIM refresh INIT or RESET.
+     */
+    public void invalidateAll(String iccId) {
+        if (iccId == null) {
+            return;
+        }
+        mInvalidations++;
+        SharedPreferences.Editor editor = mPrefs.edit();
+        removeAll(editor, iccId);
+        editor.apply();
+    }
+
+    private void removeAll(SharedPreferences.Editor editor, String iccId) {
+        String prefix = iccId + "_";
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                editor.remove(entry.getKey());
+            }
+        }
+    }
+
+    private static String key(String iccId, int efid) {
+        return iccId + "_" + Integer.toHexString(efid);
+    }
+
+    /**
+     * The cacheable files of one record load. Files cached for the card last seen in the slot
+     * are held back until EF_ICCID confirms that card is still there, so nothing derived from
+     * them (such as the MNC length from EF_AD) can be applied to a different card. Files read
+     * from the card before its ICCID is known are cached once it is.
+     *
+     * Only used on the thread of the owning records.
+     */
+    static final class Load {
+        private final IccFileCache mCache;
+        private final String mCachedIccId;
+        private final long mMaxAgeMillis;
+
+        // efid -> event and efid -> contents of the cached files held for confirmation
+        private final SparseIntArray mHeldEvents = new SparseIntArray();
+        private final SparseArray<byte[]> mHeldData = new SparseArray<byte[]>();
+        // efid -> event of the held files whose entry is due to be confirmed with the card
+        private final SparseIntArray mToRevalidate = new SparseIntArray();
+        // efid -> contents read from the card before its ICCID was known
+        private final SparseArray<byte[]> mToCache = new SparseArray<byte[]>();
+
+        private boolean mIccIdLoaded;
+        private String mIccId;
+
+        /**
+         * @param maxAgeMillis entries confirmed longer ago than this are revalidated
+         */
+        Load(IccFileCache cache, long maxAgeMillis) {
+            mCache = cache;
+            mCachedIccId = cache.getLastIccId();
+            mMaxAgeMillis = maxAgeMillis;
+        }
+
+        /**
+         * Hold efid if it is cached for the card last seen in the slot.
+         *
+         * @param event the event the contents are to be delivered with
+         * @return false if it is not cached and must be read from the card
+         */
+        boolean hold(int efid, int event) {
+            Entry entry = mCache.get(mCachedIccId, efid);
+            if (entry == null) {
+                return false;
+            }
+            mHeldEvents.put(efid, event);
+            mHeldData.put(efid, entry.data);
+            long age = System.currentTimeMillis() - entry.validatedTime;
+            if (age < 0 || age > mMaxAgeMillis) {
+                mToRevalidate.put(efid, event);
+            }
+            return true;
+        }
+
+        /**
+         * A cacheable file was read from the card; cache it, now or once the ICCID is known.
+         */
+        void onEfRead(int efid, byte[] data) {
+            if (!mIccIdLoaded) {
+                mToCache.put(efid, data);
+            } else if (mIccId != null) {
+                mCache.put(mIccId, efid, data);
+            }
+        }
+
+        /**
+         * EF_ICCID was read.
+         *
+         * @param iccId the card's ICCID, null if it could not be read
+         * @return true if the held files are of this card and may be delivered, false if they
+         *         must be read from the card instead
+         */
+        boolean onIccIdLoaded(String iccId) {
+            mIccIdLoaded = true;
+            mIccId = iccId;
+            boolean confirmed = iccId != null && iccId.equals(mCachedIccId);
+            if (iccId != null) {
+                mCache.setIccId(iccId);
+                for (int i = 0; i < mToCache.size(); i++) {
+                    mCache.put(iccId, mToCache.keyAt(i), mToCache.valueAt(i));
+                }
+            }
+            mToCache.clear();
+            if (!confirmed) {
+                mToRevalidate.clear();
+            }
+            return confirmed;
+        }
+
+        /**
+         * @return efid -> event of the held files
+         */
+        SparseIntArray getHeldEvents() {
+            return mHeldEvents;
+        }
+
+        /**
+         * @return the cached contents of a held file
+         */
+        byte[] getHeldData(int efid) {
+            return mHeldData.get(efid);
+        }
+
+        /**
+         * Forget the held files once they have been delivered or read again.
+         */
+        void clearHeld() {
+            mHeldEvents.clear();
+            mHeldData.clear();
+        }
+
+        /**
+         * @return efid -> event of the confirmed files due for revalidation, each returned once
+         */
+        SparseIntArray takeToRevalidate() {
+            SparseIntArray toRevalidate = mToRevalidate.clone();
+            mToRevalidate.clear();
+            return toRevalidate;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IccFileCache{slot=" + mSlotId + " hits=" + mHits + " misses=" + mMisses
+                + " invalidations=" + mInvalidations + "}";
+    }
+}
@@ -20,6 +20,7 @@ import android.os.*;
 import com.android.internal.telephony.CommandsInterface;
 
 import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * {@hide}
@@ -52,6 +53,10 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int GET_RESPONSE_EF_SIZE_BYTES = 15;
     static protected final int GET_RESPONSE_EF_IMG_SIZE_BYTES = 10;
 
+    // Number of READ RECORD commands kept outstanding when loading all records of an EF
+    static protected final int READ_RECORD_WINDOW =
+            Math.max(1, SystemProperties.getInt("persist.radio.icc_read_window", 4));
+
     // Byte order received in response to COMMAND_GET_RESPONSE
     // Refer TS 51.011 Section 9.2.1
     static protected final int RESPONSE_DATA_RFU_1 = 0;
@@ -111,6 +116,10 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         int mCount;
         Message mOnLoaded;
 
+        // Variables used to pipeline the reads of load all
+        int mOutstanding;
+        boolean mFailed;
+
         ArrayList<byte[]> results;
 
         LoadLinearFixedContext(int efid, int recordNum, Message onLoaded) {
@@ -582,15 +591,24 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                     throw new IccFileTypeMismatch();
                 }
 
+                 if (path == null) {
+                     path = getEFPath(lc.mEfid);
+                 }
+
                  if (lc.mLoadAll) {
-                     lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+                     // Filled in by record number as the pipelined reads complete
+                     lc.results = new ArrayList<byte[]>(
+                             Collections.nCopies(lc.mCountRecords, (byte[]) null));
+                     if (lc.mCountRecords == 0) {
+                         sendResult(response, lc.results, null);
+                     } else {
+                         readNextRecords(lc, path);
+                     }
+                     break;
                  } else if (lc.mLoadPart) {
                      lc.initLCResults(lc.mCountRecords);
                  }
 
-                 if (path == null) {
-                     path = getEFPath(lc.mEfid);
-                 }
                  mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
                          lc.mRecordNum,
                          READ_RECORD_MODE_ABSOLUTE,
@@ -649,27 +667,29 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 response = lc.mOnLoaded;
                 path = lc.mPath;
 
+                if (lc.mFailed) {
+                    // A pipelined read already failed and reported the load
+                    break;
+                }
+
                 if (processException(response, (AsyncResult) msg.obj)) {
+                    lc.mFailed = true;
                     break;
                 }
 
                 if (lc.mLoadAll) {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
+                    // msg.arg1 is the record number the read was issued for
+                    lc.mOutstanding--;
+                    lc.results.set(msg.arg1 - 1, result.payload);
+                    lc.mCount++;
 
-                    if (lc.mRecordNum > lc.mCountRecords) {
+                    if (lc.mCount == lc.mCountRecords) {
                         sendResult(response, lc.results, null);
                     } else {
                         if (path == null) {
                             path = getEFPath(lc.mEfid);
                         }
-
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
+                        readNextRecords(lc, path);
                     }
                 } else if (lc.mLoadPart) {
                     lc.results.set(lc.mRecordNum - 1, result.payload);
@@ -718,6 +738,23 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         }
     }
 
+    /**
+     * Issue READ RECORD commands for the following records of lc until READ_RECORD_WINDOW of
+     * them are outstanding, so the modem always has the next read queued instead of waiting
+     * for a round trip through this handler between records.
+     */
+    private void readNextRecords(LoadLinearFixedContext lc, String path) {
+        while (lc.mOutstanding < READ_RECORD_WINDOW && lc.mRecordNum <= lc.mCountRecords) {
+            mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
+                    lc.mRecordNum,
+                    READ_RECORD_MODE_ABSOLUTE,
+                    lc.mRecordSize, null, null, mAid,
+                    obtainMessage(EVENT_READ_RECORD_DONE, lc.mRecordNum, 0, lc));
+            lc.mRecordNum++;
+            lc.mOutstanding++;
+        }
+    }
+
     /**
      * Returns the root path of the EF file.
      * i.e returns MasterFile + DFfile as a string.
@@ -32,6 +32,7 @@ import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsMessage;
 import android.text.TextUtils;
 import android.telephony.Rlog;
+import android.util.SparseIntArray;
 import android.content.res.Resources;
 
 import com.android.internal.telephony.CommandsInterface;
@@ -166,6 +167,20 @@ public class SIMRecords extends IccRecords {
     private static final int EVENT_GET_CSP_CPHS_DONE = 33;
     private static final int EVENT_GET_GID1_DONE = 34;
     private static final int EVENT_APP_LOCKED = 35;
+    private static final int EVENT_GET_CACHEABLE_EF_DONE = 36;
+    private static final int EVENT_REVALIDATE_EF_DONE = 37;
+
+    // ***** Persistent cache of EFs that do not change for a given card
+
+    private static final boolean FILE_CACHE_ENABLED =
+            SystemProperties.getBoolean("persist.radio.sim_file_cache", true);
+    // Cached EFs confirmed against the card more recently than this are not read again
+    private static final long FILE_CACHE_MAX_AGE_MILLIS =
+            SystemProperties.getLong("persist.radio.sim_file_cache_age", 24 * 60 * 60 * 1000L);
+
+    private IccFileCache mFileCache;
+    // Cacheable EFs of the current load, null if the cache is disabled
+    private IccFileCache.Load mCacheLoad;
 
     // Lookup table for carriers known to produce SIMs which incorrectly indicate MNC length.
 
@@ -198,6 +213,10 @@ public class SIMRecords extends IccRecords {
 
         mVmConfig = new VoiceMailConstants();
 
+        if (FILE_CACHE_ENABLED) {
+            mFileCache = new IccFileCache(c, app.getPhoneId());
+        }
+
         mRecordsRequested = false;  // No load request is made till SIM ready
 
         // recordsToLoad is set to 0 because no requests are made yet
@@ -876,12 +895,14 @@ public class SIMRecords extends IccRecords {
                 data = (byte[])ar.result;
 
                 if (ar.exception != null) {
+                    onIccIdLoaded();
                     break;
                 }
 
                 mIccId = IccUtils.bcdToString(data, 0, data.length);
 
                 log("iccid: " + mIccId);
+                onIccIdLoaded();
 
             break;
 
@@ -1210,6 +1231,20 @@ public class SIMRecords extends IccRecords {
 
                 break;
 
+            case EVENT_GET_CACHEABLE_EF_DONE:
+                ar = (AsyncResult)msg.obj;
+                if (ar.exception == null && mCacheLoad != null) {
+                    mCacheLoad.onEfRead(msg.arg1, (byte[])ar.result);
+                }
+                // Hand the result to the handler of the EF itself
+                handleMessage(obtainMessage(msg.arg2, ar));
+                break;
+
+            case EVENT_REVALIDATE_EF_DONE:
+                ar = (AsyncResult)msg.obj;
+                onCachedEfRevalidated(msg.arg1, msg.arg2, ar);
+                break;
+
             default:
                 super.handleMessage(msg);   // IccRecords handles generic record load responses
 
@@ -1246,8 +1281,25 @@ public class SIMRecords extends IccRecords {
         }
     }
 
+    @Override
+    protected void handleRefresh(IccRefreshResponse refreshResponse) {
+        if (mFileCache != null && refreshResponse != null
+                && (refreshResponse.aid == null
+                        || refreshResponse.aid.equals(mParentApp.getAid()))
+                && (refreshResponse.refreshResult == IccRefreshResponse.REFRESH_RESULT_INIT
+                        || refreshResponse.refreshResult
+                                == IccRefreshResponse.REFRESH_RESULT_RESET)) {
+            if (DBG) log("handleRefresh: dropping cached EFs");
+            mFileCache.invalidateAll(mIccId);
+        }
+        super.handleRefresh(refreshResponse);
+    }
+
     @Override
     protected void handleFileUpdate(int efid) {
+        if (mFileCache != null) {
+            mFileCache.invalidate(mIccId, efid);
+        }
         switch(efid) {
             case EF_MBDN:
                 mRecordsToLoad++;
@@ -1295,6 +1347,9 @@ public class SIMRecords extends IccRecords {
                 // voicemail number.
                 // TODO: Handle other cases, instead of fetching all.
                 mAdnCache.reset();
+                if (mFileCache != null) {
+                    mFileCache.invalidateAll(mIccId);
+                }
                 fetchSimRecords();
                 break;
         }
@@ -1450,10 +1505,100 @@ public class SIMRecords extends IccRecords {
         }
     }
 
+    /**
+     * Load an EF that does not change for a given card. If the card last seen in this slot has
+     * it cached, the cached contents are held until EF_ICCID confirms the card and, when the
+     * entry is old, confirmed against the card after all records are loaded.
+     */
+    private void loadCacheableEf(int efid, int event) {
+        if (mCacheLoad != null && mCacheLoad.hold(efid, event)) {
+            if (DBG) log("loadCacheableEf: 0x" + Integer.toHexString(efid) + " held from cache");
+            return;
+        }
+        readCacheableEf(efid, obtainMessage(EVENT_GET_CACHEABLE_EF_DONE, efid, event));
+    }
+
+    private void readCacheableEf(int efid, Message onLoaded) {
+        if (efid == EF_MBI || efid == EF_PNN) {
+            mFh.loadEFLinearFixed(efid, 1, onLoaded);
+        } else {
+            mFh.loadEFTransparent(efid, onLoaded);
+        }
+    }
+
+    /**
+     * EF_ICCID was read (or failed to): deliver the held EFs if they are of this card, else
+     * read them from the card. Either way they already count towards mRecordsToLoad.
+     */
+    private void onIccIdLoaded() {
+        if (mCacheLoad == null) {
+            return;
+        }
+
+        boolean confirmed = mCacheLoad.onIccIdLoaded(mIccId);
+        SparseIntArray held = mCacheLoad.getHeldEvents();
+        if (!confirmed && held.size() > 0) {
+            log("onIccIdLoaded: card changed, reading " + held.size()
+                    + " cached EFs from the card");
+        }
+        for (int i = 0; i < held.size(); i++) {
+            int efid = held.keyAt(i);
+            int event = held.valueAt(i);
+            if (confirmed) {
+                sendMessage(obtainMessage(event,
+                        new AsyncResult(null, mCacheLoad.getHeldData(efid), null)));
+            } else {
+                readCacheableEf(efid, obtainMessage(EVENT_GET_CACHEABLE_EF_DONE, efid, event));
+            }
+        }
+        mCacheLoad.clearHeld();
+    }
+
+    private void revalidateCachedEfs() {
+        if (mCacheLoad == null || mIccId == null) {
+            return;
+        }
+        SparseIntArray toRevalidate = mCacheLoad.takeToRevalidate();
+        if (toRevalidate.size() == 0) {
+            return;
+        }
+        if (DBG) log("revalidateCachedEfs: " + toRevalidate.size() + " EFs");
+        for (int i = 0; i < toRevalidate.size(); i++) {
+            int efid = toRevalidate.keyAt(i);
+            readCacheableEf(efid, obtainMessage(EVENT_REVALIDATE_EF_DONE, efid,
+                    toRevalidate.valueAt(i)));
+        }
+    }
+
+    private void onCachedEfRevalidated(int efid, int event, AsyncResult ar) {
+        if (mFileCache == null || mIccId == null) {
+            return;
+        }
+
+        if (ar.exception != null) {
+            log("onCachedEfRevalidated: 0x" + Integer.toHexString(efid) + " failed, "
+                    + ar.exception);
+            mFileCache.invalidate(mIccId, efid);
+            return;
+        }
+
+        byte[] data = (byte[])ar.result;
+        IccFileCache.Entry entry = mFileCache.get(mIccId, efid);
+        mFileCache.put(mIccId, efid, data);
+        if (entry == null || !Arrays.equals(entry.data, data)) {
+            // The cached contents were stale, load the EF again as a refresh would
+            log("onCachedEfRevalidated: 0x" + Integer.toHexString(efid) + " changed");
+            mRecordsToLoad++;
+            handleMessage(obtainMessage(event, ar));
+        }
+    }
+
     @Override
     protected void onAllRecordsLoaded() {
         if (DBG) log("record load complete");
 
+        revalidateCachedEfs();
+
         setLocaleFromUsim();
 
         if (mParentApp.getState() == AppState.APPSTATE_PIN ||
@@ -1541,6 +1686,9 @@ public class SIMRecords extends IccRecords {
 
         if (DBG) log("fetchSimRecords " + mRecordsToLoad);
 
+        mCacheLoad = mFileCache != null
+                ? new IccFileCache.Load(mFileCache, FILE_CACHE_MAX_AGE_MILLIS) : null;
+
         mCi.getIMSIForApp(mParentApp.getAid(), obtainMessage(EVENT_GET_IMSI_DONE));
         mRecordsToLoad++;
 
@@ -1554,10 +1702,10 @@ public class SIMRecords extends IccRecords {
         mRecordsToLoad++;
 
         // Record number is subscriber profile
-        mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE));
+        loadCacheableEf(EF_MBI, EVENT_GET_MBI_DONE);
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
+        loadCacheableEf(EF_AD, EVENT_GET_AD_DONE);
         mRecordsToLoad++;
 
         // Record number is subscriber profile
@@ -1584,22 +1732,22 @@ public class SIMRecords extends IccRecords {
 
         getSpnFsm(true, null);
 
-        mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
+        loadCacheableEf(EF_SPDI, EVENT_GET_SPDI_DONE);
         mRecordsToLoad++;
 
-        mFh.loadEFLinearFixed(EF_PNN, 1, obtainMessage(EVENT_GET_PNN_DONE));
+        loadCacheableEf(EF_PNN, EVENT_GET_PNN_DONE);
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
+        loadCacheableEf(EF_SST, EVENT_GET_SST_DONE);
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
+        loadCacheableEf(EF_INFO_CPHS, EVENT_GET_INFO_CPHS_DONE);
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_CSP_CPHS,obtainMessage(EVENT_GET_CSP_CPHS_DONE));
+        loadCacheableEf(EF_CSP_CPHS, EVENT_GET_CSP_CPHS_DONE);
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
+        loadCacheableEf(EF_GID1, EVENT_GET_GID1_DONE);
         mRecordsToLoad++;
 
         loadEfLiAndEfPl();
@@ -1948,6 +2096,7 @@ public class SIMRecords extends IccRecords {
         pw.println(" extends:");
         super.dump(fd, pw, args);
         pw.println(" mVmConfig=" + mVmConfig);
+        pw.println(" mFileCache=" + mFileCache);
         pw.println(" mCallForwardingEnabled=" + mCallForwardingEnabled);
         pw.println(" mSpnState=" + mSpnState);
         pw.println(" mCphsInfo=" + mCphsInfo);
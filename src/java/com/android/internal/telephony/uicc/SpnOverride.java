@@ -20,7 +20,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -31,16 +30,24 @@ import android.util.Xml;
 
 import com.android.internal.util.XmlUtils;
 
+/**
+ * SPN overrides by operator numeric, from spn-conf.xml. The file is parsed once per process,
+ * on first use, into a table all instances share.
+ */
 public class SpnOverride {
-    private HashMap<String, String> mCarrierSpnMap;
+    private final CarrierNumericTable<String> mCarrierSpnMap;
 
 
     static final String LOG_TAG = "SpnOverride";
     static final String PARTNER_SPN_OVERRIDE_PATH ="etc/spn-conf.xml";
 
+    // Loaded when first referenced
+    private static final class TableHolder {
+        static final CarrierNumericTable<String> TABLE = loadSpnOverrides();
+    }
+
     public SpnOverride () {
-        mCarrierSpnMap = new HashMap<String, String>();
-        loadSpnOverrides();
+        mCarrierSpnMap = TableHolder.TABLE;
     }
 
     public boolean containsCarrier(String carrier) {
@@ -51,8 +58,9 @@ public class SpnOverride {
         return mCarrierSpnMap.get(carrier);
     }
 
-    private void loadSpnOverrides() {
+    private static CarrierNumericTable<String> loadSpnOverrides() {
         FileReader spnReader;
+        CarrierNumericTable.Builder<String> builder = new CarrierNumericTable.Builder<String>();
 
         final File spnFile = new File(Environment.getRootDirectory(),
                 PARTNER_SPN_OVERRIDE_PATH);
@@ -62,7 +70,7 @@ public class SpnOverride {
         } catch (FileNotFoundException e) {
             Rlog.w(LOG_TAG, "Can not open " +
                     Environment.getRootDirectory() + "/" + PARTNER_SPN_OVERRIDE_PATH);
-            return;
+            return CarrierNumericTable.empty();
         }
 
         try {
@@ -82,7 +90,9 @@ public class SpnOverride {
                 String numeric = parser.getAttributeValue(null, "numeric");
                 String data    = parser.getAttributeValue(null, "spn");
 
-                mCarrierSpnMap.put(numeric, data);
+                if (!builder.put(numeric, data)) {
+                    Rlog.w(LOG_TAG, "Skipping spnOverride with numeric " + numeric);
+                }
             }
             spnReader.close();
         } catch (XmlPullParserException e) {
@@ -90,6 +100,7 @@ public class SpnOverride {
         } catch (IOException e) {
             Rlog.w(LOG_TAG, "Exception in spn-conf parser " + e);
         }
+        return builder.build();
     }
 
 }
@@ -17,7 +17,10 @@
 package com.android.internal.telephony.uicc;
 
 import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -26,8 +29,10 @@ import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Message;
+import android.os.UserHandle;
 import android.telephony.Rlog;
 import android.telephony.TelephonyManager;
+import android.util.SparseIntArray;
 
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.uicc.IccUtils;
@@ -45,6 +50,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -68,6 +74,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class UiccCarrierPrivilegeRules extends Handler {
     private static final String LOG_TAG = "UiccCarrierPrivilegeRules";
+    private static final boolean VDBG = false;
 
     private static final String AID = "A00000015141434C00";
     private static final int CLA = 0x80;
@@ -86,7 +93,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
      *   REF_DO = TAG_REF_DO + len + DEVICE_APP_ID_REF_DO + (optional) PKG_REF_DO
      *   AR_DO = TAG_AR_DO + len + PERM_AR_DO
      *
-     *   DEVICE_APP_ID_REF_DO = TAG_DEVICE_APP_ID_REF_DO + len + sha1 hexstring of cert (20 bytes)
+     *   DEVICE_APP_ID_REF_DO = TAG_DEVICE_APP_ID_REF_DO + len + sha1 of cert (20 bytes)
      *   PKG_REF_DO = TAG_PKG_REF_DO + len + package name
      *   PERM_AR_DO = TAG_PERM_AR_DO + len + detailed permission (8 bytes)
      *
@@ -100,13 +107,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
      *       DB
      */
     // Values from the data standard.
-    private static final String TAG_ALL_REF_AR_DO = "FF40";
-    private static final String TAG_REF_AR_DO = "E2";
-    private static final String TAG_REF_DO = "E1";
-    private static final String TAG_DEVICE_APP_ID_REF_DO = "C1";
-    private static final String TAG_PKG_REF_DO = "CA";
-    private static final String TAG_AR_DO = "E3";
-    private static final String TAG_PERM_AR_DO = "DB";
+    private static final int TAG_ALL_REF_AR_DO = 0xFF40;
+    private static final int TAG_REF_AR_DO = 0xE2;
+    private static final int TAG_REF_DO = 0xE1;
+    private static final int TAG_DEVICE_APP_ID_REF_DO = 0xC1;
+    private static final int TAG_PKG_REF_DO = 0xCA;
+    private static final int TAG_AR_DO = 0xE3;
+    private static final int TAG_PERM_AR_DO = 0xDB;
 
     private static final int EVENT_OPEN_LOGICAL_CHANNEL_DONE = 1;
     private static final int EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE = 2;
@@ -117,8 +124,11 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private static final int STATE_LOADED   = 1;
     private static final int STATE_ERROR    = 2;
 
+    // Marks a uid without a cached decision; not a TelephonyManager status.
+    private static final int STATUS_NOT_CACHED = Integer.MIN_VALUE;
+
     // Describes a single rule.
-    private static class AccessRule {
+    static class AccessRule {
         public byte[] certificateHash;
         public String packageName;
         public long accessType;   // This bit is not currently used, but reserved for future use.
@@ -129,11 +139,6 @@ public class UiccCarrierPrivilegeRules extends Handler {
             this.accessType = accessType;
         }
 
-        boolean matches(byte[] certHash, String packageName) {
-          return certHash != null && Arrays.equals(this.certificateHash, certHash) &&
-                (this.packageName == null || this.packageName.equals(packageName));
-        }
-
         @Override
         public String toString() {
             return "cert: " + IccUtils.bytesToHexString(certificateHash) + " pkg: " +
@@ -141,88 +146,161 @@ public class UiccCarrierPrivilegeRules extends Handler {
         }
     }
 
-    // Used for parsing the data from the UICC.
-    private static class TLV {
+    /**
+     * A BER-TLV data object within the rules read from the UICC. Only the tag and length are
+     * decoded; the value is left in place in the byte array.
+     */
+    static class TLV {
         private static final int SINGLE_BYTE_MAX_LENGTH = 0x80;
-        private String tag;
         // Length encoding is in GPC_Specification_2.2.1: 11.1.5 APDU Message and Data Length.
         // Length field could be either 1 byte if length < 128, or multiple bytes with first byte
         // specifying how many bytes are used for length, followed by length bytes.
-        // Bytes for the length field, in ASCII HEX string form.
-        private String lengthBytes;
-        // Decoded length as integer.
-        private Integer length;
-        private String value;
+        private static final int MAX_LENGTH_BYTES = 3;
+        // Tags of more than 3 bytes are not used by the access rules.
+        private static final int MAX_TAG = 0xFFFFFF;
+
+        final int tag;
+        final int valueIndex;
+        final int length;
 
-        public TLV(String tag) {
+        private TLV(int tag, int valueIndex, int length) {
             this.tag = tag;
+            this.valueIndex = valueIndex;
+            this.length = length;
         }
 
-        public String parseLength(String data) {
-            int offset = tag.length();
-            int firstByte = Integer.parseInt(data.substring(offset, offset + 2), 16);
-            if (firstByte < SINGLE_BYTE_MAX_LENGTH) {
-                length = firstByte * 2;
-                lengthBytes = data.substring(offset, offset + 2);
-            } else {
-                int numBytes = firstByte - SINGLE_BYTE_MAX_LENGTH;
-                length = Integer.parseInt(data.substring(offset + 2, offset + 2 + numBytes * 2), 16) * 2;
-                lengthBytes = data.substring(offset, offset + 2 + numBytes * 2);
-            }
-            Rlog.d(LOG_TAG, "TLV parseLength length=" + length + "lenghtBytes: " + lengthBytes);
-            return lengthBytes;
+        int end() {
+            return valueIndex + length;
         }
 
-        public String parse(String data, boolean shouldConsumeAll) {
-            Rlog.d(LOG_TAG, "Parse TLV: " + tag);
-            if (!data.startsWith(tag)) {
-                throw new IllegalArgumentException("Tags don't match.");
+        /**
+         * Decodes the tag and length of the data object at offset, without requiring its value
+         * to be within data.
+         *
+         * @throws IllegalArgumentException if the tag or length is malformed or not before end
+         */
+        static TLV parseHeader(byte[] data, int offset, int end) {
+            int index = offset;
+            if (index >= end) {
+                throw new IllegalArgumentException("No tag.");
             }
-            int index = tag.length();
-            if (index + 2 > data.length()) {
-                throw new IllegalArgumentException("No length.");
+            int tag = data[index++] & 0xFF;
+            if ((tag & 0x1F) == 0x1F) {
+                // Subsequent tag bytes follow for as long as bit 8 is set.
+                int b;
+                do {
+                    if (index >= end) {
+                        throw new IllegalArgumentException("Truncated tag.");
+                    }
+                    if (tag > (MAX_TAG >> 8)) {
+                        throw new IllegalArgumentException("Tag too long.");
+                    }
+                    b = data[index++] & 0xFF;
+                    tag = (tag << 8) | b;
+                } while ((b & 0x80) != 0);
             }
 
-            parseLength(data);
-            index += lengthBytes.length();
-
-            Rlog.d(LOG_TAG, "index="+index+" length="+length+"data.length="+data.length());
-            int remainingLength = data.length() - (index + length);
-            if (remainingLength < 0) {
-                throw new IllegalArgumentException("Not enough data.");
+            if (index >= end) {
+                throw new IllegalArgumentException("No length.");
             }
-            if (shouldConsumeAll && (remainingLength != 0)) {
-                throw new IllegalArgumentException("Did not consume all.");
+            int length = data[index++] & 0xFF;
+            if (length >= SINGLE_BYTE_MAX_LENGTH) {
+                int numBytes = length - SINGLE_BYTE_MAX_LENGTH;
+                if (numBytes == 0 || numBytes > MAX_LENGTH_BYTES || numBytes > end - index) {
+                    throw new IllegalArgumentException("Invalid length.");
+                }
+                length = 0;
+                for (int i = 0; i < numBytes; i++) {
+                    length = (length << 8) | (data[index++] & 0xFF);
+                }
             }
-            value = data.substring(index, index + length);
-
-            Rlog.d(LOG_TAG, "Got TLV: " + tag + "," + length + "," + value);
+            return new TLV(tag, index, length);
+        }
 
-            return data.substring(index + length);
+        /**
+         * Decodes the data object at offset, which must have the given tag and end by end.
+         *
+         * @throws IllegalArgumentException if the object is malformed, has another tag or
+         *         does not fit
+         */
+        static TLV parse(byte[] data, int offset, int end, int expectedTag) {
+            TLV tlv = parseHeader(data, offset, end);
+            if (tlv.tag != expectedTag) {
+                throw new IllegalArgumentException("Tags don't match.");
+            }
+            if (tlv.length > end - tlv.valueIndex) {
+                throw new IllegalArgumentException("Not enough data.");
+            }
+            return tlv;
         }
     }
 
     private UiccCard mUiccCard;  // Parent
     private AtomicInteger mState;
     private List<AccessRule> mAccessRules;
-    private String mRules;
+    private byte[] mRules;
     private Message mLoadedCallback;
     private String mStatusMessage;  // Only used for debugging.
     private int mChannelId; // Channel Id for communicating with UICC.
+    private Context mContext;
+
+    // Rules by upper case hex string of their certificate hash; set before STATE_LOADED.
+    private HashMap<String, List<AccessRule>> mRulesByCertHash;
+
+    // Decisions already taken, guarded by mCacheLock and dropped whenever a package of any
+    // user changes or a uid is removed. A hit skips the PackageManager calls entirely.
+    private final Object mCacheLock = new Object();
+    private final HashMap<Signature, String> mCertHashCache = new HashMap<Signature, String>();
+    private final HashMap<String, Integer> mPackageStatusCache = new HashMap<String, Integer>();
+    private final SparseIntArray mUidStatusCache = new SparseIntArray();
+    // Incremented whenever the caches are cleared; a decision taken across a clear is dropped.
+    private int mCacheGeneration;
+    private int mCacheHits;
+    private int mCacheMisses;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (VDBG) Rlog.d(LOG_TAG, "Package change: " + intent);
+            clearCaches();
+        }
+    };
 
-    public UiccCarrierPrivilegeRules(UiccCard uiccCard, Message loadedCallback) {
+    public UiccCarrierPrivilegeRules(UiccCard uiccCard, Context context,
+            Message loadedCallback) {
         Rlog.d(LOG_TAG, "Creating UiccCarrierPrivilegeRules");
         mUiccCard = uiccCard;
+        mContext = context;
         mState = new AtomicInteger(STATE_LOADING);
         mStatusMessage = "Not loaded.";
         mLoadedCallback = loadedCallback;
-        mRules = "";
+        mRules = new byte[0];
+
+        // Signatures and uids of packages may change on install, update or removal, for any
+        // user; a removed uid may be reused by another package.
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, this);
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL,
+                new IntentFilter(Intent.ACTION_UID_REMOVED), null, this);
 
         // Start loading the rules.
         mUiccCard.iccOpenLogicalChannel(AID,
             obtainMessage(EVENT_OPEN_LOGICAL_CHANNEL_DONE, null));
     }
 
+    /**
+     * Stops listening for package changes. Called once the card no longer uses these rules.
+     */
+    public void dispose() {
+        mContext.unregisterReceiver(mPackageReceiver);
+        clearCaches();
+    }
+
     /**
      * Returns true if the carrier privilege rules have finished loading.
      */
@@ -238,7 +316,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * @return Access status.
      */
     public int getCarrierPrivilegeStatus(Signature signature, String packageName) {
-        Rlog.d(LOG_TAG, "hasCarrierPrivileges: " + signature + " : " + packageName);
+        if (VDBG) Rlog.d(LOG_TAG, "hasCarrierPrivileges: " + signature + " : " + packageName);
         int state = mState.get();
         if (state == STATE_LOADING) {
             Rlog.d(LOG_TAG, "Rules not loaded.");
@@ -248,20 +326,23 @@ public class UiccCarrierPrivilegeRules extends Handler {
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_ERROR_LOADING_RULES;
         }
 
-        byte[] certHash = getCertHash(signature);
+        String certHash = getCachedCertHash(signature);
         if (certHash == null) {
           return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
         }
-        Rlog.e(LOG_TAG, "Checking: " + IccUtils.bytesToHexString(certHash) + " : " + packageName);
-
-        for (AccessRule ar : mAccessRules) {
-            if (ar.matches(certHash, packageName)) {
-                Rlog.d(LOG_TAG, "Match found!");
-                return TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+        if (VDBG) Rlog.d(LOG_TAG, "Checking: " + certHash + " : " + packageName);
+
+        List<AccessRule> rules = mRulesByCertHash.get(certHash);
+        if (rules != null) {
+            for (AccessRule ar : rules) {
+                if (ar.packageName == null || ar.packageName.equals(packageName)) {
+                    if (VDBG) Rlog.d(LOG_TAG, "Match found!");
+                    return TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+                }
             }
         }
 
-        Rlog.d(LOG_TAG, "No matching rule found. Returning false.");
+        if (VDBG) Rlog.d(LOG_TAG, "No matching rule found. Returning false.");
         return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
     }
 
@@ -273,16 +354,35 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * @return Access status.
      */
     public int getCarrierPrivilegeStatus(PackageManager packageManager, String packageName) {
+        int generation;
+        synchronized (mCacheLock) {
+            Integer status = mPackageStatusCache.get(packageName);
+            if (status != null) {
+                mCacheHits++;
+                return status;
+            }
+            mCacheMisses++;
+            generation = mCacheGeneration;
+        }
         try {
             PackageInfo pInfo = packageManager.getPackageInfo(packageName,
                 PackageManager.GET_SIGNATURES);
             Signature[] signatures = pInfo.signatures;
+            int accessStatus = TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
             for (Signature sig : signatures) {
-                int accessStatus = getCarrierPrivilegeStatus(sig, pInfo.packageName);
+                accessStatus = getCarrierPrivilegeStatus(sig, pInfo.packageName);
                 if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
-                    return accessStatus;
+                    break;
                 }
             }
+            if (isFinalStatus(accessStatus)) {
+                synchronized (mCacheLock) {
+                    if (generation == mCacheGeneration) {
+                        mPackageStatusCache.put(packageName, accessStatus);
+                    }
+                }
+            }
+            return accessStatus;
         } catch (PackageManager.NameNotFoundException ex) {
             Rlog.e(LOG_TAG, "NameNotFoundException", ex);
         }
@@ -296,15 +396,77 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * @return Access status.
      */
     public int getCarrierPrivilegeStatusForCurrentTransaction(PackageManager packageManager) {
-        String[] packages = packageManager.getPackagesForUid(Binder.getCallingUid());
+        int uid = Binder.getCallingUid();
+        int generation;
+        synchronized (mCacheLock) {
+            int status = mUidStatusCache.get(uid, STATUS_NOT_CACHED);
+            if (status != STATUS_NOT_CACHED) {
+                mCacheHits++;
+                return status;
+            }
+            mCacheMisses++;
+            generation = mCacheGeneration;
+        }
 
-        for (String pkg : packages) {
-            int accessStatus = getCarrierPrivilegeStatus(packageManager, pkg);
-            if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
-                return accessStatus;
+        String[] packages = packageManager.getPackagesForUid(uid);
+        int accessStatus = TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        if (packages != null) {
+            for (String pkg : packages) {
+                accessStatus = getCarrierPrivilegeStatus(packageManager, pkg);
+                if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+                    break;
+                }
             }
         }
-        return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        if (isFinalStatus(accessStatus)) {
+            synchronized (mCacheLock) {
+                if (generation == mCacheGeneration) {
+                    mUidStatusCache.put(uid, accessStatus);
+                }
+            }
+        }
+        return accessStatus;
+    }
+
+    /*
+     * Whether status is a decision that holds until a package changes, rather than a loading
+     * state of the rules.
+     */
+    private boolean isFinalStatus(int status) {
+        return mState.get() == STATE_LOADED
+                && (status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                || status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+    }
+
+    /*
+     * Returns the certificate hash of signature as an upper case hex string, computing it only
+     * the first time the signature is seen.
+     */
+    private String getCachedCertHash(Signature signature) {
+        synchronized (mCacheLock) {
+            String certHash = mCertHashCache.get(signature);
+            if (certHash != null) {
+                return certHash;
+            }
+        }
+        byte[] hash = getCertHash(signature);
+        if (hash == null) {
+            return null;
+        }
+        String certHash = IccUtils.bytesToHexString(hash).toUpperCase(Locale.US);
+        synchronized (mCacheLock) {
+            mCertHashCache.put(signature, certHash);
+        }
+        return certHash;
+    }
+
+    private void clearCaches() {
+        synchronized (mCacheLock) {
+            mCertHashCache.clear();
+            mPackageStatusCache.clear();
+            mUidStatusCache.clear();
+            mCacheGeneration++;
+        }
     }
 
     /**
@@ -381,9 +543,11 @@ public class UiccCarrierPrivilegeRules extends Handler {
                   if (response.sw1 == 0x90 && response.sw2 == 0x00 &&
                       response.payload != null && response.payload.length > 0) {
                       try {
-                          mRules += IccUtils.bytesToHexString(response.payload).toUpperCase(Locale.US);
+                          appendRules(response.payload);
                           if (isDataComplete()) {
                               mAccessRules = parseRules(mRules);
+                              mRulesByCertHash = indexRules(mAccessRules);
+                              clearCaches();
                               updateState(STATE_LOADED, "Success!");
                           } else {
                               mUiccCard.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND, P1, P2_EXTENDED_DATA, P3, DATA,
@@ -418,114 +582,146 @@ public class UiccCarrierPrivilegeRules extends Handler {
         }
     }
 
+    /*
+     * Appends a chunk of the rules read from the UICC.
+     */
+    private void appendRules(byte[] payload) {
+        int length = mRules.length;
+        mRules = Arrays.copyOf(mRules, length + payload.length);
+        System.arraycopy(payload, 0, mRules, length, payload.length);
+    }
+
     /*
      * Check if all rule bytes have been read from UICC.
      * For long payload, we need to fetch it repeatly before start parsing it.
      */
     private boolean isDataComplete() {
-        Rlog.d(LOG_TAG, "isDataComplete mRules:" + mRules);
-        if (mRules.startsWith(TAG_ALL_REF_AR_DO)) {
-            TLV allRules = new TLV(TAG_ALL_REF_AR_DO);
-            String lengthBytes = allRules.parseLength(mRules);
-            Rlog.d(LOG_TAG, "isDataComplete lengthBytes: " + lengthBytes);
-            if (mRules.length() == TAG_ALL_REF_AR_DO.length() + lengthBytes.length() +
-                                   allRules.length) {
-                Rlog.d(LOG_TAG, "isDataComplete yes");
-                return true;
-            } else {
-                Rlog.d(LOG_TAG, "isDataComplete no");
-                return false;
-            }
-        } else {
+        TLV allRules = TLV.parseHeader(mRules, 0, mRules.length);
+        if (allRules.tag != TAG_ALL_REF_AR_DO) {
             throw new IllegalArgumentException("Tags don't match.");
         }
+        boolean complete = mRules.length == allRules.end();
+        Rlog.d(LOG_TAG, "isDataComplete " + complete + " read=" + mRules.length
+                + " length=" + allRules.length);
+        return complete;
     }
 
     /*
-     * Parses the rules from the input string.
+     * Parses the rules from the bytes read from the UICC.
      */
-    private static List<AccessRule> parseRules(String rules) {
-        Rlog.d(LOG_TAG, "Got rules: " + rules);
+    static List<AccessRule> parseRules(byte[] rules) {
+        if (VDBG) Rlog.d(LOG_TAG, "Got rules: " + IccUtils.bytesToHexString(rules));
 
-        TLV allRefArDo = new TLV(TAG_ALL_REF_AR_DO); //FF40
-        allRefArDo.parse(rules, true);
+        TLV allRefArDo = TLV.parse(rules, 0, rules.length, TAG_ALL_REF_AR_DO);
+        if (allRefArDo.end() != rules.length) {
+            throw new IllegalArgumentException("Did not consume all.");
+        }
 
-        String arDos = allRefArDo.value;
         List<AccessRule> accessRules = new ArrayList<AccessRule>();
-        while (!arDos.isEmpty()) {
-            TLV refArDo = new TLV(TAG_REF_AR_DO); //E2
-            arDos = refArDo.parse(arDos, false);
-            AccessRule accessRule = parseRefArdo(refArDo.value);
+        int offset = allRefArDo.valueIndex;
+        while (offset < rules.length) {
+            TLV refArDo = TLV.parse(rules, offset, rules.length, TAG_REF_AR_DO);
+            offset = refArDo.end();
+            AccessRule accessRule = parseRefArdo(rules, refArDo);
             if (accessRule != null) {
                 accessRules.add(accessRule);
             } else {
-              Rlog.e(LOG_TAG, "Skip unrecognized rule." + refArDo.value);
+              Rlog.e(LOG_TAG, "Skip unrecognized rule." + IccUtils.bytesToHexString(
+                      Arrays.copyOfRange(rules, refArDo.valueIndex, refArDo.end())));
             }
         }
         return accessRules;
     }
 
     /*
-     * Parses a single rule.
+     * Groups rules by the upper case hex string of their certificate hash.
      */
-    private static AccessRule parseRefArdo(String rule) {
-        Rlog.d(LOG_TAG, "Got rule: " + rule);
+    private static HashMap<String, List<AccessRule>> indexRules(List<AccessRule> accessRules) {
+        HashMap<String, List<AccessRule>> rulesByCertHash =
+                new HashMap<String, List<AccessRule>>();
+        for (AccessRule ar : accessRules) {
+            if (ar.certificateHash == null) {
+                continue;
+            }
+            String certHash = IccUtils.bytesToHexString(ar.certificateHash).toUpperCase(Locale.US);
+            List<AccessRule> rules = rulesByCertHash.get(certHash);
+            if (rules == null) {
+                rules = new ArrayList<AccessRule>(1);
+                rulesByCertHash.put(certHash, rules);
+            }
+            rules.add(ar);
+        }
+        return rulesByCertHash;
+    }
 
-        String certificateHash = null;
+    /*
+     * Parses a single rule.
+     */
+    private static AccessRule parseRefArdo(byte[] data, TLV refArDo) {
+        byte[] certificateHash = null;
         String packageName = null;
-        String tmp = null;
         long accessType = 0;
 
-        while (!rule.isEmpty()) {
-            if (rule.startsWith(TAG_REF_DO)) {
-                TLV refDo = new TLV(TAG_REF_DO); //E1
-                rule = refDo.parse(rule, false);
+        int offset = refArDo.valueIndex;
+        int end = refArDo.end();
+        while (offset < end) {
+            TLV tlv = TLV.parseHeader(data, offset, end);
+            if (tlv.tag == TAG_REF_DO) {
+                TLV refDo = TLV.parse(data, offset, end, TAG_REF_DO);
+                offset = refDo.end();
 
                 // Skip unrelated rules.
-                if (!refDo.value.startsWith(TAG_DEVICE_APP_ID_REF_DO)) {
+                if (!startsWith(data, refDo, TAG_DEVICE_APP_ID_REF_DO)) {
                     return null;
                 }
 
-                TLV deviceDo = new TLV(TAG_DEVICE_APP_ID_REF_DO); //C1
-                tmp = deviceDo.parse(refDo.value, false);
-                certificateHash = deviceDo.value;
+                TLV deviceDo = TLV.parse(data, refDo.valueIndex, refDo.end(),
+                        TAG_DEVICE_APP_ID_REF_DO);
+                certificateHash = Arrays.copyOfRange(data, deviceDo.valueIndex, deviceDo.end());
 
-                if (!tmp.isEmpty()) {
-                  if (!tmp.startsWith(TAG_PKG_REF_DO)) {
+                if (deviceDo.end() < refDo.end()) {
+                  if ((data[deviceDo.end()] & 0xFF) != TAG_PKG_REF_DO) {
                       return null;
                   }
-                  TLV pkgDo = new TLV(TAG_PKG_REF_DO); //CA
-                  pkgDo.parse(tmp, true);
-                  packageName = new String(IccUtils.hexStringToBytes(pkgDo.value));
+                  TLV pkgDo = TLV.parse(data, deviceDo.end(), refDo.end(), TAG_PKG_REF_DO);
+                  if (pkgDo.end() != refDo.end()) {
+                      throw new IllegalArgumentException("Did not consume all.");
+                  }
+                  packageName = new String(data, pkgDo.valueIndex, pkgDo.length);
                 } else {
                   packageName = null;
                 }
-            } else if (rule.startsWith(TAG_AR_DO)) {
-                TLV arDo = new TLV(TAG_AR_DO); //E3
-                rule = arDo.parse(rule, false);
+            } else if (tlv.tag == TAG_AR_DO) {
+                TLV arDo = TLV.parse(data, offset, end, TAG_AR_DO);
+                offset = arDo.end();
 
                 // Skip unrelated rules.
-                if (!arDo.value.startsWith(TAG_PERM_AR_DO)) {
+                if (!startsWith(data, arDo, TAG_PERM_AR_DO)) {
                     return null;
                 }
 
-                TLV permDo = new TLV(TAG_PERM_AR_DO); //DB
-                permDo.parse(arDo.value, true);
-                Rlog.e(LOG_TAG, permDo.value);
+                TLV permDo = TLV.parse(data, arDo.valueIndex, arDo.end(), TAG_PERM_AR_DO);
+                if (permDo.end() != arDo.end()) {
+                    throw new IllegalArgumentException("Did not consume all.");
+                }
             } else  {
                 // Spec requires it must be either TAG_REF_DO or TAG_AR_DO.
-                throw new RuntimeException("Invalid Rule type");
+                throw new IllegalArgumentException("Invalid Rule type");
             }
         }
 
-        Rlog.e(LOG_TAG, "Adding: " + certificateHash + " : " + packageName + " : " + accessType);
-
-        AccessRule accessRule = new AccessRule(IccUtils.hexStringToBytes(certificateHash),
-            packageName, accessType);
-        Rlog.e(LOG_TAG, "Parsed rule: " + accessRule);
+        AccessRule accessRule = new AccessRule(certificateHash, packageName, accessType);
+        if (VDBG) Rlog.d(LOG_TAG, "Parsed rule: " + accessRule);
         return accessRule;
     }
 
+    /*
+     * Whether the value of tlv starts with a data object with the given single byte tag.
+     */
+    private static boolean startsWith(byte[] data, TLV tlv, int tag) {
+        return tlv.length > 0 && (data[tlv.valueIndex] & 0xFF) == tag;
+    }
+
     /*
      * Converts a Signature into a Certificate hash usable for comparison.
      */
@@ -576,6 +772,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
         } else {
             pw.println(" mAccessRules: null");
         }
+        synchronized (mCacheLock) {
+            pw.println(" mCertHashCache.size=" + mCertHashCache.size()
+                    + " mPackageStatusCache.size=" + mPackageStatusCache.size()
+                    + " mUidStatusCache.size=" + mUidStatusCache.size()
+                    + " mCacheGeneration=" + mCacheGeneration
+                    + " mCacheHits=" + mCacheHits + " mCacheMisses=" + mCacheMisses);
+        }
         pw.flush();
     }
 
@@ -21,9 +21,11 @@ import android.content.Intent;
 
 import android.os.AsyncResult;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Registrant;
 import android.os.RegistrantList;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.TelephonyManager;
 import android.telephony.Rlog;
@@ -57,6 +59,10 @@ import java.util.LinkedList;
  * getIccCardStatus (GET_SIM_STATUS). Based on the response of GET_SIM_STATUS
  * request appropriate tree of uicc objects will be created.
  *
+ * On multi-SIM devices the events of each slot are handled on a handler thread of that slot,
+ * so the uicc objects of a slot, and the record loads they run, do not wait behind those of
+ * another slot.
+ *
  * Following is class diagram for uicc classes:
  *
  *                       UiccController
@@ -96,6 +102,11 @@ public class UiccController extends Handler {
     private static final int EVENT_RADIO_UNAVAILABLE = 3;
     private static final int EVENT_REFRESH = 4;
     private static final int EVENT_REFRESH_OEM = 5;
+    private static final int EVENT_RIL_CONNECTED = 6;
+    private static final int EVENT_RECORDS_LOADED = 7;
+
+    // Whether each slot of a multi-SIM device gets its own handler thread; off by default
+    private static final String PROPERTY_PER_SLOT_THREADS = "persist.radio.uicc_slot_threads";
 
     private CommandsInterface[] mCis;
     private UiccCard[] mUiccCards = new UiccCard[TelephonyManager.getDefault().getPhoneCount()];
@@ -113,6 +124,36 @@ public class UiccController extends Handler {
     private static final int MAX_PROACTIVE_COMMANDS_TO_LOG = 20;
     private LinkedList<String> mCardLogs = new LinkedList<String>();
 
+    // Handlers the events of each slot are processed on; this controller when not per slot
+    private Handler[] mSlotHandlers;
+    private SlotBootMetrics[] mBootMetrics;
+
+    /**
+     * Times, in elapsed realtime, a slot took to get from RIL connected to loaded records.
+     */
+    private static class SlotBootMetrics {
+        long mRilConnected;
+        // RIL connected before this controller registered, at a time that is not known;
+        // mRilConnected is then the time the controller was created.
+        boolean mRilConnectedEarlier;
+        long mFirstStatus;
+        long mCardCreated;
+        long mRecordsLoaded;
+
+        private static String since(long start, long time) {
+            return (start == 0 || time == 0) ? "-" : "+" + (time - start) + "ms";
+        }
+
+        @Override
+        public String toString() {
+            return "ril connected=" + mRilConnected
+                    + (mRilConnectedEarlier ? " (earlier, controller created)" : "")
+                    + " first status " + since(mRilConnected, mFirstStatus)
+                    + " card created " + since(mRilConnected, mCardCreated)
+                    + " records loaded " + since(mRilConnected, mRecordsLoaded);
+        }
+    }
+
     public static UiccController make(Context c, CommandsInterface[] ci) {
         synchronized (mLock) {
             if (mInstance != null) {
@@ -129,27 +170,58 @@ public class UiccController extends Handler {
         mCis = ci;
         mOEMHookSimRefresh = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_sim_refresh_for_dual_mode_card);
+        boolean perSlotThreads = mCis.length > 1
+                && SystemProperties.getBoolean(PROPERTY_PER_SLOT_THREADS, false);
+        mSlotHandlers = new Handler[mCis.length];
+        mBootMetrics = new SlotBootMetrics[mCis.length];
         for (int i = 0; i < mCis.length; i++) {
             Integer index = new Integer(i);
+            Handler handler = perSlotThreads ? makeSlotHandler(i) : this;
+            mSlotHandlers[i] = handler;
+            mBootMetrics[i] = new SlotBootMetrics();
+            if (mCis[i].getRilVersion() != -1) {
+                // Registering replays the connection as if it happened now, so time the slot
+                // from here and ignore that replay.
+                mBootMetrics[i].mRilConnected = SystemClock.elapsedRealtime();
+                mBootMetrics[i].mRilConnectedEarlier = true;
+            }
             if (SystemProperties.getBoolean("persist.radio.apm_sim_not_pwdn", false)) {
                 // Reading ICC status in airplane mode is only supported in QCOM
                 // RILs when this property is set to true
-                mCis[i].registerForAvailable(this, EVENT_ICC_STATUS_CHANGED, index);
+                mCis[i].registerForAvailable(handler, EVENT_ICC_STATUS_CHANGED, index);
             } else {
-                mCis[i].registerForOn(this, EVENT_ICC_STATUS_CHANGED, index);
+                mCis[i].registerForOn(handler, EVENT_ICC_STATUS_CHANGED, index);
             }
 
-            mCis[i].registerForIccStatusChanged(this, EVENT_ICC_STATUS_CHANGED, index);
+            mCis[i].registerForIccStatusChanged(handler, EVENT_ICC_STATUS_CHANGED, index);
             // TODO remove this once modem correctly notifies the unsols
-            mCis[i].registerForNotAvailable(this, EVENT_RADIO_UNAVAILABLE, index);
+            mCis[i].registerForNotAvailable(handler, EVENT_RADIO_UNAVAILABLE, index);
             if (mOEMHookSimRefresh) {
-                mCis[i].registerForSimRefreshEvent(this, EVENT_REFRESH_OEM, index);
+                mCis[i].registerForSimRefreshEvent(handler, EVENT_REFRESH_OEM, index);
             } else {
-                mCis[i].registerForIccRefresh(this, EVENT_REFRESH, index);
+                mCis[i].registerForIccRefresh(handler, EVENT_REFRESH, index);
             }
+            mCis[i].registerForRilConnected(handler, EVENT_RIL_CONNECTED, index);
         }
     }
 
+    /*
+     * Creates a handler on a thread of its own that processes the events of slot like this
+     * controller does. UiccCard and the objects below it are created on that thread, so their
+     * handlers run there too.
+     */
+    private Handler makeSlotHandler(int slot) {
+        HandlerThread thread = new HandlerThread("UiccSlot" + slot);
+        thread.start();
+        return new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                UiccController.this.handleMessage(msg);
+                return true;
+            }
+        });
+    }
+
     public static UiccController getInstance() {
         synchronized (mLock) {
             if (mInstance == null) {
@@ -252,7 +324,8 @@ public class UiccController extends Handler {
             switch (msg.what) {
                 case EVENT_ICC_STATUS_CHANGED:
                     if (DBG) log("Received EVENT_ICC_STATUS_CHANGED, calling getIccCardStatus");
-                    mCis[index].getIccCardStatus(obtainMessage(EVENT_GET_ICC_STATUS_DONE, index));
+                    mCis[index].getIccCardStatus(mSlotHandlers[index].obtainMessage(
+                            EVENT_GET_ICC_STATUS_DONE, index));
                     break;
                 case EVENT_GET_ICC_STATUS_DONE:
                     if (DBG) log("Received EVENT_GET_ICC_STATUS_DONE");
@@ -286,6 +359,14 @@ public class UiccController extends Handler {
                         log ("Exception on refresh " + ar.exception);
                     }
                     break;
+                case EVENT_RIL_CONNECTED:
+                    if (mBootMetrics[index].mRilConnected == 0) {
+                        mBootMetrics[index].mRilConnected = SystemClock.elapsedRealtime();
+                    }
+                    break;
+                case EVENT_RECORDS_LOADED:
+                    onRecordsLoaded(index);
+                    break;
                 default:
                     Rlog.e(LOG_TAG, " Unknown Event " + msg.what);
             }
@@ -325,7 +406,8 @@ public class UiccController extends Handler {
             mUiccCards[index].onRefresh(refreshResponse);
         }
         // The card status could have changed. Get the latest state
-        mCis[index].getIccCardStatus(obtainMessage(EVENT_GET_ICC_STATUS_DONE));
+        mCis[index].getIccCardStatus(mSlotHandlers[index].obtainMessage(
+                EVENT_GET_ICC_STATUS_DONE, index));
     }
 
     public static IccRefreshResponse
@@ -380,6 +462,10 @@ public class UiccController extends Handler {
         }
 
         IccCardStatus status = (IccCardStatus)ar.result;
+        SlotBootMetrics metrics = mBootMetrics[index];
+        if (metrics.mFirstStatus == 0) {
+            metrics.mFirstStatus = SystemClock.elapsedRealtime();
+        }
 
         if (mUiccCards[index] == null) {
             //Create new card
@@ -389,11 +475,45 @@ public class UiccController extends Handler {
             mUiccCards[index].update(mContext, mCis[index] , status);
         }
 
+        if (metrics.mRecordsLoaded == 0) {
+            if (metrics.mCardCreated == 0) {
+                metrics.mCardCreated = SystemClock.elapsedRealtime();
+            }
+            // Registering again for the same records is ignored
+            UiccCard card = mUiccCards[index];
+            for (int i = 0; i < card.getNumApplications(); i++) {
+                UiccCardApplication app = card.getApplicationIndex(i);
+                IccRecords records = app != null ? app.getIccRecords() : null;
+                if (records != null) {
+                    records.registerForRecordsLoaded(mSlotHandlers[index],
+                            EVENT_RECORDS_LOADED, index);
+                }
+            }
+        }
+
         if (DBG) log("Notifying IccChangedRegistrants");
         mIccChangedRegistrants.notifyRegistrants(new AsyncResult(null, index, null));
 
     }
 
+    private void onRecordsLoaded(int index) {
+        SlotBootMetrics metrics = mBootMetrics[index];
+        if (metrics.mRecordsLoaded != 0) {
+            return;
+        }
+        metrics.mRecordsLoaded = SystemClock.elapsedRealtime();
+        log("Slot " + index + " boot: " + metrics);
+
+        UiccCard card = mUiccCards[index];
+        for (int i = 0; card != null && i < card.getNumApplications(); i++) {
+            UiccCardApplication app = card.getApplicationIndex(i);
+            IccRecords records = app != null ? app.getIccRecords() : null;
+            if (records != null) {
+                records.unregisterForRecordsLoaded(mSlotHandlers[index]);
+            }
+        }
+    }
+
     private boolean isValidCardIndex(int index) {
         return (index >= 0 && index < mUiccCards.length);
     }
@@ -432,6 +552,10 @@ public class UiccController extends Handler {
                 mUiccCards[i].dump(fd, pw, args);
             }
         }
+        for (int i = 0; i < mBootMetrics.length; i++) {
+            pw.println(" mBootMetrics[" + i + "]: " + mBootMetrics[i]
+                    + (mSlotHandlers[i] != this ? " (own thread)" : ""));
+        }
         pw.println("mCardLogs: ");
         for (int i = 0; i < mCardLogs.size(); ++i) {
             pw.println("  " + mCardLogs.get(i));
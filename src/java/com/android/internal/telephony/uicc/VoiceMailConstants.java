@@ -20,7 +20,6 @@ import android.os.Environment;
 import android.util.Xml;
 import android.telephony.Rlog;
 
-import java.util.HashMap;
 import java.io.FileReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -32,10 +31,13 @@ import org.xmlpull.v1.XmlPullParserException;
 import com.android.internal.util.XmlUtils;
 
 /**
+ * Voice mail numbers by operator numeric, from voicemail-conf.xml. The file is parsed once per
+ * process, on first use, into a table all instances share.
+ *
  * {@hide}
  */
 class VoiceMailConstants {
-    private HashMap<String, String[]> CarrierVmMap;
+    private final CarrierNumericTable<String[]> CarrierVmMap;
 
 
     static final String LOG_TAG = "VoiceMailConstants";
@@ -46,9 +48,13 @@ class VoiceMailConstants {
     static final int TAG = 2;
     static final int SIZE = 3;
 
+    // Loaded when first referenced
+    private static final class TableHolder {
+        static final CarrierNumericTable<String[]> TABLE = loadVoiceMail();
+    }
+
     VoiceMailConstants () {
-        CarrierVmMap = new HashMap<String, String[]>();
-        loadVoiceMail();
+        CarrierVmMap = TableHolder.TABLE;
     }
 
     boolean containsCarrier(String carrier) {
@@ -70,8 +76,10 @@ class VoiceMailConstants {
         return data[TAG];
     }
 
-    private void loadVoiceMail() {
+    private static CarrierNumericTable<String[]> loadVoiceMail() {
         FileReader vmReader;
+        CarrierNumericTable.Builder<String[]> builder =
+                new CarrierNumericTable.Builder<String[]>();
 
         final File vmFile = new File(Environment.getRootDirectory(),
                 PARTNER_VOICEMAIL_PATH);
@@ -81,7 +89,7 @@ class VoiceMailConstants {
         } catch (FileNotFoundException e) {
             Rlog.w(LOG_TAG, "Can't open " +
                     Environment.getRootDirectory() + "/" + PARTNER_VOICEMAIL_PATH);
-            return;
+            return CarrierNumericTable.empty();
         }
 
         try {
@@ -104,7 +112,9 @@ class VoiceMailConstants {
                 data[NUMBER]   = parser.getAttributeValue(null, "vmnumber");
                 data[TAG]      = parser.getAttributeValue(null, "vmtag");
 
-                CarrierVmMap.put(numeric, data);
+                if (!builder.put(numeric, data)) {
+                    Rlog.w(LOG_TAG, "Skipping voicemail with numeric " + numeric);
+                }
             }
         } catch (XmlPullParserException e) {
             Rlog.w(LOG_TAG, "Exception in Voicemail parser " + e);
@@ -117,5 +127,6 @@ class VoiceMailConstants {
                 }
             } catch (IOException e) {}
         }
+        return builder.build();
     }
 }
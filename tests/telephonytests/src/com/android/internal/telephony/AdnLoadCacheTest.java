@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.uicc.AdnRecord;
+import com.android.internal.telephony.uicc.IccConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AdnLoadCacheTest extends TestCase {
+    private static final int SUB_ID = 1;
+    private static final int TIMEOUT_SECONDS = 10;
+    private static final long TTL_MILLIS = 60 * 1000;
+
+    /**
+     * Loads a single record named after the number of loads so far. Each load blocks until
+     * allowed by {@link #allowLoad}.
+     */
+    private static class TestLoader implements AdnLoadCache.Loader {
+        private final Semaphore mAllowed = new Semaphore(0);
+        private final Semaphore mStarted = new Semaphore(0);
+        private final Semaphore mLoaded = new Semaphore(0);
+        private int mLoads = 0;
+        private int mNotifications = 0;
+
+        @Override
+        public List<AdnRecord> load(int efType, int subId) {
+            int load;
+            synchronized (this) {
+                load = ++mLoads;
+            }
+            mStarted.release();
+            try {
+                mAllowed.acquire();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            ArrayList<AdnRecord> records = new ArrayList<AdnRecord>();
+            records.add(new AdnRecord("load" + load, "555" + load));
+            return records;
+        }
+
+        @Override
+        public void onLoaded(int efType, int subId) {
+            synchronized (this) {
+                mNotifications++;
+            }
+            mLoaded.release();
+        }
+
+        void allowLoad() {
+            mAllowed.release();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue(mStarted.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        void awaitLoaded() throws InterruptedException {
+            assertTrue(mLoaded.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        synchronized int getLoads() {
+            return mLoads;
+        }
+
+        synchronized int getNotifications() {
+            return mNotifications;
+        }
+    }
+
+    private static final Executor NEW_THREAD_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            new Thread(command).start();
+        }
+    };
+
+    private TestLoader mLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLoader = new TestLoader();
+    }
+
+    private static String getName(List<AdnRecord> records) {
+        assertNotNull(records);
+        assertEquals(1, records.size());
+        return records.get(0).getAlphaTag();
+    }
+
+    @SmallTest
+    public void testQueriesJoinRunningLoad() throws InterruptedException {
+        AdnLoadCache cache = new AdnLoadCache(mLoader, NEW_THREAD_EXECUTOR, TTL_MILLIS);
+
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        mLoader.awaitStarted();
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        assertEquals(1, mLoader.getLoads());
+
+        mLoader.allowLoad();
+        mLoader.awaitLoaded();
+        assertEquals("load1", getName(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID)));
+        assertEquals("load1", getName(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID)));
+        assertEquals(1, mLoader.getLoads());
+        assertEquals(1, mLoader.getNotifications());
+    }
+
+    @SmallTest
+    public void testLoadsArePerEfAndSubscription() throws InterruptedException {
+        AdnLoadCache cache = new AdnLoadCache(mLoader, NEW_THREAD_EXECUTOR, TTL_MILLIS);
+
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_FDN, SUB_ID));
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID + 1));
+        mLoader.awaitStarted();
+        mLoader.awaitStarted();
+        mLoader.awaitStarted();
+        assertEquals(3, mLoader.getLoads());
+        for (int i = 0; i < 3; i++) {
+            mLoader.allowLoad();
+            mLoader.awaitLoaded();
+        }
+    }
+
+    @SmallTest
+    public void testRecordsExpire() throws InterruptedException {
+        final long ttlMillis = 100;
+        AdnLoadCache cache = new AdnLoadCache(mLoader, NEW_THREAD_EXECUTOR, ttlMillis);
+
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        mLoader.allowLoad();
+        mLoader.awaitLoaded();
+        assertEquals("load1", getName(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID)));
+
+        SystemClock.sleep(2 * ttlMillis);
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        mLoader.allowLoad();
+        mLoader.awaitLoaded();
+        assertEquals("load2", getName(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID)));
+        assertEquals(2, mLoader.getLoads());
+    }
+
+    @SmallTest
+    public void testWriteInvalidatesRecords() throws InterruptedException {
+        AdnLoadCache cache = new AdnLoadCache(mLoader, NEW_THREAD_EXECUTOR, TTL_MILLIS);
+
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_FDN, SUB_ID));
+        mLoader.allowLoad();
+        mLoader.allowLoad();
+        mLoader.awaitLoaded();
+        mLoader.awaitLoaded();
+
+        cache.invalidate(IccConstants.EF_ADN, SUB_ID);
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        // Other EFs keep their records
+        assertNotNull(cache.takeOrStartLoad(IccConstants.EF_FDN, SUB_ID));
+
+        mLoader.allowLoad();
+        mLoader.awaitLoaded();
+        assertEquals("load3", getName(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID)));
+        assertEquals(3, mLoader.getLoads());
+    }
+
+    @SmallTest
+    public void testWritesDuringLoadReadOnceMore() throws InterruptedException {
+        AdnLoadCache cache = new AdnLoadCache(mLoader, NEW_THREAD_EXECUTOR, TTL_MILLIS);
+
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        mLoader.awaitStarted();
+        cache.invalidate(IccConstants.EF_ADN, SUB_ID);
+        cache.invalidate(IccConstants.EF_ADN, SUB_ID);
+        // Queries after the writes still join the running load rather than start another
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        assertEquals(1, mLoader.getLoads());
+
+        // The load then reads the EF once more, for both writes, before it finishes
+        mLoader.allowLoad();
+        mLoader.awaitStarted();
+        assertEquals(2, mLoader.getLoads());
+        assertNull(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID));
+        assertEquals(0, mLoader.getNotifications());
+
+        mLoader.allowLoad();
+        mLoader.awaitLoaded();
+        assertEquals("load2", getName(cache.takeOrStartLoad(IccConstants.EF_ADN, SUB_ID)));
+        assertEquals(2, mLoader.getLoads());
+        assertEquals(1, mLoader.getNotifications());
+    }
+}
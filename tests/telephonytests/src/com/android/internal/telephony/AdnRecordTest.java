@@ -174,6 +174,56 @@ public class AdnRecordTest extends TestCase {
         assertEquals("+18885551212,12345678", adn.getNumber());
         assertFalse(adn.isEmpty());
     }
+
+    @SmallTest
+    public void testDecodeOnDemand() throws Exception {
+        // Emails and additional numbers set before the record is decoded are kept
+        AdnRecord adn = new AdnRecord(
+                IccUtils.hexStringToBytes("566F696365204D61696C07918150367742F3FFFFFFFFFFFF"));
+        adn.setEmails(new String[] {"vm@example.com"});
+        adn.setAdditionalNumbers(new String[] {"+15551234"});
+
+        assertEquals("Voice Mail", adn.getAlphaTag());
+        assertEquals("+18056377243", adn.getNumber());
+        assertEquals("vm@example.com", adn.getEmails()[0]);
+        assertEquals("+15551234", adn.getAdditionalNumbers()[0]);
+        assertFalse(adn.hasExtendedRecord());
+
+        // The extension record id is known before decoding
+        adn = new AdnRecord(
+                IccUtils.hexStringToBytes(
+                        "4164676A6DFFFFFFFFFFFFFFFFFFFFFF0B918188551512C221436587FF01"));
+        assertTrue(adn.hasExtendedRecord());
+        assertTrue(adn.isEqual(new AdnRecord("Adgjm", "+18885551212,12345678")));
+    }
+
+    @SmallTest
+    public void testBuildAdnString() throws Exception {
+        final int recordSize = 24;
+
+        // GSM alphabet tag round trip, padded with 0xFF
+        AdnRecord adn = new AdnRecord("Voice Mail", "+18056377243");
+        byte[] record = adn.buildAdnString(recordSize);
+        assertEquals("566F696365204D61696C07918150367742F3FFFFFFFFFFFF",
+                IccUtils.bytesToHexString(record).toUpperCase());
+
+        // UCS2 tag round trip
+        adn = new AdnRecord("\u4E2D\u6587", "12345");
+        record = adn.buildAdnString(recordSize);
+        assertEquals((byte) 0x80, record[0]);
+        AdnRecord decoded = new AdnRecord(record);
+        assertEquals("\u4E2D\u6587", decoded.getAlphaTag());
+        assertEquals("12345", decoded.getNumber());
+
+        // Tags that do not fit are rejected, not truncated
+        assertNull(new AdnRecord("\u4E2D\u6587\u4E2D\u6587\u4E2D\u6587", "1")
+                .buildAdnString(recordSize));
+        assertNull(new AdnRecord("Eleven chars", "1").buildAdnString(recordSize));
+
+        // Deletion writes an empty record
+        record = new AdnRecord("", "").buildAdnString(recordSize);
+        assertTrue(new AdnRecord(record).isEmpty());
+    }
 }
 
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Debug;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.telephony.dataconnection.ApnSetting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures building, deduplicating and matching APN lists the size of a large carrier database
+ * with many MVNO entries. Timings and allocation counts are logged with tag
+ * "ApnSettingBenchmark".
+ *
+ * Run with:
+ * adb shell am instrument -w -e class com.android.internal.telephony.ApnSettingBenchmark \
+ *     com.android.frameworks.telephonytests/android.test.InstrumentationTestRunner
+ */
+public class ApnSettingBenchmark extends TestCase {
+    private static final String TAG = "ApnSettingBenchmark";
+
+    private static final int ITERATIONS = 200;
+
+    private static final String[][] TYPE_SETS = {
+        {"default", "supl"},
+        {"mms"},
+        {"default", "supl", "hipri"},
+        {"ims"},
+        {"dun"},
+        {"fota"},
+        {"cbs", "xcap"},
+        {"ia", "default"},
+        {"mms", "cbs"},
+        {"*"},
+    };
+
+    private static final String[] REQUESTED_TYPES = {
+        "default", "mms", "supl", "dun", "hipri", "fota", "ims", "cbs", "ia", "emergency", "xcap",
+    };
+
+    /**
+     * Build a carrier database of count entries: a handful of operator APN names shared by
+     * many MVNOs, so most entries are dedupe candidates of one another.
+     */
+    private static List<ApnSetting> makeCarrierApns(int count) {
+        List<ApnSetting> apns = new ArrayList<ApnSetting>(count);
+        for (int i = 0; i < count; i++) {
+            String[] types = TYPE_SETS[i % TYPE_SETS.length];
+            String apn = "apn" + (i % 24);
+            String mmsc = (i % 3 == 0) ? "http://mmsc" + (i % 24) : "";
+            String mvnoType = (i % 4 == 0) ? "" : "gid";
+            String mvnoMatchData = (i % 4 == 0) ? "" : Integer.toHexString(i / 40);
+            apns.add(new ApnSetting(i, "310260", "Carrier " + i, apn, "", "", mmsc, "", "",
+                    "", "", 0, types, "IP", "IP", true, 0, 0, false, 0, 0, 0, 0,
+                    mvnoType, mvnoMatchData));
+        }
+        return apns;
+    }
+
+    private void runDedupe(String name, int count) {
+        List<ApnSetting> template = makeCarrierApns(count);
+        int remaining = 0;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            List<ApnSetting> apns = new ArrayList<ApnSetting>(template);
+            ApnSetting.dedupe(apns);
+            remaining = apns.size();
+        }
+        long elapsed = System.nanoTime() - start;
+        int allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertTrue(remaining > 0 && remaining <= count);
+        Rlog.d(TAG, name + ": dedupe " + count + " -> " + remaining + " apns, "
+                + (elapsed / ITERATIONS / 1000) + " us/list, "
+                + (allocCount / ITERATIONS) + " allocations/list");
+    }
+
+    @LargeTest
+    public void testBuild() {
+        final int count = 800;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(count, makeCarrierApns(count).size());
+        }
+        long elapsed = System.nanoTime() - start;
+        int allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Rlog.d(TAG, "build: " + count + " apns, " + (elapsed / ITERATIONS / 1000)
+                + " us/list, " + (allocCount / ITERATIONS) + " allocations/list");
+    }
+
+    @LargeTest
+    public void testDedupeSmall() {
+        runDedupe("small", 50);
+    }
+
+    @LargeTest
+    public void testDedupeLarge() {
+        runDedupe("large", 400);
+    }
+
+    @LargeTest
+    public void testDedupeHuge() {
+        runDedupe("huge", 1600);
+    }
+
+    @LargeTest
+    public void testCanHandleType() {
+        List<ApnSetting> apns = makeCarrierApns(800);
+        int matches = 0;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String type : REQUESTED_TYPES) {
+                for (int j = 0, size = apns.size(); j < size; j++) {
+                    if (apns.get(j).canHandleType(type)) matches++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        int allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        long lookups = (long) ITERATIONS * REQUESTED_TYPES.length * apns.size();
+        assertTrue(matches > 0);
+        Rlog.d(TAG, "canHandleType: " + lookups + " lookups, "
+                + (elapsed / lookups) + " ns/lookup, " + allocCount + " allocations");
+    }
+}
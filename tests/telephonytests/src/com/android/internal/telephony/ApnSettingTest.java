@@ -148,4 +148,69 @@ public class ApnSettingTest extends TestCase {
                 "IPV4V6, IP, true, 14, 0, false, 0, 0, 0, 0, , ";
         assertEquals(expected, apn.toString());
     }
+
+    private static ApnSetting createApn(int id, String apn, String[] types, String mmsc) {
+        return new ApnSetting(
+                id, "12345", "Name", apn, "", "", mmsc, "", "", "", "", 0,
+                types, "IP", "IP", true, 0, 0, false, 0, 0, 0, 0, "", "");
+    }
+
+    @SmallTest
+    public void testCanHandleType() throws Exception {
+        ApnSetting apn = createApn(1, "apn", new String[] {"DEFAULT", "mms", "xcap"}, "");
+        assertTrue(apn.canHandleType("default"));
+        assertTrue(apn.canHandleType("MMS"));
+        assertTrue(apn.canHandleType("hipri"));
+        assertTrue(apn.canHandleType("xcap"));
+        assertFalse(apn.canHandleType("supl"));
+        assertFalse(apn.canHandleType("bip"));
+        assertFalse(apn.canHandleType("*"));
+
+        apn = createApn(2, "apn", new String[] {"*"}, "");
+        assertTrue(apn.canHandleType("dun"));
+        assertTrue(apn.canHandleType("bip"));
+
+        apn = createApn(3, "apn", new String[] {"mms"}, "");
+        assertFalse(apn.canHandleType("hipri"));
+
+        apn = new ApnSetting(
+                4, "12345", "Name", "apn", "", "", "", "", "", "", "", 0,
+                new String[] {"*"}, "IP", "IP", false, 0, 0, false, 0, 0, 0, 0, "", "");
+        assertFalse(apn.canHandleType("default"));
+    }
+
+    @SmallTest
+    public void testHasAnyTypeInCommon() throws Exception {
+        ApnSetting defaultApn = createApn(1, "apn", new String[] {"default", "xcap"}, "");
+        ApnSetting mmsApn = createApn(2, "apn", new String[] {"mms"}, "");
+        ApnSetting allApn = createApn(3, "apn", new String[] {"*"}, "");
+        ApnSetting xcapApn = createApn(4, "apn", new String[] {"xcap"}, "");
+        ApnSetting bipApn = createApn(5, "apn", new String[] {"bip"}, "");
+        assertFalse(defaultApn.hasAnyTypeInCommon(mmsApn));
+        assertTrue(defaultApn.hasAnyTypeInCommon(allApn));
+        assertTrue(mmsApn.hasAnyTypeInCommon(allApn));
+        assertTrue(defaultApn.hasAnyTypeInCommon(xcapApn));
+        assertFalse(defaultApn.hasAnyTypeInCommon(bipApn));
+    }
+
+    @SmallTest
+    public void testDedupe() throws Exception {
+        List<ApnSetting> apns = new ArrayList<ApnSetting>();
+        apns.add(createApn(1, "internet", new String[] {"default", "supl"}, ""));
+        apns.add(createApn(2, "mms", new String[] {"mms"}, "http://mmsc"));
+        apns.add(createApn(3, "internet", new String[] {"mms", "xcap"}, "http://mmsc"));
+        apns.add(createApn(4, "internet", new String[] {"default"}, ""));
+        apns.add(createApn(5, "internet", new String[] {"dun"}, ""));
+
+        ApnSetting.dedupe(apns);
+
+        assertEquals(4, apns.size());
+        assertEquals(1, apns.get(0).id);
+        MoreAsserts.assertEquals(new String[] {"default", "supl", "mms", "xcap"},
+                apns.get(0).types);
+        assertEquals("http://mmsc", apns.get(0).mmsc);
+        assertEquals(2, apns.get(1).id);
+        assertEquals(4, apns.get(2).id);
+        assertEquals(5, apns.get(3).id);
+    }
 }
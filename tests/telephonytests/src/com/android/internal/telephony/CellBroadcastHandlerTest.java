@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.Context;
+import android.os.Message;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for the duplicate detection of CellBroadcastHandler.
+ */
+public class CellBroadcastHandlerTest extends AndroidTestCase {
+    private static final int SERIAL_NUMBER = 0x3001;
+    private static final int MESSAGE_ID = 4370;  // CMAS presidential alert
+    private static final SmsCbLocation LOCATION = new SmsCbLocation("310260", 1000, 2000);
+
+    /** CellBroadcastHandler that records the broadcasts it would send. */
+    private static class TestCellBroadcastHandler extends CellBroadcastHandler {
+        final ArrayList<SmsCbMessage> mDelivered = new ArrayList<SmsCbMessage>();
+
+        TestCellBroadcastHandler(Context context) {
+            super("TestCellBroadcastHandler", context, null);
+        }
+
+        @Override
+        protected void handleBroadcastSms(SmsCbMessage message) {
+            mDelivered.add(message);
+        }
+
+        boolean receive(SmsCbMessage message) {
+            return handleSmsMessage(Message.obtain(null, EVENT_NEW_SMS_MESSAGE, message));
+        }
+    }
+
+    private TestCellBroadcastHandler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new TestCellBroadcastHandler(getContext());
+        mHandler.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // releases the wakelock taken on construction
+        mHandler.dispose();
+        super.tearDown();
+    }
+
+    private static SmsCbMessage makeMessage(int serialNumber, int messageId,
+            SmsCbLocation location) {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, serialNumber, location, messageId,
+                "en", "Test alert", SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null, null);
+    }
+
+    @SmallTest
+    public void testSameBroadcastTwiceDeliveredOnce() {
+        assertTrue(mHandler.receive(makeMessage(SERIAL_NUMBER, MESSAGE_ID, LOCATION)));
+        // The network repeats the message; an equal copy is not a new broadcast
+        assertFalse(mHandler.receive(makeMessage(SERIAL_NUMBER, MESSAGE_ID,
+                new SmsCbLocation("310260", 1000, 2000))));
+        assertEquals(1, mHandler.mDelivered.size());
+    }
+
+    @SmallTest
+    public void testDistinctBroadcastsDelivered() {
+        assertTrue(mHandler.receive(makeMessage(SERIAL_NUMBER, MESSAGE_ID, LOCATION)));
+        // A new update number changes the serial number
+        assertTrue(mHandler.receive(makeMessage(SERIAL_NUMBER + 1, MESSAGE_ID, LOCATION)));
+        assertTrue(mHandler.receive(makeMessage(SERIAL_NUMBER, MESSAGE_ID + 1, LOCATION)));
+        assertTrue(mHandler.receive(makeMessage(SERIAL_NUMBER, MESSAGE_ID,
+                new SmsCbLocation("310260", 1000, 2001))));
+        assertEquals(4, mHandler.mDelivered.size());
+
+        // Each of them is still dropped when repeated
+        assertFalse(mHandler.receive(makeMessage(SERIAL_NUMBER + 1, MESSAGE_ID, LOCATION)));
+        assertEquals(4, mHandler.mDelivered.size());
+    }
+
+    @SmallTest
+    public void testEtwsPrimaryDoesNotHideSecondary() {
+        mHandler.addRecentBroadcast(SERIAL_NUMBER, MESSAGE_ID, LOCATION, true);
+        assertTrue(mHandler.isDuplicateBroadcast(SERIAL_NUMBER, MESSAGE_ID, LOCATION, true));
+        assertFalse(mHandler.isDuplicateBroadcast(SERIAL_NUMBER, MESSAGE_ID, LOCATION, false));
+    }
+}
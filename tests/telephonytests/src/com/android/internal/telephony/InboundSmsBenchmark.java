@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.provider.Telephony;
+import android.provider.Telephony.Sms.Intents;
+import android.telephony.Rlog;
+import android.telephony.TelephonyManager;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.telephony.gsm.GSMPhone;
+import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
+import com.android.internal.telephony.test.SimulatedCommands;
+import com.android.internal.telephony.uicc.UiccController;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many messages per second the inbound SMS path sustains. Synthetic 3GPP PDUs are
+ * injected through {@link SimulatedCommands} into a {@link GsmInboundSmsHandler} whose raw table
+ * is an in-memory fake provider and whose ordered broadcasts complete immediately. Throughput,
+ * latency percentiles and allocations per message are logged with tag "InboundSmsBenchmark".
+ *
+ * Run with:
+ * adb shell am instrument -w -e class com.android.internal.telephony.InboundSmsBenchmark \
+ *     com.android.frameworks.telephonytests/android.test.InstrumentationTestRunner
+ */
+public class InboundSmsBenchmark extends AndroidTestCase {
+    private static final String TAG = "InboundSmsBenchmark";
+
+    private static final int MESSAGE_COUNT = 500;
+    private static final int TIMEOUT_SECONDS = 120;
+
+    private static final String ORIGINATING_ADDRESS = "15555550100";
+    private static final int PORT_WAP_PUSH = 2948;
+    private static final int PORT_WAP_WSP = 9200;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private SimulatedCommands mSimulatedCommands;
+    private BenchmarkContext mBenchmarkContext;
+    private FakeSmsProvider mSmsProvider;
+    private GsmInboundSmsHandler mInboundSmsHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSmsProvider = new FakeSmsProvider();
+        mBenchmarkContext = new BenchmarkContext(getContext(), mSmsProvider);
+
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        runOnHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                mSimulatedCommands = new SimulatedCommands();
+                try {
+                    UiccController.getInstance();
+                } catch (RuntimeException e) {
+                    UiccController.make(getContext(),
+                            new CommandsInterface[] { mSimulatedCommands });
+                }
+                GSMPhone phone = new GSMPhone(getContext(), mSimulatedCommands,
+                        new TestPhoneNotifier(), true);
+                mInboundSmsHandler = GsmInboundSmsHandler.makeInboundSmsHandler(
+                        mBenchmarkContext, new SmsStorageMonitor(phone), phone);
+            }
+        });
+        // Normally sent by SmsBroadcastUndelivered once the raw table has been scanned.
+        mInboundSmsHandler.sendMessage(InboundSmsHandler.EVENT_START_ACCEPTING_SMS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mInboundSmsHandler != null) {
+            mInboundSmsHandler.dispose();
+        }
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testSinglePartThroughput() throws Exception {
+        List<byte[][]> messages = new ArrayList<byte[][]>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages.add(new byte[][] { makeTextPdu("Single part message " + i, null, false) });
+        }
+        runBenchmark("single-part", messages);
+    }
+
+    @LargeTest
+    public void testMultiPartThroughput() throws Exception {
+        List<byte[][]> messages = new ArrayList<byte[][]>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            byte[][] parts = new byte[3][];
+            for (int j = 0; j < parts.length; j++) {
+                SmsHeader header = new SmsHeader();
+                header.concatRef = new SmsHeader.ConcatRef();
+                // 16-bit references, so no two outstanding messages share one
+                header.concatRef.refNumber = i;
+                header.concatRef.seqNumber = j + 1;
+                header.concatRef.msgCount = parts.length;
+                header.concatRef.isEightBits = false;
+                parts[j] = makeTextPdu("Part " + (j + 1) + " of multipart message " + i,
+                        SmsHeader.toByteArray(header), false);
+            }
+            messages.add(parts);
+        }
+        runBenchmark("multi-part", messages);
+    }
+
+    @LargeTest
+    public void testWapPushThroughput() throws Exception {
+        List<byte[][]> messages = new ArrayList<byte[][]>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages.add(new byte[][] { makeWapPushPdu(i) });
+        }
+        runBenchmark("wap-push", messages);
+    }
+
+    @LargeTest
+    public void testClass0Throughput() throws Exception {
+        List<byte[][]> messages = new ArrayList<byte[][]>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages.add(new byte[][] { makeTextPdu("Class 0 message " + i, null, true) });
+        }
+        runBenchmark("class-0", messages);
+    }
+
+    /**
+     * Inject all PDUs as fast as possible and wait until every message has been broadcast.
+     * Latency is measured from injecting the last PDU of a message until the final
+     * broadcast for it is sent; messages complete in injection order.
+     */
+    private void runBenchmark(String name, List<byte[][]> messages) throws Exception {
+        final int count = messages.size();
+        final long[] injectTimes = new long[count];
+        mBenchmarkContext.expectMessages(count);
+
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < count; i++) {
+            for (byte[] pdu : messages.get(i)) {
+                mSimulatedCommands.triggerIncomingGsmSms(pdu);
+            }
+            injectTimes[i] = SystemClock.elapsedRealtimeNanos();
+        }
+        assertTrue(name + ": timed out waiting for broadcasts",
+                mBenchmarkContext.awaitMessages(TIMEOUT_SECONDS));
+        long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+        Debug.stopAllocCounting();
+        int allocCount = Debug.getGlobalAllocCount();
+        int allocSize = Debug.getGlobalAllocSize();
+
+        long[] deliverTimes = mBenchmarkContext.getDeliveryTimes();
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = deliverTimes[i] - injectTimes[i];
+        }
+        Arrays.sort(latencies);
+
+        Rlog.d(TAG, name + ": " + count + " messages in " + (elapsed / 1000000) + " ms, "
+                + (count * 1000000000L / elapsed) + " msg/s");
+        Rlog.d(TAG, name + ": latency p50=" + percentileMillis(latencies, 50)
+                + " ms p90=" + percentileMillis(latencies, 90)
+                + " ms p99=" + percentileMillis(latencies, 99)
+                + " ms max=" + percentileMillis(latencies, 100) + " ms");
+        Rlog.d(TAG, name + ": " + (allocCount / count) + " allocations, "
+                + (allocSize / count) + " bytes per message");
+
+        assertEquals(name + ": raw table not cleaned up", 0, mSmsProvider.getRawRowCount());
+    }
+
+    private static float percentileMillis(long[] sorted, int percentile) {
+        int index = Math.min(sorted.length - 1, (sorted.length * percentile) / 100);
+        return sorted[index] / 1000000f;
+    }
+
+    /**
+     * Build a 3GPP SMS-DELIVER PDU with GSM 7-bit text.
+     */
+    private static byte[] makeTextPdu(String text, byte[] userDataHeader, boolean class0)
+            throws Exception {
+        byte[] userData = GsmAlphabet.stringToGsm7BitPackedWithHeader(text, userDataHeader);
+        // DCS 0x10: general data coding, message class 0
+        return makeDeliverPdu(userDataHeader != null, class0 ? 0x10 : 0x00, userData);
+    }
+
+    /**
+     * Build a 3GPP SMS-DELIVER PDU carrying a WAP push MMS notification on the WAP push port.
+     */
+    private static byte[] makeWapPushPdu(int index) {
+        SmsHeader header = new SmsHeader();
+        header.portAddrs = new SmsHeader.PortAddrs();
+        header.portAddrs.destPort = PORT_WAP_PUSH;
+        header.portAddrs.origPort = PORT_WAP_WSP;
+        header.portAddrs.areEightBits = false;
+        byte[] udh = SmsHeader.toByteArray(header);
+
+        ByteArrayOutputStream wsp = new ByteArrayOutputStream();
+        wsp.write(index & 0xff);                // transaction id
+        wsp.write(WspTypeDecoder.PDU_TYPE_PUSH);
+        wsp.write(1);                           // headers length
+        wsp.write(0x3e | 0x80);                 // application/vnd.wap.mms-message
+        // m-notification-ind with transaction id and content location
+        wsp.write(0x8c);
+        wsp.write(0x82);
+        writeText(wsp, 0x98, "T" + index);
+        wsp.write(0x8d);
+        wsp.write(0x90);
+        writeText(wsp, 0x83, "http://mmsc.example.com/m" + index);
+        byte[] body = wsp.toByteArray();
+
+        ByteArrayOutputStream userData = new ByteArrayOutputStream();
+        userData.write(udh.length + 1 + body.length);
+        userData.write(udh.length);
+        userData.write(udh, 0, udh.length);
+        userData.write(body, 0, body.length);
+        // DCS 0x04: 8-bit data
+        return makeDeliverPdu(true, 0x04, userData.toByteArray());
+    }
+
+    private static void writeText(ByteArrayOutputStream out, int field, String text) {
+        out.write(field);
+        byte[] bytes = text.getBytes();
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    /**
+     * @param userData the user data, starting with the user data length
+     */
+    private static byte[] makeDeliverPdu(boolean hasUserDataHeader, int dataCodingScheme,
+            byte[] userData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x00);                        // no SMSC address
+        // SMS-DELIVER, no more messages to send
+        out.write(0x04 | (hasUserDataHeader ? 0x40 : 0x00));
+        out.write(ORIGINATING_ADDRESS.length());
+        out.write(0x91);                        // international number
+        for (int i = 0; i < ORIGINATING_ADDRESS.length(); i += 2) {
+            int low = ORIGINATING_ADDRESS.charAt(i) - '0';
+            int high = (i + 1 < ORIGINATING_ADDRESS.length())
+                    ? ORIGINATING_ADDRESS.charAt(i + 1) - '0' : 0x0f;
+            out.write((high << 4) | low);
+        }
+        out.write(0x00);                        // protocol identifier
+        out.write(dataCodingScheme);
+        byte[] timestamp = { 0x51, 0x10, 0x01, 0x21, 0x43, 0x65, 0x00 };
+        out.write(timestamp, 0, timestamp.length);
+        out.write(userData, 0, userData.length);
+        return out.toByteArray();
+    }
+
+    private void runOnHandlerThread(final Runnable r) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                r.run();
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Context that routes the SMS provider to {@link FakeSmsProvider} and completes ordered
+     * broadcasts immediately, recording when the final broadcast for each message is sent.
+     */
+    private static class BenchmarkContext extends ContextWrapper {
+        private final MockContentResolver mResolver;
+        private final TelephonyManager mTelephonyManager;
+        private CountDownLatch mLatch;
+        private long[] mDeliveryTimes;
+        private int mDelivered;
+
+        BenchmarkContext(Context base, FakeSmsProvider smsProvider) {
+            super(base);
+            mResolver = new MockContentResolver();
+            mResolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(), smsProvider);
+            mResolver.addProvider(Settings.AUTHORITY, new EmptySettingsProvider());
+            // Not SMS capable as far as SmsApplication is concerned, so broadcasts are not
+            // directed to (and AppOps are not checked for) a default SMS application.
+            mTelephonyManager = new TelephonyManager(base) {
+                @Override
+                public boolean isSmsCapable() {
+                    return false;
+                }
+            };
+        }
+
+        synchronized void expectMessages(int count) {
+            mLatch = new CountDownLatch(count);
+            mDeliveryTimes = new long[count];
+            mDelivered = 0;
+        }
+
+        boolean awaitMessages(int timeoutSeconds) throws InterruptedException {
+            return mLatch.await(timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        synchronized long[] getDeliveryTimes() {
+            return mDeliveryTimes;
+        }
+
+        @Override
+        public MockContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            if (Context.TELEPHONY_SERVICE.equals(name)) {
+                return mTelephonyManager;
+            }
+            return super.getSystemService(name);
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent, String receiverPermission) {
+            // SMS_REJECTED_ACTION; nothing listens in the benchmark
+        }
+
+        @Override
+        public void sendOrderedBroadcastAsUser(final Intent intent, UserHandle user,
+                String receiverPermission, int appOp, final BroadcastReceiver resultReceiver,
+                Handler scheduler, int initialCode, String initialData, Bundle initialExtras) {
+            if (resultReceiver == null) {
+                // secondary users only get a copy of the broadcast
+                return;
+            }
+            String action = intent.getAction();
+            if (Intents.SMS_RECEIVED_ACTION.equals(action)
+                    || Intents.WAP_PUSH_RECEIVED_ACTION.equals(action)
+                    || Intents.DATA_SMS_RECEIVED_ACTION.equals(action)) {
+                synchronized (this) {
+                    if (mDelivered < mDeliveryTimes.length) {
+                        mDeliveryTimes[mDelivered++] = SystemClock.elapsedRealtimeNanos();
+                    }
+                }
+                mLatch.countDown();
+            }
+            scheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    resultReceiver.onReceive(BenchmarkContext.this, intent);
+                }
+            });
+        }
+    }
+
+    /**
+     * Settings provider without any values, so settings lookups fall back to their defaults.
+     */
+    private static class EmptySettingsProvider extends MockContentProvider {
+        @Override
+        public Bundle call(String method, String request, Bundle args) {
+            return null;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return null;
+        }
+    }
+
+    /**
+     * In-memory SMS provider. Only the raw table is kept; messages written to other tables
+     * are counted and dropped. Selections must be of the form "col=? AND col=?".
+     */
+    private static class FakeSmsProvider extends MockContentProvider {
+        private final LinkedList<ContentValues> mRawRows = new LinkedList<ContentValues>();
+        private long mNextId = 1;
+
+        synchronized int getRawRowCount() {
+            return mRawRows.size();
+        }
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            long id = mNextId++;
+            if (isRawTable(uri)) {
+                ContentValues row = new ContentValues(values);
+                row.put("_id", id);
+                mRawRows.add(row);
+            }
+            return ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (!isRawTable(uri)) {
+                return cursor;
+            }
+            for (ContentValues row : mRawRows) {
+                if (matches(row, selection, selectionArgs)) {
+                    Object[] columns = new Object[projection.length];
+                    for (int i = 0; i < projection.length; i++) {
+                        columns[i] = row.get(projection[i]);
+                    }
+                    cursor.addRow(columns);
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            int count = 0;
+            if (isRawTable(uri)) {
+                Iterator<ContentValues> iter = mRawRows.iterator();
+                while (iter.hasNext()) {
+                    if (matches(iter.next(), selection, selectionArgs)) {
+                        iter.remove();
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        private static boolean isRawTable(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            return !segments.isEmpty() && "raw".equals(segments.get(0));
+        }
+
+        private static boolean matches(ContentValues row, String selection,
+                String[] selectionArgs) {
+            if (selection == null) {
+                return true;
+            }
+            String[] terms = selection.split(" AND ");
+            for (int i = 0; i < terms.length; i++) {
+                String column = terms[i].substring(0, terms[i].indexOf('=')).trim();
+                if (!selectionArgs[i].equals(String.valueOf(row.get(column)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -216,4 +216,34 @@ public class TelephonyUtilsTest extends TestCase {
         assertEquals(0, rm.getRetryCount());
         assertEquals(1000, rm.getRetryTimer());
     }
+
+    /**
+     * Managers configured with the same string share the compiled configuration but
+     * keep their own retry state, and a bad string keeps failing.
+     */
+    @SmallTest
+    public void testRetryManagerSharedConfig() throws Exception {
+        RetryManager rm1 = new RetryManager();
+        RetryManager rm2 = new RetryManager();
+        String config = "max_retries=4, 1000, 2000:0, 3000";
+
+        assertTrue(rm1.configure(config));
+        assertTrue(rm2.configure(config));
+        rm1.increaseRetryCount();
+        rm1.increaseRetryCount();
+        assertEquals(2, rm1.getRetryCount());
+        assertEquals(3000, rm1.getRetryTimer());
+        assertEquals(0, rm2.getRetryCount());
+        assertEquals(1000, rm2.getRetryTimer());
+
+        rm1.increaseRetryCount();
+        rm1.increaseRetryCount();
+        assertFalse(rm1.isRetryNeeded());
+        assertTrue(rm2.isRetryNeeded());
+
+        assertFalse(rm1.configure("1000, bad"));
+        assertFalse(rm2.configure("1000, bad"));
+        assertFalse(rm1.isRetryNeeded());
+        assertEquals(0, rm1.getRetryTimer());
+    }
 }
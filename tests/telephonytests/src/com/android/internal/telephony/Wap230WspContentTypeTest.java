@@ -870,4 +870,40 @@ public class Wap230WspContentTypeTest extends TestCase {
         WspTypeDecoder unit = new WspTypeDecoder(out.toByteArray());
         assertFalse(unit.decodeContentType(0));
     }
+
+    public void testExtensionMediaMatchingWellKnownTypeReturnsConstant() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(WspTypeDecoder.CONTENT_TYPE_B_MMS.getBytes("US-ASCII"));
+        out.write(WSP_STRING_TERMINATOR);
+
+        WspTypeDecoder unit = new WspTypeDecoder(out.toByteArray());
+        assertTrue(unit.decodeContentType(0));
+        assertEquals(0, unit.getValueOffset());
+        assertEquals(WspTypeDecoder.CONTENT_TYPE_B_MMS.length(), unit.getValueLength());
+        assertSame(WspTypeDecoder.CONTENT_TYPE_B_MMS, unit.getValueString());
+        assertEquals(-1, unit.getValue32());
+    }
+
+    public void testContentParametersDoNotChangeDecodedValue() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x14);
+        out.write(SHORT_MIME_TYPE_ROLLOVER_CERTIFICATE | WSP_SHORT_INTEGER_MASK);
+        out.write(PARAM_UNASSIGNED | WSP_SHORT_INTEGER_MASK);
+        out.write("wdstechnology.com".getBytes("US-ASCII"));
+        out.write(WSP_STRING_TERMINATOR);
+
+        WspTypeDecoder unit = new WspTypeDecoder(out.toByteArray());
+        assertTrue(unit.decodeContentType(0));
+
+        Map<String, String> params = unit.getContentParameters();
+        assertEquals("wdstechnology.com", params.get("unassigned/0x42"));
+        assertSame(params, unit.getContentParameters());
+
+        assertEquals(STRING_MIME_TYPE_ROLLOVER_CERTIFICATE, unit.getValueString());
+        assertEquals(SHORT_MIME_TYPE_ROLLOVER_CERTIFICATE, unit.getValue32());
+        assertEquals(-1, unit.getValueOffset());
+        assertEquals(21, unit.getDecodedDataLength());
+    }
 }
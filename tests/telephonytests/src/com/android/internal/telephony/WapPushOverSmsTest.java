@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.Telephony;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.pdu.NotificationInd;
+import com.google.android.mms.pdu.PduHeaders;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for the duplicate MMS notification check of WapPushOverSms and its index of
+ * stored notifications, run against an in-memory MMS provider.
+ */
+public class WapPushOverSmsTest extends AndroidTestCase {
+    private static final int TIMEOUT_SECONDS = 10;
+    private static final String STORED_LOCATION = "http://mmsc.example.com/stored";
+    private static final String OTHER_LOCATION = "http://mmsc.example.com/other";
+
+    private FakeMmsProvider mProvider;
+    private Context mContext;
+    private WapPushOverSms.RecentMmsIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeMmsProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Telephony.Mms.CONTENT_URI.getAuthority(), mProvider);
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public MockContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mIndex = new WapPushOverSms.RecentMmsIndex();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mIndex.getHandler() != null) {
+            mIndex.dispose();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Start the index and wait for its first load.
+     */
+    private void startIndex() throws InterruptedException {
+        mIndex.start(mContext);
+        waitForIndexThread();
+    }
+
+    /**
+     * Wait until the index thread has processed everything posted to it so far.
+     */
+    private void waitForIndexThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mIndex.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static NotificationInd makeNotification(String location) throws Exception {
+        NotificationInd nInd = new NotificationInd();
+        nInd.setContentLocation(location.getBytes());
+        return nInd;
+    }
+
+    private boolean isDuplicate(String location) throws Exception {
+        return WapPushOverSms.isDuplicateNotification(mContext, mIndex,
+                makeNotification(location));
+    }
+
+    @SmallTest
+    public void testNotStartedQueriesProvider() throws Exception {
+        mProvider.addNotification(STORED_LOCATION);
+        assertTrue(isDuplicate(STORED_LOCATION));
+        assertFalse(isDuplicate(OTHER_LOCATION));
+        assertEquals(2, mProvider.getQueryCount());
+    }
+
+    @SmallTest
+    public void testHitAnsweredFromIndex() throws Exception {
+        mProvider.addNotification(STORED_LOCATION);
+        startIndex();
+        int queries = mProvider.getQueryCount();
+
+        assertEquals(WapPushOverSms.RecentMmsIndex.LOCATION_STORED,
+                mIndex.lookupContentLocation(STORED_LOCATION));
+        assertTrue(isDuplicate(STORED_LOCATION));
+        assertEquals(queries, mProvider.getQueryCount());
+    }
+
+    @SmallTest
+    public void testMissAnsweredFromCompleteIndex() throws Exception {
+        mProvider.addNotification(STORED_LOCATION);
+        startIndex();
+        int queries = mProvider.getQueryCount();
+
+        assertEquals(WapPushOverSms.RecentMmsIndex.LOCATION_NOT_STORED,
+                mIndex.lookupContentLocation(OTHER_LOCATION));
+        assertFalse(isDuplicate(OTHER_LOCATION));
+        assertEquals(queries, mProvider.getQueryCount());
+    }
+
+    @SmallTest
+    public void testTruncatedIndexQueriesProviderOnMiss() throws Exception {
+        for (int i = 0; i <= WapPushOverSms.MAX_RECENT_MMS_ENTRIES; i++) {
+            mProvider.addNotification(STORED_LOCATION + i);
+        }
+        startIndex();
+        int queries = mProvider.getQueryCount();
+
+        // The index can't hold every stored notification, so a miss is not conclusive
+        assertEquals(WapPushOverSms.RecentMmsIndex.LOCATION_UNKNOWN,
+                mIndex.lookupContentLocation(OTHER_LOCATION));
+        assertFalse(isDuplicate(OTHER_LOCATION));
+        assertEquals(queries + 1, mProvider.getQueryCount());
+    }
+
+    @SmallTest
+    public void testDeleteInvalidatesIndex() throws Exception {
+        mProvider.addNotification(STORED_LOCATION);
+        startIndex();
+        assertTrue(isDuplicate(STORED_LOCATION));
+
+        // The message is downloaded or deleted and the provider reports the change
+        mProvider.deleteNotification(STORED_LOCATION);
+        mIndex.getObserver().dispatchChange(false, Telephony.MmsSms.CONTENT_URI);
+        waitForIndexThread();
+        int queries = mProvider.getQueryCount();
+
+        // Until it is reloaded the index knows nothing, so the provider is asked
+        assertEquals(WapPushOverSms.RecentMmsIndex.LOCATION_UNKNOWN,
+                mIndex.lookupContentLocation(STORED_LOCATION));
+        assertFalse(isDuplicate(STORED_LOCATION));
+        assertEquals(queries + 1, mProvider.getQueryCount());
+    }
+
+    /**
+     * Store a notification the way WapPushOverSms does once it is found not to be a
+     * duplicate.
+     */
+    private void storeNotification(String location) {
+        mProvider.addNotification(location);
+        mIndex.addContentLocation(location);
+    }
+
+    @SmallTest
+    public void testSameNotificationTwice() throws Exception {
+        startIndex();
+        int queries = mProvider.getQueryCount();
+
+        assertFalse(isDuplicate(STORED_LOCATION));
+        storeNotification(STORED_LOCATION);
+        // The network delivers the same notification again
+        assertTrue(isDuplicate(STORED_LOCATION));
+        assertEquals(queries, mProvider.getQueryCount());
+    }
+
+    @SmallTest
+    public void testDistinctNotification() throws Exception {
+        startIndex();
+        int queries = mProvider.getQueryCount();
+
+        assertFalse(isDuplicate(STORED_LOCATION));
+        storeNotification(STORED_LOCATION);
+        assertFalse(isDuplicate(OTHER_LOCATION));
+        storeNotification(OTHER_LOCATION);
+        assertTrue(isDuplicate(STORED_LOCATION));
+        assertTrue(isDuplicate(OTHER_LOCATION));
+        assertEquals(queries, mProvider.getQueryCount());
+    }
+
+    /**
+     * In-memory MMS provider. Selections must be of the form "col=? AND col=?".
+     */
+    static class FakeMmsProvider extends MockContentProvider {
+        private final LinkedList<ContentValues> mRows = new LinkedList<ContentValues>();
+        private long mNextId = 1;
+        private int mQueryCount;
+
+        synchronized void addNotification(String location) {
+            ContentValues row = new ContentValues();
+            row.put(Telephony.Mms._ID, mNextId++);
+            row.put(Telephony.Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+            row.put(Telephony.Mms.CONTENT_LOCATION, location);
+            row.put(Telephony.Mms.THREAD_ID, 1L);
+            mRows.add(row);
+        }
+
+        synchronized void deleteNotification(String location) {
+            Iterator<ContentValues> iter = mRows.iterator();
+            while (iter.hasNext()) {
+                if (location.equals(iter.next().getAsString(Telephony.Mms.CONTENT_LOCATION))) {
+                    iter.remove();
+                }
+            }
+        }
+
+        synchronized int getQueryCount() {
+            return mQueryCount;
+        }
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            ContentValues row = new ContentValues(values);
+            long id = mNextId++;
+            row.put(Telephony.Mms._ID, id);
+            mRows.add(row);
+            return ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueryCount++;
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (ContentValues row : mRows) {
+                if (matches(row, selection, selectionArgs)) {
+                    Object[] columns = new Object[projection.length];
+                    for (int i = 0; i < projection.length; i++) {
+                        columns[i] = row.get(projection[i]);
+                    }
+                    cursor.addRow(columns);
+                }
+            }
+            return cursor;
+        }
+
+        private static boolean matches(ContentValues row, String selection,
+                String[] selectionArgs) {
+            if (selection == null) {
+                return true;
+            }
+            String[] terms = selection.split(" AND ");
+            for (int i = 0; i < terms.length; i++) {
+                String column = terms[i].substring(0, terms[i].indexOf('=')).trim();
+                if (!selectionArgs[i].equals(String.valueOf(row.get(column)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.HardwareConfig;
+import com.android.internal.telephony.test.SimulatedCommands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Brings up the default, IMS, MMS and SUPL PDNs through the {@link PdnBringUp} DcTracker uses,
+ * against a {@link SimulatedCommands} modem that answers each RIL_REQUEST_SETUP_DATA_CALL after
+ * a fixed delay and rejects data calls beyond its limit with INSUFFICIENT_RESOURCES. Setups go
+ * through the {@link PdnBudget} that DcController keeps, the way DcTracker issues them with
+ * persist.radio.parallel_pdn on, or bypass it as they do with the property off. The budget is
+ * sized from the modem's getHardwareConfig response, as DcController does. The bring-up times
+ * PdnBringUp records are logged with tag "DataCallSetupBenchmark".
+ *
+ * Run with:
+ * adb shell am instrument -w \
+ *     -e class com.android.internal.telephony.dataconnection.DataCallSetupBenchmark \
+ *     com.android.frameworks.telephonytests/android.test.InstrumentationTestRunner
+ */
+public class DataCallSetupBenchmark extends TestCase {
+    private static final String TAG = "DataCallSetupBenchmark";
+
+    // In priority order, as DcTracker walks mPrioritySortedApnContexts
+    private static final String[] APNS = {"default", "ims", "mms", "supl"};
+    private static final int SETUP_DELAY_MILLIS = 150;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    private HandlerThread mThread;
+    private SimulatedCommands mSimulatedCommands;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mSimulatedCommands = new SimulatedCommands();
+        mSimulatedCommands.setSetupDataCallDelay(SETUP_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        mSimulatedCommands.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Brings up a data call for every APN through the {@link PdnBringUp} DcTracker uses, with
+     * the APN's index as DataConnection id. setupData() stands in for DcTracker.setupData():
+     * with parallelPdn it reserves a PDN first and defers the setup while none is available.
+     * Deferred setups are issued, and the bring-up time recorded, by PdnBringUp itself.
+     */
+    private class BringUp extends Handler implements PdnBringUp.Host<Integer> {
+        private static final int IDLE = 0;
+        private static final int CONNECTING = 1;
+        private static final int CONNECTED = 2;
+        private static final int FAILED = 3;
+
+        private final boolean mParallelPdn;
+        private final PdnBudget mBudget;
+        private final PdnBringUp<Integer> mPdnBringUp = new PdnBringUp<Integer>(this);
+        private final ArrayList<Integer> mApns = new ArrayList<Integer>(APNS.length);
+        private final Semaphore mResponses = new Semaphore(0);
+        private final int[] mCids = new int[APNS.length];
+        // All fields below are only used on mThread
+        private final int[] mStates = new int[APNS.length];
+        final ArrayList<String> mUp = new ArrayList<String>();
+        int mRejected = 0;
+        int mDeferred = 0;
+        int mMaxInUse = 0;
+
+        BringUp(boolean parallelPdn, int maxPdns) {
+            super(mThread.getLooper());
+            mParallelPdn = parallelPdn;
+            for (int i = 0; i < APNS.length; i++) {
+                mApns.add(i);
+            }
+            mBudget = new PdnBudget(maxPdns, new Runnable() {
+                @Override
+                public void run() {
+                    // DcController posts DcTracker.onPdnAvailable() to the DcTracker handler
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPdnBringUp.onPdnAvailable();
+                        }
+                    });
+                }
+            });
+        }
+
+        void start() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Integer id : mApns) {
+                        setupData(id);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public Iterable<Integer> getPrioritySortedApns() {
+            return mApns;
+        }
+
+        @Override
+        public boolean isSettingUp(Integer id) {
+            return mStates[id] == CONNECTING;
+        }
+
+        @Override
+        public boolean isConnectable(Integer id) {
+            return mStates[id] == IDLE;
+        }
+
+        @Override
+        public boolean hasPdnCapacity() {
+            return mBudget.hasCapacity();
+        }
+
+        @Override
+        public void setupData(Integer id) {
+            if (mParallelPdn) {
+                if (!mBudget.reserve(id)) {
+                    mDeferred++;
+                    mPdnBringUp.defer(id);
+                    return;
+                }
+                mMaxInUse = Math.max(mMaxInUse, mBudget.getInUse());
+            }
+            mStates[id] = CONNECTING;
+            mPdnBringUp.start();
+            mSimulatedCommands.setupDataCall("14", "0", APNS[id], "", "", "0", "IP",
+                    obtainMessage(id));
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            DataCallResponse response = (DataCallResponse) ((AsyncResult) msg.obj).result;
+            if (response.status == DcFailCause.NONE.getErrorCode()) {
+                mStates[msg.what] = CONNECTED;
+                mCids[msg.what] = response.cid;
+                mUp.add(APNS[msg.what]);
+            } else {
+                assertEquals(DcFailCause.INSUFFICIENT_RESOURCES.getErrorCode(), response.status);
+                mStates[msg.what] = FAILED;
+                mRejected++;
+                // The DataConnection goes back to inactive, releasing its PDN
+                mBudget.release(msg.what);
+            }
+            mPdnBringUp.onSetupComplete();
+            mResponses.release();
+        }
+
+        /**
+         * Tear down the data call of the given APN, releasing its PDN.
+         */
+        void deactivate(final int id) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mSimulatedCommands.deactivateDataCall(mCids[id], 0, null);
+                    mStates[id] = IDLE;
+                    mUp.remove(APNS[id]);
+                    mBudget.release(id);
+                }
+            });
+        }
+
+        void awaitResponses(int count) throws InterruptedException {
+            assertTrue(mResponses.tryAcquire(count, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            // Let anything posted by the last response run before the caller looks at state
+            final Semaphore idle = new Semaphore(0);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    idle.release();
+                }
+            });
+            assertTrue(idle.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        /**
+         * @return the time PdnBringUp recorded for the bring-up, -1 while it is in progress
+         */
+        long getBringUpMillis() {
+            return mPdnBringUp.getLastBringUpMillis();
+        }
+    }
+
+    /**
+     * @return the PDN limit DcController would take from the modem's hardware config
+     */
+    private int getModemMaxPdns() throws InterruptedException {
+        final Semaphore done = new Semaphore(0);
+        final ArrayList<List<HardwareConfig>> result = new ArrayList<List<HardwareConfig>>(1);
+        Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void handleMessage(Message msg) {
+                result.add((List<HardwareConfig>) ((AsyncResult) msg.obj).result);
+                done.release();
+            }
+        };
+        mSimulatedCommands.getHardwareConfig(handler.obtainMessage());
+        assertTrue(done.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return PdnBudget.maxPdnsFrom(result.get(0));
+    }
+
+    private BringUp runBringUp(boolean parallelPdn, int modemLimit, int expectedResponses)
+            throws InterruptedException {
+        mSimulatedCommands.setMaxActiveDataCalls(modemLimit);
+        int maxPdns = getModemMaxPdns();
+        assertEquals(modemLimit, maxPdns);
+
+        BringUp bringUp = new BringUp(parallelPdn, maxPdns);
+        bringUp.start();
+        bringUp.awaitResponses(expectedResponses);
+        logBringUp(bringUp, modemLimit);
+        return bringUp;
+    }
+
+    private void logBringUp(BringUp bringUp, int modemLimit) {
+        Rlog.d(TAG, "parallelPdn=" + bringUp.mParallelPdn + " modemLimit=" + modemLimit + ": "
+                + bringUp.mUp.size() + " PDNs up, " + bringUp.mRejected + " rejected, "
+                + bringUp.mDeferred + " deferred, bring-up took " + bringUp.getBringUpMillis()
+                + "ms, setupDelay=" + SETUP_DELAY_MILLIS + "ms");
+    }
+
+    @SmallTest
+    public void testMaxPdnsFromHardwareConfig() {
+        ArrayList<HardwareConfig> configs = new ArrayList<HardwareConfig>();
+        assertEquals(0, PdnBudget.maxPdnsFrom(configs));
+
+        HardwareConfig sim = new HardwareConfig(HardwareConfig.DEV_HARDWARE_TYPE_SIM);
+        sim.maxActiveDataCall = 1;
+        configs.add(sim);
+        HardwareConfig modem = new HardwareConfig(HardwareConfig.DEV_HARDWARE_TYPE_MODEM);
+        modem.maxActiveDataCall = 0;
+        configs.add(modem);
+        // Only modems count, and a modem without a limit does not impose one
+        assertEquals(0, PdnBudget.maxPdnsFrom(configs));
+
+        HardwareConfig modem2 = new HardwareConfig(HardwareConfig.DEV_HARDWARE_TYPE_MODEM);
+        modem2.maxActiveDataCall = 4;
+        configs.add(modem2);
+        HardwareConfig modem3 = new HardwareConfig(HardwareConfig.DEV_HARDWARE_TYPE_MODEM);
+        modem3.maxActiveDataCall = 3;
+        configs.add(modem3);
+        assertEquals(3, PdnBudget.maxPdnsFrom(configs));
+    }
+
+    @SmallTest
+    public void testBudgetReserveRelease() {
+        final int[] available = new int[1];
+        PdnBudget budget = new PdnBudget(2, new Runnable() {
+            @Override
+            public void run() {
+                available[0]++;
+            }
+        });
+        assertTrue(budget.reserve(1));
+        assertTrue(budget.reserve(1));
+        assertTrue(budget.reserve(2));
+        assertEquals(2, budget.getInUse());
+        assertFalse(budget.hasCapacity());
+        assertFalse(budget.reserve(3));
+
+        assertFalse(budget.release(3));
+        assertEquals(0, available[0]);
+        assertTrue(budget.release(1));
+        assertEquals(1, available[0]);
+        assertTrue(budget.reserve(3));
+
+        // Shrinking the limit reports nothing; growing it or dropping it does
+        budget.setMaxPdns(1);
+        assertEquals(1, available[0]);
+        assertFalse(budget.reserve(4));
+        budget.setMaxPdns(3);
+        assertEquals(2, available[0]);
+        assertTrue(budget.reserve(4));
+        budget.setMaxPdns(0);
+        assertEquals(3, available[0]);
+        assertTrue(budget.reserve(5));
+        assertEquals(4, budget.getInUse());
+    }
+
+    @LargeTest
+    public void testBringUpWithinModemLimit() throws InterruptedException {
+        for (boolean parallelPdn : new boolean[] {false, true}) {
+            BringUp bringUp = runBringUp(parallelPdn, APNS.length, APNS.length);
+            assertEquals(APNS.length, bringUp.mUp.size());
+            assertEquals(0, bringUp.mRejected);
+            assertEquals(0, bringUp.mDeferred);
+            assertTrue(bringUp.getBringUpMillis() >= SETUP_DELAY_MILLIS);
+            for (int i = 0; i < APNS.length; i++) {
+                bringUp.deactivate(i);
+            }
+            bringUp.awaitResponses(0);
+        }
+    }
+
+    @LargeTest
+    public void testParallelPdnOffIsRejectedAboveModemLimit() throws InterruptedException {
+        BringUp bringUp = runBringUp(false, 2, APNS.length);
+        assertEquals(2, bringUp.mUp.size());
+        assertEquals(APNS.length - 2, bringUp.mRejected);
+        assertEquals(0, bringUp.mDeferred);
+        // Rejected setups complete the bring-up too
+        assertTrue(bringUp.getBringUpMillis() >= SETUP_DELAY_MILLIS);
+    }
+
+    @LargeTest
+    public void testParallelPdnOnDefersAboveModemLimit() throws InterruptedException {
+        BringUp bringUp = runBringUp(true, 2, 2);
+        assertEquals(0, bringUp.mRejected);
+        assertEquals(APNS.length - 2, bringUp.mDeferred);
+        assertEquals(2, bringUp.mMaxInUse);
+        assertEquals(2, bringUp.mBudget.getInUse());
+        assertTrue(bringUp.mUp.contains("default"));
+        assertTrue(bringUp.mUp.contains("ims"));
+        // Deferred setups keep the bring-up in progress
+        assertEquals(-1, bringUp.getBringUpMillis());
+
+        // Each released PDN goes to the highest priority deferred APN without a retry
+        bringUp.deactivate(0);
+        bringUp.awaitResponses(1);
+        assertTrue(bringUp.mUp.contains("mms"));
+        assertFalse(bringUp.mUp.contains("supl"));
+
+        bringUp.deactivate(1);
+        bringUp.awaitResponses(1);
+        assertTrue(bringUp.mUp.contains("supl"));
+        logBringUp(bringUp, 2);
+
+        assertEquals(0, bringUp.mRejected);
+        assertEquals(2, bringUp.mMaxInUse);
+        assertEquals(2, bringUp.mBudget.getInUse());
+        assertTrue(bringUp.getBringUpMillis() >= 2 * SETUP_DELAY_MILLIS);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemProperties;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for DcRetryScheduler, run against a fake clock and alarm.
+ */
+public class DcRetrySchedulerTest extends AndroidTestCase {
+    private static final long START_MILLIS = 100 * 1000;
+    private static final int TIMEOUT_SECONDS = 10;
+
+    /** DcRetryScheduler with a settable clock that records the alarm instead of setting it. */
+    private static class TestScheduler extends DcRetryScheduler {
+        long mNow = START_MILLIS;
+        long mAlarmAt = -1;
+
+        TestScheduler(Context context, Handler handler) {
+            super(context, 0, handler);
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return mNow;
+        }
+
+        @Override
+        void setAlarm(long triggerAtMillis) {
+            mAlarmAt = triggerAtMillis;
+        }
+
+        @Override
+        void cancelAlarm() {
+            mAlarmAt = -1;
+        }
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private TestScheduler mScheduler;
+    private final ArrayList<Integer> mSent = new ArrayList<Integer>();
+    private final Semaphore mSentCount = new Semaphore(0);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("DcRetrySchedulerTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                synchronized (mSent) {
+                    mSent.add(msg.what);
+                }
+                mSentCount.release();
+            }
+        };
+        mScheduler = new TestScheduler(getContext(), mHandler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.dispose();
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private DcRetryScheduler.Retry schedule(int what, int delayMillis) {
+        return mScheduler.schedule(mHandler.obtainMessage(what), delayMillis);
+    }
+
+    /**
+     * Fire the alarm at the given time and return the whats of the messages it sent.
+     */
+    private ArrayList<Integer> fireAlarm(long now, int expected) throws InterruptedException {
+        mScheduler.mNow = now;
+        mScheduler.onAlarm();
+        assertTrue(mSentCount.tryAcquire(expected, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Nothing else may follow; the handler thread has processed everything sent so far
+        final Semaphore idle = new Semaphore(0);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                idle.release();
+            }
+        });
+        assertTrue(idle.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        synchronized (mSent) {
+            ArrayList<Integer> sent = new ArrayList<Integer>(mSent);
+            mSent.clear();
+            assertEquals(expected, sent.size());
+            return sent;
+        }
+    }
+
+    @SmallTest
+    public void testParseBackoffPolicies() {
+        assertTrue(DcRetryScheduler.parseBackoffPolicies(null).isEmpty());
+        assertTrue(DcRetryScheduler.parseBackoffPolicies("").isEmpty());
+        assertTrue(DcRetryScheduler.parseBackoffPolicies("none").isEmpty());
+
+        HashMap<DcFailCause, DcRetryScheduler.BackoffPolicy> policies =
+                DcRetryScheduler.parseBackoffPolicies("INSUFFICIENT_RESOURCES=5000,600000,0.25;"
+                        + " SERVICE_OPTION_OUT_OF_ORDER = 10000, 300000, 2 ");
+        assertEquals(2, policies.size());
+        DcRetryScheduler.BackoffPolicy policy = policies.get(DcFailCause.INSUFFICIENT_RESOURCES);
+        assertEquals(5000, policy.mBaseMillis);
+        assertEquals(600000, policy.mMaxMillis);
+        assertEquals(0.25f, policy.mJitter, 0f);
+        policy = policies.get(DcFailCause.SERVICE_OPTION_OUT_OF_ORDER);
+        assertEquals(10000, policy.mBaseMillis);
+        assertEquals(300000, policy.mMaxMillis);
+        // Jitter is clamped to [0, 1]
+        assertEquals(1f, policy.mJitter, 0f);
+
+        // Bad entries are skipped, the rest still apply
+        policies = DcRetryScheduler.parseBackoffPolicies("NOT_A_CAUSE=1,2,0;"
+                + "INSUFFICIENT_RESOURCES=1,2;"
+                + "ACTIVATION_REJECT_UNSPECIFIED;"
+                + "SERVICE_OPTION_OUT_OF_ORDER=abc,2,0;"
+                + "OPERATOR_BARRED=1000,2000,0");
+        assertEquals(1, policies.size());
+        assertNotNull(policies.get(DcFailCause.OPERATOR_BARRED));
+    }
+
+    @SmallTest
+    public void testNoBackoffPoliciesByDefault() {
+        if (!TextUtils.isEmpty(SystemProperties.get("persist.radio.dc_backoff"))) return;
+        // Without configuration every cause keeps its RetryManager timing
+        for (DcFailCause cause : DcFailCause.values()) {
+            assertNull(cause.toString(), DcRetryScheduler.getBackoffPolicy(cause));
+        }
+    }
+
+    @SmallTest
+    public void testBackoffDelay() {
+        DcRetryScheduler.BackoffPolicy policy = new DcRetryScheduler.BackoffPolicy(1000, 8000, 0);
+        assertEquals(1000, policy.getDelay(0));
+        assertEquals(2000, policy.getDelay(1));
+        assertEquals(8000, policy.getDelay(3));
+        assertEquals(8000, policy.getDelay(40));
+
+        policy = new DcRetryScheduler.BackoffPolicy(1000, 8000, 0.5f);
+        for (int i = 0; i < 100; i++) {
+            int delay = policy.getDelay(0);
+            assertTrue("delay=" + delay, delay >= 500 && delay <= 1500);
+        }
+    }
+
+    @SmallTest
+    public void testScheduleAndCancel() throws InterruptedException {
+        DcRetryScheduler.Retry first = schedule(1, 5000);
+        assertEquals(START_MILLIS + 5000, mScheduler.mAlarmAt);
+        DcRetryScheduler.Retry second = schedule(2, 20000);
+        assertEquals(START_MILLIS + 5000, mScheduler.mAlarmAt);
+
+        // Cancelling the earliest retry moves the alarm to the next one
+        mScheduler.cancel(first);
+        assertEquals(START_MILLIS + 20000, mScheduler.mAlarmAt);
+        mScheduler.cancel(first);
+        mScheduler.cancel(null);
+        assertEquals(START_MILLIS + 20000, mScheduler.mAlarmAt);
+
+        // A cancelled retry is never sent
+        assertEquals(2, (int) fireAlarm(START_MILLIS + 20000, 1).get(0));
+        assertTrue(mScheduler.toString().contains("alarm=none"));
+
+        // Cancelling after it was sent does nothing
+        mScheduler.cancel(second);
+        schedule(3, 1000);
+        mScheduler.cancel(second);
+        assertEquals(START_MILLIS + 20000 + 1000, mScheduler.mAlarmAt);
+    }
+
+    @SmallTest
+    public void testSlotAlignment() throws InterruptedException {
+        schedule(1, 50000);
+        assertEquals(START_MILLIS + 50000, mScheduler.mAlarmAt);
+
+        // Due at 148s with 4.8s of slack, so it joins the retry due at 150s
+        schedule(2, 48000);
+        // 1s has 100ms of slack, too little to be postponed to any other retry
+        schedule(3, 1000);
+        assertEquals(START_MILLIS + 1000, mScheduler.mAlarmAt);
+        // Further out than the wheel has slots, so it shares a slot with earlier ticks
+        schedule(4, 300000);
+
+        // Early wakeups send nothing and keep the alarm
+        assertEquals(0, fireAlarm(START_MILLIS + 500, 0).size());
+        assertEquals(START_MILLIS + 1000, mScheduler.mAlarmAt);
+
+        assertEquals(3, (int) fireAlarm(START_MILLIS + 1000, 1).get(0));
+        assertEquals(START_MILLIS + 50000, mScheduler.mAlarmAt);
+
+        ArrayList<Integer> sent = fireAlarm(START_MILLIS + 50000, 2);
+        assertTrue(sent.contains(1));
+        assertTrue(sent.contains(2));
+        assertEquals(START_MILLIS + 300000, mScheduler.mAlarmAt);
+
+        assertEquals(4, (int) fireAlarm(START_MILLIS + 300000, 1).get(0));
+
+        String dump = mScheduler.toString();
+        assertTrue(dump, dump.contains("pending=0"));
+        assertTrue(dump, dump.contains("alarm=none"));
+        assertTrue(dump, dump.contains("aligned=1"));
+        assertTrue(dump, dump.contains("wakeups=4"));
+    }
+
+    @SmallTest
+    public void testLateAlarmSendsEverythingDue() throws InterruptedException {
+        schedule(1, 1000);
+        schedule(2, 5000);
+        schedule(3, 60000);
+
+        // A wakeup delayed past several ticks sends all of them together
+        ArrayList<Integer> sent = fireAlarm(START_MILLIS + 10000, 2);
+        assertTrue(sent.contains(1));
+        assertTrue(sent.contains(2));
+        assertEquals(START_MILLIS + 60000, mScheduler.mAlarmAt);
+    }
+}
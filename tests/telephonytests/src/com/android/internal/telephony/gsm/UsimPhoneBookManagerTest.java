@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.uicc.AdnRecord;
+
+import java.util.ArrayList;
+
+/**
+ * Test the free ANR and email record counts of UsimPhoneBookManager.
+ */
+public class UsimPhoneBookManagerTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testSlotBitmapFreeCount() {
+        UsimPhoneBookManager.SlotBitmap slots = new UsimPhoneBookManager.SlotBitmap();
+        assertEquals(0, slots.size());
+        assertEquals(0, slots.getFreeCount());
+
+        slots.addFree(10);
+        assertEquals(10, slots.size());
+        assertEquals(10, slots.getFreeCount());
+
+        slots.set(0, true);
+        slots.set(9, true);
+        assertEquals(8, slots.getFreeCount());
+        // Marking a record again does not count it twice
+        slots.set(9, true);
+        assertEquals(8, slots.getFreeCount());
+        slots.set(9, false);
+        slots.set(9, false);
+        assertEquals(9, slots.getFreeCount());
+
+        try {
+            slots.set(10, true);
+            fail("set() beyond the records must throw");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            slots.set(-1, true);
+            fail("set() of a negative index must throw");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        assertEquals(9, slots.getFreeCount());
+
+        // A second file of the same PBR record adds its records as free
+        slots.addFree(5);
+        assertEquals(15, slots.size());
+        assertEquals(14, slots.getFreeCount());
+        slots.set(14, true);
+        assertEquals(13, slots.getFreeCount());
+
+        slots.clear();
+        assertEquals(0, slots.size());
+        assertEquals(0, slots.getFreeCount());
+        slots.addFree(3);
+        assertEquals(3, slots.getFreeCount());
+    }
+
+    @SmallTest
+    public void testEmptyAnrAndEmailCounts() {
+        // UsimPhoneBookManager is a Handler
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        UsimPhoneBookManager manager = new UsimPhoneBookManager(null, null);
+        ArrayList<AdnRecord> records = new ArrayList<AdnRecord>();
+        for (int i = 0; i < 6; i++) {
+            records.add(new AdnRecord("", ""));
+        }
+
+        manager.setPhoneBookForTest(records, new int[] {2, 4}, new int[] {0, 3},
+                new int[] {5, 1});
+        assertEquals(6, manager.getUsimAdnCount());
+        assertEquals(0, manager.getPbrIndexBy(1));
+        assertEquals(1, manager.getPbrIndexBy(2));
+        assertEquals(-1, manager.getPbrIndexBy(6));
+        assertEquals(0, manager.getEmptyAnrNum_Pbrindex(0));
+        assertEquals(3, manager.getEmptyAnrNum_Pbrindex(1));
+        assertEquals(5, manager.getEmptyEmailNum_Pbrindex(0));
+        assertEquals(1, manager.getEmptyEmailNum_Pbrindex(1));
+        assertEquals(3, manager.getAnrCount());
+        assertEquals(3, manager.getSpareAnrCount());
+        assertEquals(6, manager.getSpareEmailCount());
+
+        // Type 1 files always have a record for the ADN record
+        manager.setPhoneBookForTest(records, new int[] {6}, null, null);
+        assertEquals(1, manager.getEmptyAnrNum_Pbrindex(0));
+        assertEquals(1, manager.getEmptyEmailNum_Pbrindex(0));
+        assertEquals(0, manager.getSpareAnrCount());
+    }
+}
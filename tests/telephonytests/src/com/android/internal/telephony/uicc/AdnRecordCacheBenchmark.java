@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.os.AsyncResult;
+import android.os.Looper;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.gsm.UsimPhoneBookManager;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares a linear isEqual() walk with AdnRecordCache.searchAdn(), the search
+ * updateAdnBySearch() does, over a 500 entry USIM phonebook split across two PBR records and
+ * two thirds full. Timings are logged with tag "AdnRecordCacheBenchmark".
+ *
+ * Run with:
+ * adb shell am instrument -w -e class com.android.internal.telephony.uicc.AdnRecordCacheBenchmark \
+ *     com.android.frameworks.telephonytests/android.test.InstrumentationTestRunner
+ */
+public class AdnRecordCacheBenchmark extends TestCase {
+    private static final String TAG = "AdnRecordCacheBenchmark";
+
+    private static final int PHONEBOOK_SIZE = 500;
+    private static final int[] ADN_LENGTHS = {250, 250};
+    private static final int[] ADN_EFIDS = {0x4F3A, 0x4F3B};
+    private static final int ITERATIONS = 20;
+    private static final int FREE_SLOTS = 10;
+
+    private AdnRecordCache mCache;
+    private UsimPhoneBookManager mUsim;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // AdnRecordCache and UsimPhoneBookManager are Handlers
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mCache = new AdnRecordCache(null);
+        mUsim = mCache.getUsimPhoneBookManager();
+    }
+
+    private static ArrayList<AdnRecord> makePhoneBook() {
+        ArrayList<AdnRecord> adns = new ArrayList<AdnRecord>(PHONEBOOK_SIZE);
+        for (int i = 0; i < PHONEBOOK_SIZE; i++) {
+            int pbrIndex = i / ADN_LENGTHS[0];
+            int recordNumber = i % ADN_LENGTHS[0] + 1;
+            if (i % 3 == 2) {
+                adns.add(new AdnRecord(ADN_EFIDS[pbrIndex], recordNumber, "", ""));
+            } else {
+                adns.add(new AdnRecord(ADN_EFIDS[pbrIndex], recordNumber, "Contact " + i,
+                        "+1650555" + String.format("%04d", i)));
+            }
+        }
+        return adns;
+    }
+
+    /**
+     * Load a new phonebook with the given free ANR and email records in each PBR record.
+     *
+     * @return the phonebook as AdnRecordCache sees it
+     */
+    private ArrayList<AdnRecord> loadPhoneBook(int[] freeAnrs, int[] freeEmails) {
+        mUsim.setPhoneBookForTest(makePhoneBook(), ADN_LENGTHS, freeAnrs, freeEmails);
+        return mUsim.loadEfFilesFromUsim();
+    }
+
+    private ArrayList<AdnRecord> loadPhoneBook() {
+        return loadPhoneBook(new int[] {FREE_SLOTS, FREE_SLOTS},
+                new int[] {FREE_SLOTS, FREE_SLOTS});
+    }
+
+    private int search(ArrayList<AdnRecord> adns, AdnRecord oldAdn, AdnRecord newAdn) {
+        return mCache.searchAdn(IccConstants.EF_PBR, adns, oldAdn, newAdn);
+    }
+
+    private int search(ArrayList<AdnRecord> adns, AdnRecord adn) {
+        return search(adns, adn, adn);
+    }
+
+    /**
+     * Complete a write of adn to the 1-based index the way the card's response does.
+     */
+    private void completeWrite(int index, AdnRecord adn) {
+        mCache.handleMessage(mCache.obtainMessage(AdnRecordCache.EVENT_UPDATE_ADN_DONE,
+                IccConstants.EF_PBR, index, new AsyncResult(adn, null, null)));
+    }
+
+    private static int linearSearch(ArrayList<AdnRecord> adns, AdnRecord adn) {
+        for (int i = 0, size = adns.size(); i < size; i++) {
+            if (adn.isEqual(adns.get(i))) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @SmallTest
+    public void testSearchMatchesLinearSearch() {
+        ArrayList<AdnRecord> adns = loadPhoneBook();
+        assertEquals(PHONEBOOK_SIZE, adns.size());
+
+        for (AdnRecord adn : adns) {
+            assertEquals(linearSearch(adns, adn), search(adns, adn));
+        }
+        // Null and empty fields are the same record
+        AdnRecord empty = new AdnRecord(null, null);
+        assertEquals(3, search(adns, empty));
+        assertEquals(-1, search(adns, new AdnRecord("Nobody", "123")));
+    }
+
+    @SmallTest
+    public void testWriteUpdatesSearch() {
+        ArrayList<AdnRecord> adns = loadPhoneBook();
+        AdnRecord empty = new AdnRecord("", "");
+
+        // Insert into the first free record, then delete it again
+        AdnRecord added = new AdnRecord("Added", "+16505550000");
+        assertEquals(3, search(adns, empty, added));
+        completeWrite(3, added);
+        assertSame(added, adns.get(2));
+        assertEquals(3, search(adns, added));
+        assertEquals(6, search(adns, empty));
+
+        completeWrite(3, empty);
+        assertEquals(-1, search(adns, added));
+        assertEquals(3, search(adns, empty));
+
+        // A record changed behind the cache's back is still found
+        AdnRecord changed = new AdnRecord("Changed", "+16505559999");
+        adns.set(5, changed);
+        assertEquals(6, search(adns, changed));
+        assertEquals(3, search(adns, empty));
+    }
+
+    @SmallTest
+    public void testFullAnrOrEmailFileSkipsPbrRecord() {
+        AdnRecord empty = new AdnRecord("", "");
+        AdnRecord withAnr = new AdnRecord("Anr", "+16505551111", null,
+                new String[] {"+16505552222"});
+        AdnRecord withEmail = new AdnRecord("Email", "+16505551111",
+                new String[] {"email@example.com"}, null);
+        // First free record of the second PBR record
+        int secondPbrFree = ADN_LENGTHS[0] + 2;
+
+        // The first PBR record has no free ANR record
+        ArrayList<AdnRecord> adns = loadPhoneBook(new int[] {0, FREE_SLOTS},
+                new int[] {FREE_SLOTS, FREE_SLOTS});
+        assertEquals(3, search(adns, empty, empty));
+        assertEquals(secondPbrFree, search(adns, empty, withAnr));
+        assertEquals(3, search(adns, empty, withEmail));
+
+        // The first PBR record has no free email record
+        adns = loadPhoneBook(new int[] {FREE_SLOTS, FREE_SLOTS}, new int[] {0, FREE_SLOTS});
+        assertEquals(3, search(adns, empty, withAnr));
+        assertEquals(secondPbrFree, search(adns, empty, withEmail));
+
+        // No PBR record can take an ANR
+        adns = loadPhoneBook(new int[] {0, 0}, new int[] {FREE_SLOTS, FREE_SLOTS});
+        assertEquals(-1, search(adns, empty, withAnr));
+        assertEquals(3, search(adns, empty, empty));
+
+        // Type 1 files have a record for every ADN record
+        adns = loadPhoneBook(null, null);
+        assertEquals(3, search(adns, empty, withAnr));
+        assertEquals(3, search(adns, empty, withEmail));
+    }
+
+    @LargeTest
+    public void testSearchEveryRecord() {
+        ArrayList<AdnRecord> adns = loadPhoneBook();
+        int found = 0;
+
+        long start = System.nanoTime();
+        for (int n = 0; n < ITERATIONS; n++) {
+            for (int i = 0; i < PHONEBOOK_SIZE; i++) {
+                if (linearSearch(adns, adns.get(i)) > 0) found++;
+            }
+        }
+        long linear = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < ITERATIONS; n++) {
+            for (int i = 0; i < PHONEBOOK_SIZE; i++) {
+                if (search(adns, adns.get(i)) > 0) found++;
+            }
+        }
+        long indexed = System.nanoTime() - start;
+
+        assertEquals(2 * ITERATIONS * PHONEBOOK_SIZE, found);
+        long searches = (long) ITERATIONS * PHONEBOOK_SIZE;
+        Rlog.d(TAG, "search: linear " + (linear / searches) + " ns, indexed "
+                + (indexed / searches) + " ns per search of " + PHONEBOOK_SIZE + " records");
+    }
+
+    @LargeTest
+    public void testFillPhoneBook() {
+        long linear = 0;
+        long indexed = 0;
+        AdnRecord empty = new AdnRecord("", "");
+
+        for (int n = 0; n < ITERATIONS; n++) {
+            // Insert a contact into every free record, one search for a free record each
+            ArrayList<AdnRecord> adns = makePhoneBook();
+            long start = System.nanoTime();
+            for (int slot; (slot = linearSearch(adns, empty)) > 0; ) {
+                adns.set(slot - 1, new AdnRecord("New " + slot, "555" + slot));
+            }
+            linear += System.nanoTime() - start;
+
+            adns = loadPhoneBook();
+            start = System.nanoTime();
+            AdnRecord adn = new AdnRecord("New", "555");
+            for (int slot; (slot = search(adns, empty, adn)) > 0; ) {
+                completeWrite(slot, adn);
+                adn = new AdnRecord("New " + slot, "555" + slot);
+            }
+            indexed += System.nanoTime() - start;
+            assertEquals(-1, linearSearch(adns, empty));
+        }
+
+        Rlog.d(TAG, "fill " + PHONEBOOK_SIZE + " record phonebook: linear "
+                + (linear / ITERATIONS / 1000) + " us, indexed "
+                + (indexed / ITERATIONS / 1000) + " us");
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+public class CarrierNumericTableTest extends TestCase {
+
+    @SmallTest
+    public void testLookup() {
+        CarrierNumericTable.Builder<String> builder = new CarrierNumericTable.Builder<String>();
+        assertTrue(builder.put("310260", "T-Mobile"));
+        assertTrue(builder.put("00101", "Test 5"));
+        assertTrue(builder.put("001010", "Test 6"));
+        assertTrue(builder.put("23410", "O2"));
+        // Later entries replace earlier ones, as with the HashMap this replaces
+        assertTrue(builder.put("23410", "O2 UK"));
+        assertFalse(builder.put("abc", "Not numeric"));
+        assertFalse(builder.put("", "Empty"));
+        assertFalse(builder.put(null, "Null"));
+        CarrierNumericTable<String> table = builder.build();
+
+        assertEquals(4, table.size());
+        assertEquals("T-Mobile", table.get("310260"));
+        assertEquals("Test 5", table.get("00101"));
+        assertEquals("Test 6", table.get("001010"));
+        assertEquals("O2 UK", table.get("23410"));
+        assertTrue(table.containsKey("00101"));
+
+        // Leading zeros and digit counts are significant
+        assertNull(table.get("0101"));
+        assertNull(table.get("0310260"));
+        assertFalse(table.containsKey("31026"));
+        assertFalse(table.containsKey("abc"));
+        assertFalse(table.containsKey(null));
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        CarrierNumericTable<String[]> table = CarrierNumericTable.empty();
+        assertEquals(0, table.size());
+        assertNull(table.get("310260"));
+        assertFalse(table.containsKey("310260"));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for IccFileCache and the ICCID confirmation of its cached files.
+ */
+public class IccFileCacheTest extends AndroidTestCase {
+    private static final int SLOT = 0;
+    private static final String ICCID = "89014103211118510720";
+    private static final String OTHER_ICCID = "89014103211118510721";
+
+    private static final int EF_AD = 0x6FAD;
+    private static final int EF_SST = 0x6F38;
+    private static final int EVENT_AD = 9;
+    private static final int EVENT_SST = 17;
+
+    private static final byte[] AD = {0x00, 0x00, 0x00, 0x02};
+    private static final byte[] OTHER_AD = {0x00, 0x00, 0x00, 0x03};
+    private static final byte[] SST = {0x33, 0x0F};
+
+    private IccFileCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().getSharedPreferences("icc_file_cache", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mCache = new IccFileCache(getContext(), SLOT);
+    }
+
+    @SmallTest
+    public void testPutGetInvalidate() {
+        assertNull(mCache.get(ICCID, EF_AD));
+        assertNull(mCache.get(null, EF_AD));
+
+        mCache.put(ICCID, EF_AD, AD);
+        mCache.put(ICCID, EF_SST, SST);
+        IccFileCache.Entry entry = mCache.get(ICCID, EF_AD);
+        assertTrue(Arrays.equals(AD, entry.data));
+        assertTrue(Math.abs(System.currentTimeMillis() - entry.validatedTime) < 60 * 1000);
+        assertNull(mCache.get(OTHER_ICCID, EF_AD));
+
+        mCache.invalidate(ICCID, EF_AD);
+        assertNull(mCache.get(ICCID, EF_AD));
+        assertNotNull(mCache.get(ICCID, EF_SST));
+
+        mCache.invalidateAll(ICCID);
+        assertNull(mCache.get(ICCID, EF_SST));
+    }
+
+    @SmallTest
+    public void testNewCardDropsPreviousCard() {
+        assertNull(mCache.getLastIccId());
+        mCache.setIccId(ICCID);
+        mCache.put(ICCID, EF_AD, AD);
+        assertEquals(ICCID, mCache.getLastIccId());
+
+        // The same card again keeps its entries
+        mCache.setIccId(ICCID);
+        assertNotNull(mCache.get(ICCID, EF_AD));
+
+        mCache.setIccId(OTHER_ICCID);
+        assertEquals(OTHER_ICCID, mCache.getLastIccId());
+        assertNull(mCache.get(ICCID, EF_AD));
+
+        // Slots are independent
+        IccFileCache otherSlot = new IccFileCache(getContext(), SLOT + 1);
+        assertNull(otherSlot.getLastIccId());
+    }
+
+    private void cacheCard(String iccId) {
+        mCache.setIccId(iccId);
+        mCache.put(iccId, EF_AD, AD);
+        mCache.put(iccId, EF_SST, SST);
+    }
+
+    @SmallTest
+    public void testHeldUntilIccIdConfirmed() {
+        cacheCard(ICCID);
+
+        IccFileCache.Load load = new IccFileCache.Load(mCache, Long.MAX_VALUE);
+        assertTrue(load.hold(EF_AD, EVENT_AD));
+        assertTrue(load.hold(EF_SST, EVENT_SST));
+        SparseIntArray held = load.getHeldEvents();
+        assertEquals(2, held.size());
+        assertEquals(EVENT_AD, held.get(EF_AD));
+
+        assertTrue(load.onIccIdLoaded(ICCID));
+        assertTrue(Arrays.equals(AD, load.getHeldData(EF_AD)));
+        assertTrue(Arrays.equals(SST, load.getHeldData(EF_SST)));
+        // Fresh entries need no revalidation
+        assertEquals(0, load.takeToRevalidate().size());
+
+        load.clearHeld();
+        assertEquals(0, load.getHeldEvents().size());
+    }
+
+    @SmallTest
+    public void testIccIdMismatchRereads() {
+        cacheCard(ICCID);
+
+        IccFileCache.Load load = new IccFileCache.Load(mCache, -1);
+        assertTrue(load.hold(EF_AD, EVENT_AD));
+        assertTrue(load.hold(EF_SST, EVENT_SST));
+
+        // Another card: the held files must not be delivered, but read from the card
+        assertFalse(load.onIccIdLoaded(OTHER_ICCID));
+        assertEquals(2, load.getHeldEvents().size());
+        assertEquals(0, load.takeToRevalidate().size());
+        assertEquals(OTHER_ICCID, mCache.getLastIccId());
+        assertNull(mCache.get(ICCID, EF_AD));
+
+        // The files read again are cached for the new card
+        load.onEfRead(EF_AD, OTHER_AD);
+        assertTrue(Arrays.equals(OTHER_AD, mCache.get(OTHER_ICCID, EF_AD).data));
+    }
+
+    @SmallTest
+    public void testIccIdReadFailureRereads() {
+        cacheCard(ICCID);
+
+        IccFileCache.Load load = new IccFileCache.Load(mCache, Long.MAX_VALUE);
+        assertTrue(load.hold(EF_AD, EVENT_AD));
+        assertFalse(load.onIccIdLoaded(null));
+        assertEquals(1, load.getHeldEvents().size());
+
+        // Nothing is cached without an ICCID, and the previous card is kept
+        load.onEfRead(EF_AD, OTHER_AD);
+        assertEquals(ICCID, mCache.getLastIccId());
+        assertTrue(Arrays.equals(AD, mCache.get(ICCID, EF_AD).data));
+    }
+
+    @SmallTest
+    public void testReadBeforeIccIdCachedOnceKnown() {
+        IccFileCache.Load load = new IccFileCache.Load(mCache, Long.MAX_VALUE);
+        // Nothing cached for an unknown card
+        assertFalse(load.hold(EF_AD, EVENT_AD));
+
+        load.onEfRead(EF_AD, AD);
+        assertNull(mCache.get(ICCID, EF_AD));
+
+        assertFalse(load.onIccIdLoaded(ICCID));
+        assertEquals(0, load.getHeldEvents().size());
+        assertTrue(Arrays.equals(AD, mCache.get(ICCID, EF_AD).data));
+    }
+
+    @SmallTest
+    public void testOldEntriesRevalidated() {
+        cacheCard(ICCID);
+
+        // Every entry is older than a negative maximum age
+        IccFileCache.Load load = new IccFileCache.Load(mCache, -1);
+        assertTrue(load.hold(EF_AD, EVENT_AD));
+        assertTrue(load.onIccIdLoaded(ICCID));
+
+        SparseIntArray toRevalidate = load.takeToRevalidate();
+        assertEquals(1, toRevalidate.size());
+        assertEquals(EVENT_AD, toRevalidate.get(EF_AD));
+        assertEquals(0, load.takeToRevalidate().size());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Parses, fuzzes and times the byte oriented access rule parser of UiccCarrierPrivilegeRules
+ * over generated ARA-M responses with many REF-AR-DOs. Timings are logged with tag
+ * "UiccCarrierPrivilegeRulesBenchmark".
+ *
+ * Run with:
+ * adb shell am instrument -w \
+ *     -e class com.android.internal.telephony.uicc.UiccCarrierPrivilegeRulesBenchmark \
+ *     com.android.frameworks.telephonytests/android.test.InstrumentationTestRunner
+ */
+public class UiccCarrierPrivilegeRulesBenchmark extends TestCase {
+    private static final String TAG = "UiccCarrierPrivilegeRulesBenchmark";
+
+    private static final int[] CORPUS_SIZES = { 1, 10, 100, 1000 };
+    private static final int ITERATIONS = 50;
+    private static final int FUZZ_ITERATIONS = 5000;
+    private static final long SEED = 0x5EC0AC1L;
+
+    private static byte[] tlv(int tag, byte[]... values) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] v : values) {
+            value.write(v, 0, v.length);
+        }
+        int length = value.size();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (tag > 0xFF) {
+            out.write(tag >> 8);
+        }
+        out.write(tag & 0xFF);
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else if (length < 0x10000) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length & 0xFF);
+        } else {
+            out.write(0x83);
+            out.write(length >> 16);
+            out.write((length >> 8) & 0xFF);
+            out.write(length & 0xFF);
+        }
+        out.write(value.toByteArray(), 0, length);
+        return out.toByteArray();
+    }
+
+    private static byte[] certHash(int i) {
+        byte[] hash = new byte[20];
+        for (int j = 0; j < hash.length; j++) {
+            hash[j] = (byte) (i * 31 + j);
+        }
+        return hash;
+    }
+
+    /*
+     * An ARA-M response of count rules; every other rule is restricted to a package.
+     */
+    private static byte[] makeRules(int count) {
+        byte[][] refArDos = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] deviceDo = tlv(0xC1, certHash(i));
+            byte[] refDo = i % 2 == 0
+                    ? tlv(0xE1, deviceDo)
+                    : tlv(0xE1, deviceDo, tlv(0xCA, ("com.example.carrier" + i).getBytes()));
+            byte[] arDo = tlv(0xE3, tlv(0xDB, new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 }));
+            refArDos[i] = tlv(0xE2, refDo, arDo);
+        }
+        return tlv(0xFF40, refArDos);
+    }
+
+    @SmallTest
+    public void testParseCorpus() {
+        for (int count : CORPUS_SIZES) {
+            List<UiccCarrierPrivilegeRules.AccessRule> rules =
+                    UiccCarrierPrivilegeRules.parseRules(makeRules(count));
+            assertEquals(count, rules.size());
+            for (int i = 0; i < count; i++) {
+                UiccCarrierPrivilegeRules.AccessRule rule = rules.get(i);
+                assertTrue(Arrays.equals(certHash(i), rule.certificateHash));
+                assertEquals(i % 2 == 0 ? null : "com.example.carrier" + i, rule.packageName);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testSkipsUnrelatedRules() {
+        // An AID-REF-DO instead of a DEVICE-APP-ID-REF-DO, then a valid rule
+        byte[] aidRule = tlv(0xE2, tlv(0xE1, tlv(0x4F, new byte[] { 1, 2, 3 })));
+        byte[] rule = tlv(0xE2, tlv(0xE1, tlv(0xC1, certHash(7))));
+        List<UiccCarrierPrivilegeRules.AccessRule> rules =
+                UiccCarrierPrivilegeRules.parseRules(tlv(0xFF40, aidRule, rule));
+        assertEquals(1, rules.size());
+        assertTrue(Arrays.equals(certHash(7), rules.get(0).certificateHash));
+    }
+
+    @SmallTest
+    public void testTruncatedRules() {
+        byte[] rules = makeRules(10);
+        for (int length = 0; length < rules.length; length++) {
+            byte[] prefix = Arrays.copyOf(rules, length);
+            try {
+                UiccCarrierPrivilegeRules.parseRules(prefix);
+                fail("Parsed truncated rules of length " + length);
+            } catch (IllegalArgumentException expected) {
+            }
+            // A partial response is never taken for a complete one
+            try {
+                UiccCarrierPrivilegeRules.TLV header =
+                        UiccCarrierPrivilegeRules.TLV.parseHeader(prefix, 0, prefix.length);
+                assertTrue(header.end() > prefix.length);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @SmallTest
+    public void testFuzz() {
+        Random random = new Random(SEED);
+        byte[][] corpus = { makeRules(1), makeRules(10), makeRules(100) };
+        int parsed = 0;
+        int rejected = 0;
+
+        for (int n = 0; n < FUZZ_ITERATIONS; n++) {
+            byte[] rules = corpus[random.nextInt(corpus.length)].clone();
+            int mutations = 1 + random.nextInt(4);
+            for (int m = 0; m < mutations; m++) {
+                switch (random.nextInt(3)) {
+                    case 0: // flip a byte
+                        rules[random.nextInt(rules.length)] = (byte) random.nextInt(0x100);
+                        break;
+                    case 1: // truncate
+                        rules = Arrays.copyOf(rules, random.nextInt(rules.length + 1));
+                        break;
+                    default: // mangle a length-like byte into a long form
+                        rules[random.nextInt(rules.length)] = (byte) (0x80 + random.nextInt(6));
+                        break;
+                }
+                if (rules.length == 0) {
+                    break;
+                }
+            }
+
+            // Only IllegalArgumentException may reject input; anything else is a parser bug.
+            try {
+                UiccCarrierPrivilegeRules.parseRules(rules);
+                parsed++;
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+        }
+        Rlog.d(TAG, "fuzz: " + parsed + " parsed, " + rejected + " rejected");
+        assertEquals(FUZZ_ITERATIONS, parsed + rejected);
+    }
+
+    @LargeTest
+    public void testParseSpeed() {
+        for (int count : CORPUS_SIZES) {
+            byte[] rules = makeRules(count);
+            int total = 0;
+
+            long start = System.nanoTime();
+            for (int n = 0; n < ITERATIONS; n++) {
+                total += UiccCarrierPrivilegeRules.parseRules(rules).size();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(count * ITERATIONS, total);
+            Rlog.d(TAG, "parse " + count + " rules (" + rules.length + " bytes): "
+                    + (elapsed / ITERATIONS / 1000) + " us, "
+                    + (elapsed / ((long) ITERATIONS * count)) + " ns per rule");
+        }
+    }
+}